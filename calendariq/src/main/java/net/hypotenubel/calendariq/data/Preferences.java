@@ -28,7 +28,7 @@ public enum Preferences {
 
     APPOINTMENTS("appointments", "10", Integer.class, null),
     INTERVAL("interval", "7", Integer.class, null),
-    FREQUENCY("frequency", "15", Integer.class, null),
+    FREQUENCY("frequency", "60", Integer.class, null),
     ACTIVE_CALENDARS("activeCalendars", null, Set.class, Integer.class);
 
 
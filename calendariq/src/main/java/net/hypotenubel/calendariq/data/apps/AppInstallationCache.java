@@ -0,0 +1,272 @@
+package net.hypotenubel.calendariq.data.apps;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import net.hypotenubel.calendariq.data.apps.model.TargetApps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import dagger.hilt.android.qualifiers.ApplicationContext;
+
+/**
+ * Remembers whether our apps are installed on the devices we have seen, so that broadcasts don't
+ * have to ask every device about every app every time. Results are only trusted for a while, and
+ * are forgotten as soon as anything suggests they might be wrong: a device changing its status or
+ * a message failing to reach an app.
+ *
+ * <p>Since apps may be updated at any time, the version we remember may lag behind for up to
+ * {@link #MAX_AGE_MILLIS}. Apps we found missing are looked for again after
+ * {@link #NOT_INSTALLED_MAX_AGE_MILLIS} so that newly installed apps get their data quickly.</p>
+ *
+ * <p>We also remember which devices were connected during the last broadcast. Together with the
+ * installations, that tells us whether a broadcast would reach anyone new. Since only broadcasts
+ * refresh that knowledge, it must be trusted for as long as broadcasts may be skipped. New devices
+ * and newly installed apps still receive data quickly, since our apps ask for it when they
+ * start.</p>
+ */
+public class AppInstallationCache {
+
+    /** Name of the shared preferences file we store installations in. */
+    private static final String PREFERENCES_NAME = "app_installations";
+    /** Installations verified longer ago than this are verified again. */
+    private static final long MAX_AGE_MILLIS = 6 * 60 * 60 * 1000;
+    /** Apps found missing longer ago than this are looked for again. */
+    private static final long NOT_INSTALLED_MAX_AGE_MILLIS = 15 * 60 * 1000;
+    /** Key under which we store the devices that were connected during the last broadcast. */
+    private static final String KEY_DEVICES = "devices";
+
+    private final Context context;
+
+    @Inject
+    public AppInstallationCache(@ApplicationContext Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Returns what we know about the given app on the given device, or {@code null} if we don't
+     * know anything we can still trust.
+     */
+    public Installation get(long deviceId, String appId) {
+        return get(deviceId, appId, NOT_INSTALLED_MAX_AGE_MILLIS, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns what we know about the given app on the given device at the given time, trusting
+     * that it is missing for up to the given time.
+     */
+    private Installation get(long deviceId, String appId, long notInstalledMaxAgeMillis,
+                             long nowMillis) {
+
+        Installation installation = Installation.deserialize(
+                getPreferences().getString(installationKey(deviceId, appId), null));
+
+        if (installation == null) {
+            return null;
+        }
+
+        long age = nowMillis - installation.verifiedMillis;
+        long maxAge = installation.installed ? MAX_AGE_MILLIS : notInstalledMaxAgeMillis;
+        return age < 0 || age > maxAge ? null : installation;
+    }
+
+    /**
+     * Records that the given app is installed on the given device in the given version.
+     */
+    public void putInstalled(long deviceId, String appId, String displayName, int version) {
+        put(deviceId, appId, new Installation(
+                System.currentTimeMillis(), true, version, displayName == null ? "" : displayName));
+    }
+
+    /**
+     * Records that the given app is not installed on the given device.
+     */
+    public void putNotInstalled(long deviceId, String appId) {
+        put(deviceId, appId, new Installation(
+                System.currentTimeMillis(), false, 0, ""));
+    }
+
+    /**
+     * Records that the given devices are the ones currently connected.
+     */
+    public void putConnectedDevices(Collection<Long> deviceIds) {
+        StringBuilder serialized = new StringBuilder().append(System.currentTimeMillis());
+        for (Long deviceId : deviceIds) {
+            serialized.append('|').append(deviceId);
+        }
+
+        getPreferences().edit().putString(KEY_DEVICES, serialized.toString()).apply();
+    }
+
+    /**
+     * Returns which of the given apps are installed on each device that is currently connected, or
+     * {@code null} if we don't know for sure. That is the case if we don't know which devices are
+     * connected, or if we don't know about one of the apps on one of the devices. The devices
+     * connected during the last broadcast and the apps missing on them are trusted for up to
+     * {@code maxAgeMillis}.
+     */
+    public Map<Long, List<String>> getInstalledApps(Collection<String> appIds, long maxAgeMillis) {
+        return getInstalledApps(appIds, maxAgeMillis, System.currentTimeMillis());
+    }
+
+    /**
+     * Same as {@link #getInstalledApps(Collection, long)}, but as of the given time.
+     */
+    Map<Long, List<String>> getInstalledApps(Collection<String> appIds, long maxAgeMillis,
+                                             long nowMillis) {
+
+        String serializedDevices = getPreferences().getString(KEY_DEVICES, null);
+        if (serializedDevices == null) {
+            return null;
+        }
+
+        Map<Long, List<String>> installedApps = new HashMap<>();
+        try {
+            String[] components = serializedDevices.split("\\|");
+
+            long age = nowMillis - Long.parseLong(components[0]);
+            if (age < 0 || age > maxAgeMillis) {
+                return null;
+            }
+
+            for (int i = 1; i < components.length; i++) {
+                long deviceId = Long.parseLong(components[i]);
+                List<String> deviceApps = new ArrayList<>();
+
+                for (String appId : appIds) {
+                    Installation installation = get(deviceId, appId, maxAgeMillis, nowMillis);
+                    if (installation == null) {
+                        return null;
+                    } else if (installation.isInstalled()) {
+                        deviceApps.add(appId);
+                    }
+                }
+
+                installedApps.put(deviceId, deviceApps);
+            }
+
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        return installedApps;
+    }
+
+    /**
+     * Forgets what we know about the given app on the given device.
+     */
+    public void invalidate(long deviceId, String appId) {
+        getPreferences().edit().remove(installationKey(deviceId, appId)).apply();
+    }
+
+    /**
+     * Forgets what we know about any app on the given device.
+     */
+    public void invalidateDevice(long deviceId) {
+        SharedPreferences preferences = getPreferences();
+        SharedPreferences.Editor editor = preferences.edit();
+
+        String prefix = deviceId + "/";
+        for (String key : preferences.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                editor.remove(key);
+            }
+        }
+
+        editor.apply();
+    }
+
+    private void put(long deviceId, String appId, Installation installation) {
+        getPreferences()
+                .edit()
+                .putString(installationKey(deviceId, appId), installation.serialize())
+                .apply();
+    }
+
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the key the given app's installation on the given device is stored under. We're told
+     * about apps both by our configured IDs and by the IDs ConnectIQ reports, which lack the
+     * dashes, so both must end up under the same key.
+     */
+    private static String installationKey(long deviceId, String appId) {
+        return deviceId + "/" + TargetApps.normalizeAppId(appId);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Data Holding
+
+    /**
+     * What we found out about an app on a device at a given time.
+     */
+    public static final class Installation {
+
+        /** When we found out. */
+        private final long verifiedMillis;
+        /** Whether the app is installed. */
+        private final boolean installed;
+        /** The app's version, if it is installed. */
+        private final int version;
+        /** The app's display name, if it is installed. */
+        private final String displayName;
+
+        private Installation(long verifiedMillis, boolean installed, int version,
+                             String displayName) {
+
+            this.verifiedMillis = verifiedMillis;
+            this.installed = installed;
+            this.version = version;
+            this.displayName = displayName;
+        }
+
+        public boolean isInstalled() {
+            return installed;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * Parses an installation created by {@link #serialize()}. Returns {@code null} if that
+         * fails.
+         */
+        private static Installation deserialize(String serialized) {
+            if (serialized == null) {
+                return null;
+            }
+
+            String[] components = serialized.split("\\|", 4);
+
+            try {
+                return new Installation(
+                        Long.parseLong(components[0]),
+                        Boolean.parseBoolean(components[1]),
+                        Integer.parseInt(components[2]),
+                        components[3]);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        private String serialize() {
+            return verifiedMillis + "|" + installed + "|" + version + "|" + displayName;
+        }
+
+    }
+
+}
@@ -0,0 +1,85 @@
+package net.hypotenubel.calendariq.data.apps;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import net.hypotenubel.calendariq.data.apps.model.DeviceProfile;
+import net.hypotenubel.calendariq.data.apps.source.IDeviceProfileSource;
+
+import javax.inject.Inject;
+
+import dagger.hilt.android.qualifiers.ApplicationContext;
+
+/**
+ * Decides which {@link DeviceProfile} applies to an app on a device. Watch apps can report their
+ * own limits, which we remember and which take precedence over anything else. Apps that haven't
+ * reported anything are restricted by the profile that matches their device's name, if any.
+ */
+public class DeviceProfileRepository {
+
+    /** Name of the shared preferences file we store reported limits in. */
+    private static final String PREFERENCES_NAME = "reported_device_profiles";
+
+    private final Context context;
+    private final IDeviceProfileSource profileSource;
+
+    @Inject
+    public DeviceProfileRepository(@ApplicationContext Context context,
+                                   IDeviceProfileSource profileSource) {
+        this.context = context;
+        this.profileSource = profileSource;
+    }
+
+    /**
+     * Returns the profile that applies to the given app on the given device.
+     */
+    public DeviceProfile getProfile(long deviceId, String deviceName, String appId) {
+        String reported = getPreferences().getString(recipientKey(deviceId, appId), null);
+        if (reported != null) {
+            String[] limits = reported.split("\\|", 2);
+
+            try {
+                DeviceProfile fallback = profileSource.getProfile(deviceName);
+                return new DeviceProfile(
+                        "reported",
+                        Integer.parseInt(limits[0]),
+                        Integer.parseInt(limits[1]),
+                        fallback.getMaxFormat());
+
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // Fall back to the device name
+            }
+        }
+
+        return profileSource.getProfile(deviceName);
+    }
+
+    /**
+     * Records the limits the given app on the given device has reported.
+     *
+     * @return whether the limits differ from those the app reported before.
+     */
+    public boolean recordReportedLimits(long deviceId, String appId, int maxAppointments,
+                                        int maxDays) {
+
+        String key = recipientKey(deviceId, appId);
+        String limits = maxAppointments + "|" + maxDays;
+
+        SharedPreferences preferences = getPreferences();
+        if (limits.equals(preferences.getString(key, null))) {
+            return false;
+        }
+
+        preferences.edit().putString(key, limits).apply();
+        return true;
+    }
+
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String recipientKey(long deviceId, String appId) {
+        return deviceId + "/" + appId;
+    }
+
+}
@@ -0,0 +1,83 @@
+package net.hypotenubel.calendariq.data.apps.model;
+
+import net.hypotenubel.calendariq.data.msg.model.MessageFormat;
+
+import java.util.Objects;
+
+/**
+ * Limits what we send to a class of devices. Low-memory watches can thus be sent fewer
+ * appointments than the user configured, and devices with older firmware can be kept from
+ * receiving message formats they have trouble with. Profiles only ever restrict what the
+ * preferences ask for.
+ */
+public final class DeviceProfile {
+
+    /** The profile used for devices we know nothing special about. */
+    public static final DeviceProfile UNRESTRICTED = new DeviceProfile(
+            "unrestricted", Integer.MAX_VALUE, Integer.MAX_VALUE, MessageFormat.DELTA);
+
+    /** The profile's name, used in log messages. */
+    private final String name;
+    /** The maximum number of appointments to send. */
+    private final int maxAppointments;
+    /** How many days into the future appointments may lie. */
+    private final int maxDays;
+    /** The most recent message format to use. */
+    private final MessageFormat maxFormat;
+
+    public DeviceProfile(String name, int maxAppointments, int maxDays, MessageFormat maxFormat) {
+        this.name = name;
+        this.maxAppointments = maxAppointments;
+        this.maxDays = maxDays;
+        this.maxFormat = maxFormat;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxAppointments() {
+        return maxAppointments;
+    }
+
+    public int getMaxDays() {
+        return maxDays;
+    }
+
+    public MessageFormat getMaxFormat() {
+        return maxFormat;
+    }
+
+    /**
+     * Returns the given format, or this profile's maximum format if that is older.
+     */
+    public MessageFormat restrict(MessageFormat format) {
+        return format.getVersion() > maxFormat.getVersion() ? maxFormat : format;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        DeviceProfile that = (DeviceProfile) o;
+        return maxAppointments == that.maxAppointments
+                && maxDays == that.maxDays
+                && maxFormat == that.maxFormat;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxAppointments, maxDays, maxFormat);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -1,20 +1,51 @@
 package net.hypotenubel.calendariq.data.apps.model;
 
+import net.hypotenubel.calendariq.data.msg.model.MessageFormat;
+
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class TargetApps {
 
     private final List<String> targetAppIds;
+    private final Map<String, Map<MessageFormat, Integer>> formatAppVersions;
 
     public TargetApps(List<String> appIds) {
+        this(appIds, null);
+    }
+
+    /**
+     * Creates a new instance for the given apps.
+     *
+     * @param appIds IDs of the apps to send data to.
+     * @param formatAppVersions maps app IDs to the message formats the respective app understands
+     *                          beyond the legacy format, and each of those formats to the first
+     *                          version of the app that understands it. Apps not contained here
+     *                          only understand the legacy format.
+     */
+    public TargetApps(List<String> appIds,
+                      Map<String, Map<MessageFormat, Integer>> formatAppVersions) {
         if (appIds == null) {
             this.targetAppIds = Collections.emptyList();
         } else {
             List<String> modifiableTargetAppIds = new ArrayList<>(appIds);
             this.targetAppIds = Collections.unmodifiableList(modifiableTargetAppIds);
         }
+
+        if (formatAppVersions == null) {
+            this.formatAppVersions = Collections.emptyMap();
+        } else {
+            // We're asked about apps by the IDs ConnectIQ reports, which lack the dashes
+            this.formatAppVersions = new HashMap<>();
+            for (Map.Entry<String, Map<MessageFormat, Integer>> entry
+                    : formatAppVersions.entrySet()) {
+                this.formatAppVersions.put(normalizeAppId(entry.getKey()), entry.getValue());
+            }
+        }
     }
 
     /**
@@ -23,4 +54,32 @@ public class TargetApps {
     public List<String> getTargetAppIds() {
         return targetAppIds;
     }
+
+    /**
+     * Returns the most recent message format the given app understands, given the version it
+     * reported when we asked it whether it's installed.
+     */
+    public MessageFormat getMessageFormat(String appId, int appVersion) {
+        MessageFormat result = MessageFormat.LEGACY;
+
+        Map<MessageFormat, Integer> appVersions = formatAppVersions.get(normalizeAppId(appId));
+        if (appVersions != null) {
+            for (Map.Entry<MessageFormat, Integer> entry : appVersions.entrySet()) {
+                if (appVersion >= entry.getValue()
+                        && entry.getKey().getVersion() > result.getVersion()) {
+                    result = entry.getKey();
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the given app ID the way ConnectIQ reports it, which lets us compare our IDs with
+     * those ConnectIQ hands us.
+     */
+    public static String normalizeAppId(String appId) {
+        return appId == null ? "" : appId.replaceAll("[\\s\\-]", "").toLowerCase(Locale.ROOT);
+    }
 }
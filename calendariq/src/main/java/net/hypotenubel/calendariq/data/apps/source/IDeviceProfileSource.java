@@ -0,0 +1,13 @@
+package net.hypotenubel.calendariq.data.apps.source;
+
+import net.hypotenubel.calendariq.data.apps.model.DeviceProfile;
+
+public interface IDeviceProfileSource {
+
+    /**
+     * Returns the profile for the device with the given name, which is
+     * {@link DeviceProfile#UNRESTRICTED} for devices no profile applies to.
+     */
+    DeviceProfile getProfile(String deviceName);
+
+}
@@ -0,0 +1,142 @@
+package net.hypotenubel.calendariq.data.apps.source;
+
+import android.app.Application;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.util.Log;
+
+import net.hypotenubel.calendariq.R;
+import net.hypotenubel.calendariq.data.apps.model.DeviceProfile;
+import net.hypotenubel.calendariq.data.msg.model.MessageFormat;
+import net.hypotenubel.calendariq.util.Utilities;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Knows how to load device profiles from our XML resource. ConnectIQ doesn't tell us the part
+ * number of a device, so profiles are matched against device names. The first matching profile
+ * applies. Since the resource can't change while we're running, it is only parsed once.
+ */
+@Singleton
+public class XmlResourceDeviceProfileSource implements IDeviceProfileSource {
+
+    private static final String LOG_TAG = Utilities.logTag(XmlResourceDeviceProfileSource.class);
+
+    // Tag and attribute names used in the XML file
+    private static final String XML_TAG_DEVICE_PROFILES = "DeviceProfiles";
+    private static final String XML_TAG_PROFILE = "Profile";
+    private static final String XML_ATTRIBUTE_NAME = "name";
+    private static final String XML_ATTRIBUTE_DEVICE_NAMES = "deviceNames";
+    private static final String XML_ATTRIBUTE_MAX_APPOINTMENTS = "maxAppointments";
+    private static final String XML_ATTRIBUTE_MAX_DAYS = "maxDays";
+    private static final String XML_ATTRIBUTE_MAX_FORMAT = "maxFormat";
+
+    private final List<MatchingProfile> profiles;
+
+    @Inject
+    public XmlResourceDeviceProfileSource(Application application) {
+        profiles = loadProfiles(application.getResources());
+    }
+
+    @Override
+    public DeviceProfile getProfile(String deviceName) {
+        if (deviceName != null) {
+            for (MatchingProfile profile : profiles) {
+                if (profile.deviceNames.matcher(deviceName).matches()) {
+                    return profile.profile;
+                }
+            }
+        }
+
+        return DeviceProfile.UNRESTRICTED;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // XML Parsing
+
+    private List<MatchingProfile> loadProfiles(Resources res) {
+        List<MatchingProfile> profiles = new ArrayList<>();
+
+        try (XmlResourceParser xmlParser = res.getXml(R.xml.device_profiles)) {
+            // Advance to the first start tag
+            while (xmlParser.getEventType() != XmlPullParser.START_TAG) {
+                xmlParser.next();
+            }
+
+            xmlParser.require(XmlPullParser.START_TAG, null, XML_TAG_DEVICE_PROFILES);
+            while (xmlParser.next() != XmlPullParser.END_TAG) {
+                profiles.add(parseProfile(xmlParser));
+            }
+            xmlParser.require(XmlPullParser.END_TAG, null, XML_TAG_DEVICE_PROFILES);
+
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Exception parsing device profiles: " + e.getMessage());
+        }
+
+        return profiles;
+    }
+
+    private MatchingProfile parseProfile(XmlResourceParser xmlParser)
+            throws IOException, XmlPullParserException {
+
+        xmlParser.require(XmlPullParser.START_TAG, null, XML_TAG_PROFILE);
+
+        String name = xmlParser.getAttributeValue(null, XML_ATTRIBUTE_NAME);
+        Pattern deviceNames = Pattern.compile(
+                xmlParser.getAttributeValue(null, XML_ATTRIBUTE_DEVICE_NAMES),
+                Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+
+        // Limits that aren't specified don't restrict anything
+        int maxAppointments = parseInt(xmlParser, XML_ATTRIBUTE_MAX_APPOINTMENTS);
+        int maxDays = parseInt(xmlParser, XML_ATTRIBUTE_MAX_DAYS);
+
+        String maxFormatName = xmlParser.getAttributeValue(null, XML_ATTRIBUTE_MAX_FORMAT);
+        MessageFormat maxFormat = maxFormatName == null
+                ? DeviceProfile.UNRESTRICTED.getMaxFormat()
+                : MessageFormat.valueOf(maxFormatName.toUpperCase(Locale.ROOT));
+
+        xmlParser.next();
+        xmlParser.require(XmlPullParser.END_TAG, null, XML_TAG_PROFILE);
+
+        return new MatchingProfile(
+                deviceNames,
+                new DeviceProfile(name, maxAppointments, maxDays, maxFormat));
+    }
+
+    private int parseInt(XmlResourceParser xmlParser, String attribute) {
+        String value = xmlParser.getAttributeValue(null, attribute);
+        return value == null ? Integer.MAX_VALUE : Integer.parseInt(value);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Data Holding
+
+    /**
+     * A profile along with the names of the devices it applies to.
+     */
+    private static final class MatchingProfile {
+
+        /** Matches the names of the devices the profile applies to. */
+        private final Pattern deviceNames;
+        /** The profile itself. */
+        private final DeviceProfile profile;
+
+        private MatchingProfile(Pattern deviceNames, DeviceProfile profile) {
+            this.deviceNames = deviceNames;
+            this.profile = profile;
+        }
+
+    }
+
+}
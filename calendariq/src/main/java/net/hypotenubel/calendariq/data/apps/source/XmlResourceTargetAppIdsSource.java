@@ -7,6 +7,7 @@ import android.util.Log;
 
 import net.hypotenubel.calendariq.R;
 import net.hypotenubel.calendariq.data.apps.model.TargetApps;
+import net.hypotenubel.calendariq.data.msg.model.MessageFormat;
 import net.hypotenubel.calendariq.util.Utilities;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -14,13 +15,20 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
 /**
- * Knows how to load the list of target apps from our XML resource.
+ * Knows how to load the list of target apps from our XML resource. Since the resource can't change
+ * while we're running, it is only parsed once.
  */
+@Singleton
 public class XmlResourceTargetAppIdsSource implements ITargetAppIdsSource {
 
     private static final String LOG_TAG = Utilities.logTag(XmlResourceTargetAppIdsSource.class);
@@ -29,6 +37,7 @@ public class XmlResourceTargetAppIdsSource implements ITargetAppIdsSource {
     private static final String XML_TAG_TARGET_APPS = "TargetApps";
     private static final String XML_TAG_APP = "App";
     private static final String XML_ATTRIBUTE_ID = "id";
+    private static final String XML_ATTRIBUTE_FORMAT_VERSION_SUFFIX = "FormatVersion";
 
     private final TargetApps targetApps;
 
@@ -47,6 +56,7 @@ public class XmlResourceTargetAppIdsSource implements ITargetAppIdsSource {
 
     private TargetApps loadTargetApps(Resources res) {
         List<String> targetApps = null;
+        Map<String, Map<MessageFormat, Integer>> formatAppVersions = new HashMap<>();
 
         try (XmlResourceParser xmlParser = res.getXml(R.xml.target_apps)) {
             // Advance to the first start tag
@@ -54,30 +64,61 @@ public class XmlResourceTargetAppIdsSource implements ITargetAppIdsSource {
                 xmlParser.next();
             }
 
-            targetApps = parseTargetApps(xmlParser);
+            targetApps = parseTargetApps(xmlParser, formatAppVersions);
 
         } catch (Exception e) {
             Log.e(LOG_TAG, "Exception parsing target apps: " + e.getMessage());
         }
 
-        return new TargetApps(targetApps);
+        return new TargetApps(targetApps, formatAppVersions);
     }
 
-    private List<String> parseTargetApps(XmlResourceParser xmlParser) throws IOException, XmlPullParserException {
+    private List<String> parseTargetApps(XmlResourceParser xmlParser,
+                                         Map<String, Map<MessageFormat, Integer>> formatAppVersions)
+            throws IOException, XmlPullParserException {
         List<String> targetApps = new ArrayList<>();
 
         xmlParser.require(XmlPullParser.START_TAG, null, XML_TAG_TARGET_APPS);
         while (xmlParser.next() != XmlPullParser.END_TAG) {
-            targetApps.add(parseTargetApp(xmlParser));
+            targetApps.add(parseTargetApp(xmlParser, formatAppVersions));
         }
         xmlParser.require(XmlPullParser.END_TAG, null, XML_TAG_TARGET_APPS);
 
         return targetApps;
     }
 
-    private String parseTargetApp(XmlResourceParser xmlParser) throws IOException, XmlPullParserException {
+    private String parseTargetApp(XmlResourceParser xmlParser,
+                                  Map<String, Map<MessageFormat, Integer>> formatAppVersions)
+            throws IOException, XmlPullParserException {
+
         xmlParser.require(XmlPullParser.START_TAG, null, XML_TAG_APP);
         String id = xmlParser.getAttributeValue(null, XML_ATTRIBUTE_ID);
+
+        // Each format beyond the legacy one has an attribute such as compactFormatVersion that
+        // specifies the first version of the app that understands it
+        Map<MessageFormat, Integer> appVersions = new EnumMap<>(MessageFormat.class);
+        for (MessageFormat format : MessageFormat.values()) {
+            if (format == MessageFormat.LEGACY) {
+                continue;
+            }
+
+            String attribute = format.name().toLowerCase(Locale.ROOT)
+                    + XML_ATTRIBUTE_FORMAT_VERSION_SUFFIX;
+            String appVersion = xmlParser.getAttributeValue(null, attribute);
+
+            if (appVersion != null) {
+                try {
+                    appVersions.put(format, Integer.parseInt(appVersion));
+                } catch (NumberFormatException e) {
+                    Log.e(LOG_TAG, "Invalid " + attribute + " for app " + id);
+                }
+            }
+        }
+
+        if (!appVersions.isEmpty()) {
+            formatAppVersions.put(id, appVersions);
+        }
+
         xmlParser.next();
         xmlParser.require(XmlPullParser.END_TAG, null, XML_TAG_APP);
 
@@ -1,6 +1,9 @@
 package net.hypotenubel.calendariq.data.calendar;
 
 import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.CalendarContract;
+import android.util.Log;
 
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
@@ -8,36 +11,58 @@ import androidx.lifecycle.MutableLiveData;
 import net.hypotenubel.calendariq.data.Preferences;
 import net.hypotenubel.calendariq.data.calendar.model.CalendarDescriptor;
 import net.hypotenubel.calendariq.data.calendar.source.ICalendarSource;
+import net.hypotenubel.calendariq.util.Utilities;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
 
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
 import dagger.hilt.android.qualifiers.ApplicationContext;
 
 /**
  * Repository for accessing calendars and managing which ones are active and which ones are not.
+ * The list of available calendars is only reloaded if the calendar provider reported changes
+ * since we last loaded it, which makes refreshes cheap.
  */
+@Singleton
 public class CalendarRepository {
 
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(CalendarRepository.class);
+
     private final Context context;
 
     private final ICalendarSource calendarSource;
 
+    private final Dispatcher dispatcher;
+
     /** Live data for available calendars. Updated upon refresh. */
     private final MutableLiveData<List<CalendarDescriptor>> availableCalendars
             = new MutableLiveData<>();
 
+    /** Observer that marks our calendars as stale when the calendar provider reports changes. */
+    private final CalendarsObserver observer = new CalendarsObserver();
+    /** Whether our observer is registered with the calendar provider. */
+    private boolean observing = false;
+    /** Whether the calendars need to be reloaded on the next refresh. */
+    private boolean calendarsStale = true;
+
     /**
      * Creates a new instance that retrieves calendars from the given calendar source.
      */
     @Inject
-    public CalendarRepository(@ApplicationContext Context context, ICalendarSource calendarSource) {
+    public CalendarRepository(@ApplicationContext Context context, ICalendarSource calendarSource,
+                              Dispatcher dispatcher) {
         this.context = context;
         this.calendarSource = calendarSource;
+        this.dispatcher = dispatcher;
         refreshAvailableCalendars();
     }
 
@@ -58,20 +83,104 @@ public class CalendarRepository {
      * Triggers a refresh of all available calendars and updates the associated live data.
      */
     public void refreshAvailableCalendars() {
-        // Fire off a thread that loads a new list of calendars
-        new Thread(() -> {
-            // Load available calendars
-            List<CalendarDescriptor> calList = calendarSource.getAvailableCalendars();
+        // Nothing to do if nothing has changed since we last loaded calendars
+        synchronized (this) {
+            if (!calendarsStale) {
+                return;
+            }
+
+            // Changes reported while we're loading make us load again on the next refresh
+            calendarsStale = !ensureObserving();
+        }
+
+        // Load a new list of calendars in the background
+        try {
+            dispatcher.io().execute(this::loadAvailableCalendars);
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "Unable to refresh calendars", e);
+            markCalendarsStale();
+        }
+    }
+
+    /**
+     * Loads the available calendars and updates the associated live data if they have changed.
+     */
+    private void loadAvailableCalendars() {
+        // Load available calendars
+        List<CalendarDescriptor> calList = calendarSource.getAvailableCalendars();
+
+        // Without calendars, we're most likely still waiting for permission to read them,
+        // which doesn't trigger our observer once it's granted
+        if (calList.isEmpty()) {
+            markCalendarsStale();
+        }
 
-            // Sort the list so that the UI won't have to
-            Collections.sort(calList);
+        // Sort the list so that the UI won't have to
+        Collections.sort(calList);
 
-            // Set the calendar activity flags
-            loadActiveCalendarIds(calList);
+        // Set the calendar activity flags
+        loadActiveCalendarIds(calList);
 
-            // Update live data
+        // Update live data, but only if something has actually changed
+        if (availableCalendars.getValue() == null
+                || !isSameCalendarList(availableCalendars.getValue(), calList)) {
             availableCalendars.postValue(calList);
-        }).start();
+        } else {
+            Log.d(LOG_TAG, "Available calendars unchanged");
+        }
+    }
+
+    /**
+     * Registers our observer with the calendar provider, if we haven't done so already. Returns
+     * whether the observer is registered.
+     */
+    private synchronized boolean ensureObserving() {
+        if (!observing) {
+            try {
+                context.getContentResolver().registerContentObserver(
+                        CalendarContract.Calendars.CONTENT_URI, true, observer);
+                observing = true;
+            } catch (SecurityException e) {
+                Log.d(LOG_TAG, "Unable to observe calendars", e);
+            }
+        }
+
+        return observing;
+    }
+
+    /**
+     * Causes the next refresh to actually reload calendars.
+     */
+    private synchronized void markCalendarsStale() {
+        calendarsStale = true;
+    }
+
+    /**
+     * Checks whether two sorted calendar lists are the same, down to every property of every
+     * calendar. {@link CalendarDescriptor#equals(Object)} only compares IDs, which doesn't help us
+     * notice renamed or recoloured calendars.
+     */
+    private static boolean isSameCalendarList(List<CalendarDescriptor> list1,
+                                              List<CalendarDescriptor> list2) {
+
+        if (list1.size() != list2.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < list1.size(); i++) {
+            CalendarDescriptor cal1 = list1.get(i);
+            CalendarDescriptor cal2 = list2.get(i);
+
+            if (cal1.getId() != cal2.getId()
+                    || !Objects.equals(cal1.getName(), cal2.getName())
+                    || !Objects.equals(cal1.getAccount(), cal2.getAccount())
+                    || cal1.getColour() != cal2.getColour()
+                    || cal1.isActive() != cal2.isActive()) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     /**
@@ -104,8 +213,10 @@ public class CalendarRepository {
 
     /**
      * Stores the IDs of active calendars to our preferences.
+     *
+     * @return {@code true} if the set of active calendars differs from what was stored before.
      */
-    public void storeActiveCalendarIds() {
+    public boolean storeActiveCalendarIds() {
         if (availableCalendars.getValue() != null) {
             // Build a set of IDs of our active calendars
             Set<Integer> activeCalendarIds = new HashSet<>();
@@ -115,8 +226,34 @@ public class CalendarRepository {
                 }
             }
 
-            Preferences.ACTIVE_CALENDARS.storeIntSet(context, activeCalendarIds);
+            if (!activeCalendarIds.equals(Preferences.ACTIVE_CALENDARS.loadIntSet(context))) {
+                Preferences.ACTIVE_CALENDARS.storeIntSet(context, activeCalendarIds);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Support Classes
+
+    /**
+     * Marks our calendars as stale as the calendar provider notifies us of changes.
+     */
+    private final class CalendarsObserver extends ContentObserver {
+
+        private CalendarsObserver() {
+            super(null);
         }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            markCalendarsStale();
+        }
+
     }
 
 }
@@ -0,0 +1,178 @@
+package net.hypotenubel.calendariq.data.calendar.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A growable list of appointment times, given in seconds UTC, that is kept in ascending order.
+ * Appointments are stored as primitive {@code long}s, which saves us from boxing every single one of
+ * them on their way from the calendar to the watch. Appending appointments in ascending order, which
+ * is what calendar sources usually do, is cheap. Out-of-order appointments are inserted at their
+ * proper position.
+ *
+ * <p>Buffers can be {@link #clear() cleared} and refilled, which allows them to be reused.</p>
+ */
+public final class AppointmentBuffer {
+
+    /** Capacity of new buffers unless specified otherwise. */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /** The appointments. Only the first {@link #size} entries are valid. */
+    private long[] appointments;
+    /** The number of appointments in the buffer. */
+    private int size = 0;
+
+
+    /**
+     * Creates a new, empty buffer.
+     */
+    public AppointmentBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new, empty buffer with room for the given number of appointments.
+     *
+     * @param capacity the initial capacity.
+     */
+    public AppointmentBuffer(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity was " + capacity);
+        }
+
+        appointments = new long[capacity];
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Accessors
+
+    /**
+     * Returns the number of appointments in the buffer.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the buffer is empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the appointment at the given index.
+     *
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public long get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+
+        return appointments[index];
+    }
+
+    /**
+     * Returns a copy of the buffer's appointments.
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(appointments, size);
+    }
+
+    /**
+     * Returns a copy of the buffer's appointments as a list. This is mainly meant to support APIs
+     * that still expect lists.
+     */
+    public List<Long> toList() {
+        List<Long> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(appointments[i]);
+        }
+        return result;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Modification
+
+    /**
+     * Adds the given appointment at its proper position.
+     *
+     * @param appointment appointment time in seconds UTC.
+     */
+    public void add(long appointment) {
+        ensureCapacity(size + 1);
+
+        // Find the insertion position, starting from the end since that's the common case
+        int index = size;
+        while (index > 0 && appointments[index - 1] > appointment) {
+            index--;
+        }
+
+        System.arraycopy(appointments, index, appointments, index + 1, size - index);
+        appointments[index] = appointment;
+        size++;
+    }
+
+    /**
+     * Adds all of the given appointments, which don't need to be sorted.
+     *
+     * @param newAppointments appointment times in seconds UTC.
+     */
+    public void addAll(long[] newAppointments) {
+        ensureCapacity(size + newAppointments.length);
+
+        System.arraycopy(newAppointments, 0, appointments, size, newAppointments.length);
+        size += newAppointments.length;
+
+        Arrays.sort(appointments, 0, size);
+    }
+
+    /**
+     * Removes all but the first {@code maxSize} appointments.
+     */
+    public void truncate(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Size was " + maxSize);
+        }
+
+        size = Math.min(size, maxSize);
+    }
+
+    /**
+     * Removes all appointments that begin after the given time.
+     *
+     * @param latestAppointment time in seconds UTC after which appointments are removed.
+     */
+    public void removeAfter(long latestAppointment) {
+        while (size > 0 && appointments[size - 1] > latestAppointment) {
+            size--;
+        }
+    }
+
+    /**
+     * Removes all appointments from the buffer.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Ensures that the buffer can hold at least the given number of appointments.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > appointments.length) {
+            int newCapacity = Math.max(capacity, appointments.length * 2);
+            appointments = Arrays.copyOf(appointments, newCapacity);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+}
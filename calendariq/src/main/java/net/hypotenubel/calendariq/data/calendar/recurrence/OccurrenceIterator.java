@@ -0,0 +1,497 @@
+package net.hypotenubel.calendariq.data.calendar.recurrence;
+
+import net.hypotenubel.calendariq.data.calendar.model.AppointmentBuffer;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.NoSuchElementException;
+
+/**
+ * Produces the occurrences of a {@link RecurrenceSet} in ascending order, one at a time. The
+ * recurrence rule is expanded one period (a day, week, month or year, depending on its frequency)
+ * at a time, so we only ever compute as many occurrences as the caller actually asks for. Rules
+ * that are not limited by a count skip right to the requested range instead of expanding all
+ * periods since the event's start.
+ */
+public final class OccurrenceIterator {
+
+    /** Marks the absence of an occurrence. */
+    private static final long NONE = Long.MAX_VALUE;
+
+    private static final long MILLISECONDS_PER_HOUR = 60 * 60 * 1000;
+    private static final long MILLISECONDS_PER_DAY = 24 * MILLISECONDS_PER_HOUR;
+
+    /** The recurrence set whose occurrences we produce. */
+    private final RecurrenceSet set;
+    /** Start of the range we produce occurrences for in milliseconds UTC, inclusive. */
+    private final long fromMillis;
+    /** End of the range we produce occurrences for in milliseconds UTC, exclusive. */
+    private final long toMillis;
+
+    /** The occurrence that {@link #next()} will return. */
+    private long next;
+    /** The occurrence we returned last. Used to drop duplicates. */
+    private long previous = Long.MIN_VALUE;
+
+    /** Index of the next additional date to consider. */
+    private int additionalDateIndex = 0;
+    /** The next occurrence produced by the rule, or {@link #NONE} if we need to compute it. */
+    private long ruleHead = NONE;
+    /** Whether the rule has been exhausted. */
+    private boolean ruleDone;
+
+    /** Calendar in the event's time zone that we do our date computations with. */
+    private final Calendar cal;
+    /** The rule's end in milliseconds UTC, inclusive. */
+    private final long untilMillis;
+    /** Occurrences produced so far, counted from the event's start. Used for counted rules. */
+    private int ruleCount = 0;
+    /** Index of the next period to expand. */
+    private long period = 0;
+    /** The occurrences of the current period. */
+    private final AppointmentBuffer periodOccurrences = new AppointmentBuffer();
+    /** Index of the next occurrence of the current period to consider. */
+    private int periodIndex = 0;
+
+    // Properties of the event's start in its time zone
+    private final int startYear;
+    private final int startMonth;
+    private final int startDay;
+    private final int startWeekday;
+    private final int startHour;
+    private final int startMinute;
+    private final int startSecond;
+
+    // Date of the first day of the period the event's start falls into
+    private final int anchorYear;
+    private final int anchorMonth;
+    private final int anchorDay;
+
+
+    OccurrenceIterator(RecurrenceSet set, long fromMillis, long toMillis)
+            throws RecurrenceFormatException {
+
+        this.set = set;
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+
+        cal = Calendar.getInstance(set.getTimeZone());
+        cal.setTimeInMillis(set.getStartMillis());
+        startYear = cal.get(Calendar.YEAR);
+        startMonth = cal.get(Calendar.MONTH);
+        startDay = cal.get(Calendar.DAY_OF_MONTH);
+        startWeekday = cal.get(Calendar.DAY_OF_WEEK);
+        startHour = cal.get(Calendar.HOUR_OF_DAY);
+        startMinute = cal.get(Calendar.MINUTE);
+        startSecond = cal.get(Calendar.SECOND);
+
+        RecurrenceRule rule = set.getRule();
+        ruleDone = rule == null;
+
+        if (rule == null) {
+            untilMillis = Long.MIN_VALUE;
+            anchorYear = startYear;
+            anchorMonth = startMonth;
+            anchorDay = startDay;
+
+        } else {
+            untilMillis = resolveUntil(rule);
+
+            // Find the first day of the first period
+            cal.clear();
+            cal.set(startYear, startMonth, startDay);
+            switch (rule.getFrequency()) {
+                case WEEKLY:
+                    cal.add(Calendar.DAY_OF_MONTH, -((startWeekday - rule.getWeekStart() + 7) % 7));
+                    break;
+                case MONTHLY:
+                    cal.set(Calendar.DAY_OF_MONTH, 1);
+                    break;
+                case YEARLY:
+                    cal.set(Calendar.MONTH, Calendar.JANUARY);
+                    cal.set(Calendar.DAY_OF_MONTH, 1);
+                    break;
+                default:
+                    break;
+            }
+            anchorYear = cal.get(Calendar.YEAR);
+            anchorMonth = cal.get(Calendar.MONTH);
+            anchorDay = cal.get(Calendar.DAY_OF_MONTH);
+
+            // Without a count, earlier periods don't matter and we can skip them. Our estimate of a
+            // period's length errs on the long side, so we never skip too far
+            if (rule.getCount() < 0 && fromMillis > set.getStartMillis()) {
+                long skippablePeriods = (fromMillis - periodStartMillis(0))
+                        / (maxPeriodMillis(rule) * rule.getInterval()) - 1;
+                period = Math.max(0, skippablePeriods);
+            }
+        }
+
+        next = computeNext();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Iteration
+
+    /**
+     * Checks whether there are more occurrences in the range.
+     */
+    public boolean hasNext() {
+        return next != NONE;
+    }
+
+    /**
+     * Returns the next occurrence without consuming it.
+     *
+     * @throws NoSuchElementException if there are no more occurrences.
+     */
+    public long peek() {
+        if (next == NONE) {
+            throw new NoSuchElementException();
+        }
+        return next;
+    }
+
+    /**
+     * Returns and consumes the next occurrence.
+     *
+     * @return start of the occurrence in milliseconds UTC.
+     * @throws NoSuchElementException if there are no more occurrences.
+     */
+    public long next() {
+        long result = peek();
+        previous = result;
+        next = computeNext();
+        return result;
+    }
+
+    /**
+     * Merges the rule's occurrences and the additional dates, dropping excluded dates, duplicates,
+     * and occurrences outside our range.
+     */
+    private long computeNext() {
+        long[] additionalDates = set.getAdditionalDates();
+        long[] excludedDates = set.getExcludedDates();
+
+        while (true) {
+            if (ruleHead == NONE && !ruleDone) {
+                ruleHead = nextRuleOccurrence();
+            }
+
+            long additionalHead = additionalDateIndex < additionalDates.length
+                    ? additionalDates[additionalDateIndex]
+                    : NONE;
+
+            long candidate = Math.min(ruleHead, additionalHead);
+            if (candidate == NONE || candidate >= toMillis) {
+                return NONE;
+            }
+
+            if (ruleHead == candidate) {
+                ruleHead = NONE;
+            }
+            if (additionalHead == candidate) {
+                additionalDateIndex++;
+            }
+
+            if (candidate >= fromMillis
+                    && candidate != previous
+                    && Arrays.binarySearch(excludedDates, candidate) < 0) {
+
+                return candidate;
+            }
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Rule Expansion
+
+    /**
+     * Returns the rule's next occurrence, or {@link #NONE} if there is none before the end of our
+     * range.
+     */
+    private long nextRuleOccurrence() {
+        RecurrenceRule rule = set.getRule();
+
+        while (!ruleDone) {
+            if (periodIndex < periodOccurrences.size()) {
+                long occurrence = periodOccurrences.get(periodIndex++);
+
+                if (occurrence < set.getStartMillis()) {
+                    continue;
+                }
+
+                if (occurrence > untilMillis
+                        || (rule.getCount() >= 0 && ruleCount >= rule.getCount())) {
+                    ruleDone = true;
+                    break;
+                }
+
+                ruleCount++;
+                return occurrence;
+            }
+
+            // All occurrences of a period start no earlier than the period itself
+            long periodStart = periodStartMillis(period);
+            if (periodStart >= toMillis || periodStart > untilMillis) {
+                ruleDone = true;
+                break;
+            }
+
+            periodOccurrences.clear();
+            periodIndex = 0;
+            expandPeriod(rule, period++);
+        }
+
+        return NONE;
+    }
+
+    /**
+     * Adds all occurrences of the given period to {@link #periodOccurrences}, in no particular
+     * order and without checking them against the event's start or the rule's end.
+     */
+    private void expandPeriod(RecurrenceRule rule, long periodNumber) {
+        switch (rule.getFrequency()) {
+            case DAILY:
+                setToPeriodStart(periodNumber);
+                addIfMatching(rule, cal.get(Calendar.YEAR), cal.get(Calendar.MONTH),
+                        cal.get(Calendar.DAY_OF_MONTH));
+                break;
+
+            case WEEKLY:
+                for (int day = 0; day < 7; day++) {
+                    setToPeriodStart(periodNumber);
+                    cal.add(Calendar.DAY_OF_MONTH, day);
+                    addIfMatching(rule, cal.get(Calendar.YEAR), cal.get(Calendar.MONTH),
+                            cal.get(Calendar.DAY_OF_MONTH));
+                }
+                break;
+
+            case MONTHLY:
+                setToPeriodStart(periodNumber);
+                int year = cal.get(Calendar.YEAR);
+                int month = cal.get(Calendar.MONTH);
+                if (rule.getByMonth().length == 0 || contains(rule.getByMonth(), month + 1)) {
+                    expandMonth(rule, year, month);
+                }
+                break;
+
+            case YEARLY:
+                setToPeriodStart(periodNumber);
+                int periodYear = cal.get(Calendar.YEAR);
+                boolean byMonthDayOrByDay =
+                        rule.getByMonthDay().length > 0 || rule.getByDayWeekdays().length > 0;
+
+                for (int m = Calendar.JANUARY; m <= Calendar.DECEMBER; m++) {
+                    boolean monthIncluded = rule.getByMonth().length > 0
+                            ? contains(rule.getByMonth(), m + 1)
+                            : rule.getByMonthDay().length > 0 || m == startMonth;
+
+                    if (!monthIncluded) {
+                        continue;
+                    }
+
+                    if (byMonthDayOrByDay) {
+                        expandMonth(rule, periodYear, m);
+                    } else if (startDay <= daysInMonth(periodYear, m)) {
+                        addOccurrence(periodYear, m, startDay);
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Adds the occurrences of a month, as selected by the rule's {@code BYMONTHDAY} and
+     * {@code BYDAY} parts, or the day of the month the event started on if there are none.
+     */
+    private void expandMonth(RecurrenceRule rule, int year, int month) {
+        int daysInMonth = daysInMonth(year, month);
+
+        if (rule.getByMonthDay().length > 0) {
+            for (int monthDay : rule.getByMonthDay()) {
+                int day = monthDay > 0 ? monthDay : daysInMonth + monthDay + 1;
+                if (day >= 1 && day <= daysInMonth
+                        && (rule.getByDayWeekdays().length == 0
+                            || matchesByDay(rule, year, month, day, daysInMonth))) {
+
+                    addOccurrence(year, month, day);
+                }
+            }
+
+        } else if (rule.getByDayWeekdays().length > 0) {
+            for (int day = 1; day <= daysInMonth; day++) {
+                if (matchesByDay(rule, year, month, day, daysInMonth)) {
+                    addOccurrence(year, month, day);
+                }
+            }
+
+        } else if (startDay <= daysInMonth) {
+            addOccurrence(year, month, startDay);
+        }
+    }
+
+    /**
+     * Adds the given day of a daily or weekly rule if it passes the rule's filters.
+     */
+    private void addIfMatching(RecurrenceRule rule, int year, int month, int day) {
+        if (rule.getByMonth().length > 0 && !contains(rule.getByMonth(), month + 1)) {
+            return;
+        }
+
+        if (rule.getByMonthDay().length > 0) {
+            int daysInMonth = daysInMonth(year, month);
+            boolean matches = false;
+            for (int monthDay : rule.getByMonthDay()) {
+                matches |= day == (monthDay > 0 ? monthDay : daysInMonth + monthDay + 1);
+            }
+            if (!matches) {
+                return;
+            }
+        }
+
+        int weekday = weekday(year, month, day);
+        if (rule.getByDayWeekdays().length > 0) {
+            if (!contains(rule.getByDayWeekdays(), weekday)) {
+                return;
+            }
+        } else if (rule.getFrequency() == RecurrenceRule.Frequency.WEEKLY
+                && weekday != startWeekday) {
+            return;
+        }
+
+        addOccurrence(year, month, day);
+    }
+
+    /**
+     * Checks whether the given day matches one of the rule's {@code BYDAY} entries, taking
+     * ordinals into account.
+     */
+    private boolean matchesByDay(RecurrenceRule rule, int year, int month, int day,
+                                 int daysInMonth) {
+
+        int weekday = weekday(year, month, day);
+        int[] weekdays = rule.getByDayWeekdays();
+        int[] ordinals = rule.getByDayOrdinals();
+
+        for (int i = 0; i < weekdays.length; i++) {
+            if (weekdays[i] != weekday) {
+                continue;
+            }
+
+            int ordinal = ordinals[i];
+            if (ordinal == 0
+                    || (ordinal > 0 && (day - 1) / 7 + 1 == ordinal)
+                    || (ordinal < 0 && (daysInMonth - day) / 7 + 1 == -ordinal)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds an occurrence on the given day, at the time of day the event started at.
+     */
+    private void addOccurrence(int year, int month, int day) {
+        cal.clear();
+        cal.set(year, month, day, startHour, startMinute, startSecond);
+        periodOccurrences.add(cal.getTimeInMillis());
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Date Utilities
+
+    /**
+     * Sets our calendar to midnight of the first day of the given period.
+     */
+    private void setToPeriodStart(long periodNumber) {
+        RecurrenceRule rule = set.getRule();
+        int amount = (int) (periodNumber * rule.getInterval());
+
+        cal.clear();
+        cal.set(anchorYear, anchorMonth, anchorDay);
+
+        switch (rule.getFrequency()) {
+            case DAILY:
+                cal.add(Calendar.DAY_OF_MONTH, amount);
+                break;
+            case WEEKLY:
+                cal.add(Calendar.DAY_OF_MONTH, 7 * amount);
+                break;
+            case MONTHLY:
+                cal.add(Calendar.MONTH, amount);
+                break;
+            case YEARLY:
+                cal.add(Calendar.YEAR, amount);
+                break;
+        }
+    }
+
+    /**
+     * Returns midnight of the first day of the given period in milliseconds UTC.
+     */
+    private long periodStartMillis(long periodNumber) {
+        setToPeriodStart(periodNumber);
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Returns an upper bound for the length of a single frequency unit of the given rule.
+     */
+    private static long maxPeriodMillis(RecurrenceRule rule) {
+        // Daylight saving time may add an hour to any period
+        switch (rule.getFrequency()) {
+            case DAILY:
+                return MILLISECONDS_PER_DAY + MILLISECONDS_PER_HOUR;
+            case WEEKLY:
+                return 7 * MILLISECONDS_PER_DAY + MILLISECONDS_PER_HOUR;
+            case MONTHLY:
+                return 31 * MILLISECONDS_PER_DAY + MILLISECONDS_PER_HOUR;
+            default:
+                return 366 * MILLISECONDS_PER_DAY + MILLISECONDS_PER_HOUR;
+        }
+    }
+
+    /**
+     * Resolves the rule's {@code UNTIL} value in the event's time zone. Plain dates include the
+     * whole day.
+     */
+    private long resolveUntil(RecurrenceRule rule) throws RecurrenceFormatException {
+        String until = rule.getUntil();
+        if (until == null) {
+            return Long.MAX_VALUE;
+        }
+
+        long result = RecurrenceValues.parseDateTime(until, set.getTimeZone());
+        if (until.trim().length() == 8) {
+            result += MILLISECONDS_PER_DAY - 1;
+        }
+        return result;
+    }
+
+    private int daysInMonth(int year, int month) {
+        cal.clear();
+        cal.set(year, month, 1);
+        return cal.getActualMaximum(Calendar.DAY_OF_MONTH);
+    }
+
+    private int weekday(int year, int month, int day) {
+        cal.clear();
+        cal.set(year, month, day);
+        return cal.get(Calendar.DAY_OF_WEEK);
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
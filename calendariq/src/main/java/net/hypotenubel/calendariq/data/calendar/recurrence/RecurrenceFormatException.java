@@ -0,0 +1,28 @@
+package net.hypotenubel.calendariq.data.calendar.recurrence;
+
+/**
+ * Thrown if recurrence information cannot be parsed, either because it is malformed or because it
+ * uses features we don't support.
+ */
+public class RecurrenceFormatException extends Exception {
+
+    /**
+     * Creates a new exception with the given message.
+     *
+     * @param message the message describing what went wrong.
+     */
+    public RecurrenceFormatException(String message) {
+        super(message);
+    }
+
+    /**
+     * Creates a new exception with the given message and cause.
+     *
+     * @param message the message describing what went wrong.
+     * @param cause the exception that caused this one.
+     */
+    public RecurrenceFormatException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
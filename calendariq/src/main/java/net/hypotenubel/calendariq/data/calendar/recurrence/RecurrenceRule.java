@@ -0,0 +1,293 @@
+package net.hypotenubel.calendariq.data.calendar.recurrence;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * A parsed RFC 5545 recurrence rule, such as {@code FREQ=WEEKLY;INTERVAL=2;BYDAY=MO,TH}. Rules are
+ * immutable and independent of any particular event, which makes them safe to cache and share.
+ *
+ * <p>We support the subset of rules calendar apps commonly create:</p>
+ * <ul>
+ *     <li>{@code FREQ} of {@code DAILY}, {@code WEEKLY}, {@code MONTHLY} or {@code YEARLY}.</li>
+ *     <li>{@code INTERVAL}, {@code COUNT}, {@code UNTIL} and {@code WKST}.</li>
+ *     <li>{@code BYMONTH} and {@code BYMONTHDAY}, including negative month days.</li>
+ *     <li>{@code BYDAY}, with ordinals only for monthly rules and yearly rules that specify
+ *       {@code BYMONTH}.</li>
+ * </ul>
+ *
+ * <p>Anything else makes {@link #parse(String)} throw a {@link RecurrenceFormatException} instead
+ * of silently producing wrong appointments.</p>
+ */
+public final class RecurrenceRule {
+
+    /**
+     * How often a rule repeats.
+     */
+    public enum Frequency {
+        DAILY,
+        WEEKLY,
+        MONTHLY,
+        YEARLY
+    }
+
+    /** The weekday names used in rules, indexed by {@link Calendar} weekday constant - 1. */
+    private static final String[] WEEKDAY_NAMES = { "SU", "MO", "TU", "WE", "TH", "FR", "SA" };
+
+    /** The rule's frequency. */
+    private final Frequency frequency;
+    /** Number of frequency units between two periods. */
+    private final int interval;
+    /** Maximum number of occurrences, or {@code -1} if not limited. */
+    private final int count;
+    /** The raw {@code UNTIL} value, or {@code null} if not limited. Needs a time zone to resolve. */
+    private final String until;
+    /** The first day of the week as a {@link Calendar} weekday constant. */
+    private final int weekStart;
+    /** Months of the year (1-12) the rule is restricted to. Empty if unrestricted. */
+    private final int[] byMonth;
+    /** Days of the month the rule is restricted to. Negative values count from the end. */
+    private final int[] byMonthDay;
+    /** Weekdays ({@link Calendar} constants) the rule is restricted to. */
+    private final int[] byDayWeekdays;
+    /** Ordinals of the weekdays in {@link #byDayWeekdays}, or {@code 0} for every such weekday. */
+    private final int[] byDayOrdinals;
+
+
+    private RecurrenceRule(Frequency frequency, int interval, int count, String until,
+                           int weekStart, int[] byMonth, int[] byMonthDay, int[] byDayWeekdays,
+                           int[] byDayOrdinals) {
+
+        this.frequency = frequency;
+        this.interval = interval;
+        this.count = count;
+        this.until = until;
+        this.weekStart = weekStart;
+        this.byMonth = byMonth;
+        this.byMonthDay = byMonthDay;
+        this.byDayWeekdays = byDayWeekdays;
+        this.byDayOrdinals = byDayOrdinals;
+    }
+
+    /**
+     * Parses the given rule.
+     *
+     * @param rule the rule as stored in the {@code RRULE} column.
+     * @return the parsed rule.
+     * @throws RecurrenceFormatException if the rule is malformed or uses unsupported features.
+     */
+    public static RecurrenceRule parse(String rule) throws RecurrenceFormatException {
+        Frequency frequency = null;
+        int interval = 1;
+        int count = -1;
+        String until = null;
+        int weekStart = Calendar.MONDAY;
+        int[] byMonth = new int[0];
+        int[] byMonthDay = new int[0];
+        int[] byDayWeekdays = new int[0];
+        int[] byDayOrdinals = new int[0];
+
+        String trimmed = rule.trim();
+        if (trimmed.startsWith("RRULE:")) {
+            trimmed = trimmed.substring("RRULE:".length());
+        }
+
+        for (String part : trimmed.split(";")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+
+            int separator = part.indexOf('=');
+            if (separator < 0) {
+                throw new RecurrenceFormatException("Malformed rule part " + part + " in " + rule);
+            }
+
+            String name = part.substring(0, separator).toUpperCase();
+            String value = part.substring(separator + 1).toUpperCase();
+
+            switch (name) {
+                case "FREQ":
+                    try {
+                        frequency = Frequency.valueOf(value);
+                    } catch (IllegalArgumentException e) {
+                        throw new RecurrenceFormatException("Unsupported frequency in " + rule, e);
+                    }
+                    break;
+
+                case "INTERVAL":
+                    interval = parseInt(value, rule);
+                    break;
+
+                case "COUNT":
+                    count = parseInt(value, rule);
+                    break;
+
+                case "UNTIL":
+                    until = value;
+                    break;
+
+                case "WKST":
+                    weekStart = parseWeekday(value, rule);
+                    break;
+
+                case "BYMONTH":
+                    byMonth = parseIntList(value, rule);
+                    break;
+
+                case "BYMONTHDAY":
+                    byMonthDay = parseIntList(value, rule);
+                    break;
+
+                case "BYDAY":
+                    String[] days = value.split(",");
+                    byDayWeekdays = new int[days.length];
+                    byDayOrdinals = new int[days.length];
+                    for (int i = 0; i < days.length; i++) {
+                        String day = days[i].trim();
+                        if (day.length() < 2) {
+                            throw new RecurrenceFormatException("Malformed BYDAY in " + rule);
+                        }
+                        byDayWeekdays[i] = parseWeekday(day.substring(day.length() - 2), rule);
+                        String ordinal = day.substring(0, day.length() - 2);
+                        byDayOrdinals[i] = ordinal.isEmpty() || ordinal.equals("+")
+                                ? 0
+                                : parseInt(ordinal.startsWith("+") ? ordinal.substring(1) : ordinal,
+                                        rule);
+                    }
+                    break;
+
+                default:
+                    // BYSETPOS, BYYEARDAY, BYWEEKNO, BYHOUR and friends
+                    throw new RecurrenceFormatException("Unsupported rule part " + name + " in "
+                            + rule);
+            }
+        }
+
+        // Validate what we've got
+        if (frequency == null) {
+            throw new RecurrenceFormatException("Missing frequency in " + rule);
+        }
+
+        if (interval < 1) {
+            throw new RecurrenceFormatException("Invalid interval in " + rule);
+        }
+
+        for (int month : byMonth) {
+            if (month < 1 || month > 12) {
+                throw new RecurrenceFormatException("Invalid BYMONTH in " + rule);
+            }
+        }
+
+        for (int monthDay : byMonthDay) {
+            if (monthDay == 0 || monthDay < -31 || monthDay > 31) {
+                throw new RecurrenceFormatException("Invalid BYMONTHDAY in " + rule);
+            }
+        }
+
+        boolean anyOrdinal = false;
+        for (int ordinal : byDayOrdinals) {
+            if (ordinal < -5 || ordinal > 5) {
+                throw new RecurrenceFormatException("Invalid BYDAY ordinal in " + rule);
+            }
+            anyOrdinal |= ordinal != 0;
+        }
+
+        // Ordinals only make sense within months and years, and we only support them within months
+        if (anyOrdinal && (frequency == Frequency.DAILY || frequency == Frequency.WEEKLY)) {
+            throw new RecurrenceFormatException("Unsupported BYDAY ordinal in " + rule);
+        }
+
+        // Yearly rules with BYDAY but no BYMONTH refer to weekdays of the whole year
+        if (frequency == Frequency.YEARLY && byDayWeekdays.length > 0 && byMonth.length == 0) {
+            throw new RecurrenceFormatException("Unsupported yearly BYDAY in " + rule);
+        }
+
+        return new RecurrenceRule(frequency, interval, count, until, weekStart, byMonth,
+                byMonthDay, byDayWeekdays, byDayOrdinals);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Accessors
+
+    public Frequency getFrequency() {
+        return frequency;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the maximum number of occurrences, or {@code -1} if the rule is not limited by count.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the raw {@code UNTIL} value, or {@code null} if the rule is not limited by date.
+     * Floating values need to be resolved in the event's time zone.
+     */
+    public String getUntil() {
+        return until;
+    }
+
+    public int getWeekStart() {
+        return weekStart;
+    }
+
+    int[] getByMonth() {
+        return byMonth;
+    }
+
+    int[] getByMonthDay() {
+        return byMonthDay;
+    }
+
+    int[] getByDayWeekdays() {
+        return byDayWeekdays;
+    }
+
+    int[] getByDayOrdinals() {
+        return byDayOrdinals;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Parsing Utilities
+
+    private static int parseInt(String value, String rule) throws RecurrenceFormatException {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new RecurrenceFormatException("Malformed number " + value + " in " + rule, e);
+        }
+    }
+
+    private static int[] parseIntList(String value, String rule) throws RecurrenceFormatException {
+        List<Integer> values = new ArrayList<>();
+        for (String element : value.split(",")) {
+            String trimmed = element.trim();
+            values.add(parseInt(trimmed.startsWith("+") ? trimmed.substring(1) : trimmed, rule));
+        }
+
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    private static int parseWeekday(String value, String rule) throws RecurrenceFormatException {
+        for (int i = 0; i < WEEKDAY_NAMES.length; i++) {
+            if (WEEKDAY_NAMES[i].equals(value)) {
+                return Calendar.SUNDAY + i;
+            }
+        }
+
+        throw new RecurrenceFormatException("Malformed weekday " + value + " in " + rule);
+    }
+
+}
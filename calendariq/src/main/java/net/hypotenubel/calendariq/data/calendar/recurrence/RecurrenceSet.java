@@ -0,0 +1,96 @@
+package net.hypotenubel.calendariq.data.calendar.recurrence;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Everything that determines when a recurring event takes place: its start, an optional recurrence
+ * rule, additional dates and excluded dates. Occurrences are produced lazily by the
+ * {@link OccurrenceIterator}s returned by {@link #iterator(long, long)}.
+ */
+public final class RecurrenceSet {
+
+    /** Start of the event's first occurrence in milliseconds UTC. */
+    private final long startMillis;
+    /** The time zone the event's wall-clock times are defined in. */
+    private final TimeZone timeZone;
+    /** The recurrence rule, or {@code null} if the event only recurs through additional dates. */
+    private final RecurrenceRule rule;
+    /** Sorted additional occurrences in milliseconds UTC. */
+    private final long[] additionalDates;
+    /** Sorted excluded occurrences in milliseconds UTC. */
+    private final long[] excludedDates;
+
+
+    /**
+     * Creates a new recurrence set.
+     *
+     * @param startMillis start of the first occurrence in milliseconds UTC.
+     * @param timeZone the time zone the event's wall-clock times are defined in.
+     * @param rule the recurrence rule, or {@code null} if there is none.
+     * @param additionalDates additional occurrences in milliseconds UTC.
+     * @param excludedDates excluded occurrences in milliseconds UTC.
+     */
+    public RecurrenceSet(long startMillis, TimeZone timeZone, RecurrenceRule rule,
+                         long[] additionalDates, long[] excludedDates) {
+
+        this.startMillis = startMillis;
+        this.timeZone = timeZone;
+        this.rule = rule;
+
+        // Without a rule, the start itself is an occurrence (RFC 5545, section 3.8.5.2)
+        if (rule == null) {
+            this.additionalDates = Arrays.copyOf(additionalDates, additionalDates.length + 1);
+            this.additionalDates[additionalDates.length] = startMillis;
+        } else {
+            this.additionalDates = additionalDates.clone();
+        }
+        Arrays.sort(this.additionalDates);
+
+        this.excludedDates = excludedDates.clone();
+        Arrays.sort(this.excludedDates);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Accessors
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public TimeZone getTimeZone() {
+        return timeZone;
+    }
+
+    public RecurrenceRule getRule() {
+        return rule;
+    }
+
+    long[] getAdditionalDates() {
+        return additionalDates;
+    }
+
+    long[] getExcludedDates() {
+        return excludedDates;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Iteration
+
+    /**
+     * Returns an iterator over all occurrences that start within the given range.
+     *
+     * @param fromMillis start of the range in milliseconds UTC, inclusive.
+     * @param toMillis end of the range in milliseconds UTC, exclusive.
+     * @return the iterator.
+     * @throws RecurrenceFormatException if the rule's {@code UNTIL} value is malformed.
+     */
+    public OccurrenceIterator iterator(long fromMillis, long toMillis)
+            throws RecurrenceFormatException {
+
+        return new OccurrenceIterator(this, fromMillis, toMillis);
+    }
+
+}
@@ -0,0 +1,204 @@
+package net.hypotenubel.calendariq.data.calendar.recurrence;
+
+import net.hypotenubel.calendariq.data.calendar.model.AppointmentBuffer;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Parses the RFC 5545 values the calendar provider stores in its events table: date-times as used
+ * by {@code UNTIL}, {@code RDATE} and {@code EXDATE}, and durations as used by {@code DURATION}.
+ */
+public final class RecurrenceValues {
+
+    /** The UTC time zone, used for date-times that end with a {@code Z}. */
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final long MILLISECONDS_PER_SECOND = 1000;
+    private static final long MILLISECONDS_PER_MINUTE = 60 * MILLISECONDS_PER_SECOND;
+    private static final long MILLISECONDS_PER_HOUR = 60 * MILLISECONDS_PER_MINUTE;
+    private static final long MILLISECONDS_PER_DAY = 24 * MILLISECONDS_PER_HOUR;
+    private static final long MILLISECONDS_PER_WEEK = 7 * MILLISECONDS_PER_DAY;
+
+    private RecurrenceValues() {
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Date-Times
+
+    /**
+     * Parses a date ({@code 20210131}) or date-time ({@code 20210131T093000} or
+     * {@code 20210131T093000Z}) into milliseconds UTC. Date-times without a trailing {@code Z} and
+     * dates are interpreted in the given time zone.
+     *
+     * @param value the value to parse.
+     * @param timeZone the time zone of floating values.
+     * @return the point in time in milliseconds UTC.
+     * @throws RecurrenceFormatException if the value is malformed.
+     */
+    public static long parseDateTime(String value, TimeZone timeZone)
+            throws RecurrenceFormatException {
+
+        String trimmed = value.trim();
+        boolean utc = trimmed.endsWith("Z");
+        if (utc) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+
+        if (trimmed.length() != 8 && (trimmed.length() != 15 || trimmed.charAt(8) != 'T')) {
+            throw new RecurrenceFormatException("Malformed date-time: " + value);
+        }
+
+        Calendar cal = Calendar.getInstance(utc ? UTC : timeZone);
+        cal.clear();
+        cal.set(
+                parseDigits(trimmed, 0, 4, value),
+                parseDigits(trimmed, 4, 6, value) - 1,
+                parseDigits(trimmed, 6, 8, value));
+
+        if (trimmed.length() == 15) {
+            cal.set(Calendar.HOUR_OF_DAY, parseDigits(trimmed, 9, 11, value));
+            cal.set(Calendar.MINUTE, parseDigits(trimmed, 11, 13, value));
+            cal.set(Calendar.SECOND, parseDigits(trimmed, 13, 15, value));
+        }
+
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Parses a list of dates or date-times as stored in the {@code RDATE} and {@code EXDATE}
+     * columns. The list consists of lines of comma-separated values, each optionally prefixed by a
+     * time zone ID and a semicolon, as in {@code Europe/Berlin;20210131T093000,20210207T093000}.
+     *
+     * @param value the value to parse. May be {@code null}.
+     * @param defaultTimeZone the time zone of values without a time zone prefix.
+     * @return the sorted points in time in milliseconds UTC.
+     * @throws RecurrenceFormatException if the value is malformed.
+     */
+    public static long[] parseDateTimeList(String value, TimeZone defaultTimeZone)
+            throws RecurrenceFormatException {
+
+        if (value == null || value.trim().isEmpty()) {
+            return new long[0];
+        }
+
+        AppointmentBuffer result = new AppointmentBuffer();
+        for (String line : value.split("\n")) {
+            TimeZone timeZone = defaultTimeZone;
+
+            int separator = line.indexOf(';');
+            if (separator >= 0) {
+                String tzId = line.substring(0, separator).trim();
+                if (tzId.startsWith("TZID=")) {
+                    tzId = tzId.substring("TZID=".length());
+                }
+                timeZone = TimeZone.getTimeZone(tzId);
+                line = line.substring(separator + 1);
+            }
+
+            for (String dateTime : line.split(",")) {
+                if (!dateTime.trim().isEmpty()) {
+                    result.add(parseDateTime(dateTime, timeZone));
+                }
+            }
+        }
+
+        return result.toArray();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Durations
+
+    /**
+     * Parses a duration such as {@code P3600S}, {@code PT1H30M} or {@code P1W} into milliseconds.
+     *
+     * @param value the value to parse.
+     * @return the duration in milliseconds. May be negative.
+     * @throws RecurrenceFormatException if the value is malformed.
+     */
+    public static long parseDuration(String value) throws RecurrenceFormatException {
+        String trimmed = value.trim();
+        int pos = 0;
+
+        long sign = 1;
+        if (pos < trimmed.length() && (trimmed.charAt(pos) == '+' || trimmed.charAt(pos) == '-')) {
+            sign = trimmed.charAt(pos) == '-' ? -1 : 1;
+            pos++;
+        }
+
+        if (pos >= trimmed.length() || trimmed.charAt(pos) != 'P') {
+            throw new RecurrenceFormatException("Malformed duration: " + value);
+        }
+        pos++;
+
+        long millis = 0;
+        boolean inTime = false;
+        boolean anyComponent = false;
+
+        while (pos < trimmed.length()) {
+            char c = trimmed.charAt(pos);
+            if (c == 'T') {
+                inTime = true;
+                pos++;
+                continue;
+            }
+
+            int numberStart = pos;
+            while (pos < trimmed.length() && Character.isDigit(trimmed.charAt(pos))) {
+                pos++;
+            }
+            if (pos == numberStart || pos >= trimmed.length()) {
+                throw new RecurrenceFormatException("Malformed duration: " + value);
+            }
+
+            long number = Long.parseLong(trimmed.substring(numberStart, pos));
+            char unit = trimmed.charAt(pos++);
+
+            if (unit == 'W' && !inTime) {
+                millis += number * MILLISECONDS_PER_WEEK;
+            } else if (unit == 'D' && !inTime) {
+                millis += number * MILLISECONDS_PER_DAY;
+            } else if (unit == 'H') {
+                millis += number * MILLISECONDS_PER_HOUR;
+            } else if (unit == 'M' && inTime) {
+                millis += number * MILLISECONDS_PER_MINUTE;
+            } else if (unit == 'S') {
+                // The calendar provider happily writes seconds without the T
+                millis += number * MILLISECONDS_PER_SECOND;
+            } else {
+                throw new RecurrenceFormatException("Malformed duration: " + value);
+            }
+            anyComponent = true;
+        }
+
+        if (!anyComponent) {
+            throw new RecurrenceFormatException("Malformed duration: " + value);
+        }
+
+        return sign * millis;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Utilities
+
+    /**
+     * Parses the digits between the two indices into an int.
+     */
+    private static int parseDigits(String s, int from, int to, String original)
+            throws RecurrenceFormatException {
+
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new RecurrenceFormatException("Malformed date-time: " + original);
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+}
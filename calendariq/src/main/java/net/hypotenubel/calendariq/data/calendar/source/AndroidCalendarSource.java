@@ -1,24 +1,36 @@
 package net.hypotenubel.calendariq.data.calendar.source;
 
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.provider.CalendarContract;
 import android.util.Log;
 
 import net.hypotenubel.calendariq.data.calendar.model.AccountDescriptor;
+import net.hypotenubel.calendariq.data.calendar.model.AppointmentBuffer;
 import net.hypotenubel.calendariq.data.calendar.model.CalendarDescriptor;
 import net.hypotenubel.calendariq.util.IPrerequisitesChecker;
 import net.hypotenubel.calendariq.util.Utilities;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 
@@ -34,6 +46,12 @@ public class AndroidCalendarSource implements ICalendarSource {
 
     /** The number of milliseconds that pass by each day, mostly unnoticed by us mere humans. */
     private static final long MILLISECONDS_PER_DAY = 24 * 60 * 60 * 1000;
+    /** Number of days covered by the first window we load appointments from. */
+    private static final int INITIAL_WINDOW_DAYS = 1;
+    /** Factor by which each window is larger than the previous one. */
+    private static final int WINDOW_GROWTH_FACTOR = 2;
+    /** From how many calendars on we query each calendar separately and concurrently. */
+    private static final int PARALLEL_QUERY_THRESHOLD = 4;
 
     /** The fields we query when we obtain calendar data. */
     private static final String[] CALENDAR_PROJECTION = {
@@ -57,6 +75,9 @@ public class AndroidCalendarSource implements ICalendarSource {
 
     private final IPrerequisitesChecker prerequisitesChecker;
 
+    /** Runs per-calendar queries. */
+    private final Dispatcher dispatcher;
+
     /** The context from which this provider was created. */
     private final Context context;
 
@@ -65,14 +86,18 @@ public class AndroidCalendarSource implements ICalendarSource {
      *
      * @param context the context from which the instance is created.
      * @param prerequisitesChecker thing to check whether we have calendar access permissions.
+     * @param dispatcher provides the queue per-calendar queries run on.
      */
     @Inject
     public AndroidCalendarSource(@ApplicationContext Context context,
-                                 IPrerequisitesChecker prerequisitesChecker) {
+                                 IPrerequisitesChecker prerequisitesChecker,
+                                 Dispatcher dispatcher) {
         this.context = context;
         this.prerequisitesChecker = prerequisitesChecker;
+        this.dispatcher = dispatcher;
     }
 
+
     @Override
     public List<CalendarDescriptor> getAvailableCalendars() {
         // Only try loading calendars if we have permission to do so
@@ -131,50 +156,328 @@ public class AndroidCalendarSource implements ICalendarSource {
     }
 
     @Override
-    public List<Long> loadUpcomingAppointments(int maxCount, int maxDays,
-                                               Collection<Integer> from) {
+    public void loadUpcomingAppointments(int maxCount, int maxDays, Collection<Integer> from,
+                                         AppointmentBuffer target) {
 
-        List<Long> result = new ArrayList<>(maxCount);
-        if (from.isEmpty()) {
-            return result;
+        target.clear();
+        if (from.isEmpty() || maxCount <= 0) {
+            return;
         }
 
-        // We'll be loading events from the upcoming seven days, max
+        // Asking the provider for instances makes it expand recurring events across the whole
+        // time range we ask for, which is expensive for wide ranges. Most of the time, the next
+        // few appointments are only a few days away, so we start with a short window and keep
+        // growing it until we either have enough appointments or have covered all days
         Calendar nowCal = Calendar.getInstance();
         long startMillis = nowCal.getTimeInMillis();
         long endMillis = startMillis + maxDays * MILLISECONDS_PER_DAY;
 
-        // The query specifies the start and end times of event instances we're interested in
-        Uri.Builder builder = CalendarContract.Instances.CONTENT_URI.buildUpon();
-        ContentUris.appendId(builder, startMillis);
-        ContentUris.appendId(builder, endMillis);
-
-        // We select events from the given calendar that are not all-day events
-        String selection = buildSelectionExpression(from.size());
-
-        String[] selectionArgs = new String[from.size()];
+        String[] calendarIdArgs = new String[from.size()];
         int currIdx = 0;
         for (Integer calId : from) {
-            selectionArgs[currIdx++] = calId.toString();
+            calendarIdArgs[currIdx++] = calId.toString();
+        }
+
+        long windowStartMillis = startMillis;
+        long windowLengthMillis = INITIAL_WINDOW_DAYS * MILLISECONDS_PER_DAY;
+        int windows = 0;
+
+        while (target.size() < maxCount && windowStartMillis < endMillis) {
+            long windowEndMillis = Math.min(windowStartMillis + windowLengthMillis, endMillis);
+
+            // The first window also includes appointments that are currently running, just as a
+            // single query would. Later windows must exclude those since we already have them.
+            // The provider includes instances that begin right at the window's end, which the next
+            // window will load, so all but the last window must exclude them
+            loadAppointmentsInWindow(
+                    windowStartMillis,
+                    windowEndMillis,
+                    windows > 0,
+                    windowEndMillis < endMillis,
+                    calendarIdArgs,
+                    maxCount - target.size(),
+                    target);
+
+            windows++;
+            windowStartMillis = windowEndMillis;
+            windowLengthMillis *= WINDOW_GROWTH_FACTOR;
+        }
+
+        Log.d(LOG_TAG, "Loaded " + target.size() + " appointments with " + windows
+                + " queries, covering "
+                + (windowStartMillis - startMillis) / MILLISECONDS_PER_DAY + " of "
+                + maxDays + " days");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>From {@link #PARALLEL_QUERY_THRESHOLD} calendars on, the calendars are loaded
+     * concurrently, the same way a single request for that many calendars would query them.</p>
+     */
+    @Override
+    public Map<Integer, AppointmentBuffer> loadUpcomingAppointmentsByCalendar(
+            int maxCount, int maxDays, Collection<Integer> from) {
+
+        if (from.size() < PARALLEL_QUERY_THRESHOLD) {
+            return ICalendarSource.super.loadUpcomingAppointmentsByCalendar(
+                    maxCount, maxDays, from);
         }
 
-        // Actually perform the query
-        Cursor cursor =  context.getContentResolver().query(builder.build(),
-                INSTANCE_PROJECTION,
-                selection,
-                selectionArgs,
-                CalendarContract.Instances.BEGIN + " ASC");
+        // Fire off one load per calendar, running it ourselves if the queue is full. Each load
+        // only covers a single calendar and thus never waits for other tasks on the queue
+        Map<Integer, FutureTask<AppointmentBuffer>> loads = new HashMap<>();
+        for (Integer calendarId : from) {
+            FutureTask<AppointmentBuffer> load = new FutureTask<>(() -> {
+                AppointmentBuffer buffer = new AppointmentBuffer(maxCount);
+                loadUpcomingAppointments(
+                        maxCount, maxDays, Collections.singleton(calendarId), buffer);
+                return buffer;
+            });
+
+            try {
+                dispatcher.io().execute(load);
+            } catch (RejectedExecutionException e) {
+                load.run();
+            }
+            loads.put(calendarId, load);
+        }
+
+        // Calendars we fail to load are left out, those we didn't wait for are cancelled
+        Map<Integer, AppointmentBuffer> appointments = new HashMap<>();
+        try {
+            for (Map.Entry<Integer, FutureTask<AppointmentBuffer>> load : loads.entrySet()) {
+                try {
+                    appointments.put(load.getKey(), load.getValue().get());
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Unable to load appointments of calendar " + load.getKey(),
+                            e.getCause());
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+        } finally {
+            for (Future<AppointmentBuffer> load : loads.values()) {
+                load.cancel(true);
+            }
+        }
 
-        for (int i = 0; i < maxCount && cursor.moveToNext(); i++) {
+        return appointments;
+    }
+
+    /**
+     * Loads up to {@code limit} appointments from a single window of time into the target buffer.
+     *
+     * @param windowStartMillis start of the window in milliseconds UTC.
+     * @param windowEndMillis end of the window in milliseconds UTC.
+     * @param excludeEarlierBegins if {@code true}, appointments which began before the window
+     *                             started are not loaded even if they overlap with it.
+     * @param excludeEndBegins if {@code true}, appointments which begin right when the window
+     *                         ends are not loaded.
+     * @param calendarIdArgs IDs of the calendars to load appointments from.
+     * @param limit maximum number of appointments to load.
+     * @param target buffer to add appointments to.
+     */
+    private void loadAppointmentsInWindow(long windowStartMillis, long windowEndMillis,
+                                          boolean excludeEarlierBegins, boolean excludeEndBegins,
+                                          String[] calendarIdArgs, int limit,
+                                          AppointmentBuffer target) {
+
+        if (calendarIdArgs.length >= PARALLEL_QUERY_THRESHOLD) {
+            loadAppointmentsInWindowInParallel(windowStartMillis, windowEndMillis,
+                    excludeEarlierBegins, excludeEndBegins, calendarIdArgs, limit, target);
+            return;
+        }
+
+        Cursor cursor = queryInstances(windowStartMillis, windowEndMillis, excludeEarlierBegins,
+                excludeEndBegins, calendarIdArgs, limit);
+        if (cursor == null) {
+            Log.e(LOG_TAG, "Unable to query calendar instances");
+            return;
+        }
+
+        for (int i = 0; i < limit && cursor.moveToNext(); i++) {
             // Convert from UTC milliseconds to UTC seconds
-            result.add(cursor.getLong(INSTANCE_PROJECTION_BEGIN) / 1000);
+            target.add(cursor.getLong(INSTANCE_PROJECTION_BEGIN) / 1000);
         }
 
         cursor.close();
+    }
 
-        Log.d(LOG_TAG, "Loaded " + result.size() + " appointments");
+    /**
+     * Does the same as {@link #loadAppointmentsInWindow(long, long, boolean, boolean, String[],
+     * int, AppointmentBuffer)}, but queries each calendar separately and concurrently. Since each
+     * cursor is already sorted, we merge them through a heap and stop as soon as we have enough
+     * appointments instead of having the provider sort everything.
+     */
+    private void loadAppointmentsInWindowInParallel(long windowStartMillis, long windowEndMillis,
+                                                    boolean excludeEarlierBegins,
+                                                    boolean excludeEndBegins,
+                                                    String[] calendarIdArgs, int limit,
+                                                    AppointmentBuffer target) {
+
+        // Fire off one query per calendar, running it ourselves if the queue is full
+        List<Future<Cursor>> futures = new ArrayList<>(calendarIdArgs.length);
+        for (String calendarIdArg : calendarIdArgs) {
+            FutureTask<Cursor> query = new CursorQuery(() -> queryInstances(
+                    windowStartMillis,
+                    windowEndMillis,
+                    excludeEarlierBegins,
+                    excludeEndBegins,
+                    new String[] { calendarIdArg },
+                    limit));
+
+            try {
+                dispatcher.io().execute(query);
+            } catch (RejectedExecutionException e) {
+                query.run();
+            }
+            futures.add(query);
+        }
+
+        PriorityQueue<CursorHead> heads = new PriorityQueue<>(calendarIdArgs.length);
+        List<Cursor> cursors = new ArrayList<>(calendarIdArgs.length);
+        try {
+            for (Future<Cursor> future : futures) {
+                Cursor cursor = awaitCursor(future);
+                if (cursor != null) {
+                    cursors.add(cursor);
+                    if (cursor.moveToNext()) {
+                        heads.add(new CursorHead(cursor));
+                    }
+                }
+            }
+
+            // Merge until we have enough appointments or run out of cursors
+            int loaded = 0;
+            while (loaded < limit && !heads.isEmpty()) {
+                CursorHead head = heads.poll();
+
+                // Convert from UTC milliseconds to UTC seconds
+                target.add(head.beginMillis / 1000);
+                loaded++;
+
+                if (head.cursor.moveToNext()) {
+                    heads.add(new CursorHead(head.cursor));
+                }
+            }
 
-        return result;
+        } finally {
+            // Queries we didn't wait for because we were interrupted must still be cleaned up.
+            // Those that finished anyway have opened cursors we never saw
+            for (Future<Cursor> future : futures) {
+                if (!future.isDone()) {
+                    future.cancel(true);
+                }
+                if (future.isDone() && !future.isCancelled()) {
+                    Cursor cursor = getDoneCursor(future);
+                    if (cursor != null && !cursors.contains(cursor)) {
+                        cursors.add(cursor);
+                    }
+                }
+            }
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the cursor of the given query, which must be done, or {@code null} if there is none.
+     */
+    private static Cursor getDoneCursor(Future<Cursor> future) {
+        // Since the query is done, this neither blocks nor minds us having been interrupted
+        try {
+            return future.get();
+        } catch (ExecutionException | InterruptedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the query behind the given future to finish and returns its cursor, or
+     * {@code null} if the query failed.
+     */
+    private Cursor awaitCursor(Future<Cursor> future) {
+        try {
+            Cursor cursor = future.get();
+            if (cursor == null) {
+                Log.e(LOG_TAG, "Unable to query calendar instances");
+            }
+            return cursor;
+
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Unable to query calendar instances", e.getCause());
+            return null;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Queries the non-all-day instances of the given calendars in the given window of time,
+     * sorted by when they begin.
+     *
+     * @param windowStartMillis start of the window in milliseconds UTC.
+     * @param windowEndMillis end of the window in milliseconds UTC.
+     * @param excludeEarlierBegins if {@code true}, appointments which began before the window
+     *                             started are not loaded even if they overlap with it.
+     * @param excludeEndBegins if {@code true}, appointments which begin right when the window
+     *                         ends are not loaded.
+     * @param calendarIdArgs IDs of the calendars to load appointments from.
+     * @param limit maximum number of appointments we will read.
+     * @return the cursor, or {@code null} if the query failed.
+     */
+    private Cursor queryInstances(long windowStartMillis, long windowEndMillis,
+                                  boolean excludeEarlierBegins, boolean excludeEndBegins,
+                                  String[] calendarIdArgs, int limit) {
+
+        // The query specifies the start and end times of event instances we're interested in
+        Uri.Builder builder = CalendarContract.Instances.CONTENT_URI.buildUpon();
+        ContentUris.appendId(builder, windowStartMillis);
+        ContentUris.appendId(builder, windowEndMillis);
+
+        // We select events from the given calendar that are not all-day events
+        String selection = buildSelectionExpression(calendarIdArgs.length);
+        List<String> selectionArgList = new ArrayList<>(Arrays.asList(calendarIdArgs));
+
+        if (excludeEarlierBegins) {
+            selection = "(" + selection + " and " + CalendarContract.Instances.BEGIN + " >= ?)";
+            selectionArgList.add(Long.toString(windowStartMillis));
+        }
+
+        if (excludeEndBegins) {
+            selection = "(" + selection + " and " + CalendarContract.Instances.BEGIN + " < ?)";
+            selectionArgList.add(Long.toString(windowEndMillis));
+        }
+
+        String[] selectionArgs = selectionArgList.toArray(new String[0]);
+
+        String sortOrder = CalendarContract.Instances.BEGIN + " ASC";
+
+        // Actually perform the query, telling the provider how many rows we need where possible
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            Bundle queryArgs = new Bundle();
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, selectionArgs);
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, sortOrder);
+            queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+
+            return context.getContentResolver().query(builder.build(),
+                    INSTANCE_PROJECTION,
+                    queryArgs,
+                    null);
+        } else {
+            return context.getContentResolver().query(builder.build(),
+                    INSTANCE_PROJECTION,
+                    selection,
+                    selectionArgs,
+                    sortOrder);
+        }
     }
 
     /**
@@ -196,4 +499,51 @@ public class AndroidCalendarSource implements ICalendarSource {
         return "(" + selectionBuilder.toString() + ")";
     }
 
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Support Classes
+
+    /**
+     * A query that closes its cursor if it finishes after having been cancelled, since nobody
+     * can obtain the cursor anymore at that point.
+     */
+    private static final class CursorQuery extends FutureTask<Cursor> {
+
+        private CursorQuery(Callable<Cursor> query) {
+            super(query);
+        }
+
+        @Override
+        protected void set(Cursor cursor) {
+            super.set(cursor);
+
+            if (cursor != null && isCancelled()) {
+                cursor.close();
+            }
+        }
+
+    }
+
+    /**
+     * A cursor positioned at an instance, ordered by when that instance begins.
+     */
+    private static final class CursorHead implements Comparable<CursorHead> {
+
+        /** The cursor, positioned at the instance. */
+        private final Cursor cursor;
+        /** When the instance begins in milliseconds UTC. */
+        private final long beginMillis;
+
+        private CursorHead(Cursor cursor) {
+            this.cursor = cursor;
+            this.beginMillis = cursor.getLong(INSTANCE_PROJECTION_BEGIN);
+        }
+
+        @Override
+        public int compareTo(CursorHead o) {
+            return Long.compare(beginMillis, o.beginMillis);
+        }
+
+    }
+
 }
@@ -0,0 +1,63 @@
+package net.hypotenubel.calendariq.data.calendar.source;
+
+/**
+ * The upcoming appointments of a single calendar, as loaded at a given point in time. Used by
+ * {@link CachingCalendarSource} and persisted by {@link AppointmentSnapshotStore}.
+ */
+final class AppointmentSnapshot {
+
+    /** The number of seconds that pass by each day. */
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+    /** How long we trust appointments that were already running when we loaded them. */
+    private static final long RUNNING_APPOINTMENT_RECHECK_SECONDS = 15 * 60;
+
+    /** Sorted appointment begin times in seconds UTC. */
+    final long[] begins;
+    /** The maximum number of appointments we requested when loading the snapshot. */
+    final int requestedCount;
+    /**
+     * Time in seconds UTC from which on the snapshot contains all appointments. Appointments that
+     * were running at that time are included.
+     */
+    final long windowStartSeconds;
+    /** Time in seconds UTC up to which the snapshot contains all appointments. */
+    final long horizonSeconds;
+
+    AppointmentSnapshot(long[] begins, int requestedCount, long windowStartSeconds,
+                        long horizonSeconds) {
+
+        this.begins = begins;
+        this.requestedCount = requestedCount;
+        this.windowStartSeconds = windowStartSeconds;
+        this.horizonSeconds = horizonSeconds;
+    }
+
+    /**
+     * Checks whether the snapshot can serve a request for the given number of appointments over
+     * the given number of days at the given time.
+     */
+    boolean covers(long nowSeconds, int maxCount, int maxDays) {
+        // Appointments that have begun since we loaded them may or may not have ended since, and
+        // so may those that were already running back then. Since the calendar provider returns
+        // the latter every time, we only recheck them every so often
+        for (long begin : begins) {
+            if (begin >= nowSeconds) {
+                break;
+            } else if (begin >= windowStartSeconds) {
+                return false;
+            } else if (nowSeconds - windowStartSeconds > RUNNING_APPOINTMENT_RECHECK_SECONDS) {
+                return false;
+            }
+        }
+
+        // The snapshot must reach far enough into the future
+        if (nowSeconds + maxDays * SECONDS_PER_DAY > horizonSeconds) {
+            return false;
+        }
+
+        // If the snapshot was truncated, it must still hold enough appointments
+        boolean truncated = begins.length >= requestedCount;
+        return !truncated || begins.length >= maxCount;
+    }
+
+}
@@ -0,0 +1,321 @@
+package net.hypotenubel.calendariq.data.calendar.source;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.hypotenubel.calendariq.util.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import dagger.hilt.android.qualifiers.ApplicationContext;
+
+/**
+ * Persists {@link AppointmentSnapshot}s to a small binary file. This lets a freshly started
+ * process serve appointments without querying the calendar provider, as long as the provider
+ * hasn't changed since the snapshots were written.
+ *
+ * <p>Whether the provider has changed is tracked through a persistent change generation, which
+ * is incremented whenever anyone notices a change: our content observers while the process is
+ * alive, and the content URI triggered sync work while it isn't. Snapshots are only restored if
+ * they were written under the current generation, during the current boot, and not too long
+ * ago.</p>
+ *
+ * <p>The file consists of a header (magic number, version, change generation, boot time, time of
+ * writing), the snapshots (calendar ID, requested count, window start, horizon, and begin times as
+ * offsets to the time of writing), and a CRC32 checksum over everything before it.</p>
+ */
+@Singleton
+public class AppointmentSnapshotStore {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(AppointmentSnapshotStore.class);
+
+    /** Name of the snapshot file. */
+    private static final String FILE_NAME = "appointment_snapshots.bin";
+    /** Name of the shared preferences file we store the change generation in. */
+    private static final String PREFERENCES_NAME = "appointment_snapshots";
+    /** Key of the change generation. */
+    private static final String KEY_GENERATION = "generation";
+
+    /** Identifies our snapshot files. */
+    private static final int MAGIC = 0x43495153;
+    /** Version of the file format. */
+    private static final int VERSION = 2;
+    /** Size of the file header in bytes. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4;
+
+    /** Snapshots older than this aren't restored, whatever their generation. */
+    private static final long MAX_AGE_MILLIS = 12 * 60 * 60 * 1000;
+    /** How far our boot time estimate may drift before we assume the device was rebooted. */
+    private static final long BOOT_TIME_TOLERANCE_MILLIS = 5 * 60 * 1000;
+
+    private final Context context;
+
+    /** Whether we have noticed changes whose generation may not have reached the disk yet. */
+    private boolean generationUnpersisted = false;
+
+    @Inject
+    public AppointmentSnapshotStore(@ApplicationContext Context context) {
+        this.context = context;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Change Generation
+
+    /**
+     * Records that the calendar provider has changed, which invalidates all snapshots written so
+     * far.
+     *
+     * @param context context used to access the change generation.
+     */
+    public static void markProviderChanged(Context context) {
+        synchronized (AppointmentSnapshotStore.class) {
+            SharedPreferences prefs = getPreferences(context);
+
+            // This must survive the process being killed right afterwards, hence commit()
+            prefs.edit()
+                    .putLong(KEY_GENERATION, prefs.getLong(KEY_GENERATION, 0) + 1)
+                    .commit();
+        }
+    }
+
+    /**
+     * Records that the calendar provider has changed, like
+     * {@link #markProviderChanged(Context)}, but without waiting for the disk. This is cheap
+     * enough to be called from content observers. The new generation is written to disk in the
+     * background and at the latest before the next snapshots are written.
+     */
+    public void noteProviderChanged() {
+        synchronized (AppointmentSnapshotStore.class) {
+            SharedPreferences prefs = getPreferences(context);
+
+            prefs.edit()
+                    .putLong(KEY_GENERATION, prefs.getLong(KEY_GENERATION, 0) + 1)
+                    .apply();
+            generationUnpersisted = true;
+        }
+    }
+
+    /**
+     * Makes sure that the current change generation has reached the disk.
+     */
+    private void persistGeneration() {
+        synchronized (AppointmentSnapshotStore.class) {
+            if (generationUnpersisted) {
+                getPreferences(context).edit().commit();
+                generationUnpersisted = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the current change generation.
+     */
+    public long getGeneration() {
+        synchronized (AppointmentSnapshotStore.class) {
+            return getPreferences(context).getLong(KEY_GENERATION, 0);
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Reading and Writing
+
+    /**
+     * Reads the snapshots from disk, if they are still valid.
+     *
+     * @return the snapshots indexed by calendar ID, or {@code null} if there are no valid ones.
+     */
+    Map<Integer, AppointmentSnapshot> read() {
+        File file = getFile();
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading
+            }
+            buffer.flip();
+
+            return decode(buffer);
+
+        } catch (IOException | RuntimeException e) {
+            Log.d(LOG_TAG, "Unable to read appointment snapshots", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given snapshots to disk, replacing whatever was there before.
+     *
+     * @param snapshots the snapshots indexed by calendar ID.
+     * @param generation the change generation the snapshots were loaded under.
+     */
+    void write(Map<Integer, AppointmentSnapshot> snapshots, long generation) {
+        // Snapshots must never survive a change whose generation didn't
+        persistGeneration();
+
+        ByteBuffer buffer = encode(snapshots, generation);
+
+        // Write to a temporary file first so that readers never see half a snapshot
+        File file = getFile();
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+             FileChannel channel = raf.getChannel()) {
+
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to write appointment snapshots", e);
+            return;
+        }
+
+        if (!tempFile.renameTo(file)) {
+            Log.e(LOG_TAG, "Unable to replace appointment snapshots");
+        }
+    }
+
+    private File getFile() {
+        return new File(context.getNoBackupFilesDir(), FILE_NAME);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Encoding
+
+    private ByteBuffer encode(Map<Integer, AppointmentSnapshot> snapshots, long generation) {
+        long nowMillis = System.currentTimeMillis();
+        long nowSeconds = nowMillis / 1000;
+
+        int size = HEADER_SIZE + 4;
+        for (AppointmentSnapshot snapshot : snapshots.values()) {
+            size += 4 + 4 + 8 + 8 + 4 + 4 * snapshot.begins.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(generation);
+        buffer.putLong(bootTimeMillis());
+        buffer.putLong(nowMillis);
+        buffer.putInt(snapshots.size());
+
+        for (Map.Entry<Integer, AppointmentSnapshot> entry : snapshots.entrySet()) {
+            AppointmentSnapshot snapshot = entry.getValue();
+
+            buffer.putInt(entry.getKey());
+            buffer.putInt(snapshot.requestedCount);
+            buffer.putLong(snapshot.windowStartSeconds);
+            buffer.putLong(snapshot.horizonSeconds);
+            buffer.putInt(snapshot.begins.length);
+
+            // Upcoming appointments are at most a few weeks away, so offsets fit into ints
+            for (long begin : snapshot.begins) {
+                buffer.putInt((int) (begin - nowSeconds));
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private Map<Integer, AppointmentSnapshot> decode(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE + 4) {
+            return null;
+        }
+
+        // Check the checksum before we trust anything else
+        int contentSize = buffer.limit() - 4;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, contentSize);
+        if ((int) crc.getValue() != buffer.getInt(contentSize)) {
+            Log.d(LOG_TAG, "Appointment snapshots are corrupt");
+            return null;
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+
+        long generation = buffer.getLong();
+        long bootTimeMillis = buffer.getLong();
+        long writtenMillis = buffer.getLong();
+
+        if (generation != getGeneration()) {
+            Log.d(LOG_TAG, "Calendar provider changed since snapshots were written");
+            return null;
+        }
+
+        if (Math.abs(bootTimeMillis - bootTimeMillis()) > BOOT_TIME_TOLERANCE_MILLIS) {
+            // We may have missed changes while the device was off
+            Log.d(LOG_TAG, "Device rebooted since snapshots were written");
+            return null;
+        }
+
+        long ageMillis = System.currentTimeMillis() - writtenMillis;
+        if (ageMillis < 0 || ageMillis > MAX_AGE_MILLIS) {
+            Log.d(LOG_TAG, "Appointment snapshots are too old");
+            return null;
+        }
+
+        long writtenSeconds = writtenMillis / 1000;
+        int calendarCount = buffer.getInt();
+        Map<Integer, AppointmentSnapshot> snapshots = new HashMap<>(calendarCount * 2);
+
+        for (int i = 0; i < calendarCount; i++) {
+            int calendarId = buffer.getInt();
+            int requestedCount = buffer.getInt();
+            long windowStartSeconds = buffer.getLong();
+            long horizonSeconds = buffer.getLong();
+
+            long[] begins = new long[buffer.getInt()];
+            for (int j = 0; j < begins.length; j++) {
+                begins[j] = writtenSeconds + buffer.getInt();
+            }
+
+            snapshots.put(calendarId,
+                    new AppointmentSnapshot(
+                            begins, requestedCount, windowStartSeconds, horizonSeconds));
+        }
+
+        return snapshots;
+    }
+
+    /**
+     * Returns an estimate of when the device was booted in milliseconds UTC.
+     */
+    private static long bootTimeMillis() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+}
@@ -0,0 +1,335 @@
+package net.hypotenubel.calendariq.data.calendar.source;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.provider.CalendarContract;
+import android.util.Log;
+
+import net.hypotenubel.calendariq.data.calendar.model.AppointmentBuffer;
+import net.hypotenubel.calendariq.data.calendar.model.CalendarDescriptor;
+import net.hypotenubel.calendariq.util.Utilities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link ICalendarSource} that sits in front of another source and keeps an in-memory snapshot
+ * of the upcoming appointments of each calendar. Snapshots are invalidated through
+ * {@link ContentObserver}s registered with the calendar provider, which means that as long as no
+ * calendar changes, appointments are served without touching the provider at all.
+ *
+ * <p>Each snapshot is loaded for a few more days than requested, which keeps it usable as time
+ * passes. A snapshot is reloaded if any of the following apply:</p>
+ * <ul>
+ *     <li>The provider reported a change that affects the snapshot's calendar.</li>
+ *     <li>The snapshot doesn't reach far enough into the future anymore.</li>
+ *     <li>The snapshot holds fewer appointments than requested and was truncated when loaded.</li>
+ *     <li>One of the snapshot's appointments has begun since the snapshot was loaded. Since we
+ *       only know when appointments begin, not when they end, we cannot tell whether it is still
+ *       running.</li>
+ *     <li>The snapshot holds appointments that were already running when it was loaded, and it
+ *       was loaded a while ago. Those appointments may have ended since.</li>
+ * </ul>
+ *
+ * <p>Since snapshots reach further into the future than requested, appointments beyond the
+ * requested number of days are left out when serving them.</p>
+ *
+ * <p>Observers can only be registered once we have access to the calendar. Until then, all
+ * requests are simply passed through to the underlying source.</p>
+ *
+ * <p>Snapshots are also written to disk through an {@link AppointmentSnapshotStore}. After the
+ * process has been restarted, they are restored from there if the calendar provider hasn't
+ * changed in the meantime.</p>
+ */
+public class CachingCalendarSource implements ICalendarSource {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(CachingCalendarSource.class);
+
+    /** The number of seconds that pass by each day. */
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+    /** Number of days we load in addition to what was requested to keep snapshots valid longer. */
+    private static final int HORIZON_SLACK_DAYS = 1;
+
+    /** The context we use to talk to the calendar provider. */
+    private final Context context;
+    /** The source we load appointments from if our snapshots don't suffice. */
+    private final ICalendarSource delegate;
+    /** Where we persist our snapshots. */
+    private final AppointmentSnapshotStore snapshotStore;
+
+    /** Snapshots of upcoming appointments, indexed by calendar ID. */
+    private final Map<Integer, AppointmentSnapshot> snapshots = new HashMap<>();
+    /** Whether we have tried restoring snapshots from disk yet. */
+    private boolean restored = false;
+    /** Incremented whenever snapshots are invalidated. Used to detect changes during loads. */
+    private long invalidationCount = 0;
+
+    /** Observer that invalidates snapshots as the calendar provider reports changes. */
+    private final CalendarObserver observer = new CalendarObserver();
+    /** Whether our observer is registered with the calendar provider. */
+    private boolean observing = false;
+
+    /**
+     * Creates a new instance that caches appointments loaded from the given source.
+     *
+     * @param context the context used to register for calendar provider changes.
+     * @param delegate the source we actually load appointments from.
+     * @param snapshotStore where snapshots are persisted.
+     */
+    public CachingCalendarSource(Context context, ICalendarSource delegate,
+                                 AppointmentSnapshotStore snapshotStore) {
+        this.context = context;
+        this.delegate = delegate;
+        this.snapshotStore = snapshotStore;
+    }
+
+    @Override
+    public List<CalendarDescriptor> getAvailableCalendars() {
+        return delegate.getAvailableCalendars();
+    }
+
+    @Override
+    public void loadUpcomingAppointments(int maxCount, int maxDays, Collection<Integer> from,
+                                         AppointmentBuffer target) {
+
+        // Without observers, we wouldn't notice snapshots becoming stale
+        if (!ensureObserving()) {
+            delegate.loadUpcomingAppointments(maxCount, maxDays, from, target);
+            return;
+        }
+
+        restoreSnapshots();
+
+        // Changes reported from here on out invalidate what we're about to load
+        long generation = snapshotStore.getGeneration();
+        long nowSeconds = System.currentTimeMillis() / 1000;
+
+        // Collect the appointments of all calendars, reloading those that have become stale in
+        // one go so that our delegate can load them concurrently
+        target.clear();
+        List<Integer> staleCalendars = new ArrayList<>();
+        for (Integer calendarId : from) {
+            AppointmentSnapshot snapshot = getSnapshot(calendarId);
+            if (snapshot == null || !snapshot.covers(nowSeconds, maxCount, maxDays)) {
+                staleCalendars.add(calendarId);
+            } else {
+                target.addAll(snapshot.begins);
+            }
+        }
+
+        if (!staleCalendars.isEmpty()) {
+            for (AppointmentSnapshot snapshot
+                    : loadSnapshots(staleCalendars, maxCount, maxDays).values()) {
+                target.addAll(snapshot.begins);
+            }
+            persistSnapshots(generation);
+        }
+
+        target.removeAfter(nowSeconds + maxDays * SECONDS_PER_DAY);
+        target.truncate(maxCount);
+
+        Log.d(LOG_TAG, "Served " + target.size() + " appointments, reloaded "
+                + staleCalendars.size() + " of " + from.size() + " calendars");
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Snapshot Management
+
+    /**
+     * Returns the current snapshot of the given calendar, if any.
+     */
+    private synchronized AppointmentSnapshot getSnapshot(int calendarId) {
+        return snapshots.get(calendarId);
+    }
+
+    /**
+     * Loads new snapshots for the given calendars from our delegate. Calendars the delegate
+     * failed to load are missing from the result. The snapshots are only remembered if no
+     * invalidation happened while we were loading them.
+     */
+    private Map<Integer, AppointmentSnapshot> loadSnapshots(Collection<Integer> calendarIds,
+                                                            int maxCount, int maxDays) {
+        long invalidationCountBeforeLoad;
+        synchronized (this) {
+            invalidationCountBeforeLoad = invalidationCount;
+        }
+
+        // The delegate determines the current time only after we did, so our horizon errs on the
+        // side of caution
+        long loadSeconds = System.currentTimeMillis() / 1000;
+        int horizonDays = maxDays + HORIZON_SLACK_DAYS;
+
+        Map<Integer, AppointmentBuffer> appointments =
+                delegate.loadUpcomingAppointmentsByCalendar(maxCount, horizonDays, calendarIds);
+
+        Map<Integer, AppointmentSnapshot> loadedSnapshots = new HashMap<>();
+        for (Map.Entry<Integer, AppointmentBuffer> calendarAppointments
+                : appointments.entrySet()) {
+
+            loadedSnapshots.put(calendarAppointments.getKey(), new AppointmentSnapshot(
+                    calendarAppointments.getValue().toArray(),
+                    maxCount,
+                    loadSeconds,
+                    loadSeconds + horizonDays * SECONDS_PER_DAY));
+        }
+
+        synchronized (this) {
+            if (invalidationCount == invalidationCountBeforeLoad) {
+                snapshots.putAll(loadedSnapshots);
+            }
+        }
+
+        return loadedSnapshots;
+    }
+
+    /**
+     * Restores snapshots from disk if we haven't tried that yet.
+     */
+    private void restoreSnapshots() {
+        synchronized (this) {
+            if (restored) {
+                return;
+            }
+            restored = true;
+        }
+
+        Map<Integer, AppointmentSnapshot> restoredSnapshots = snapshotStore.read();
+        if (restoredSnapshots != null) {
+            synchronized (this) {
+                // Invalidations since we've started observing already happened after writing
+                if (invalidationCount == 0) {
+                    snapshots.putAll(restoredSnapshots);
+                    Log.d(LOG_TAG, "Restored snapshots of " + restoredSnapshots.size()
+                            + " calendars");
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes our current snapshots to disk.
+     *
+     * @param generation the change generation that was current before any of the snapshots
+     *                   were loaded.
+     */
+    private void persistSnapshots(long generation) {
+        Map<Integer, AppointmentSnapshot> snapshotsToPersist;
+        synchronized (this) {
+            snapshotsToPersist = new HashMap<>(snapshots);
+        }
+
+        snapshotStore.write(snapshotsToPersist, generation);
+    }
+
+    /**
+     * Throws away the snapshot of the given calendar.
+     */
+    private synchronized void invalidate(int calendarId) {
+        Log.d(LOG_TAG, "Invalidating snapshot of calendar " + calendarId);
+
+        // Only updates the generation in memory, so this is fine on the observer's thread
+        snapshotStore.noteProviderChanged();
+
+        snapshots.remove(calendarId);
+        invalidationCount++;
+    }
+
+    /**
+     * Throws away all snapshots.
+     */
+    private synchronized void invalidateAll() {
+        Log.d(LOG_TAG, "Invalidating all snapshots");
+
+        snapshotStore.noteProviderChanged();
+
+        snapshots.clear();
+        invalidationCount++;
+    }
+
+    /**
+     * Registers our observer with the calendar provider, if we haven't done so already. Returns
+     * whether the observer is registered.
+     */
+    private synchronized boolean ensureObserving() {
+        if (!observing) {
+            try {
+                context.getContentResolver().registerContentObserver(
+                        CalendarContract.Calendars.CONTENT_URI, true, observer);
+                context.getContentResolver().registerContentObserver(
+                        CalendarContract.Events.CONTENT_URI, true, observer);
+                context.getContentResolver().registerContentObserver(
+                        CalendarContract.Instances.CONTENT_URI, true, observer);
+                observing = true;
+
+            } catch (SecurityException e) {
+                // Most likely, we don't have permission to access the calendar yet
+                Log.d(LOG_TAG, "Unable to observe calendar provider", e);
+                context.getContentResolver().unregisterContentObserver(observer);
+            }
+        }
+
+        return observing;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Support Classes
+
+    /**
+     * Invalidates snapshots as the calendar provider notifies us of changes. Where the changed
+     * URI identifies a calendar, only the snapshot of that calendar is thrown away. Otherwise, we
+     * have no choice but to throw away everything. That includes changes to single events, since
+     * an event may have been moved to another calendar, and by the time we're notified we could
+     * only find out which calendar it belongs to now. This runs on a binder thread and must not
+     * touch the disk or the provider.
+     */
+    private final class CalendarObserver extends ContentObserver {
+
+        private CalendarObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateAll();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            Integer calendarId = null;
+
+            if (uri != null && isItemUri(uri, CalendarContract.Calendars.CONTENT_URI)) {
+                calendarId = (int) ContentUris.parseId(uri);
+            }
+
+            if (calendarId == null) {
+                invalidateAll();
+            } else {
+                invalidate(calendarId);
+            }
+        }
+
+        /**
+         * Checks whether the given URI points to a single item below the given base URI.
+         */
+        private boolean isItemUri(Uri uri, Uri baseUri) {
+            List<String> segments = uri.getPathSegments();
+            List<String> baseSegments = baseUri.getPathSegments();
+
+            return uri.getAuthority() != null
+                    && uri.getAuthority().equals(baseUri.getAuthority())
+                    && segments.size() == baseSegments.size() + 1
+                    && segments.subList(0, baseSegments.size()).equals(baseSegments)
+                    && segments.get(baseSegments.size()).matches("\\d+");
+        }
+
+    }
+
+}
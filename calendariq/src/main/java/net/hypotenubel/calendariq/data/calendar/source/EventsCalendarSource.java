@@ -0,0 +1,387 @@
+package net.hypotenubel.calendariq.data.calendar.source;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.CalendarContract;
+import android.util.Log;
+
+import net.hypotenubel.calendariq.data.calendar.model.AppointmentBuffer;
+import net.hypotenubel.calendariq.data.calendar.model.CalendarDescriptor;
+import net.hypotenubel.calendariq.data.calendar.recurrence.OccurrenceIterator;
+import net.hypotenubel.calendariq.data.calendar.recurrence.RecurrenceFormatException;
+import net.hypotenubel.calendariq.data.calendar.recurrence.RecurrenceRule;
+import net.hypotenubel.calendariq.data.calendar.recurrence.RecurrenceSet;
+import net.hypotenubel.calendariq.data.calendar.recurrence.RecurrenceValues;
+import net.hypotenubel.calendariq.util.Utilities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+
+import javax.inject.Inject;
+
+import dagger.hilt.android.qualifiers.ApplicationContext;
+
+/**
+ * An implementation of {@link ICalendarSource} that reads events straight from the calendar
+ * provider's events table and expands recurring events itself, instead of having the provider
+ * expand them into its instances table. Recurrences are expanded lazily and only until we know the
+ * next few appointments, which is a lot cheaper than a full expansion on calendars with many
+ * long-running recurring series. Parsed recurrence rules are cached between loads.
+ *
+ * <p>Calendars are listed by an {@link AndroidCalendarSource}. If any of the events we need to
+ * look at uses recurrence features we don't support, appointments are loaded through that source
+ * as well.</p>
+ */
+public class EventsCalendarSource implements ICalendarSource {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(EventsCalendarSource.class);
+
+    /** The number of milliseconds that pass by each day. */
+    private static final long MILLISECONDS_PER_DAY = 24 * 60 * 60 * 1000;
+    /**
+     * How far into the past we look for exceptions to recurring events. Exceptions replace an
+     * occurrence that may have started a while ago and still be running.
+     */
+    private static final long EXCEPTION_LOOKBACK_MILLIS = 31 * MILLISECONDS_PER_DAY;
+    /** Maximum number of parsed recurrence rules we keep around. */
+    private static final int RULE_CACHE_SIZE = 128;
+
+    /** The fields we query when we obtain event data. */
+    private static final String[] EVENT_PROJECTION = {
+            CalendarContract.Events._ID,
+            CalendarContract.Events._SYNC_ID,
+            CalendarContract.Events.DTSTART,
+            CalendarContract.Events.DTEND,
+            CalendarContract.Events.DURATION,
+            CalendarContract.Events.EVENT_TIMEZONE,
+            CalendarContract.Events.ALL_DAY,
+            CalendarContract.Events.RRULE,
+            CalendarContract.Events.RDATE,
+            CalendarContract.Events.EXDATE,
+            CalendarContract.Events.ORIGINAL_ID,
+            CalendarContract.Events.ORIGINAL_SYNC_ID,
+            CalendarContract.Events.ORIGINAL_INSTANCE_TIME,
+            CalendarContract.Events.STATUS
+    };
+    // The following constants are the indices in the event projection
+    private static final int EVENT_PROJECTION_ID = 0;
+    private static final int EVENT_PROJECTION_SYNC_ID = 1;
+    private static final int EVENT_PROJECTION_DTSTART = 2;
+    private static final int EVENT_PROJECTION_DTEND = 3;
+    private static final int EVENT_PROJECTION_DURATION = 4;
+    private static final int EVENT_PROJECTION_TIMEZONE = 5;
+    private static final int EVENT_PROJECTION_ALL_DAY = 6;
+    private static final int EVENT_PROJECTION_RRULE = 7;
+    private static final int EVENT_PROJECTION_RDATE = 8;
+    private static final int EVENT_PROJECTION_EXDATE = 9;
+    private static final int EVENT_PROJECTION_ORIGINAL_ID = 10;
+    private static final int EVENT_PROJECTION_ORIGINAL_SYNC_ID = 11;
+    private static final int EVENT_PROJECTION_ORIGINAL_INSTANCE_TIME = 12;
+    private static final int EVENT_PROJECTION_STATUS = 13;
+
+    /** The context from which this source was created. */
+    private final Context context;
+    /** The source we list calendars with and fall back to for unsupported recurrences. */
+    private final AndroidCalendarSource fallback;
+
+    /** Parsed recurrence rules, indexed by their string representation. */
+    private final Map<String, RecurrenceRule> ruleCache =
+            new LinkedHashMap<String, RecurrenceRule>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, RecurrenceRule> eldest) {
+                    return size() > RULE_CACHE_SIZE;
+                }
+            };
+
+    /**
+     * Creates a new instance in the given context.
+     *
+     * @param context the context from which the instance is created.
+     * @param fallback source to list calendars with and to fall back to.
+     */
+    @Inject
+    public EventsCalendarSource(@ApplicationContext Context context,
+                                AndroidCalendarSource fallback) {
+        this.context = context;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public List<CalendarDescriptor> getAvailableCalendars() {
+        return fallback.getAvailableCalendars();
+    }
+
+    @Override
+    public void loadUpcomingAppointments(int maxCount, int maxDays, Collection<Integer> from,
+                                         AppointmentBuffer target) {
+
+        target.clear();
+        if (from.isEmpty() || maxCount <= 0) {
+            return;
+        }
+
+        long nowMillis = System.currentTimeMillis();
+        long endMillis = nowMillis + maxDays * MILLISECONDS_PER_DAY;
+
+        List<EventRow> events = loadEvents(from, nowMillis, endMillis);
+        if (events == null) {
+            return;
+        }
+
+        try {
+            collectAppointments(events, maxCount, nowMillis, endMillis, target);
+        } catch (RecurrenceFormatException e) {
+            Log.d(LOG_TAG, "Falling back to calendar instances", e);
+            fallback.loadUpcomingAppointments(maxCount, maxDays, from, target);
+            return;
+        }
+
+        Log.d(LOG_TAG, "Loaded " + target.size() + " appointments from " + events.size()
+                + " events");
+    }
+
+    /**
+     * Loads all events from the given calendars that may have occurrences in the given range,
+     * including exceptions that may replace such occurrences. Returns {@code null} if the
+     * query failed.
+     */
+    private List<EventRow> loadEvents(Collection<Integer> from, long nowMillis, long endMillis) {
+        StringBuilder selection = new StringBuilder()
+                .append(CalendarContract.Events.DELETED).append(" = 0 and ")
+                .append(CalendarContract.Events.CALENDAR_ID).append(" in (");
+
+        List<String> selectionArgs = new ArrayList<>();
+        for (Integer calId : from) {
+            selection.append(selectionArgs.isEmpty() ? "?" : ", ?");
+            selectionArgs.add(calId.toString());
+        }
+
+        // Events must start before the end of our range and must not have ended before it starts,
+        // or they must be exceptions to occurrences close to our range
+        selection.append(") and ((")
+                .append(CalendarContract.Events.DTSTART).append(" < ? and (")
+                .append(CalendarContract.Events.LAST_DATE).append(" is null or ")
+                .append(CalendarContract.Events.LAST_DATE).append(" >= ?)) or (")
+                .append(CalendarContract.Events.ORIGINAL_INSTANCE_TIME).append(" >= ? and ")
+                .append(CalendarContract.Events.ORIGINAL_INSTANCE_TIME).append(" < ?))");
+        selectionArgs.add(Long.toString(endMillis));
+        selectionArgs.add(Long.toString(nowMillis));
+        selectionArgs.add(Long.toString(nowMillis - EXCEPTION_LOOKBACK_MILLIS));
+        selectionArgs.add(Long.toString(endMillis));
+
+        Cursor cursor = context.getContentResolver().query(
+                CalendarContract.Events.CONTENT_URI,
+                EVENT_PROJECTION,
+                selection.toString(),
+                selectionArgs.toArray(new String[0]),
+                null);
+
+        if (cursor == null) {
+            Log.e(LOG_TAG, "Unable to query calendar events");
+            return null;
+        }
+
+        List<EventRow> events = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            events.add(new EventRow(cursor));
+        }
+        cursor.close();
+
+        return events;
+    }
+
+    /**
+     * Expands the given events and adds the first {@code maxCount} appointments that overlap the
+     * given range to the target buffer.
+     */
+    private void collectAppointments(List<EventRow> events, int maxCount, long nowMillis,
+                                     long endMillis, AppointmentBuffer target)
+            throws RecurrenceFormatException {
+
+        // Find the occurrences that exceptions replace, by ID and sync ID of the original event
+        Map<Long, List<Long>> replacedById = new HashMap<>();
+        Map<String, List<Long>> replacedBySyncId = new HashMap<>();
+        for (EventRow event : events) {
+            if (event.originalId != null) {
+                addReplacement(replacedById, event.originalId, event.originalInstanceTime);
+            } else if (event.originalSyncId != null) {
+                addReplacement(replacedBySyncId, event.originalSyncId, event.originalInstanceTime);
+            }
+        }
+
+        // Each event gets an iterator over its occurrences, which we merge lazily
+        PriorityQueue<OccurrenceIterator> queue = new PriorityQueue<>(
+                Math.max(1, events.size()),
+                (a, b) -> Long.compare(a.peek(), b.peek()));
+
+        for (EventRow event : events) {
+            if (event.allDay || event.isCanceledException()) {
+                continue;
+            }
+
+            long durationMillis = event.durationMillis();
+
+            RecurrenceRule rule = event.rrule == null ? null : parseRule(event.rrule);
+            long[] additionalDates = RecurrenceValues.parseDateTimeList(
+                    event.rdate, event.timeZone);
+            long[] excludedDates = merge(
+                    RecurrenceValues.parseDateTimeList(event.exdate, event.timeZone),
+                    replacedById.get(event.id),
+                    event.syncId == null ? null : replacedBySyncId.get(event.syncId));
+
+            RecurrenceSet recurrenceSet = new RecurrenceSet(
+                    event.dtstart,
+                    event.timeZone,
+                    rule,
+                    additionalDates,
+                    excludedDates);
+
+            // Appointments that are still running count as well, just like with instances
+            OccurrenceIterator iterator = recurrenceSet.iterator(
+                    nowMillis - durationMillis,
+                    endMillis);
+            if (iterator.hasNext()) {
+                queue.add(iterator);
+            }
+        }
+
+        while (target.size() < maxCount && !queue.isEmpty()) {
+            OccurrenceIterator iterator = queue.poll();
+
+            // Convert from UTC milliseconds to UTC seconds
+            target.add(iterator.next() / 1000);
+
+            if (iterator.hasNext()) {
+                queue.add(iterator);
+            }
+        }
+    }
+
+    /**
+     * Returns the parsed version of the given rule, parsing it only if we haven't done so before.
+     */
+    private RecurrenceRule parseRule(String rrule) throws RecurrenceFormatException {
+        synchronized (ruleCache) {
+            RecurrenceRule rule = ruleCache.get(rrule);
+            if (rule == null) {
+                rule = RecurrenceRule.parse(rrule);
+                ruleCache.put(rrule, rule);
+            }
+            return rule;
+        }
+    }
+
+    private static <K> void addReplacement(Map<K, List<Long>> replacements, K key,
+                                           Long instanceTime) {
+        if (instanceTime == null) {
+            return;
+        }
+
+        List<Long> instanceTimes = replacements.get(key);
+        if (instanceTimes == null) {
+            instanceTimes = new ArrayList<>();
+            replacements.put(key, instanceTimes);
+        }
+        instanceTimes.add(instanceTime);
+    }
+
+    private static long[] merge(long[] dates, List<Long> moreDates, List<Long> evenMoreDates) {
+        AppointmentBuffer result = new AppointmentBuffer(dates.length);
+        result.addAll(dates);
+        if (moreDates != null) {
+            for (long date : moreDates) {
+                result.add(date);
+            }
+        }
+        if (evenMoreDates != null) {
+            for (long date : evenMoreDates) {
+                result.add(date);
+            }
+        }
+        return result.toArray();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Support Classes
+
+    /**
+     * The columns of a single row of the events table that we care about.
+     */
+    private static final class EventRow {
+
+        private final long id;
+        private final String syncId;
+        private final long dtstart;
+        private final Long dtend;
+        private final String duration;
+        private final TimeZone timeZone;
+        private final boolean allDay;
+        private final String rrule;
+        private final String rdate;
+        private final String exdate;
+        private final Long originalId;
+        private final String originalSyncId;
+        private final Long originalInstanceTime;
+        private final int status;
+
+        private EventRow(Cursor cursor) {
+            id = cursor.getLong(EVENT_PROJECTION_ID);
+            syncId = cursor.getString(EVENT_PROJECTION_SYNC_ID);
+            dtstart = cursor.getLong(EVENT_PROJECTION_DTSTART);
+            dtend = cursor.isNull(EVENT_PROJECTION_DTEND)
+                    ? null
+                    : cursor.getLong(EVENT_PROJECTION_DTEND);
+            duration = cursor.getString(EVENT_PROJECTION_DURATION);
+            allDay = cursor.getInt(EVENT_PROJECTION_ALL_DAY) != 0;
+            rrule = emptyToNull(cursor.getString(EVENT_PROJECTION_RRULE));
+            rdate = emptyToNull(cursor.getString(EVENT_PROJECTION_RDATE));
+            exdate = emptyToNull(cursor.getString(EVENT_PROJECTION_EXDATE));
+            originalId = cursor.isNull(EVENT_PROJECTION_ORIGINAL_ID)
+                    ? null
+                    : cursor.getLong(EVENT_PROJECTION_ORIGINAL_ID);
+            originalSyncId = emptyToNull(cursor.getString(EVENT_PROJECTION_ORIGINAL_SYNC_ID));
+            originalInstanceTime = cursor.isNull(EVENT_PROJECTION_ORIGINAL_INSTANCE_TIME)
+                    ? null
+                    : cursor.getLong(EVENT_PROJECTION_ORIGINAL_INSTANCE_TIME);
+            status = cursor.getInt(EVENT_PROJECTION_STATUS);
+
+            String tzId = cursor.getString(EVENT_PROJECTION_TIMEZONE);
+            timeZone = tzId == null ? TimeZone.getDefault() : TimeZone.getTimeZone(tzId);
+        }
+
+        /**
+         * Whether this row cancels an occurrence of a recurring event instead of moving it.
+         */
+        private boolean isCanceledException() {
+            return (originalId != null || originalSyncId != null)
+                    && status == CalendarContract.Events.STATUS_CANCELED;
+        }
+
+        /**
+         * Returns how long each occurrence of the event lasts.
+         */
+        private long durationMillis() throws RecurrenceFormatException {
+            if (dtend != null) {
+                return Math.max(0, dtend - dtstart);
+            } else if (duration != null && !duration.isEmpty()) {
+                return Math.max(0, RecurrenceValues.parseDuration(duration));
+            } else {
+                return 0;
+            }
+        }
+
+        private static String emptyToNull(String s) {
+            return s == null || s.isEmpty() ? null : s;
+        }
+
+    }
+
+}
@@ -1,9 +1,13 @@
 package net.hypotenubel.calendariq.data.calendar.source;
 
+import net.hypotenubel.calendariq.data.calendar.model.AppointmentBuffer;
 import net.hypotenubel.calendariq.data.calendar.model.CalendarDescriptor;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Implementations of this interface can load calendars and their upcoming appointments. The
@@ -22,13 +26,54 @@ public interface ICalendarSource {
     List<CalendarDescriptor> getAvailableCalendars();
 
     /**
-     * Loads the upcoming appointments from the calendars with the given IDs.
+     * Loads the upcoming appointments from the calendars with the given IDs into the given buffer.
+     * The buffer is cleared before anything is added to it.
+     *
+     * @param maxCount maximum number of appointments to load.
+     * @param maxDays maximum number of upcoming days to load appointments from.
+     * @param from IDs of calendars the appointments may come from.
+     * @param target buffer that receives the appointments, given in seconds UTC.
+     */
+    void loadUpcomingAppointments(int maxCount, int maxDays, Collection<Integer> from,
+                                  AppointmentBuffer target);
+
+    /**
+     * Loads the upcoming appointments from the calendars with the given IDs. This is a
+     * convenience method for clients that prefer lists over {@link AppointmentBuffer}s.
      *
      * @param maxCount maximum number of appointments to load.
      * @param maxDays maximum number of upcoming days to load appointments from.
      * @param from IDs of calendars the appointments may come from.
      * @return list of appointments, given in seconds UTC.
      */
-    List<Long> loadUpcomingAppointments(int maxCount, int maxDays, Collection<Integer> from);
+    default List<Long> loadUpcomingAppointments(int maxCount, int maxDays,
+                                               Collection<Integer> from) {
+        AppointmentBuffer buffer = new AppointmentBuffer(maxCount);
+        loadUpcomingAppointments(maxCount, maxDays, from, buffer);
+        return buffer.toList();
+    }
+
+    /**
+     * Loads the upcoming appointments of each of the given calendars separately, as if
+     * {@link #loadUpcomingAppointments(int, int, Collection, AppointmentBuffer)} was called for
+     * each calendar on its own. Implementations may load the calendars concurrently.
+     *
+     * @param maxCount maximum number of appointments to load per calendar.
+     * @param maxDays maximum number of upcoming days to load appointments from.
+     * @param from IDs of calendars to load appointments from.
+     * @return the appointments of each calendar, given in seconds UTC. Calendars we were unable to
+     *         load appointments from are missing.
+     */
+    default Map<Integer, AppointmentBuffer> loadUpcomingAppointmentsByCalendar(
+            int maxCount, int maxDays, Collection<Integer> from) {
+
+        Map<Integer, AppointmentBuffer> appointments = new HashMap<>();
+        for (Integer calendarId : from) {
+            AppointmentBuffer buffer = new AppointmentBuffer(maxCount);
+            loadUpcomingAppointments(maxCount, maxDays, Collections.singleton(calendarId), buffer);
+            appointments.put(calendarId, buffer);
+        }
+        return appointments;
+    }
 
 }
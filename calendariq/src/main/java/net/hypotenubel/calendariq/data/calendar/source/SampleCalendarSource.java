@@ -1,6 +1,7 @@
 package net.hypotenubel.calendariq.data.calendar.source;
 
 import net.hypotenubel.calendariq.data.calendar.model.AccountDescriptor;
+import net.hypotenubel.calendariq.data.calendar.model.AppointmentBuffer;
 import net.hypotenubel.calendariq.data.calendar.model.CalendarDescriptor;
 
 import java.util.ArrayList;
@@ -37,18 +38,17 @@ public class SampleCalendarSource implements ICalendarSource {
     }
 
     @Override
-    public List<Long> loadUpcomingAppointments(int maxCount, int maxDays,
-                                               Collection<Integer> from) {
+    public void loadUpcomingAppointments(int maxCount, int maxDays, Collection<Integer> from,
+                                         AppointmentBuffer target) {
 
         // Return appointments in 30 minute increments, starting in 30 minutes
         Calendar nowCal = Calendar.getInstance();
         long nowInSeconds = nowCal.getTimeInMillis() / 1000;
 
-        List<Long> result = new ArrayList<>();
+        target.clear();
         for (int i = 1; i <= maxCount; i++) {
-            result.add(nowInSeconds + i * SECONDS_PER_HALF_HOUR);
+            target.add(nowInSeconds + i * SECONDS_PER_HALF_HOUR);
         }
-        return result;
     }
 
     /**
@@ -0,0 +1,185 @@
+package net.hypotenubel.calendariq.data.msg;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import net.hypotenubel.calendariq.data.apps.model.TargetApps;
+import net.hypotenubel.calendariq.data.msg.model.ConnectMessage;
+import net.hypotenubel.calendariq.util.Utilities;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import dagger.hilt.android.qualifiers.ApplicationContext;
+
+/**
+ * Remembers the {@link ConnectMessage#fingerprint() fingerprint} of the last message delivered to
+ * each app on each device, along with the time of delivery. This allows us to skip broadcasts that
+ * wouldn't tell anyone anything new, as long as the recipients we know of are still the ones we
+ * would broadcast to.
+ *
+ * <p>Recipients we haven't delivered anything to for a while are forgotten. Otherwise, a device
+ * that is no longer used would keep us from ever skipping broadcasts again.</p>
+ */
+public class DeliveryFingerprintRepository {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(DeliveryFingerprintRepository.class);
+
+    /** Name of the shared preferences file we store fingerprints in. */
+    private static final String PREFERENCES_NAME = "delivery_fingerprints";
+    /** Recipients we haven't delivered anything to for this long are forgotten. */
+    private static final long MAX_RECIPIENT_AGE_MILLIS = 24 * 60 * 60 * 1000;
+
+    private final Context context;
+
+    @Inject
+    public DeliveryFingerprintRepository(@ApplicationContext Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Returns the number of recipients that are up to date with respect to the given fingerprint.
+     * A recipient is up to date if it was delivered a message with that fingerprint no more than
+     * {@code maxAgeMillis} milliseconds ago. If any recipient we know of is not up to date, if
+     * the recipients we know of are not exactly the current ones, or if we don't know of any
+     * recipients at all, this returns 0.
+     *
+     * @param fingerprint the fingerprint of the message we're about to broadcast.
+     * @param maxAgeMillis how long ago recipients may have received the fingerprint.
+     * @param currentRecipients the IDs of the apps installed on each connected device, or
+     *                          {@code null} if we don't know them.
+     */
+    public int countUpToDateRecipients(String fingerprint, long maxAgeMillis,
+                                       Map<Long, ? extends Collection<String>> currentRecipients) {
+
+        if (currentRecipients == null) {
+            return 0;
+        }
+
+        forgetStaleRecipients();
+
+        long now = System.currentTimeMillis();
+        Map<String, ?> deliveries = getPreferences().getAll();
+
+        // New devices or installations haven't received anything yet
+        Set<String> currentRecipientKeys = new HashSet<>();
+        for (Map.Entry<Long, ? extends Collection<String>> entry : currentRecipients.entrySet()) {
+            for (String appId : entry.getValue()) {
+                currentRecipientKeys.add(recipientKey(entry.getKey(), appId));
+            }
+        }
+        if (!currentRecipientKeys.equals(deliveries.keySet())) {
+            return 0;
+        }
+
+        for (Object value : deliveries.values()) {
+            Delivery delivery = Delivery.deserialize(String.valueOf(value));
+            if (delivery == null
+                    || !delivery.fingerprint.equals(fingerprint)
+                    || now - delivery.utcTimestampMillis > maxAgeMillis) {
+                return 0;
+            }
+        }
+
+        return deliveries.size();
+    }
+
+    /**
+     * Records that a message with the given fingerprint has just been delivered to the given app on
+     * the given device.
+     */
+    public void recordDelivery(long deviceId, String appId, String fingerprint) {
+        Delivery delivery = new Delivery(fingerprint, System.currentTimeMillis());
+        getPreferences()
+                .edit()
+                .putString(recipientKey(deviceId, appId), delivery.serialize())
+                .apply();
+    }
+
+    /**
+     * Forgets what we delivered to the given app on the given device. Until something is delivered
+     * to it again, no broadcast is skipped.
+     */
+    public void forgetDelivery(long deviceId, String appId) {
+        getPreferences().edit().remove(recipientKey(deviceId, appId)).apply();
+    }
+
+    /**
+     * Removes all recipients we haven't delivered anything to in a long time.
+     */
+    private void forgetStaleRecipients() {
+        long now = System.currentTimeMillis();
+        SharedPreferences preferences = getPreferences();
+        SharedPreferences.Editor editor = null;
+
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            Delivery delivery = Delivery.deserialize(String.valueOf(entry.getValue()));
+            if (delivery == null || now - delivery.utcTimestampMillis > MAX_RECIPIENT_AGE_MILLIS) {
+                Log.d(LOG_TAG, "Forgetting recipient " + entry.getKey());
+
+                if (editor == null) {
+                    editor = preferences.edit();
+                }
+                editor.remove(entry.getKey());
+            }
+        }
+
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String recipientKey(long deviceId, String appId) {
+        // Deliveries are recorded with the IDs ConnectIQ reports
+        return deviceId + "/" + TargetApps.normalizeAppId(appId);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Data Holding
+
+    /**
+     * A fingerprint delivered to a recipient at a given time.
+     */
+    private static final class Delivery {
+
+        /** Fingerprint of the delivered message. */
+        private final String fingerprint;
+        /** Time of delivery. */
+        private final long utcTimestampMillis;
+
+        private Delivery(String fingerprint, long utcTimestampMillis) {
+            this.fingerprint = fingerprint;
+            this.utcTimestampMillis = utcTimestampMillis;
+        }
+
+        /**
+         * Parses a delivery created by {@link #serialize()}. Returns {@code null} if that fails.
+         */
+        private static Delivery deserialize(String serialized) {
+            String[] components = serialized.split("\\|", 2);
+
+            try {
+                return new Delivery(components[1], Long.parseLong(components[0]));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        private String serialize() {
+            return utcTimestampMillis + "|" + fingerprint;
+        }
+
+    }
+
+}
@@ -0,0 +1,197 @@
+package net.hypotenubel.calendariq.data.msg;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import net.hypotenubel.calendariq.data.msg.model.DeltaBase;
+import net.hypotenubel.calendariq.util.Utilities;
+
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import dagger.hilt.android.qualifiers.ApplicationContext;
+
+/**
+ * Remembers which appointments each app on each device knows about, so that we can send them
+ * {@link net.hypotenubel.calendariq.data.msg.model.MessageFormat#DELTA delta} messages. For each
+ * recipient, we keep two states: the one it has acknowledged last, and the one we have sent last
+ * but haven't heard back about yet. Deltas are always relative to the acknowledged state.
+ *
+ * <p>States are read, modified, and written back under this instance's lock, so everyone must
+ * share the same instance.</p>
+ */
+@Singleton
+public class DeltaSyncStateRepository {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(DeltaSyncStateRepository.class);
+
+    /** Name of the shared preferences file we store states in. */
+    private static final String PREFERENCES_NAME = "delta_sync_state";
+    /** Suffix of the keys of acknowledged states. */
+    private static final String KEY_SUFFIX_ACKNOWLEDGED = "/acknowledged";
+    /** Suffix of the keys of sent but unacknowledged states. */
+    private static final String KEY_SUFFIX_PENDING = "/pending";
+
+    private final Context context;
+
+    @Inject
+    public DeltaSyncStateRepository(@ApplicationContext Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Returns the base for the next message to the given app on the given device. If the
+     * recipient hasn't acknowledged anything yet, the base is empty and the message will be a full
+     * update.
+     */
+    public synchronized DeltaBase nextDeltaBase(long deviceId, String appId) {
+        String key = recipientKey(deviceId, appId);
+        SharedPreferences preferences = getPreferences();
+        State acknowledged = State.deserialize(
+                preferences.getString(key + KEY_SUFFIX_ACKNOWLEDGED, null));
+        State pending = State.deserialize(
+                preferences.getString(key + KEY_SUFFIX_PENDING, null));
+
+        int lastSequence = Math.max(
+                acknowledged == null ? DeltaBase.EMPTY_SEQUENCE : acknowledged.sequence,
+                pending == null ? DeltaBase.EMPTY_SEQUENCE : pending.sequence);
+        int sequence = nextSequence(lastSequence);
+
+        if (acknowledged == null) {
+            return DeltaBase.empty(sequence);
+        } else {
+            return new DeltaBase(sequence, acknowledged.sequence, acknowledged.appointments);
+        }
+    }
+
+    /**
+     * Records that a message with the given sequence number that brings the recipient to the given
+     * appointments is being sent to the given app on the given device.
+     */
+    public synchronized void recordSent(long deviceId, String appId, int sequence,
+                                        long[] appointments) {
+
+        getPreferences()
+                .edit()
+                .putString(recipientKey(deviceId, appId) + KEY_SUFFIX_PENDING,
+                        new State(sequence, appointments).serialize())
+                .apply();
+    }
+
+    /**
+     * Records that the given app on the given device has acknowledged the message with the given
+     * sequence number. Acknowledgements of anything but the last message we've sent are ignored.
+     *
+     * @return {@code true} if the acknowledgement was accepted.
+     */
+    public synchronized boolean acknowledge(long deviceId, String appId, int sequence) {
+        String key = recipientKey(deviceId, appId);
+        SharedPreferences preferences = getPreferences();
+
+        String serializedPending = preferences.getString(key + KEY_SUFFIX_PENDING, null);
+        State pending = State.deserialize(serializedPending);
+        if (pending == null || pending.sequence != sequence) {
+            Log.d(LOG_TAG, "Ignoring acknowledgement of " + sequence + " from " + key);
+            return false;
+        }
+
+        preferences
+                .edit()
+                .putString(key + KEY_SUFFIX_ACKNOWLEDGED, serializedPending)
+                .remove(key + KEY_SUFFIX_PENDING)
+                .apply();
+        return true;
+    }
+
+    /**
+     * Forgets everything we know about the given app on the given device, which causes the next
+     * message to be a full update.
+     */
+    public synchronized void reset(long deviceId, String appId) {
+        String key = recipientKey(deviceId, appId);
+        getPreferences()
+                .edit()
+                .remove(key + KEY_SUFFIX_ACKNOWLEDGED)
+                .remove(key + KEY_SUFFIX_PENDING)
+                .apply();
+    }
+
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String recipientKey(long deviceId, String appId) {
+        return deviceId + "/" + appId;
+    }
+
+    /**
+     * Returns the sequence number following the given one, skipping the one reserved for the
+     * empty state when wrapping around.
+     */
+    private static int nextSequence(int sequence) {
+        return sequence == Integer.MAX_VALUE ? DeltaBase.EMPTY_SEQUENCE + 1 : sequence + 1;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Data Holding
+
+    /**
+     * The appointments a recipient knows about after receiving the message with a given sequence
+     * number.
+     */
+    private static final class State {
+
+        /** Sequence number of the message that led to this state. */
+        private final int sequence;
+        /** Sorted appointment begin times in seconds UTC. */
+        private final long[] appointments;
+
+        private State(int sequence, long[] appointments) {
+            this.sequence = sequence;
+            this.appointments = appointments;
+        }
+
+        /**
+         * Parses a state created by {@link #serialize()}. Returns {@code null} if that fails.
+         */
+        private static State deserialize(String serialized) {
+            if (serialized == null) {
+                return null;
+            }
+
+            String[] components = serialized.split("\\|", 2);
+
+            try {
+                String[] times = components[1].isEmpty() ? new String[0] : components[1].split(",");
+                long[] appointments = new long[times.length];
+                for (int i = 0; i < times.length; i++) {
+                    appointments[i] = Long.parseLong(times[i]);
+                }
+
+                Arrays.sort(appointments);
+                return new State(Integer.parseInt(components[0]), appointments);
+
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        private String serialize() {
+            StringBuilder serialized = new StringBuilder().append(sequence).append('|');
+            for (int i = 0; i < appointments.length; i++) {
+                if (i > 0) {
+                    serialized.append(',');
+                }
+                serialized.append(appointments[i]);
+            }
+            return serialized.toString();
+        }
+
+    }
+
+}
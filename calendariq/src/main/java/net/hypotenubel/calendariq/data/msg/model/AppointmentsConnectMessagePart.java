@@ -3,9 +3,11 @@ package net.hypotenubel.calendariq.data.msg.model;
 import android.content.Context;
 
 import net.hypotenubel.calendariq.data.Preferences;
+import net.hypotenubel.calendariq.data.apps.model.DeviceProfile;
+import net.hypotenubel.calendariq.data.calendar.model.AppointmentBuffer;
 import net.hypotenubel.calendariq.data.calendar.source.ICalendarSource;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -32,6 +34,16 @@ import java.util.Set;
  */
 public class AppointmentsConnectMessagePart implements IConnectMessagePart {
 
+    /** The number of seconds that pass by each minute. */
+    private static final int SECONDS_PER_MINUTE = 60;
+    /** The number of seconds that pass by each day. */
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+    /**
+     * The maximum number of appointments encoded in the legacy format. Legacy messages are never
+     * chunked, and larger ones may fail to reach the watch.
+     */
+    public static final int LEGACY_MAX_APPOINTMENTS = 20;
+
     /** IDs of the calendars the appointments are loaded from. */
     private final Set<Integer> calendarIDs = new HashSet<>();
     /** The maximum number of appointments to be loaded. */
@@ -39,7 +51,7 @@ public class AppointmentsConnectMessagePart implements IConnectMessagePart {
     /** How far in the future the appointments may be. */
     private int maxDays = 7;
     /** The actual list of appointments. */
-    private final List<Long> appointments = new ArrayList<>();
+    private final AppointmentBuffer appointments = new AppointmentBuffer();
 
     /**
      * Loads all the required settings from the preferences and returns the resulting list of
@@ -76,24 +88,166 @@ public class AppointmentsConnectMessagePart implements IConnectMessagePart {
     }
 
     public AppointmentsConnectMessagePart loadAppointments(ICalendarSource calendarSource) {
-        appointments.clear();
-        appointments.addAll(calendarSource.loadUpcomingAppointments(
+        calendarSource.loadUpcomingAppointments(
                 maxAppointments,
                 maxDays,
-                calendarIDs));
+                calendarIDs,
+                appointments);
         return this;
     }
 
+    @Override
+    public IConnectMessagePart tailorTo(DeviceProfile profile) {
+        if (profile.getMaxAppointments() >= maxAppointments && profile.getMaxDays() >= maxDays) {
+            return this;
+        }
+
+        AppointmentsConnectMessagePart tailored = new AppointmentsConnectMessagePart()
+                .withActiveCalendarIDs(calendarIDs)
+                .withMaxAppointments(Math.min(maxAppointments, profile.getMaxAppointments()))
+                .withMaxDays(Math.min(maxDays, profile.getMaxDays()));
+
+        // Our appointments are sorted, so we can stop at the first one that lies too far ahead
+        long horizon = System.currentTimeMillis() / 1000 + tailored.maxDays * SECONDS_PER_DAY;
+        for (int i = 0; i < appointments.size() && i < tailored.maxAppointments; i++) {
+            if (appointments.get(i) > horizon) {
+                break;
+            }
+            tailored.appointments.add(appointments.get(i));
+        }
+
+        return tailored;
+    }
+
+    @Override
+    public void encodeAndAppend(List<Object> target, MessageFormat format, long timestamp) {
+        if (format == MessageFormat.LEGACY) {
+            encodeAndAppend(target);
+        } else {
+            encodeCompactAndAppend(target, timestamp);
+        }
+    }
+
     @Override
     public void encodeAndAppend(List<Object> target) {
-        target.add(appointments.size());
+        int count = Math.min(appointments.size(), LEGACY_MAX_APPOINTMENTS);
+        target.add(count);
 
         // Timestamp in seconds UTC. Note that, at least according to the documentation, MonkeyC
         // doesn't support Java's long type, just ints. The following cast doesn't truncate until
         // 2038-01-19 at 03:14:07
-        for (long appointmentTime : appointments) {
-            target.add((int) appointmentTime);
+        for (int i = 0; i < count; i++) {
+            target.add((int) appointments.get(i));
+        }
+    }
+
+    @Override
+    public void appendFingerprint(List<Object> target) {
+        // Unlike the legacy encoding, this must cover all appointments
+        target.add(appointments.size());
+        for (int i = 0; i < appointments.size(); i++) {
+            target.add(appointments.get(i));
         }
     }
 
+    @Override
+    public void encodeDeltaAndAppend(List<Object> target, long timestamp, DeltaBase base) {
+        long[] removed = difference(base.getBaseAppointments(), appointments.toArray());
+        long[] added = difference(appointments.toArray(), base.getBaseAppointments());
+
+        int resolution = Math.min(resolutionOf(removed), resolutionOf(added));
+        VarIntPacker packer = new VarIntPacker((removed.length + added.length) * 2);
+        packTimes(packer, removed, timestamp, resolution);
+        packTimes(packer, added, timestamp, resolution);
+
+        target.add(removed.length);
+        target.add(added.length);
+        target.add(resolution);
+        target.add(packer.getPackedSize());
+        packer.packAndAppend(target);
+    }
+
+    /**
+     * Returns the sorted begin times of the appointments loaded.
+     */
+    public long[] getAppointments() {
+        return appointments.toArray();
+    }
+
+    /**
+     * Appends the number of appointments, the resolution of their times in seconds, the number of
+     * packed integers that follow, and the packed integers.
+     */
+    private void encodeCompactAndAppend(List<Object> target, long timestamp) {
+        long[] times = appointments.toArray();
+        int resolution = resolutionOf(times);
+
+        VarIntPacker packer = new VarIntPacker(times.length * 2);
+        packTimes(packer, times, timestamp, resolution);
+
+        target.add(times.length);
+        target.add(resolution);
+        target.add(packer.getPackedSize());
+        packer.packAndAppend(target);
+    }
+
+    /**
+     * Returns the coarsest resolution in seconds that the given times can be encoded in without
+     * losing information.
+     */
+    private static int resolutionOf(long[] times) {
+        // Appointments usually begin on full minutes, which keeps our offsets a lot shorter
+        for (long time : times) {
+            if (time % SECONDS_PER_MINUTE != 0) {
+                return 1;
+            }
+        }
+        return SECONDS_PER_MINUTE;
+    }
+
+    /**
+     * Writes the given sorted times to the packer. The first time is encoded as a signed offset to
+     * the timestamp (rounded down to the resolution), each following time as an unsigned offset to
+     * its predecessor, all in units of the resolution.
+     */
+    private static void packTimes(VarIntPacker packer, long[] times, long timestamp,
+                                  int resolution) {
+
+        long previous = timestamp - Math.floorMod(timestamp, (long) resolution);
+        for (int i = 0; i < times.length; i++) {
+            long offset = (times[i] - previous) / resolution;
+            if (i == 0) {
+                // Appointments that have already begun lie before the timestamp
+                packer.writeSigned(offset);
+            } else {
+                packer.writeUnsigned(offset);
+            }
+            previous = times[i];
+        }
+    }
+
+    /**
+     * Returns the sorted times contained in {@code from} but not in {@code without}, both of which
+     * must be sorted. Times contained more than once are treated as separate appointments.
+     */
+    private static long[] difference(long[] from, long[] without) {
+        long[] result = new long[from.length];
+        int size = 0;
+
+        int j = 0;
+        for (long time : from) {
+            while (j < without.length && without[j] < time) {
+                j++;
+            }
+
+            if (j < without.length && without[j] == time) {
+                j++;
+            } else {
+                result[size++] = time;
+            }
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+
 }
@@ -12,6 +12,9 @@ import java.util.List;
  */
 public class BatteryChargeConnectMessagePart implements IConnectMessagePart {
 
+    /** Size of the battery charge buckets used for fingerprinting, in percentage points. */
+    private static final int FINGERPRINT_BUCKET_SIZE = 10;
+
     /** Whether the battery is being charged or not. */
     private final boolean isCharging;
     /** Battery charge, between 0 and 100. */
@@ -54,4 +57,11 @@ public class BatteryChargeConnectMessagePart implements IConnectMessagePart {
         target.add(isCharging ? -chargePercentage : chargePercentage);
     }
 
+    @Override
+    public void appendFingerprint(List<Object> target) {
+        // The battery charge changes all the time, but the watch only needs to know it roughly
+        target.add(isCharging);
+        target.add(chargePercentage / FINGERPRINT_BUCKET_SIZE);
+    }
+
 }
@@ -1,5 +1,10 @@
 package net.hypotenubel.calendariq.data.msg.model;
 
+import net.hypotenubel.calendariq.data.apps.model.DeviceProfile;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -11,6 +16,23 @@ public class ConnectMessage {
 
     /** Message parts that will define the message's content. */
     private final List<IConnectMessagePart> parts = new ArrayList<>();
+    /** Where the encoded form of parts that rarely change is kept, if anywhere. */
+    private final EncodedSegmentCache segmentCache;
+
+    /**
+     * Creates a new message that encodes all of its parts every time it is encoded.
+     */
+    public ConnectMessage() {
+        this(null);
+    }
+
+    /**
+     * Creates a new message that reuses the encoded form of parts that provide a
+     * {@link IConnectMessagePart#getSegmentKey() segment key} from the given cache.
+     */
+    public ConnectMessage(EncodedSegmentCache segmentCache) {
+        this.segmentCache = segmentCache;
+    }
 
     public ConnectMessage addMessagePart(IConnectMessagePart part) {
         parts.add(part);
@@ -18,19 +40,128 @@ public class ConnectMessage {
     }
 
     /**
-     * Returns a list of objects that encode this message and are ready to be sent via ConnectIQ.
+     * Returns a version of this message whose parts respect the limits of the given device profile.
+     * If no part is affected by the profile, this is the message itself.
+     */
+    public ConnectMessage tailorTo(DeviceProfile profile) {
+        ConnectMessage tailored = new ConnectMessage(segmentCache);
+        boolean affected = false;
+
+        for (IConnectMessagePart part : parts) {
+            IConnectMessagePart tailoredPart = part.tailorTo(profile);
+            tailored.addMessagePart(tailoredPart);
+            affected |= tailoredPart != part;
+        }
+
+        return affected ? tailored : this;
+    }
+
+    /**
+     * Returns a list of objects that encode this message in the {@link MessageFormat#LEGACY legacy}
+     * format and are ready to be sent via ConnectIQ.
      */
     public List<Object> encode() {
+        return encode(MessageFormat.LEGACY);
+    }
+
+    /**
+     * Returns a list of objects that encode this message in the given format and are ready to be
+     * sent via ConnectIQ.
+     */
+    public List<Object> encode(MessageFormat format) {
         List<Object> msg = new ArrayList<>();
+        long timestamp = System.currentTimeMillis() / 1000;
 
-        // Timestamp in seconds UTC. Note that, at least according to the documentation, MonkeyC
-        // doesn't support Java's long type, just ints. The following cast doesn't truncate until
-        // 2038-01-19 at 03:14:07
-        msg.add((int) (System.currentTimeMillis() / 1000));
+        if (format == MessageFormat.DELTA) {
+            throw new IllegalArgumentException("Delta messages require a base");
+        }
 
-        parts.forEach(part -> part.encodeAndAppend(msg));
+        if (format == MessageFormat.LEGACY) {
+            // Timestamp in seconds UTC. Note that, at least according to the documentation,
+            // MonkeyC doesn't support Java's long type, just ints. The following cast doesn't
+            // truncate until 2038-01-19 at 03:14:07
+            msg.add((int) timestamp);
+        } else {
+            // Legacy timestamps are never negative, so receivers can tell the formats apart
+            msg.add(-format.getVersion());
+            msg.add(timestamp);
+        }
+
+        for (IConnectMessagePart part : parts) {
+            if (segmentCache != null && part.getSegmentKey() != null) {
+                msg.addAll(segmentCache.getSegment(part, format, timestamp));
+            } else {
+                part.encodeAndAppend(msg, format, timestamp);
+            }
+        }
 
         return msg;
     }
 
+    /**
+     * Returns a list of objects that encode the difference between this message and the given base
+     * in the {@link MessageFormat#DELTA delta} format and are ready to be sent via ConnectIQ.
+     */
+    public List<Object> encodeDelta(DeltaBase base) {
+        List<Object> msg = new ArrayList<>();
+        long timestamp = System.currentTimeMillis() / 1000;
+
+        msg.add(-MessageFormat.DELTA.getVersion());
+        msg.add(timestamp);
+        msg.add(base.getSequence());
+        msg.add(base.getBaseSequence());
+
+        parts.forEach(part -> part.encodeDeltaAndAppend(msg, timestamp, base));
+
+        return msg;
+    }
+
+    /**
+     * Returns the first message part of the given type, or {@code null} if there is none.
+     */
+    public <T extends IConnectMessagePart> T getMessagePart(Class<T> type) {
+        for (IConnectMessagePart part : parts) {
+            if (type.isInstance(part)) {
+                return type.cast(part);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a digest of this message's content that can be used to find out whether two messages
+     * carry the same information. In contrast to {@link #encode()}, the fingerprint does not
+     * include the time the message was encoded at, and parts may leave out details that are
+     * irrelevant to the receiver.
+     */
+    public String fingerprint() {
+        List<Object> fingerprintData = new ArrayList<>();
+        parts.forEach(part -> part.appendFingerprint(fingerprintData));
+
+        // Each object is represented by its type and value, so that "1" and 1 don't collide
+        StringBuilder canonical = new StringBuilder();
+        for (Object o : fingerprintData) {
+            canonical
+                    .append(o == null ? "null" : o.getClass().getSimpleName())
+                    .append(':')
+                    .append(o)
+                    .append(';');
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
 }
@@ -0,0 +1,45 @@
+package net.hypotenubel.calendariq.data.msg.model;
+
+/**
+ * What a {@link MessageFormat#DELTA delta} message is relative to: the state a recipient has
+ * acknowledged last, identified by its sequence number. A base sequence number of 0 refers to the
+ * empty state, which turns the delta into a full update.
+ */
+public final class DeltaBase {
+
+    /** The sequence number of the empty state. */
+    public static final int EMPTY_SEQUENCE = 0;
+
+    /** Sequence number of the message being encoded. */
+    private final int sequence;
+    /** Sequence number of the state the message is relative to. */
+    private final int baseSequence;
+    /** Sorted appointment begin times of the state the message is relative to. */
+    private final long[] baseAppointments;
+
+    public DeltaBase(int sequence, int baseSequence, long[] baseAppointments) {
+        this.sequence = sequence;
+        this.baseSequence = baseSequence;
+        this.baseAppointments = baseAppointments;
+    }
+
+    /**
+     * Returns a base that turns the message with the given sequence number into a full update.
+     */
+    public static DeltaBase empty(int sequence) {
+        return new DeltaBase(sequence, EMPTY_SEQUENCE, new long[0]);
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public int getBaseSequence() {
+        return baseSequence;
+    }
+
+    public long[] getBaseAppointments() {
+        return baseAppointments;
+    }
+
+}
@@ -0,0 +1,105 @@
+package net.hypotenubel.calendariq.data.msg.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Keeps the encoded form of message parts that rarely change, so that {@link ConnectMessage}s
+ * don't have to encode them over and over again. Only parts that provide a
+ * {@link IConnectMessagePart#getSegmentKey() segment key} are cached. For each type of part and
+ * message format, we keep the segment encoded last along with its key. A part with a different key
+ * replaces that segment.
+ */
+@Singleton
+public class EncodedSegmentCache {
+
+    /** Cached segments indexed by part type and format. */
+    private final Map<String, Segment> segments = new HashMap<>();
+
+    /** Number of times a cached segment could be reused. */
+    private long hits = 0;
+    /** Number of times a segment had to be encoded. */
+    private long misses = 0;
+
+    @Inject
+    public EncodedSegmentCache() {
+    }
+
+    /**
+     * Returns the encoded form of the given part, encoding it only if it isn't cached yet.
+     *
+     * @param part the part to encode. Its segment key must not be {@code null}.
+     * @param format the format to encode in.
+     * @param timestamp the message's timestamp in seconds UTC.
+     * @return unmodifiable list of the part's encoded values.
+     */
+    synchronized List<Object> getSegment(IConnectMessagePart part, MessageFormat format,
+                                         long timestamp) {
+
+        Object key = part.getSegmentKey();
+        String index = part.getClass().getName() + "/" + format.name();
+
+        Segment segment = segments.get(index);
+        if (segment != null && segment.key.equals(key)) {
+            hits++;
+            return segment.values;
+        }
+
+        misses++;
+        List<Object> values = new ArrayList<>();
+        part.encodeAndAppend(values, format, timestamp);
+
+        segment = new Segment(key, Collections.unmodifiableList(values));
+        segments.put(index, segment);
+        return segment.values;
+    }
+
+    /**
+     * Forgets all cached segments.
+     */
+    public synchronized void invalidate() {
+        segments.clear();
+    }
+
+    /**
+     * Forgets the cached segments of the given type of part.
+     */
+    public synchronized void invalidate(Class<? extends IConnectMessagePart> type) {
+        segments.keySet().removeIf(index -> index.startsWith(type.getName() + "/"));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Encoded segments: " + segments.size()
+                + ", hits " + hits
+                + ", misses " + misses;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Data Holding
+
+    /**
+     * The encoded form of a part along with the key it was encoded for.
+     */
+    private static final class Segment {
+
+        /** The segment key of the part that was encoded. */
+        private final Object key;
+        /** The encoded values. */
+        private final List<Object> values;
+
+        private Segment(Object key, List<Object> values) {
+            this.key = key;
+            this.values = values;
+        }
+
+    }
+
+}
@@ -1,5 +1,7 @@
 package net.hypotenubel.calendariq.data.msg.model;
 
+import net.hypotenubel.calendariq.data.apps.model.DeviceProfile;
+
 import java.util.List;
 
 /**
@@ -13,4 +15,59 @@ public interface IConnectMessagePart {
      */
     void encodeAndAppend(List<Object> target);
 
+    /**
+     * Encodes and appends this part's data in the given format to the given list of objects. By
+     * default, parts are encoded the same way in every format.
+     *
+     * @param target the list to append to.
+     * @param format the format to encode in.
+     * @param timestamp the message's timestamp in seconds UTC, which compact encodings may encode
+     *                  times relative to.
+     */
+    default void encodeAndAppend(List<Object> target, MessageFormat format, long timestamp) {
+        encodeAndAppend(target);
+    }
+
+    /**
+     * Encodes and appends this part's data in the {@link MessageFormat#DELTA delta} format to the
+     * given list of objects. By default, parts are encoded as in the
+     * {@link MessageFormat#COMPACT compact} format, which is appropriate for parts that are small
+     * anyway.
+     *
+     * @param target the list to append to.
+     * @param timestamp the message's timestamp in seconds UTC.
+     * @param base the state the receiver has acknowledged.
+     */
+    default void encodeDeltaAndAppend(List<Object> target, long timestamp, DeltaBase base) {
+        encodeAndAppend(target, MessageFormat.COMPACT, timestamp);
+    }
+
+    /**
+     * Returns a version of this part that respects the limits of the given device profile. By
+     * default, parts aren't affected by profiles and return themselves.
+     */
+    default IConnectMessagePart tailorTo(DeviceProfile profile) {
+        return this;
+    }
+
+    /**
+     * Returns a key that determines this part's encoded form, or {@code null} if there is none. If
+     * two parts of the same type return equal keys, their encoded forms must be equal in every
+     * format and at any time, which allows an {@link EncodedSegmentCache} to encode them only
+     * once. By default, parts are not cached.
+     */
+    default Object getSegmentKey() {
+        return null;
+    }
+
+    /**
+     * Appends the data that defines this part's meaning to the given list of objects. Two parts
+     * that append equal data are considered equivalent and don't need to be sent twice. By default,
+     * this is the encoded form of the part. Parts whose encoding contains noise the receiver
+     * doesn't care about can override this method to append a more stable representation.
+     */
+    default void appendFingerprint(List<Object> target) {
+        encodeAndAppend(target);
+    }
+
 }
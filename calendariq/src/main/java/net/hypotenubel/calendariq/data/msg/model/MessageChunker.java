@@ -0,0 +1,105 @@
+package net.hypotenubel.calendariq.data.msg.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits encoded messages into chunks that can be sent one after another. Each chunk is a list that
+ * starts with a header, {@code [CHUNK_MARKER, transferId, chunkIndex, chunkCount]}, followed by
+ * the next few values of the original message. Receivers reassemble the original message by
+ * concatenating the values of all chunks of a transfer in the order of their indices. The marker
+ * is negative and distinct from every format's marker, so receivers can tell chunks from complete
+ * messages.
+ *
+ * <p>Chunking is only applied to messages for apps that understand the
+ * {@link MessageFormat#COMPACT compact} format or newer ones.</p>
+ */
+public final class MessageChunker {
+
+    /** First value of every chunk. */
+    public static final int CHUNK_MARKER = -100;
+    /** Messages larger than this many bytes should be sent in chunks, if the receiver allows. */
+    public static final int DEFAULT_MAX_CHUNK_BYTES = 1024;
+
+    /** Number of values in each chunk's header. */
+    private static final int HEADER_VALUES = 4;
+
+    private MessageChunker() {
+    }
+
+    /**
+     * Splits the given message into chunks whose estimated serialized size doesn't exceed the
+     * given number of bytes, unless a single value is larger than that.
+     *
+     * @param msg the encoded message.
+     * @param maxChunkBytes the maximum size of each chunk.
+     * @param transferId identifies the transfer the chunks belong to.
+     * @return the chunks, ready to be sent via ConnectIQ.
+     */
+    public static List<List<Object>> split(List<Object> msg, int maxChunkBytes, int transferId) {
+        int headerBytes = estimateSize(new ArrayList<>()) + HEADER_VALUES * estimateSize(0);
+
+        // Find out where each chunk starts first, since every header needs the chunk count
+        List<Integer> chunkStarts = new ArrayList<>();
+        int chunkBytes = 0;
+        for (int i = 0; i < msg.size(); i++) {
+            int valueBytes = estimateSize(msg.get(i));
+            if (chunkStarts.isEmpty() || chunkBytes + valueBytes > maxChunkBytes) {
+                chunkStarts.add(i);
+                chunkBytes = headerBytes;
+            }
+            chunkBytes += valueBytes;
+        }
+
+        List<List<Object>> chunks = new ArrayList<>(chunkStarts.size());
+        for (int c = 0; c < chunkStarts.size(); c++) {
+            int end = c + 1 < chunkStarts.size() ? chunkStarts.get(c + 1) : msg.size();
+
+            List<Object> chunk = new ArrayList<>(HEADER_VALUES + end - chunkStarts.get(c));
+            chunk.add(CHUNK_MARKER);
+            chunk.add(transferId);
+            chunk.add(c);
+            chunk.add(chunkStarts.size());
+            chunk.addAll(msg.subList(chunkStarts.get(c), end));
+            chunks.add(chunk);
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Estimates how many bytes the given object takes up once serialized by ConnectIQ. Each value
+     * is preceded by a type byte.
+     */
+    public static int estimateSize(Object o) {
+        if (o == null) {
+            return 1;
+        } else if (o instanceof Integer || o instanceof Float || o instanceof Character) {
+            return 1 + 4;
+        } else if (o instanceof Long || o instanceof Double) {
+            return 1 + 8;
+        } else if (o instanceof Boolean) {
+            return 1 + 1;
+        } else if (o instanceof String) {
+            // Length, content, and a terminating null byte
+            return 1 + 2 + ((String) o).getBytes(StandardCharsets.UTF_8).length + 1;
+        } else if (o instanceof List) {
+            int size = 1 + 4;
+            for (Object element : (List<?>) o) {
+                size += estimateSize(element);
+            }
+            return size;
+        } else if (o instanceof Map) {
+            int size = 1 + 4;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                size += estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            }
+            return size;
+        } else {
+            throw new IllegalArgumentException("Can't serialize " + o.getClass().getSimpleName());
+        }
+    }
+
+}
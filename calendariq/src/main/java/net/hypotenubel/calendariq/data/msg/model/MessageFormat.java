@@ -0,0 +1,58 @@
+package net.hypotenubel.calendariq.data.msg.model;
+
+/**
+ * The formats a {@link ConnectMessage} can be encoded in. Which format is used for a given watch
+ * app depends on what that app advertises to understand. Apps that don't advertise anything
+ * receive the {@link #LEGACY} format.
+ */
+public enum MessageFormat {
+
+    /**
+     * The original format: the timestamp followed by each part's values, every number being an
+     * absolute 32 bit integer. Appointment times truncate in 2038.
+     */
+    LEGACY(1),
+
+    /**
+     * Starts with the negated format version, which no legacy timestamp can be mistaken for,
+     * followed by the timestamp as a 64 bit long. Parts may use more compact representations, such
+     * as appointments being sent as variable-length offsets packed into as few integers as
+     * possible.
+     */
+    COMPACT(2),
+
+    /**
+     * Like {@link #COMPACT}, but the timestamp is followed by the message's sequence number and the
+     * sequence number of the state it is relative to (see {@link DeltaBase}). Instead of all
+     * appointments, only those removed from and added to that state are sent. Receivers must
+     * reply with an acknowledgement of the sequence number, or with a resync request if they don't
+     * know the base state.
+     */
+    DELTA(3);
+
+    /** The version number watch apps use to refer to this format. */
+    private final int version;
+
+    MessageFormat(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the most recent format that is not newer than the given version. Unknown versions
+     * fall back to {@link #LEGACY}.
+     */
+    public static MessageFormat fromVersion(int version) {
+        MessageFormat result = LEGACY;
+        for (MessageFormat format : values()) {
+            if (format.version <= version && format.version > result.version) {
+                result = format;
+            }
+        }
+        return result;
+    }
+
+}
@@ -33,4 +33,10 @@ public class SyncIntervalConnectMessagePart implements IConnectMessagePart {
         target.add(interval);
     }
 
+    @Override
+    public Object getSegmentKey() {
+        // The interval is all there is to encode, and it only changes with the preferences
+        return interval;
+    }
+
 }
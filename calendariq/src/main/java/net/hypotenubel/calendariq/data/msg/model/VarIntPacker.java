@@ -0,0 +1,96 @@
+package net.hypotenubel.calendariq.data.msg.model;
+
+import java.util.List;
+
+/**
+ * Writes numbers as variable-length integers and packs the resulting bytes into as few 32 bit
+ * integers as possible, since ConnectIQ can't send byte arrays. Every number takes as many bytes
+ * as it needs in groups of seven bits, least significant group first, with the most significant
+ * bit of each byte set if more bytes follow. Signed numbers are zigzag encoded first so that small
+ * negative numbers stay short as well.
+ *
+ * <p>Bytes are packed into integers big-endian, that is, the first byte ends up in the most
+ * significant eight bits of the first integer. The last integer is padded with zero bytes. Since
+ * receivers know how many numbers to read, they never interpret the padding.</p>
+ */
+public final class VarIntPacker {
+
+    /** The bytes written so far. */
+    private byte[] bytes;
+    /** Number of bytes written so far. */
+    private int size = 0;
+
+    /**
+     * Creates a new instance with room for the given number of bytes. More room is made as
+     * necessary.
+     */
+    public VarIntPacker(int expectedBytes) {
+        bytes = new byte[Math.max(4, expectedBytes)];
+    }
+
+    /**
+     * Writes the given non-negative number.
+     *
+     * @throws IllegalArgumentException if the number is negative.
+     */
+    public VarIntPacker writeUnsigned(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+
+        writeBits(value);
+        return this;
+    }
+
+    /**
+     * Writes the given number, which may be negative.
+     */
+    public VarIntPacker writeSigned(long value) {
+        writeBits((value << 1) ^ (value >> 63));
+        return this;
+    }
+
+    /**
+     * Returns the number of integers the bytes written so far will be packed into.
+     */
+    public int getPackedSize() {
+        return (size + 3) / 4;
+    }
+
+    /**
+     * Packs the bytes written so far into integers and appends them to the given list.
+     */
+    public void packAndAppend(List<Object> target) {
+        for (int i = 0; i < size; i += 4) {
+            int packed = 0;
+            for (int b = 0; b < 4; b++) {
+                packed <<= 8;
+                if (i + b < size) {
+                    packed |= bytes[i + b] & 0xFF;
+                }
+            }
+            target.add(packed);
+        }
+    }
+
+    /**
+     * Writes the given bits, interpreted as an unsigned number.
+     */
+    private void writeBits(long bits) {
+        while ((bits & ~0x7FL) != 0) {
+            writeByte((int) (bits & 0x7F) | 0x80);
+            bits >>>= 7;
+        }
+        writeByte((int) bits);
+    }
+
+    private void writeByte(int b) {
+        if (size == bytes.length) {
+            byte[] newBytes = new byte[bytes.length * 2];
+            System.arraycopy(bytes, 0, newBytes, 0, size);
+            bytes = newBytes;
+        }
+        bytes[size++] = (byte) b;
+    }
+
+}
@@ -0,0 +1,96 @@
+package net.hypotenubel.calendariq.data.outbox;
+
+import android.util.Log;
+
+import net.hypotenubel.calendariq.data.outbox.model.OutboxEntry;
+import net.hypotenubel.calendariq.data.outbox.source.IOutboxDao;
+import net.hypotenubel.calendariq.util.Utilities;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.inject.Inject;
+
+/**
+ * Provides proper access to the outbox of messages that could not be delivered. Entries that have
+ * been lying around for too long are dropped, since the next synchronisation will have sent
+ * something more recent by then anyway.
+ *
+ * <p>Changes are written on the database queue. Reading methods block, so they must not be called
+ * on the main thread. Calling them on the database queue ensures that they see all changes made
+ * before.</p>
+ */
+public class OutboxRepository {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(OutboxRepository.class);
+
+    /** Entries older than this are not delivered anymore. */
+    private static final long MAX_ENTRY_AGE_MILLIS = 6 * 60 * 60 * 1000;
+
+    private final IOutboxDao dao;
+    private final Dispatcher dispatcher;
+
+    @Inject
+    public OutboxRepository(IOutboxDao dao, Dispatcher dispatcher) {
+        this.dao = dao;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Stores the given message parts for the given app on the given device, replacing whatever was
+     * stored for them before.
+     */
+    public void put(long deviceId, String appId, List<Object> parts) {
+        OutboxEntry entry = OutboxEntry.create(deviceId, appId, parts);
+        if (entry != null) {
+            write(() -> dao.put(entry));
+        }
+    }
+
+    /**
+     * Stores the given entry again unless something newer has been stored for its app and device
+     * in the meantime.
+     */
+    public void restore(OutboxEntry entry) {
+        write(() -> dao.putIfAbsent(entry));
+    }
+
+    /**
+     * Removes whatever is stored for the given app on the given device, usually because something
+     * newer has been delivered there.
+     */
+    public void remove(long deviceId, String appId) {
+        write(() -> dao.delete(deviceId, appId));
+    }
+
+    /**
+     * Removes and returns all entries for the given device that are recent enough to be delivered.
+     */
+    public List<OutboxEntry> takeForDevice(long deviceId) {
+        dao.deleteOlderThan(System.currentTimeMillis() - MAX_ENTRY_AGE_MILLIS);
+
+        List<OutboxEntry> entries = dao.getForDevice(deviceId);
+        dao.deleteForDevice(deviceId);
+        return entries;
+    }
+
+    /**
+     * Whether there are any entries that are recent enough to be delivered.
+     */
+    public boolean hasPending() {
+        dao.deleteOlderThan(System.currentTimeMillis() - MAX_ENTRY_AGE_MILLIS);
+        return dao.size() > 0;
+    }
+
+    private void write(Runnable change) {
+        // Room doesn't allow database access on the main thread
+        try {
+            dispatcher.database().execute(change);
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "Unable to update outbox", e);
+        }
+    }
+
+}
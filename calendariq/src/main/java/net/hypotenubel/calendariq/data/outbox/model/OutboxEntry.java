@@ -0,0 +1,128 @@
+package net.hypotenubel.calendariq.data.outbox.model;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+import net.hypotenubel.calendariq.util.Utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message that could not be delivered to an app on a device. The message is stored as the parts
+ * it was sent in, which are either the whole message or its chunks, so that it can be sent again
+ * exactly as it was. There is at most one entry for each device and app: a newer message replaces
+ * an older one.
+ */
+@Entity(primaryKeys = {"deviceId", "appId"})
+public final class OutboxEntry {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(OutboxEntry.class);
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // State
+
+    /** Identifier of the device the message is meant for. */
+    private final long deviceId;
+    /** ID of the app the message is meant for. */
+    @NonNull
+    private final String appId;
+    /** The serialized list of parts to send. */
+    @NonNull
+    private final byte[] payload;
+    /** Time when delivering the message failed. */
+    private final long utcTimestampMillis;
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Creation
+
+    /**
+     * Create a new instance that represents the given data. Use {@link #create(long, String, List)}
+     * to create entries from the parts of a message.
+     */
+    public OutboxEntry(long deviceId, @NonNull String appId, @NonNull byte[] payload,
+                       long utcTimestampMillis) {
+        this.deviceId = deviceId;
+        this.appId = appId;
+        this.payload = payload;
+        this.utcTimestampMillis = utcTimestampMillis;
+    }
+
+    /**
+     * Create an entry for the given message parts at the current system time.
+     *
+     * @return the entry, or {@code null} if the parts contain something that can't be stored.
+     */
+    public static OutboxEntry create(long deviceId, String appId, List<Object> parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(copyLists(parts));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to serialize message", e);
+            return null;
+        }
+
+        return new OutboxEntry(deviceId, appId, bytes.toByteArray(), System.currentTimeMillis());
+    }
+
+    /**
+     * Returns a copy of the given object in which each list is an {@link ArrayList}. Messages may
+     * contain list views which can't be serialized themselves.
+     */
+    private static Object copyLists(Object o) {
+        if (o instanceof List) {
+            List<?> list = (List<?>) o;
+            ArrayList<Object> copy = new ArrayList<>(list.size());
+            for (Object item : list) {
+                copy.add(copyLists(item));
+            }
+            return copy;
+
+        } else {
+            return o;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Accessors
+
+    public long getDeviceId() {
+        return deviceId;
+    }
+
+    @NonNull
+    public String getAppId() {
+        return appId;
+    }
+
+    @NonNull
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public long getUtcTimestampMillis() {
+        return utcTimestampMillis;
+    }
+
+    /**
+     * Returns the parts of the message to send, or {@code null} if the payload is corrupt.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Object> getParts() {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return (List<Object>) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Log.e(LOG_TAG, "Unable to deserialize message", e);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package net.hypotenubel.calendariq.data.outbox.source;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import net.hypotenubel.calendariq.data.outbox.model.OutboxEntry;
+
+import java.util.List;
+
+@Dao
+public interface IOutboxDao {
+
+    /**
+     * Adds the given entry to the database, replacing any entry for the same device and app.
+     */
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void put(OutboxEntry entry);
+
+    /**
+     * Adds the given entry to the database unless there already is one for the same device and
+     * app.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void putIfAbsent(OutboxEntry entry);
+
+    /**
+     * Returns all entries for the given device.
+     */
+    @Query("SELECT * FROM OutboxEntry WHERE deviceId = :deviceId")
+    List<OutboxEntry> getForDevice(long deviceId);
+
+    /**
+     * Deletes the entry for the given device and app, if any.
+     */
+    @Query("DELETE FROM OutboxEntry WHERE deviceId = :deviceId AND appId = :appId")
+    void delete(long deviceId, String appId);
+
+    /**
+     * Deletes all entries for the given device.
+     */
+    @Query("DELETE FROM OutboxEntry WHERE deviceId = :deviceId")
+    void deleteForDevice(long deviceId);
+
+    /**
+     * Deletes all entries older than the given time.
+     */
+    @Query("DELETE FROM OutboxEntry WHERE utcTimestampMillis < :utcTimestampMillis")
+    void deleteOlderThan(long utcTimestampMillis);
+
+    /**
+     * Returns the number of database items.
+     */
+    @Query("SELECT COUNT(*) FROM OutboxEntry")
+    int size();
+
+}
@@ -0,0 +1,27 @@
+package net.hypotenubel.calendariq.data.outbox.source;
+
+import android.content.Context;
+
+import androidx.room.Database;
+import androidx.room.Room;
+import androidx.room.RoomDatabase;
+
+import net.hypotenubel.calendariq.data.outbox.model.OutboxEntry;
+
+@Database(entities = OutboxEntry.class, version = 1)
+public abstract class OutboxDatabase extends RoomDatabase {
+
+    public static final String DB_NAME = "outbox";
+
+    /**
+     * Returns a new instance for the given context. This is not a singleton.
+     */
+    public static OutboxDatabase create(Context context) {
+        return Room
+                .databaseBuilder(context, OutboxDatabase.class, DB_NAME)
+                .build();
+    }
+
+    public abstract IOutboxDao getDao();
+
+}
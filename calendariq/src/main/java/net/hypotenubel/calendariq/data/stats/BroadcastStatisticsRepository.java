@@ -1,11 +1,16 @@
 package net.hypotenubel.calendariq.data.stats;
 
+import android.util.Log;
+
 import androidx.lifecycle.LiveData;
 
 import net.hypotenubel.calendariq.data.stats.model.BroadcastStatistics;
 import net.hypotenubel.calendariq.data.stats.source.IBroadcastStatisticsDao;
+import net.hypotenubel.calendariq.util.Utilities;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
 
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 
@@ -15,14 +20,19 @@ import javax.inject.Inject;
  */
 public class BroadcastStatisticsRepository {
 
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(BroadcastStatisticsRepository.class);
+
     /** The number of items to keep. */
     private static final int MAX_ITEM_COUNT = 100;
 
     private IBroadcastStatisticsDao dao;
+    private Dispatcher dispatcher;
 
     @Inject
-    public BroadcastStatisticsRepository(IBroadcastStatisticsDao dao) {
+    public BroadcastStatisticsRepository(IBroadcastStatisticsDao dao, Dispatcher dispatcher) {
         this.dao = dao;
+        this.dispatcher = dispatcher;
     }
 
     public LiveData<List<BroadcastStatistics>> getBroadcastStats() {
@@ -34,18 +44,19 @@ public class BroadcastStatisticsRepository {
     }
 
     public void addBroadcastStats(BroadcastStatistics stats) {
-        // We need to run this in a separate thread
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
+        // Room doesn't allow database access on the main thread
+        try {
+            dispatcher.database().execute(() -> {
                 dao.add(stats);
 
                 int size = dao.size();
                 if (size > MAX_ITEM_COUNT) {
                     dao.delete(dao.getOldest(size - MAX_ITEM_COUNT));
                 }
-            }
-        }).start();
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "Unable to store broadcast statistics", e);
+        }
     }
 
 }
@@ -12,12 +12,29 @@ import net.hypotenubel.calendariq.sync.connectiq.ConnectIQAppBroadcaster;
  * preference to be shown in a "Last synced" kind of preference thingy, if required. Instances of
  * this class can also be used with the Room library to be persisted in a database.
  *
- * <p>A broadcast statistic can be in one of two states: success or error. The state determines the
- * associated information.</p>
+ * <p>A broadcast statistic can be in one of the states defined by {@link Outcome}. The state
+ * determines the associated information.</p>
  */
 @Entity
 public final class BroadcastStatistics {
 
+    /**
+     * The possible outcomes of a broadcast attempt.
+     */
+    public enum Outcome {
+        /** The message was broadcast to all apps. */
+        SUCCESS,
+        /** Something went wrong. The statistics carry a message that explains what. */
+        FAILURE,
+        /** Nothing was broadcast since all apps already received the same information. */
+        SKIPPED,
+        /**
+         * The broadcast didn't finish in time and was cancelled. The statistics carry a message
+         * that says so.
+         */
+        TIMEOUT
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // State
 
@@ -28,8 +45,15 @@ public final class BroadcastStatistics {
     private final int totalApps;
     /** Number of apps that were successfully contacted. */
     private final int contactedApps;
+    /** Average time it took to deliver the message to an app. */
+    private final long averageDeliveryMillis;
+    /** Longest time it took to deliver the message to an app. */
+    private final long maxDeliveryMillis;
     /** The message associated with error states. */
     private final String message;
+    /** What came out of the broadcast attempt. */
+    @NonNull
+    private final Outcome outcome;
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Creation
@@ -39,11 +63,15 @@ public final class BroadcastStatistics {
      * all apps could be reached.
      */
     public BroadcastStatistics(long utcTimestampMillis, int totalApps, int contactedApps,
-                               String message) {
+                               long averageDeliveryMillis, long maxDeliveryMillis,
+                               String message, @NonNull Outcome outcome) {
         this.utcTimestampMillis = utcTimestampMillis;
         this.totalApps = totalApps;
         this.contactedApps = contactedApps;
+        this.averageDeliveryMillis = averageDeliveryMillis;
+        this.maxDeliveryMillis = maxDeliveryMillis;
         this.message = message;
+        this.outcome = outcome;
     }
 
     /**
@@ -51,7 +79,17 @@ public final class BroadcastStatistics {
      * current system time.
      */
     public static BroadcastStatistics success(int apps) {
-        return new BroadcastStatistics(System.currentTimeMillis(), apps, apps, null);
+        return success(apps, 0, 0);
+    }
+
+    /**
+     * Create a result that represents successful broadcast to the given number of apps at the
+     * current system time, which took the given average and maximum time per app.
+     */
+    public static BroadcastStatistics success(int apps, long averageDeliveryMillis,
+                                              long maxDeliveryMillis) {
+        return new BroadcastStatistics(System.currentTimeMillis(), apps, apps,
+                averageDeliveryMillis, maxDeliveryMillis, null, Outcome.SUCCESS);
     }
 
     /**
@@ -59,8 +97,40 @@ public final class BroadcastStatistics {
      * current system time.
      */
     public static BroadcastStatistics failure(int totalApps, int contactedApps, String message) {
+        return failure(totalApps, contactedApps, 0, 0, message);
+    }
+
+    /**
+     * Create a result that represents a broadcast attempt that failed for the given reason at the
+     * current system time. Delivering the message to the apps that were reached took the given
+     * average and maximum time per app.
+     */
+    public static BroadcastStatistics failure(int totalApps, int contactedApps,
+                                              long averageDeliveryMillis, long maxDeliveryMillis,
+                                              String message) {
+        return new BroadcastStatistics(System.currentTimeMillis(), totalApps, contactedApps,
+                averageDeliveryMillis, maxDeliveryMillis, message, Outcome.FAILURE);
+    }
+
+    /**
+     * Create a result that represents a broadcast attempt that was cancelled at the current system
+     * time because it took too long. The message was delivered to the given number of apps in the
+     * given average and maximum time per app before.
+     */
+    public static BroadcastStatistics timeout(int totalApps, int contactedApps,
+                                              long averageDeliveryMillis, long maxDeliveryMillis,
+                                              String message) {
+        return new BroadcastStatistics(System.currentTimeMillis(), totalApps, contactedApps,
+                averageDeliveryMillis, maxDeliveryMillis, message, Outcome.TIMEOUT);
+    }
+
+    /**
+     * Create a result that represents a broadcast that was skipped at the current system time
+     * because the given number of apps were already up to date.
+     */
+    public static BroadcastStatistics skipped(int apps) {
         return new BroadcastStatistics(
-                System.currentTimeMillis(), totalApps, contactedApps, message);
+                System.currentTimeMillis(), apps, 0, 0, 0, null, Outcome.SKIPPED);
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -71,21 +141,25 @@ public final class BroadcastStatistics {
      */
     public static BroadcastStatistics deserialize(String serialized) {
         // Split the string at the pipe symbol
-        String[] components = serialized.split("\\|", 4);
+        String[] components = serialized.split("\\|", 7);
 
         try {
             long timestamp = Long.parseLong(components[0]);
             int totalApps = Integer.parseInt(components[1]);
             int contactedApps = Integer.parseInt(components[2]);
+            Outcome outcome = Outcome.valueOf(components[3]);
+            long averageDeliveryMillis = Long.parseLong(components[4]);
+            long maxDeliveryMillis = Long.parseLong(components[5]);
 
-            String message = components[3];
+            String message = components[6];
             if (message.length() == 0) {
                 message = null;
             }
 
-            return new BroadcastStatistics(timestamp, totalApps, contactedApps, message);
+            return new BroadcastStatistics(timestamp, totalApps, contactedApps,
+                    averageDeliveryMillis, maxDeliveryMillis, message, outcome);
 
-        } catch (IllegalArgumentException e) {
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
             throw new IllegalArgumentException("Unable to deserialize: " + serialized);
         }
     }
@@ -93,7 +167,8 @@ public final class BroadcastStatistics {
     @NonNull
     @Override
     public String toString() {
-        return utcTimestampMillis + "|" + totalApps + "|" + contactedApps + "|"
+        return utcTimestampMillis + "|" + totalApps + "|" + contactedApps + "|" + outcome + "|"
+                + averageDeliveryMillis + "|" + maxDeliveryMillis + "|"
                 + (message == null ? "" : message);
     }
 
@@ -121,6 +196,22 @@ public final class BroadcastStatistics {
         return contactedApps;
     }
 
+    /**
+     * Returns the average time it took until ConnectIQ confirmed that the message was delivered to
+     * an app, or 0 if it wasn't delivered anywhere.
+     */
+    public long getAverageDeliveryMillis() {
+        return averageDeliveryMillis;
+    }
+
+    /**
+     * Returns the longest time it took until ConnectIQ confirmed that the message was delivered to
+     * an app, or 0 if it wasn't delivered anywhere.
+     */
+    public long getMaxDeliveryMillis() {
+        return maxDeliveryMillis;
+    }
+
     /**
      * If a broadcast failed, this will return a message explaining the failure.
      */
@@ -128,4 +219,12 @@ public final class BroadcastStatistics {
         return message;
     }
 
+    /**
+     * Returns what came out of the broadcast attempt.
+     */
+    @NonNull
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
 }
@@ -0,0 +1,28 @@
+package net.hypotenubel.calendariq.data.stats.source;
+
+import androidx.room.TypeConverter;
+
+import net.hypotenubel.calendariq.data.stats.model.BroadcastStatistics;
+
+/**
+ * Tells Room how to persist the parts of {@link BroadcastStatistics} it doesn't know about.
+ */
+public final class BroadcastStatisticsConverters {
+
+    /**
+     * Prevent instantiation.
+     */
+    private BroadcastStatisticsConverters() {
+    }
+
+    @TypeConverter
+    public static String fromOutcome(BroadcastStatistics.Outcome outcome) {
+        return outcome == null ? null : outcome.name();
+    }
+
+    @TypeConverter
+    public static BroadcastStatistics.Outcome toOutcome(String outcome) {
+        return outcome == null ? null : BroadcastStatistics.Outcome.valueOf(outcome);
+    }
+
+}
@@ -2,23 +2,57 @@ package net.hypotenubel.calendariq.data.stats.source;
 
 import android.content.Context;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import net.hypotenubel.calendariq.data.stats.model.BroadcastStatistics;
 
-@Database(entities = BroadcastStatistics.class, version = 1)
+@Database(entities = BroadcastStatistics.class, version = 3)
+@TypeConverters(BroadcastStatisticsConverters.class)
 public abstract class BroadcastStatisticsDatabase extends RoomDatabase {
 
     public static final String DB_NAME = "broadcast-statistics";
 
+    /**
+     * Version 2 records the outcome of each broadcast. Existing statistics either succeeded or
+     * carry an error message.
+     */
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE BroadcastStatistics"
+                    + " ADD COLUMN outcome TEXT NOT NULL DEFAULT 'SUCCESS'");
+            db.execSQL("UPDATE BroadcastStatistics"
+                    + " SET outcome = 'FAILURE' WHERE message IS NOT NULL");
+        }
+    };
+
+    /**
+     * Version 3 records how long it took to deliver the message. Existing statistics didn't
+     * measure that.
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE BroadcastStatistics"
+                    + " ADD COLUMN averageDeliveryMillis INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE BroadcastStatistics"
+                    + " ADD COLUMN maxDeliveryMillis INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
     /**
      * Returns a new instance for the given context. This is not a singleton.
      */
     public static BroadcastStatisticsDatabase create(Context context) {
         return Room
                 .databaseBuilder(context, BroadcastStatisticsDatabase.class, DB_NAME)
+                .addMigrations(MIGRATION_1_2, MIGRATION_2_3)
                 .build();
     }
 
@@ -4,10 +4,15 @@ import android.content.Context;
 import android.util.Log;
 
 import net.hypotenubel.calendariq.data.Preferences;
+import net.hypotenubel.calendariq.data.msg.model.EncodedSegmentCache;
+import net.hypotenubel.calendariq.sync.synchroniser.PullRequestServer;
 import net.hypotenubel.calendariq.sync.synchroniser.Synchroniser;
 import net.hypotenubel.calendariq.sync.worker.SyncWorkerController;
 import net.hypotenubel.calendariq.util.IPrerequisitesChecker;
 import net.hypotenubel.calendariq.util.Utilities;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
+
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 
@@ -22,30 +27,56 @@ public class SyncController {
 
     private final IPrerequisitesChecker prerequisitesChecker;
     private final Synchroniser synchroniser;
+    private final PullRequestServer pullRequestServer;
+    private final Dispatcher dispatcher;
+    private final EncodedSegmentCache segmentCache;
     private final Context appContext;
 
     @Inject
     public SyncController(@ApplicationContext Context appContext,
                           IPrerequisitesChecker prerequisitesChecker,
-                          Synchroniser synchroniser) {
+                          Synchroniser synchroniser,
+                          PullRequestServer pullRequestServer,
+                          Dispatcher dispatcher,
+                          EncodedSegmentCache segmentCache) {
         this.appContext = appContext;
         this.prerequisitesChecker = prerequisitesChecker;
         this.synchroniser = synchroniser;
+        this.pullRequestServer = pullRequestServer;
+        this.dispatcher = dispatcher;
+        this.segmentCache = segmentCache;
     }
 
     /**
-     * Runs a single synchronisation attempt.
+     * Runs a single synchronisation attempt. Since this is usually requested explicitly by the
+     * user, the message is broadcast even if all recipients are up to date.
      */
     public void syncOnce() {
         if (prerequisitesChecker.arePrerequisitesMet(appContext)) {
             Log.d(LOG_TAG,"Synchronising once");
-            new Thread(synchroniser).start();
+            try {
+                dispatcher.sync().execute(() -> synchroniser.run(true));
+            } catch (RejectedExecutionException e) {
+                Log.d(LOG_TAG, "Not synchronising once since enough syncs are queued already");
+            }
 
         } else {
             Log.d(LOG_TAG,"Not synchronising once since prerequisites are not met");
         }
     }
 
+    /**
+     * Requests a synchronisation to run shortly, for example because the set of active calendars
+     * has changed. Multiple requests in quick succession result in a single synchronisation.
+     */
+    public void requestSync() {
+        if (prerequisitesChecker.arePrerequisitesMet(appContext)) {
+            SyncWorkerController.requestSync(appContext);
+        } else {
+            Log.d(LOG_TAG,"Not requesting sync since prerequisites are not met");
+        }
+    }
+
     /**
      * Ensures that the sync services are running. If they are, no interval changes are applied.
      */
@@ -54,9 +85,11 @@ public class SyncController {
     }
 
     /**
-     * Starts and stops our synchronisation services as configured in the preferences.
+     * Starts and stops our synchronisation services as configured in the preferences. Since the
+     * preferences may have changed, message parts encoded before are forgotten.
      */
     public void reconfigureSyncServices() {
+        segmentCache.invalidate();
         controlSyncServices(true);
     }
 
@@ -69,6 +102,9 @@ public class SyncController {
             SyncWorkerController.start(appContext, interval, forceRestart);
         } else {
             SyncWorkerController.stop(appContext);
+
+            // Requests are only answered between broadcasts, of which there won't be any more
+            pullRequestServer.stop();
         }
     }
 
@@ -1,6 +1,10 @@
 package net.hypotenubel.calendariq.sync.connectiq;
 
 import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.garmin.android.connectiq.ConnectIQ;
@@ -8,13 +12,22 @@ import com.garmin.android.connectiq.IQApp;
 import com.garmin.android.connectiq.IQDevice;
 import com.garmin.android.connectiq.exception.InvalidStateException;
 
+import net.hypotenubel.calendariq.data.apps.AppInstallationCache;
+import net.hypotenubel.calendariq.data.msg.model.MessageChunker;
 import net.hypotenubel.calendariq.data.stats.model.BroadcastStatistics;
 import net.hypotenubel.calendariq.util.Utilities;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * Use this class to broadcast a message to each installation of a list of apps on any device that
@@ -24,29 +37,78 @@ import java.util.Queue;
  * <p>The way this thing works is a little convoluted thanks to all of the asynchronous operations.
  * Basically, this is what happens if everything goes according to plan:</p>
  * <ol>
- *     <li>We initialize ConnectIQ in the constructor.</li>
- *     <li>As soon as ConnectIQ responds, we continue in the {@link InitializationListener}. If
+ *     <li>We acquire a lease on ConnectIQ from a {@link ConnectIQSessionManager} in the
+ *       constructor. The session manager may have to initialize ConnectIQ first.</li>
+ *     <li>As soon as the lease is granted, we continue in the {@link SessionListener}. If
  *       initialization failed, we stop right there, set the error state, and call
- *       {@link #finish()}. If initialization was successful, we assemble the cross product of
- *       known apps and connected devices.</li>
- *     <li>Calling {@link #queryNextInstallation()}, we start working our way through that list,
+ *       {@link #finish()}. If initialization was successful, we create a {@link DeviceLane} for
+ *       each connected device, which holds the apps we need to look for on that device.</li>
+ *     <li>Calling {@link #queryInstallations()}, we start working our way through the lanes,
  *       either confirming or denying that a given app is installed on a given device. We do so by
- *       issuing an application info request to ConnectIQ.</li>
- *     <li>The request's reply is received by an {@link AppInfoListener} instance. If the current
- *       app is installed on the current device, we add the pair as a recipient to send our
- *       broadcast message to later on. Either way, the listener calls
- *       {@link #queryNextInstallation()} again to issue a query for the next app-device pair.</li>
- *     <li>Once {@link #queryNextInstallation()} detects that there are no app-device pairs left to
- *       query, it calls {@link #sendMessages()} to start the broadcast.</li>
- *     <li>Once all messages have been sent, {@link #finish()} tries to shutdown the SDK and
- *       notifies the listener (if any) of the broadcast result.</li>
+ *       issuing application info requests to ConnectIQ, several at a time and taking turns
+ *       between the lanes. App-device pairs the {@link AppInstallationCache} (if any) knows about
+ *       are not queried at all.</li>
+ *     <li>Replies are received by an {@link AppInfoListener} instance, which matches them to their
+ *       query. If the app is installed on the device, the lane adds the pair as a recipient to send
+ *       our broadcast message to. Either way, the listener calls {@link #queryInstallations()}
+ *       again to issue further queries. Queries that remain unanswered for too long are given up
+ *       on.</li>
+ *     <li>Once a lane has no app-device pairs left to query, it starts sending its messages,
+ *       regardless of how far the other lanes are. Each message is sent as a {@link Delivery},
+ *       which only counts as delivered once ConnectIQ has confirmed it. Messages too large to be
+ *       sent in one piece are split into chunks first. Transient failures are retried after a
+ *       short, randomized delay.</li>
+ *     <li>If any app is expected to reply to its message, the lane waits for the replies to arrive,
+ *       but not longer than the reply timeout. Replies are passed on to the listener (if any).</li>
+ *     <li>Once all lanes are done, or the broadcast was cancelled, {@link #finish()} unregisters
+ *       our listeners, releases our lease, and notifies the listener (if any) of the broadcast
+ *       result, which combines the results of all lanes.</li>
  * </ol>
+ *
+ * <p>Each lane has a deadline of its own. A device that is slow to answer or to acknowledge our
+ * messages is given up on once its deadline has passed, without holding up the others.</p>
  */
 public class ConnectIQAppBroadcaster {
 
     /** Log tag for log messages. */
     private static final String LOG_TAG = Utilities.logTag(ConnectIQAppBroadcaster.class);
 
+    /** Messages larger than this are sent in chunks, if the recipient supports that. */
+    private static final int MAX_CHUNK_BYTES = MessageChunker.DEFAULT_MAX_CHUNK_BYTES;
+    /** Maximum number of chunks sent to a recipient that haven't been confirmed yet. */
+    private static final int CHUNK_WINDOW_SIZE = 2;
+    /** How often we try to send a message or chunk before giving up on its delivery. */
+    private static final int MAX_SEND_ATTEMPTS = 3;
+    /** Delay before the first retry of a failed message or chunk, doubled with each retry. */
+    private static final long RETRY_DELAY_MILLIS = 500;
+    /** Deliveries are given up on if ConnectIQ doesn't report any status for this long. */
+    private static final long DELIVERY_TIMEOUT_MILLIS = 20 * 1000;
+    /** Maximum number of application info queries awaiting their reply at the same time. */
+    private static final int MAX_CONCURRENT_QUERIES = 4;
+    /** Application info queries that haven't been answered after this long are given up on. */
+    private static final long QUERY_TIMEOUT_MILLIS = 5 * 1000;
+    /** Devices whose messages haven't been delivered after this long are given up on. */
+    private static final long LANE_TIMEOUT_MILLIS = 60 * 1000;
+
+    /** Source of transfer IDs, which let receivers tell the chunks of different transfers apart. */
+    private static final Random transferIds = new Random();
+    /** Source of the random part of retry delays, which keeps retries from bunching up. */
+    private static final Random retryJitter = new Random();
+
+    /**
+     * The phases a {@link DeviceLane} goes through.
+     */
+    private enum LaneState {
+        /** We're finding out which of our apps are installed on the device. */
+        DISCOVERING,
+        /** We're delivering messages to the apps installed on the device. */
+        SENDING,
+        /** All deliveries are done, but some apps have yet to reply. */
+        AWAITING_REPLIES,
+        /** The lane has finished, successfully or not. */
+        DONE
+    }
+
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // State
@@ -55,32 +117,51 @@ public class ConnectIQAppBroadcaster {
     private final IBroadcasterEventListener listener;
     /** Our current context. */
     private final Context context;
+    /** Provides the ConnectIQ instance we're using. */
+    private final ConnectIQSessionManager sessionManager;
+    /** Our lease on ConnectIQ, once it was granted. */
+    private ConnectIQSessionManager.Lease lease;
     /** ConnectIQ instance we're using to communicate with devices. */
-    private final ConnectIQ connectIQ;
-    /** List of app installations we'll have to check for. */
-    private final Queue<AppInstallation> installationsToQuery = new LinkedList<>();
-    /** The installation currently being queried. */
-    private AppInstallation installationCurrentlyQueried = null;
-    /** Map of device / app object combinations that we'll send the message to. */
-    private final List<AppInstallation> messageRecipients = new ArrayList<>();
-
-    /** The number of messages we have to send to reach each app installation. */
-    private int messagesToSend = 0;
-    /** Number of messages we have tried to send. */
-    private int sentMessages = 0;
+    private IConnectIQ connectIQ;
+    /** Devices whose events we have registered for. */
+    private final List<IQDevice> observedDevices = new ArrayList<>();
+    /** Installations whose app events we have registered for. */
+    private final List<AppInstallation> observedInstallations = new ArrayList<>();
+    /** One lane for each device that was connected when the broadcast started. */
+    private final List<DeviceLane> lanes = new ArrayList<>();
+    /** Index of the lane we'll look at first when issuing the next query. */
+    private int nextQueryLane = 0;
+    /** Queries awaiting their reply, indexed by the normalized ID of the app they query. */
+    private final Map<String, InstallationQuery> queriesInFlight = new HashMap<>();
+    /** Normalized IDs of apps for which a query has timed out during this broadcast. */
+    private final Set<String> timedOutAppIds = new HashSet<>();
+    /** Whether we may still issue application info queries. */
+    private boolean discovering = true;
 
     /** IDs of the apps we're communicating with. */
     private final List<String> appIds = new ArrayList<>();
-    /** Message to send to the app. */
-    private final Object msg;
-
-    /** If this ceases to be {@code null}, an error has occurred. */
+    /** Provides the message to send to each app installation. */
+    private final IMessageEncoder encoder;
+    /** How long we wait for replies after sending our messages. */
+    private final long replyTimeoutMillis;
+    /** Remembers which apps are installed where, if we're supposed to. */
+    private final AppInstallationCache installationCache;
+    /** Used to stop waiting for deliveries and replies once their timeout has passed. */
+    private Handler timeoutHandler;
+
+    /** If this ceases to be {@code null}, an error has occurred that concerns all devices. */
     private String errorMessage;
+    /** Whether we have already finished. */
+    private boolean finished = false;
 
     /** Listener for application infos. */
     private final AppInfoListener applicationInfoListener = new AppInfoListener();
     /** Listener for message events. */
-    private final ConnectIQ.IQSendMessageListener sendMessageListener = new SendMessageListener();
+    private final SendMessageListener sendMessageListener = new SendMessageListener();
+    /** Listener for replies. */
+    private final ReplyListener replyListener = new ReplyListener();
+    /** Listener for device status changes. */
+    private final DeviceListener deviceListener = new DeviceListener();
 
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -89,21 +170,33 @@ public class ConnectIQAppBroadcaster {
     /**
      * Creates a new instance and sends the given message to the given app.
      */
-    private ConnectIQAppBroadcaster(Object msg, Context context, List<String> appIds,
+    private ConnectIQAppBroadcaster(IMessageEncoder encoder, long replyTimeoutMillis,
+                                    AppInstallationCache installationCache,
+                                    ConnectIQSessionManager sessionManager,
+                                    Context context, List<String> appIds,
                                     ConnectIQ.IQConnectType connectionType,
-                                    IBroadcasterEventListener listener) {
+                                    IBroadcasterEventListener listener,
+                                    CancellationSignal cancellation) {
 
         this.listener = listener;
-        this.msg = msg;
+        this.encoder = encoder;
+        this.replyTimeoutMillis = replyTimeoutMillis;
+        this.installationCache = installationCache;
         this.context = context;
         this.appIds.addAll(appIds);
+        this.sessionManager = sessionManager != null
+                ? sessionManager
+                : ConnectIQSessionManager.unshared(context);
+
+        // Cancellation may be requested from any thread, but we only act on our own
+        Handler handler = getTimeoutHandler();
+        if (cancellation != null) {
+            cancellation.setOnCancelListener(() -> handler.post(this::cancel));
+        }
 
-        // Obtain a ConnectIQ instance and start it up
-        Log.d(LOG_TAG, "Obtaining ConnectIQ instance for " + connectionType.name());
-        connectIQ = ConnectIQ.getInstance(context, connectionType);
-
-        // Once finished this will pass control to the InitializationListener below
-        connectIQ.initialize(context, false, new InitializationListener());
+        // Once granted, this will pass control to the SessionListener below
+        Log.d(LOG_TAG, "Acquiring ConnectIQ session for " + connectionType.name());
+        this.sessionManager.acquire(connectionType, new SessionListener());
     }
 
 
@@ -127,7 +220,8 @@ public class ConnectIQAppBroadcaster {
         List<String> ids = new ArrayList<>();
         ids.add(appId);
 
-        new ConnectIQAppBroadcaster(msg, context, ids, connectionType, listener);
+        new ConnectIQAppBroadcaster((device, app) -> msg, 0, null, null, context, ids,
+                connectionType, listener, null);
     }
 
     /**
@@ -144,112 +238,792 @@ public class ConnectIQAppBroadcaster {
                                  IBroadcasterEventListener listener) {
 
         // The act of creating a new instance starts the sending process
-        new ConnectIQAppBroadcaster(msg, context, appIds, connectionType, listener);
+        new ConnectIQAppBroadcaster((device, app) -> msg, 0, null, null, context, appIds,
+                connectionType, listener, null);
+    }
+
+    /**
+     * Sends a message to the apps with the given IDs on any device where they are installed. The
+     * message is obtained from the given encoder separately for each installation. Installations
+     * the encoder expects a reply from are given some time to reply before the broadcast finishes.
+     * This must be called from a thread with a looper.
+     *
+     * @param encoder provides the message to send to each installation.
+     * @param replyTimeoutMillis how long to wait for replies after sending the messages.
+     * @param installationCache if not {@code null}, used to skip asking devices about apps we
+     *                          already know to be installed there or not.
+     * @param sessionManager provides the ConnectIQ instance to use. If {@code null}, ConnectIQ
+     *                       is initialized just for this broadcast.
+     * @param context the context we're operating in.
+     * @param appIds the receiving applications' IDs.
+     * @param connectionType the connection type.
+     * @param listener optional event listener to be notified as the broadcast finishes.
+     * @param cancellation optional signal that cancels the broadcast. Queries and deliveries that
+     *                     are still in progress are given up on, and the broadcast finishes with
+     *                     an error.
+     */
+    public static void broadcast(IMessageEncoder encoder, long replyTimeoutMillis,
+                                 AppInstallationCache installationCache,
+                                 ConnectIQSessionManager sessionManager,
+                                 Context context, List<String> appIds,
+                                 ConnectIQ.IQConnectType connectionType,
+                                 IBroadcasterEventListener listener,
+                                 CancellationSignal cancellation) {
+
+        // The act of creating a new instance starts the sending process
+        new ConnectIQAppBroadcaster(encoder, replyTimeoutMillis, installationCache,
+                sessionManager, context, appIds, connectionType, listener, cancellation);
     }
 
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Implementation
 
-    private void queryNextInstallation() {
-        // Be sure to stop if an error has occurred
-        if (isError()) {
-            return;
-        }
+    /**
+     * Issues application info queries until we either run out of installations to query or have
+     * too many queries in flight. Lanes take turns so that a device with many apps to look for
+     * doesn't delay the others.
+     *
+     * <p>ConnectIQ only tells us which app a reply is about, not which device it comes from. We
+     * thus never have more than one query per app in flight, even across lanes.</p>
+     */
+    private void queryInstallations() {
+        while (discovering && queriesInFlight.size() < MAX_CONCURRENT_QUERIES) {
+            InstallationQuery query = nextQuery();
+            if (query == null) {
+                break;
+            }
+            AppInstallation installation = query.installation;
 
-        if (installationsToQuery.isEmpty()) {
-            // We've finished querying devices, so send the messages
-            sendMessages();
+            Log.d(LOG_TAG, "Querying app "
+                    + installation.appId
+                    + " on device "
+                    + installation.device.getDeviceIdentifier()
+                    + " (" + installation.device.getFriendlyName() + ")");
 
-        } else {
-            // Continue querying devices until a query succeeds
-            boolean querySuccessful = false;
-            while (!querySuccessful) {
-                try {
-                    installationCurrentlyQueried = installationsToQuery.poll();
+            queriesInFlight.put(normalizeAppId(installation.appId), query);
+            query.lane.queriesInFlight++;
+            getTimeoutHandler().postDelayed(query, QUERY_TIMEOUT_MILLIS);
 
-                    Log.d(LOG_TAG, "Querying app "
-                            + installationCurrentlyQueried.appId
-                            + " on device "
-                            + installationCurrentlyQueried.device.getDeviceIdentifier()
-                            + " (" + installationCurrentlyQueried.device.getFriendlyName() + ")");
+            try {
+                connectIQ.getApplicationInfo(
+                        installation.appId, installation.device, applicationInfoListener);
 
-                    connectIQ.getApplicationInfo(
-                            installationCurrentlyQueried.appId,
-                            installationCurrentlyQueried.device,
-                            applicationInfoListener);
-                    querySuccessful = true;
+            } catch (Exception e) {
+                // This is not the device's fault, but ConnectIQ's
+                Log.e(LOG_TAG, "Exception while obtaining application info", e);
+                error(e.getClass().getSimpleName()
+                    + " while obtaining application info: "
+                    + e.getMessage());
+                finish();
+                return;
+            }
+        }
+    }
 
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Exception while obtaining application info", e);
-                    error(e.getClass().getSimpleName()
-                        + " while obtaining application info: "
-                        + e.getMessage());
+    /**
+     * Takes the next installation to query out of the next lane that has one whose app has no
+     * query in flight, and returns a query for it. Returns {@code null} if there is none.
+     */
+    private InstallationQuery nextQuery() {
+        for (int i = 0; i < lanes.size(); i++) {
+            int laneIndex = (nextQueryLane + i) % lanes.size();
+            DeviceLane lane = lanes.get(laneIndex);
+            if (lane.state != LaneState.DISCOVERING) {
+                continue;
+            }
+
+            for (AppInstallation installation : lane.installationsToQuery) {
+                if (!queriesInFlight.containsKey(normalizeAppId(installation.appId))) {
+                    lane.installationsToQuery.remove(installation);
+                    nextQueryLane = laneIndex + 1;
+                    return new InstallationQuery(lane, installation);
                 }
             }
         }
+        return null;
     }
 
     /**
-     * Sends the message to all device / app combinations we've found.
+     * Removes and returns the query in flight for the given app, if any.
      */
-    private void sendMessages() {
-        messagesToSend = messageRecipients.size();
+    private InstallationQuery takeQuery(String appId) {
+        InstallationQuery query = queriesInFlight.remove(normalizeAppId(appId));
+        if (query != null) {
+            getTimeoutHandler().removeCallbacks(query);
+        }
+        return query;
+    }
 
-        for (AppInstallation appInstallation : messageRecipients) {
-            // Be sure to stop if an error has occurred
-            if (isError()) {
-                Log.d(LOG_TAG, "Not sending messages because the error flag is set.");
+    /**
+     * Brings app IDs into the form ConnectIQ uses in its replies.
+     */
+    private static String normalizeAppId(String appId) {
+        return appId == null ? "" : appId.replaceAll("[\\s\\-]", "").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the lane of the given device, if any.
+     */
+    private DeviceLane findLane(IQDevice device) {
+        for (DeviceLane lane : lanes) {
+            if (lane.device.getDeviceIdentifier() == device.getDeviceIdentifier()) {
+                return lane;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finishes once all lanes are done.
+     */
+    private void laneFinished() {
+        for (DeviceLane lane : lanes) {
+            if (lane.state != LaneState.DONE) {
                 return;
             }
+        }
+        finish();
+    }
 
-            try {
-                IQDevice device = appInstallation.device;
-                Log.d(LOG_TAG, "Sending message to "
-                        + appInstallation.app.getDisplayName()
-                        + " on "
-                        + appInstallation.device.getDeviceIdentifier()
-                        + " (" + appInstallation.device.getFriendlyName() + ")");
-                connectIQ.sendMessage(
-                        appInstallation.device,
-                        appInstallation.app,
-                        msg,
-                        sendMessageListener);
-                sentMessages++;
+    /**
+     * Whether the given message is too large to be sent to the given installation in one piece,
+     * and the installation can handle chunks.
+     */
+    private boolean isChunkingRequired(AppInstallation appInstallation, Object msg) {
+        return msg instanceof List
+                && encoder.supportsChunking(appInstallation.device, appInstallation.app)
+                && MessageChunker.estimateSize(msg) > MAX_CHUNK_BYTES;
+    }
 
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "Exception while sending message", e);
-                error(e.getClass().getSimpleName()
-                    + " while sending messages: "
-                    + e.getMessage());
-            }
+    /**
+     * Returns the handler we use to implement timeouts, creating it if necessary.
+     */
+    private Handler getTimeoutHandler() {
+        if (timeoutHandler == null) {
+            Looper looper = Looper.myLooper();
+            timeoutHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
         }
+        return timeoutHandler;
+    }
 
+    /**
+     * Gives up on everything still in progress and finishes with an error.
+     */
+    private void cancel() {
+        if (finished) {
+            return;
+        }
+
+        Log.d(LOG_TAG, "Broadcast cancelled");
+
+        if (!isError()) {
+            error("Broadcast cancelled");
+        }
         finish();
     }
 
     /**
-     * Shuts down ConnectIQ and notifies our listener, if any.
+     * Releases ConnectIQ and notifies our listener, if any, of the combined results of all lanes.
      */
     private void finish() {
-        Log.d(LOG_TAG, "Broadcast finished, shutting down ConnectIQ");
+        // Replies and the reply timeout may both try to finish us
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        // Replies to pending queries must not resume discovery
+        discovering = false;
+        queriesInFlight.clear();
+
+        if (timeoutHandler != null) {
+            timeoutHandler.removeCallbacksAndMessages(null);
+        }
 
+        Log.d(LOG_TAG, "Broadcast finished, releasing ConnectIQ");
+
+        // ConnectIQ keeps running for others, who must not receive events meant for us
         try {
-            connectIQ.shutdown(context);
+            for (AppInstallation installation : observedInstallations) {
+                connectIQ.unregisterForApplicationEvents(installation.device, installation.app);
+            }
+            for (IQDevice device : observedDevices) {
+                connectIQ.unregisterForDeviceEvents(device);
+            }
         } catch (InvalidStateException e) {
             // We don't set an error state here because this might mask a more important previous
             // error
-            Log.d(LOG_TAG, "Exception shutting down ConnectIQ", e);
+            Log.d(LOG_TAG, "Exception unregistering from ConnectIQ events", e);
+        }
+
+        if (lease != null) {
+            lease.release();
         }
 
         // Notifiy the listener, if present
         if (listener != null) {
+            int messagesToSend = 0;
+            int deliveredMessages = 0;
+            long totalDeliveryMillis = 0;
+            long maxDeliveryMillis = 0;
+            StringBuilder laneErrors = new StringBuilder();
+
+            for (DeviceLane lane : lanes) {
+                messagesToSend += lane.recipients.size();
+                deliveredMessages += lane.deliveredMessages;
+                totalDeliveryMillis += lane.totalDeliveryMillis;
+                maxDeliveryMillis = Math.max(maxDeliveryMillis, lane.maxDeliveryMillis);
+
+                if (lane.isError()) {
+                    if (laneErrors.length() > 0) {
+                        laneErrors.append("; ");
+                    }
+                    laneErrors.append(lane.device.getFriendlyName())
+                            .append(": ")
+                            .append(lane.errorMessage);
+                }
+            }
+
+            // Errors concerning all devices are more important than those of single devices
+            if (!isError() && laneErrors.length() > 0) {
+                error(laneErrors.toString());
+            }
+
+            long averageDeliveryMillis = deliveredMessages == 0
+                    ? 0
+                    : totalDeliveryMillis / deliveredMessages;
+
             if (isError()) {
                 listener.broadcastFinished(BroadcastStatistics.failure(
-                        messagesToSend, sentMessages, errorMessage));
+                        messagesToSend, deliveredMessages, averageDeliveryMillis,
+                        maxDeliveryMillis, errorMessage));
+            } else {
+                listener.broadcastFinished(BroadcastStatistics.success(
+                        deliveredMessages, averageDeliveryMillis, maxDeliveryMillis));
+            }
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Installation Cache
+
+    /**
+     * Tries to find out from the installation cache whether the given installation exists. If it
+     * does, it is added to the lane's message recipients.
+     *
+     * @return {@code true} if the cache knew the answer, {@code false} if the device needs to be
+     *         asked.
+     */
+    private boolean restoreInstallation(DeviceLane lane, AppInstallation installation) {
+        if (installationCache == null) {
+            return false;
+        }
+
+        AppInstallationCache.Installation cached = installationCache.get(
+                installation.device.getDeviceIdentifier(), installation.appId);
+        if (cached == null) {
+            return false;
+        }
+
+        Log.d(LOG_TAG, "App "
+                + installation.appId
+                + (cached.isInstalled() ? " known to be on " : " known not to be on ")
+                + installation.device.getDeviceIdentifier()
+                + " (" + installation.device.getFriendlyName() + ")");
+
+        if (cached.isInstalled()) {
+            installation.app = new IQApp(installation.appId, IQApp.IQAppStatus.INSTALLED,
+                    cached.getDisplayName(), cached.getVersion());
+            lane.recipients.add(installation);
+        }
+
+        return true;
+    }
+
+    private void invalidateInstallation(IQDevice device, String appId) {
+        if (installationCache != null) {
+            installationCache.invalidate(device.getDeviceIdentifier(), appId);
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Device Lanes
+
+    /**
+     * Everything we do for a single device: finding out which of our apps are installed there,
+     * delivering our messages to them, and waiting for their replies. Lanes proceed independently
+     * of each other, except that they share the limit on application info queries. A lane that
+     * hasn't delivered its messages before its deadline is given up on, as is a lane whose device
+     * disconnects.
+     */
+    private class DeviceLane {
+
+        /** The device this lane is about. */
+        private final IQDevice device;
+        /** Installations we'll have to check for. */
+        private final List<AppInstallation> installationsToQuery = new LinkedList<>();
+        /** Number of our queries that are awaiting their reply. */
+        private int queriesInFlight = 0;
+        /** Installations we'll send the message to. */
+        private final List<AppInstallation> recipients = new ArrayList<>();
+        /** Recipients we're still expecting a reply from. */
+        private final List<AppInstallation> awaitedRepliers = new ArrayList<>();
+        /** Deliveries that are still in progress. */
+        private final List<Delivery> activeDeliveries = new ArrayList<>();
+        /** The phase we're in. */
+        private LaneState state = LaneState.DISCOVERING;
+        /** Whether we're still in the process of starting deliveries to all recipients. */
+        private boolean sendingMessages = false;
+
+        /** Number of messages ConnectIQ has confirmed to be delivered. */
+        private int deliveredMessages = 0;
+        /** Number of deliveries that have failed. */
+        private int failedDeliveries = 0;
+        /** Sum of the times it took to deliver each message. */
+        private long totalDeliveryMillis = 0;
+        /** Longest time it took to deliver a message. */
+        private long maxDeliveryMillis = 0;
+        /** When the lane started. */
+        private long startMillis;
+        /** If this ceases to be {@code null}, an error has occurred on this device. */
+        private String errorMessage;
+
+        /** Gives up on the lane if it doesn't deliver its messages in time. */
+        private final Runnable deadline = () ->
+                giveUp("Messages not delivered within " + LANE_TIMEOUT_MILLIS + " ms");
+        /** Stops waiting for replies. */
+        private final Runnable replyTimeout = () -> {
+            Log.d(LOG_TAG, awaitedRepliers.size() + " replies from "
+                    + describeDevice() + " did not arrive in time");
+            done();
+        };
+
+        private DeviceLane(IQDevice device) {
+            this.device = device;
+        }
+
+        /**
+         * Starts the lane's deadline, and starts sending right away if the installation cache
+         * has told us everything we need to know.
+         */
+        private void start() {
+            startMillis = SystemClock.elapsedRealtime();
+            getTimeoutHandler().postDelayed(deadline, LANE_TIMEOUT_MILLIS);
+
+            if (installationsToQuery.isEmpty()) {
+                sendMessages();
+            }
+        }
+
+        /**
+         * Called once we know whether the given installation exists, or gave up on finding out.
+         * Installations whose app is known are added to our recipients. Once all queries are done
+         * with, we start sending.
+         */
+        private void queryFinished(AppInstallation installation) {
+            if (state != LaneState.DISCOVERING) {
+                return;
+            }
+
+            queriesInFlight--;
+            if (installation.app != null) {
+                recipients.add(installation);
+            }
+
+            if (installationsToQuery.isEmpty() && queriesInFlight == 0) {
+                sendMessages();
+            }
+        }
+
+        /**
+         * Sends the message to all of our recipients.
+         */
+        private void sendMessages() {
+            state = LaneState.SENDING;
+            sendingMessages = true;
+
+            for (AppInstallation appInstallation : recipients) {
+                // Be sure to stop if an error has occurred
+                if (isError()) {
+                    Log.d(LOG_TAG, "Not sending messages to " + describeDevice()
+                            + " because the error flag is set.");
+                    break;
+                }
+
+                try {
+                    Log.d(LOG_TAG, "Sending message to "
+                            + appInstallation.app.getDisplayName()
+                            + " on "
+                            + describeDevice()
+                            + ", version " + appInstallation.app.version());
+                    Object msg = encoder.encodeFor(appInstallation.device, appInstallation.app);
+
+                    // Listen for replies before sending, lest we miss a quick one
+                    boolean expectsReply = replyTimeoutMillis > 0
+                            && encoder.expectsReply(appInstallation.device, appInstallation.app);
+                    if (expectsReply) {
+                        connectIQ.registerForAppEvents(
+                                appInstallation.device, appInstallation.app, replyListener);
+                        observedInstallations.add(appInstallation);
+                        awaitedRepliers.add(appInstallation);
+                    }
+
+                    List<Object> parts = new ArrayList<>();
+                    if (isChunkingRequired(appInstallation, msg)) {
+                        @SuppressWarnings("unchecked")
+                        List<List<Object>> chunks = MessageChunker.split(
+                                (List<Object>) msg, MAX_CHUNK_BYTES, transferIds.nextInt());
+                        Log.d(LOG_TAG, "Sending message in " + chunks.size() + " chunks");
+                        parts.addAll(chunks);
+
+                    } else {
+                        parts.add(msg);
+                    }
+
+                    Delivery delivery = new Delivery(this, appInstallation, parts);
+                    activeDeliveries.add(delivery);
+                    delivery.sendParts();
+
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Exception while sending message", e);
+                    invalidateInstallation(appInstallation.device, appInstallation.appId);
+                    error(e.getClass().getSimpleName()
+                        + " while sending messages: "
+                        + e.getMessage());
+                }
+            }
+
+            sendingMessages = false;
+            deliveriesFinished();
+        }
+
+        /**
+         * Called once a delivery has completed or failed.
+         */
+        private void deliveryFinished(Delivery delivery, boolean successful) {
+            activeDeliveries.remove(delivery);
+
+            if (successful) {
+                messageDelivered(
+                        delivery.appInstallation,
+                        SystemClock.elapsedRealtime() - delivery.startMillis);
+            } else {
+                failedDeliveries++;
+                awaitedRepliers.remove(delivery.appInstallation);
+                messageUndelivered(delivery);
+            }
+
+            deliveriesFinished();
+        }
+
+        /**
+         * Counts the message to the given installation as delivered and notifies our listener,
+         * if any.
+         */
+        private void messageDelivered(AppInstallation appInstallation, long deliveryMillis) {
+            Log.d(LOG_TAG, "Message delivered to "
+                    + appInstallation.appId
+                    + " on "
+                    + appInstallation.device.getDeviceIdentifier()
+                    + " after " + deliveryMillis + " ms");
+
+            deliveredMessages++;
+            totalDeliveryMillis += deliveryMillis;
+            maxDeliveryMillis = Math.max(maxDeliveryMillis, deliveryMillis);
+
+            if (listener != null) {
+                listener.messageSent(appInstallation.device, appInstallation.app);
+            }
+        }
+
+        /**
+         * Notifies our listener, if any, that the given delivery has failed.
+         */
+        private void messageUndelivered(Delivery delivery) {
+            if (listener != null) {
+                listener.messageUndelivered(
+                        device, delivery.appInstallation.app, delivery.parts);
+            }
+        }
+
+        /**
+         * Starts waiting for replies once all messages have been sent and all deliveries are
+         * done.
+         */
+        private void deliveriesFinished() {
+            if (state != LaneState.SENDING || sendingMessages || !activeDeliveries.isEmpty()) {
+                return;
+            }
+
+            if (failedDeliveries > 0 && !isError()) {
+                error(failedDeliveries + " of " + recipients.size()
+                        + " messages could not be delivered");
+            }
+            awaitReplies();
+        }
+
+        /**
+         * Finishes once all awaited replies have arrived or the reply timeout has passed.
+         */
+        private void awaitReplies() {
+            // Our messages are out, so replies don't count against the deadline
+            getTimeoutHandler().removeCallbacks(deadline);
+
+            if (awaitedRepliers.isEmpty() || isError()) {
+                done();
+                return;
+            }
+
+            Log.d(LOG_TAG, "Waiting for " + awaitedRepliers.size() + " replies from "
+                    + describeDevice());
+
+            state = LaneState.AWAITING_REPLIES;
+            getTimeoutHandler().postDelayed(replyTimeout, replyTimeoutMillis);
+        }
+
+        /**
+         * Called once a reply from the given app has arrived.
+         */
+        private void replyReceived(IQApp app) {
+            // ConnectIQ strips dashes from app IDs
+            String appId = normalizeAppId(app.getApplicationId());
+            awaitedRepliers.removeIf(installation ->
+                    normalizeAppId(installation.appId).equals(appId));
+
+            // Replies may overtake the confirmation of our own messages
+            if (state == LaneState.AWAITING_REPLIES && awaitedRepliers.isEmpty()) {
+                done();
+            }
+        }
+
+        /**
+         * Returns the active delivery to the given app, if any.
+         */
+        private Delivery findActiveDelivery(IQApp app) {
+            String appId = normalizeAppId(app.getApplicationId());
+            for (Delivery delivery : activeDeliveries) {
+                if (normalizeAppId(delivery.appInstallation.appId).equals(appId)) {
+                    return delivery;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Stops whatever the lane is doing and finishes it with the given error. Queries the lane
+         * is still waiting for stay in flight, since their replies would otherwise be mistaken
+         * for replies to queries for the same app on other devices.
+         */
+        private void giveUp(String reason) {
+            if (state == LaneState.DONE) {
+                return;
+            }
+
+            Log.d(LOG_TAG, "Giving up on " + describeDevice() + ": " + reason);
+
+            installationsToQuery.clear();
+            for (Delivery delivery : activeDeliveries) {
+                delivery.abandon();
+                messageUndelivered(delivery);
+            }
+            failedDeliveries += activeDeliveries.size();
+            activeDeliveries.clear();
+
+            if (!isError()) {
+                error(reason);
+            }
+            done();
+        }
+
+        private void done() {
+            if (state == LaneState.DONE) {
+                return;
+            }
+            state = LaneState.DONE;
+
+            getTimeoutHandler().removeCallbacks(deadline);
+            getTimeoutHandler().removeCallbacks(replyTimeout);
+
+            Log.d(LOG_TAG, describeDevice() + " done after "
+                    + (SystemClock.elapsedRealtime() - startMillis) + " ms, "
+                    + deliveredMessages + " of " + recipients.size() + " messages delivered"
+                    + (isError() ? ", error: " + errorMessage : ""));
+
+            laneFinished();
+        }
+
+        private boolean isError() {
+            return errorMessage != null;
+        }
+
+        private void error(String message) {
+            errorMessage = message;
+        }
+
+        private String describeDevice() {
+            return device.getDeviceIdentifier() + " (" + device.getFriendlyName() + ")";
+        }
+
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Deliveries
+
+    /**
+     * Whether sending a message that failed with the given status may succeed if we try again.
+     */
+    private static boolean isTransientFailure(ConnectIQ.IQMessageStatus status) {
+        return status == ConnectIQ.IQMessageStatus.FAILURE_DURING_TRANSFER
+                || status == ConnectIQ.IQMessageStatus.FAILURE_UNKNOWN;
+    }
+
+    /**
+     * Returns how long to wait before sending something again that has failed the given number
+     * of times. The delay doubles with each attempt, and a random half of it is left out.
+     */
+    private static long retryDelayMillis(int attempts) {
+        long delay = RETRY_DELAY_MILLIS << (attempts - 1);
+        return delay / 2 + (long) (retryJitter.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Delivers a message to a single installation, either in one piece or in chunks. A delivery
+     * is only successful once ConnectIQ has confirmed each part. No more than
+     * {@link #CHUNK_WINDOW_SIZE} parts are in flight at any time: the next part is only sent once
+     * ConnectIQ has reported the status of a previous one. Parts that fail transiently are sent
+     * again after a delay instead of restarting the whole delivery. If ConnectIQ doesn't report
+     * any status for too long, the delivery fails.
+     *
+     * <p>ConnectIQ doesn't tell us which message a status refers to, only the device and app. Since
+     * messages to an installation are delivered in order, we assume that each status refers to the
+     * oldest part still in flight.</p>
+     */
+    private class Delivery {
+
+        /** The lane this delivery belongs to. */
+        private final DeviceLane lane;
+        /** The installation we're sending to. */
+        private final AppInstallation appInstallation;
+        /** The parts to send: either the whole message or its chunks. */
+        private final List<Object> parts;
+        /** Indices of the parts that still need to be sent, failed parts first. */
+        private final Deque<Integer> unsentParts = new ArrayDeque<>();
+        /** Indices of the parts that have been sent, but whose status we don't know yet. */
+        private final Deque<Integer> partsInFlight = new ArrayDeque<>();
+        /** How often we have tried to send each part. */
+        private final int[] attempts;
+        /** Number of parts ConnectIQ has confirmed. */
+        private int confirmedParts = 0;
+        /** When the delivery started. */
+        private final long startMillis = SystemClock.elapsedRealtime();
+        /** Whether the delivery has completed or failed. */
+        private boolean done = false;
+        /** Fails the delivery if ConnectIQ keeps us waiting for too long. */
+        private final Runnable deadline = () -> {
+            Log.d(LOG_TAG, "No message status received for " + DELIVERY_TIMEOUT_MILLIS + " ms");
+            done(false);
+        };
+
+        private Delivery(DeviceLane lane, AppInstallation appInstallation, List<Object> parts) {
+            this.lane = lane;
+            this.appInstallation = appInstallation;
+            this.parts = parts;
+            this.attempts = new int[parts.size()];
+
+            for (int i = 0; i < parts.size(); i++) {
+                unsentParts.add(i);
+            }
+        }
+
+        /**
+         * Sends parts until the window is full or there are none left to send.
+         */
+        private void sendParts() {
+            while (partsInFlight.size() < CHUNK_WINDOW_SIZE && !unsentParts.isEmpty()) {
+                int part = unsentParts.poll();
+                attempts[part]++;
+                partsInFlight.add(part);
+
+                try {
+                    connectIQ.sendMessage(
+                            appInstallation.device,
+                            appInstallation.app,
+                            parts.get(part),
+                            sendMessageListener);
+
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Exception while sending part " + part, e);
+                    invalidateInstallation(appInstallation.device, appInstallation.appId);
+                    done(false);
+                    return;
+                }
+            }
+
+            // The deadline only applies while we're waiting for ConnectIQ
+            getTimeoutHandler().removeCallbacks(deadline);
+            if (!partsInFlight.isEmpty()) {
+                getTimeoutHandler().postDelayed(deadline, DELIVERY_TIMEOUT_MILLIS);
+            }
+        }
+
+        /**
+         * Processes the status ConnectIQ reported for the oldest part in flight.
+         */
+        private void onStatus(ConnectIQ.IQMessageStatus status) {
+            Integer part = partsInFlight.poll();
+            if (part == null || done) {
+                return;
+            }
+
+            if (status == ConnectIQ.IQMessageStatus.SUCCESS) {
+                confirmedParts++;
+                if (confirmedParts == parts.size()) {
+                    done(true);
+                    return;
+                }
+
+            } else if (isTransientFailure(status) && attempts[part] < MAX_SEND_ATTEMPTS) {
+                long delayMillis = retryDelayMillis(attempts[part]);
+                Log.d(LOG_TAG, "Part " + part + " failed with status " + status.name()
+                        + ", trying again in " + delayMillis + " ms");
+
+                getTimeoutHandler().postDelayed(() -> {
+                    if (!done) {
+                        unsentParts.addFirst(part);
+                        sendParts();
+                    }
+                }, delayMillis);
+
             } else {
-                listener.broadcastFinished(BroadcastStatistics.success(sentMessages));
+                Log.d(LOG_TAG, "Part " + part + " failed with status " + status.name()
+                        + " after " + attempts[part] + " attempts");
+                done(false);
+                return;
             }
+
+            sendParts();
+        }
+
+        private void done(boolean successful) {
+            if (done) {
+                return;
+            }
+            done = true;
+
+            getTimeoutHandler().removeCallbacks(deadline);
+            lane.deliveryFinished(this, successful);
+        }
+
+        /**
+         * Stops the delivery without telling the lane, which has given up on it.
+         */
+        private void abandon() {
+            done = true;
+            getTimeoutHandler().removeCallbacks(deadline);
         }
     }
 
@@ -277,76 +1051,207 @@ public class ConnectIQAppBroadcaster {
     // Listener Classes
 
     /**
-     * Implements reactions to ConnectIQ SDK initialization attempts.
+     * Implements reactions to our ConnectIQ session being started or failing.
      */
-    private class InitializationListener implements ConnectIQ.ConnectIQListener {
+    private class SessionListener implements IConnectIQSessionListener {
         @Override
-        public void onSdkReady() {
+        public void sessionStarted(ConnectIQSessionManager.Lease lease) {
             Log.d(LOG_TAG, "ConnectIQ ready, discovering connected devices...");
 
+            ConnectIQAppBroadcaster.this.lease = lease;
+            connectIQ = lease.getConnectIQ();
+
+            // We may have been cancelled while waiting for the session
+            if (finished) {
+                lease.release();
+                return;
+            }
+
             // Start querying installations
             try {
-                // We'll look for each app on every connected device
+                // We'll look for each app on every connected device, unless we already know
+                // whether it's installed there
                 for (IQDevice device : connectIQ.getConnectedDevices()) {
+                    DeviceLane lane = new DeviceLane(device);
                     for (String appId : appIds) {
-                        installationsToQuery.add(new AppInstallation(device, appId));
+                        AppInstallation installation = new AppInstallation(device, appId);
+                        if (!restoreInstallation(lane, installation)) {
+                            lane.installationsToQuery.add(installation);
+                        }
                     }
+                    lanes.add(lane);
+
+                    // We need to know if the device disconnects, and anything happening to it may
+                    // invalidate what we know about it
+                    connectIQ.registerForDeviceEvents(device, deviceListener);
+                    observedDevices.add(device);
+                }
+
+                if (installationCache != null) {
+                    List<Long> deviceIds = new ArrayList<>(lanes.size());
+                    for (DeviceLane lane : lanes) {
+                        deviceIds.add(lane.device.getDeviceIdentifier());
+                    }
+                    installationCache.putConnectedDevices(deviceIds);
                 }
 
-                queryNextInstallation();
             } catch (Exception e) {
                 Log.e(LOG_TAG, "Exception while trying to obtain connected devices", e);
                 error(e.getClass().getSimpleName()
                         + " while trying to obtain connected devices: "
                         + e.getMessage());
+                finish();
+                return;
             }
-        }
 
-        @Override
-        public void onInitializeError(ConnectIQ.IQSdkErrorStatus iqSdkErrorStatus) {
-            Log.e(LOG_TAG, iqSdkErrorStatus.name());
-            error("Unable to initialize ConnectIQ. SDK error status " + iqSdkErrorStatus.name());
+            Log.d(LOG_TAG, "Broadcasting to " + lanes.size() + " devices");
+
+            // Lanes may finish right away, and the last one to do so finishes the broadcast
+            for (DeviceLane lane : new ArrayList<>(lanes)) {
+                lane.start();
+            }
+            if (lanes.isEmpty()) {
+                finish();
+            }
+
+            queryInstallations();
         }
 
         @Override
-        public void onSdkShutDown() {
-            Log.d(LOG_TAG, "ConnectIQ shut down");
+        public void sessionFailed(String errorMessage) {
+            Log.e(LOG_TAG, errorMessage);
+            error(errorMessage);
+            finish();
         }
     }
 
     /**
-     * Finds out whether our app is installed on a device. If so, the message is sent to that
-     * device. In any case, we query the next device for whether the app is installed there.
+     * Finds out whether one of our apps is installed on a device and tells the device's lane. In
+     * any case, we issue further queries if there are any left.
      */
     private class AppInfoListener implements ConnectIQ.IQApplicationInfoListener {
 
         @Override
         public void onApplicationInfoReceived(IQApp iqApp) {
+            InstallationQuery query = takeQuery(iqApp.getApplicationId());
+            if (query == null) {
+                Log.d(LOG_TAG, "Ignoring unexpected info on app " + iqApp.getApplicationId());
+                return;
+            }
+            AppInstallation installation = query.installation;
+
             Log.d(LOG_TAG, "App "
-                    + installationCurrentlyQueried.appId
+                    + installation.appId
                     + " found on "
-                    + installationCurrentlyQueried.device.getDeviceIdentifier()
-                    + " (" + installationCurrentlyQueried.device.getFriendlyName() + ")");
+                    + installation.device.getDeviceIdentifier()
+                    + " (" + installation.device.getFriendlyName() + ")");
 
             // Store the IQApp object
-            installationCurrentlyQueried.app = iqApp;
-            messageRecipients.add(installationCurrentlyQueried);
+            installation.app = iqApp;
+
+            if (installationCache != null && isReliable(installation)) {
+                installationCache.putInstalled(
+                        installation.device.getDeviceIdentifier(),
+                        installation.appId,
+                        iqApp.getDisplayName(),
+                        iqApp.version());
+            }
 
-            queryNextInstallation();
+            query.lane.queryFinished(installation);
+            queryInstallations();
         }
 
         @Override
-        public void onApplicationNotInstalled(String s) {
+        public void onApplicationNotInstalled(String appId) {
+            InstallationQuery query = takeQuery(appId);
+            if (query == null) {
+                Log.d(LOG_TAG, "Ignoring unexpected info on app " + appId);
+                return;
+            }
+            AppInstallation installation = query.installation;
+
             Log.d(LOG_TAG, "App "
-                    + installationCurrentlyQueried.appId
+                    + installation.appId
                     + " not found on "
-                    + installationCurrentlyQueried.device.getDeviceIdentifier()
-                    + " (" + installationCurrentlyQueried.device.getFriendlyName() + "): " + s);
-            queryNextInstallation();
+                    + installation.device.getDeviceIdentifier()
+                    + " (" + installation.device.getFriendlyName() + ")");
+
+            if (installationCache != null && isReliable(installation)) {
+                installationCache.putNotInstalled(
+                        installation.device.getDeviceIdentifier(),
+                        installation.appId);
+            }
+
+            query.lane.queryFinished(installation);
+            queryInstallations();
+        }
+
+        /**
+         * Whether we can be sure that a reply concerning the given installation really came from
+         * its device. After a query has timed out, its reply may still arrive while we're
+         * querying the same app on the next device.
+         */
+        private boolean isReliable(AppInstallation installation) {
+            return !timedOutAppIds.contains(normalizeAppId(installation.appId));
         }
     }
 
-    private static class SendMessageListener implements ConnectIQ.IQSendMessageListener {
+    /**
+     * Forgets what we know about devices that change their status, and gives up on devices that
+     * are not connected anymore.
+     */
+    private class DeviceListener implements ConnectIQ.IQDeviceEventListener {
+        @Override
+        public void onDeviceStatusChanged(IQDevice device, IQDevice.IQDeviceStatus status) {
+            Log.d(LOG_TAG, device.getDeviceIdentifier() + " changed status to "
+                    + status.name());
+
+            if (installationCache != null) {
+                installationCache.invalidateDevice(device.getDeviceIdentifier());
+            }
+
+            if (finished || status == IQDevice.IQDeviceStatus.CONNECTED) {
+                return;
+            }
+
+            DeviceLane lane = findLane(device);
+            if (lane != null) {
+                lane.giveUp("Device changed status to " + status.name());
+            }
+        }
+    }
+
+    /**
+     * Passes replies on to our listener and tells the lane of the device they came from.
+     */
+    private class ReplyListener implements ConnectIQ.IQApplicationEventListener {
+        @Override
+        public void onMessageReceived(IQDevice iqDevice, IQApp iqApp, List<Object> list,
+                                      ConnectIQ.IQMessageStatus iqMessageStatus) {
+
+            Log.d(LOG_TAG, "Reply received from " + iqApp.getApplicationId()
+                    + " on " + iqDevice.getDeviceIdentifier()
+                    + " with status " + iqMessageStatus.name());
+
+            if (finished) {
+                return;
+            }
+
+            if (listener != null && iqMessageStatus == ConnectIQ.IQMessageStatus.SUCCESS) {
+                listener.messageReceived(iqDevice, iqApp, list);
+            }
+
+            DeviceLane lane = findLane(iqDevice);
+            if (lane != null) {
+                lane.replyReceived(iqApp);
+            }
+        }
+    }
+
+    /**
+     * Logs the status of sent messages and passes it on to the delivery it belongs to, if any.
+     */
+    private class SendMessageListener implements ConnectIQ.IQSendMessageListener {
         @Override
         public void onMessageStatus(IQDevice iqDevice, IQApp iqApp,
                                     ConnectIQ.IQMessageStatus iqMessageStatus) {
@@ -354,6 +1259,23 @@ public class ConnectIQAppBroadcaster {
             Log.d(LOG_TAG, "Message sent to " + iqApp.getApplicationId()
                     + " on " + iqDevice.getDeviceIdentifier()
                     + " with status " + iqMessageStatus.name());
+
+            // These may mean that the app isn't where we thought it was anymore
+            if (iqMessageStatus == ConnectIQ.IQMessageStatus.FAILURE_INVALID_DEVICE
+                    || iqMessageStatus == ConnectIQ.IQMessageStatus.FAILURE_DEVICE_NOT_CONNECTED
+                    || iqMessageStatus == ConnectIQ.IQMessageStatus.FAILURE_UNKNOWN) {
+                invalidateInstallation(iqDevice, iqApp.getApplicationId());
+            }
+
+            if (finished) {
+                return;
+            }
+
+            DeviceLane lane = findLane(iqDevice);
+            Delivery delivery = lane == null ? null : lane.findActiveDelivery(iqApp);
+            if (delivery != null) {
+                delivery.onStatus(iqMessageStatus);
+            }
         }
     }
 
@@ -361,6 +1283,39 @@ public class ConnectIQAppBroadcaster {
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Data Holding
 
+    /**
+     * An application info query awaiting its reply. Runs when the query has timed out.
+     */
+    private class InstallationQuery implements Runnable {
+
+        /** The lane that issued the query. */
+        private final DeviceLane lane;
+        /** The installation we're asking about. */
+        private final AppInstallation installation;
+
+        private InstallationQuery(DeviceLane lane, AppInstallation installation) {
+            this.lane = lane;
+            this.installation = installation;
+        }
+
+        @Override
+        public void run() {
+            Log.d(LOG_TAG, "Query for app "
+                    + installation.appId
+                    + " on "
+                    + installation.device.getDeviceIdentifier()
+                    + " (" + installation.device.getFriendlyName() + ") timed out");
+
+            String key = normalizeAppId(installation.appId);
+            queriesInFlight.remove(key);
+            timedOutAppIds.add(key);
+
+            lane.queryFinished(installation);
+            queryInstallations();
+        }
+
+    }
+
     /**
      * Represents an app on a device. If we haven't queried the device for the app yet, this object
      * will only cary the app ID. Once we found that the app is installed, it will carry the
@@ -1,6 +1,7 @@
 package net.hypotenubel.calendariq.sync.connectiq;
 
-import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.garmin.android.connectiq.ConnectIQ;
@@ -9,15 +10,29 @@ import com.garmin.android.connectiq.IQDevice;
 import com.garmin.android.connectiq.exception.InvalidStateException;
 
 import net.hypotenubel.calendariq.util.Utilities;
-
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * Use this class to stay connected to installations of an app across all known devices and react to
- * messages sent from ConnectIQ devices to the Android device. This class is currently not used by
- * this app.
+ * Use this class to stay connected to installations of one or more apps across all known devices
+ * and react to messages sent from ConnectIQ devices to the Android device. Listeners are also told
+ * when devices connect and what becomes of the messages we send.
+ *
+ * <p>Messages are sent through one queue per device, one part after the other. If a message for an
+ * app is queued while an older one for the same app is still waiting, the older one is dropped,
+ * since only the newest one matters. Statistics about the queues are available through
+ * {@link #getSendStatistics()}.</p>
  */
 public class ConnectIQAppTransceiver {
 
@@ -41,29 +56,58 @@ public class ConnectIQAppTransceiver {
     /** Log tag for log messages. */
     private static final String LOG_TAG = Utilities.logTag(ConnectIQAppTransceiver.class);
 
+    /**
+     * Number of message parts that may await their status on each device. ConnectIQ only tells us
+     * which device and app a status belongs to, so statuses are matched to parts sent to the same
+     * app in the order they were sent.
+     */
+    private static final int MAX_PARTS_IN_FLIGHT = 1;
+    /** Message parts whose status hasn't arrived after this long are considered lost. */
+    private static final long SEND_TIMEOUT_MILLIS = 30 * 1000;
+    /**
+     * How long we wait for the status of a part that timed out before we assume it got lost. Until
+     * then, nothing else is sent to the same app, lest we take the late status for its own.
+     */
+    private static final long LATE_STATUS_TIMEOUT_MILLIS = 30 * 1000;
+
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // State
 
-    /** Our current context. */
-    private final Context context;
+    /** Provides the ConnectIQ instance we're using. */
+    private final ConnectIQSessionManager sessionManager;
+    /** The connection type we need ConnectIQ to use. */
+    private final ConnectIQ.IQConnectType connectionType;
+    /** Our lease on ConnectIQ while we're running. */
+    private ConnectIQSessionManager.Lease lease;
     /** ConnectIQ instance we're using to communicate with devices. */
-    private final ConnectIQ connectIQ;
-
-    /** The IQApp object we're using to represent our app. */
-    private final IQApp iqApp;
+    private IConnectIQ connectIQ;
+    /** Runs our interactions with the ConnectIQ SDK. */
+    private final Dispatcher dispatcher;
+    /** Devices whose events we have registered for. */
+    private final List<IQDevice> observedDevices = new ArrayList<>();
+
+    /** The IQApp objects representing the apps whose messages we listen for. */
+    private final List<IQApp> iqApps = new ArrayList<>();
+
+    /** Send queues, indexed by device ID. Only used on the ConnectIQ queue. */
+    private final Map<Long, SendQueue> sendQueues = new HashMap<>();
+    /** Statistics about what we send. */
+    private final SendStatistics sendStatistics = new SendStatistics();
+    /** Handler we use to give up on message parts whose status doesn't arrive. */
+    private Handler timeoutHandler;
 
     /** Event listeners listening to what we have to say. */
     private final Set<ITransceiverEventListener> eventListeners = new LinkedHashSet<>();
 
-    /** Listener for initialization events. */
-    private final InitializationListener initializationListener = new InitializationListener();
+    /** Listener for session events. */
+    private final SessionListener sessionListener = new SessionListener();
     /** Listener for application-related events. */
     private final ApplicationEventListener appEventListener = new ApplicationEventListener();
     /** Listener for device events. */
     private final DeviceListener deviceListener = new DeviceListener();
     /** Listener for message events. */
-    private final ConnectIQ.IQSendMessageListener sendMessageListener = new SendMessageListener();
+    private final SendMessageListener sendMessageListener = new SendMessageListener();
 
     /** The state we're currently in. */
     private State state = State.STOPPED;
@@ -75,22 +119,47 @@ public class ConnectIQAppTransceiver {
     /**
      * Creates a new instance that listens for messages from the given app.
      *
-     * @param context
-     *         the context we're operating in.
      * @param appId
      *         ID of the app whose messages to listen for.
      * @param connectionType
      *         whether we're connecting to Bluetooth devices or to the simulator.
+     * @param dispatcher
+     *         provides the queue messages are sent from.
+     * @param sessionManager
+     *         provides the ConnectIQ instance to use.
      */
-    public ConnectIQAppTransceiver(Context context, String appId,
-                                   ConnectIQ.IQConnectType connectionType) {
+    public ConnectIQAppTransceiver(String appId,
+                                   ConnectIQ.IQConnectType connectionType,
+                                   Dispatcher dispatcher,
+                                   ConnectIQSessionManager sessionManager) {
 
-        this.context = context;
-        this.iqApp = new IQApp(appId);
+        this(Collections.singletonList(appId), connectionType, dispatcher, sessionManager);
+    }
 
-        // Obtain a ConnectIQ instance
-        Log.d(LOG_TAG, "Obtaining ConnectIQ instance for " + connectionType.name());
-        connectIQ = ConnectIQ.getInstance(context, connectionType);
+    /**
+     * Creates a new instance that listens for messages from the given apps. If the list is empty,
+     * we only watch devices. Messages can be sent to any app either way.
+     *
+     * @param appIds
+     *         IDs of the apps whose messages to listen for.
+     * @param connectionType
+     *         whether we're connecting to Bluetooth devices or to the simulator.
+     * @param dispatcher
+     *         provides the queue messages are sent from.
+     * @param sessionManager
+     *         provides the ConnectIQ instance to use.
+     */
+    public ConnectIQAppTransceiver(List<String> appIds,
+                                   ConnectIQ.IQConnectType connectionType,
+                                   Dispatcher dispatcher,
+                                   ConnectIQSessionManager sessionManager) {
+
+        for (String appId : appIds) {
+            this.iqApps.add(new IQApp(appId));
+        }
+        this.connectionType = connectionType;
+        this.dispatcher = dispatcher;
+        this.sessionManager = sessionManager;
     }
 
 
@@ -98,8 +167,8 @@ public class ConnectIQAppTransceiver {
     // Public Interface
 
     /**
-     * Starts up the transceiver by initializing the ConnectIQ framework. Once that is initialized,
-     * we subscribe to all devices and each instance of the app we're going for.
+     * Starts up the transceiver by acquiring a ConnectIQ session. Once that is granted, we
+     * subscribe to all devices and each instance of the apps we're going for.
      *
      * @throws IllegalStateException
      *         if the transceiver is not currently stopped.
@@ -111,12 +180,12 @@ public class ConnectIQAppTransceiver {
 
         Log.d(LOG_TAG, state.name() + " -> STARTING");
         state = State.STARTING;
-        connectIQ.initialize(context, false, initializationListener);
+        sessionManager.acquire(connectionType, sessionListener);
     }
 
     /**
-     * Stops the transceiver by shutting down ConnectIQ. This method is only valid to be called if
-     * the framework is not
+     * Stops the transceiver by releasing its ConnectIQ session. This method is only valid to be
+     * called if the transceiver is starting or running.
      *
      * @throws IllegalStateException
      *         if this method is called while the transceiver is not running.
@@ -133,9 +202,11 @@ public class ConnectIQAppTransceiver {
             case STARTED:
                 // Actually do stop
                 doStop();
+                break;
 
             case STOPPING:
                 // We're already stopping, so do nothing...
+                break;
 
             default:
                 throw new IllegalStateException(state.name());
@@ -153,23 +224,67 @@ public class ConnectIQAppTransceiver {
     }
 
     /**
-     * Sends the given message to the app on the given device.
+     * Registers our listeners with ConnectIQ again. ConnectIQ only keeps one listener per device
+     * and app, so others sharing our ConnectIQ instance may have replaced or unregistered ours.
+     * Unlike restarting the transceiver, this keeps the messages still waiting in the send queues.
+     * Does nothing if the transceiver is not running.
+     */
+    public final void reregister() {
+        if (isRunning()) {
+            observedDevices.clear();
+            discoverDevices();
+        }
+    }
+
+    /**
+     * Returns statistics about the messages we have sent.
+     */
+    public final SendStatistics getSendStatistics() {
+        return sendStatistics;
+    }
+
+    /**
+     * Queues the given message to be sent to the app on the given device.
      *
      * @param device the device the target app is supposed to be running on.
      * @param app the app to send the message to.
      * @param msg the message itself.
      */
     public final void sendMessage(final IQDevice device, final IQApp app, final List<Object> msg) {
+        sendMessageParts(device, app, Collections.singletonList(msg));
+    }
+
+    /**
+     * Queues a message that consists of the given parts to be sent to the app on the given device.
+     * The parts are sent in order. Listeners are told about the status of each part, or that the
+     * message was {@link ITransceiverEventListener#onMessageSuperseded(IQDevice, IQApp, List)
+     * superseded} before any of its parts were sent.
+     *
+     * @param device the device the target app is supposed to be running on.
+     * @param app the app to send the message to.
+     * @param parts the parts of the message.
+     */
+    public final void sendMessageParts(final IQDevice device, final IQApp app,
+                                       final List<List<Object>> parts) {
+
+        if (parts.isEmpty()) {
+            return;
+        }
+
         if (isRunning()) {
-            new Thread(() -> {
-                try {
-                    Log.d(LOG_TAG, "Sending message to " + app.getApplicationId()
-                            + " on " + device.getDeviceIdentifier());
-                    connectIQ.sendMessage(device, app, msg, sendMessageListener);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Exception while trying to send a message", e);
-                }
-            }).start();
+            try {
+                dispatcher.connectIQ().execute(() -> {
+                    // We may have stopped in the meantime
+                    if (isRunning()) {
+                        sendQueues
+                                .computeIfAbsent(device.getDeviceIdentifier(),
+                                        id -> new SendQueue(device))
+                                .enqueue(new OutgoingMessage(app, parts));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.e(LOG_TAG, "Unable to send message", e);
+            }
         }
     }
 
@@ -178,15 +293,31 @@ public class ConnectIQAppTransceiver {
     // Internal Stuff
 
     /**
-     * Shuts down ConnectIQ and sets the state to {@link State#STOPPED}.
+     * Unregisters our listeners, releases our ConnectIQ session, and sets the state to
+     * {@link State#STOPPED}.
      */
     private void doStop() {
+        // ConnectIQ may keep running for others, who must not receive events meant for us
         try {
-            // This notifies our initialization listener which takes care of updating our state
-            connectIQ.shutdown(context);
+            for (IQDevice device : observedDevices) {
+                connectIQ.unregisterForEvents(device);
+            }
         } catch (InvalidStateException e) {
-            Log.e(LOG_TAG, "Exception while trying to shot down ConnectIQ", e);
+            Log.e(LOG_TAG, "Exception while trying to unregister from ConnectIQ events", e);
         }
+        observedDevices.clear();
+
+        // Nobody will tell us what becomes of messages still in the queues
+        for (SendQueue queue : sendQueues.values()) {
+            queue.clear();
+        }
+        sendQueues.clear();
+
+        lease.release();
+        lease = null;
+
+        Log.d(LOG_TAG, state.name() + " -> STOPPED");
+        state = State.STOPPED;
 
         // Let listeners react
         onStopped();
@@ -205,16 +336,20 @@ public class ConnectIQAppTransceiver {
                 Log.d(LOG_TAG, "Registering for events on " + device.getDeviceIdentifier()
                         + " (" + device.getFriendlyName() + ")");
 
-                /* Normally, we'd want to check whether our app is installed on the device. That
+                /* Normally, we'd want to check whether our apps are installed on the device. That
                  * would require us to send an application info request once the device is connected
                  * and have an ApplicationInfoListener wait for the response. The way the ConnectIQ
                  * library works, however, only one such listener can be active at a time, over all
                  * devices. We would thus have to sequentialize application info requests, querying
                  * the next device once the request to the previous has been answered. This could be
-                 * done in the future, but for now we just build our own IQApp and simply register
-                 * for device and app events, whether it's installed on the device or not.
+                 * done in the future, but for now we just build our own IQApps and simply register
+                 * for device and app events, whether they're installed on the device or not.
                  */
-                connectIQ.registerForEvents(device, deviceListener, iqApp, appEventListener);
+                connectIQ.registerForDeviceEvents(device, deviceListener);
+                for (IQApp iqApp : iqApps) {
+                    connectIQ.registerForAppEvents(device, iqApp, appEventListener);
+                }
+                observedDevices.add(device);
             }
         } catch (Exception e) {
             Log.e(LOG_TAG, "Exception while trying to obtain known devices", e);
@@ -265,6 +400,43 @@ public class ConnectIQAppTransceiver {
         }
     }
 
+    /**
+     * Called whenever a device we're watching has connected.
+     *
+     * @param device the device.
+     */
+    private void onDeviceConnected(IQDevice device) {
+        for (ITransceiverEventListener listener : eventListeners) {
+            listener.onDeviceConnected(device);
+        }
+    }
+
+    /**
+     * Called whenever ConnectIQ reports the status of a message we have sent.
+     *
+     * @param device the device the message was sent to.
+     * @param app the app the message was sent to.
+     * @param status the message's status.
+     */
+    private void onMessageStatus(IQDevice device, IQApp app, ConnectIQ.IQMessageStatus status) {
+        for (ITransceiverEventListener listener : eventListeners) {
+            listener.onMessageStatus(device, app, status);
+        }
+    }
+
+    /**
+     * Called whenever a queued message was dropped in favour of a newer one.
+     *
+     * @param device the device the message was meant for.
+     * @param app the app the message was meant for.
+     * @param parts the parts of the dropped message.
+     */
+    private void onMessageSuperseded(IQDevice device, IQApp app, List<List<Object>> parts) {
+        for (ITransceiverEventListener listener : eventListeners) {
+            listener.onMessageSuperseded(device, app, parts);
+        }
+    }
+
     /**
      * Called once we've stopped connecting to the ConnectIQ library. This might be because
      * initialization has failed or in response to the {@link #stop()} method having been called.
@@ -280,13 +452,16 @@ public class ConnectIQAppTransceiver {
     // Listener Classes
 
     /**
-     * Implements reactions to ConnectIQ SDK initialization attempts.
+     * Implements reactions to our ConnectIQ session being started or failing.
      */
-    private class InitializationListener implements ConnectIQ.ConnectIQListener {
+    private class SessionListener implements IConnectIQSessionListener {
         @Override
-        public void onSdkReady() {
-            // If stop() was called in the meantime, stop the SDK again; otherwise, we're up and
-            // running
+        public void sessionStarted(ConnectIQSessionManager.Lease lease) {
+            ConnectIQAppTransceiver.this.lease = lease;
+            connectIQ = lease.getConnectIQ();
+
+            // If stop() was called in the meantime, release the session again; otherwise, we're
+            // up and running
             if (state == State.STOPPING) {
                 doStop();
             } else {
@@ -298,33 +473,28 @@ public class ConnectIQAppTransceiver {
         }
 
         @Override
-        public void onInitializeError(ConnectIQ.IQSdkErrorStatus iqSdkErrorStatus) {
-            Log.e(LOG_TAG, iqSdkErrorStatus.name());
-            Log.d(LOG_TAG, state.name() + " -> STOPPED");
-            state = State.STOPPED;
-            onStopped();
-        }
-
-        @Override
-        public void onSdkShutDown() {
+        public void sessionFailed(String errorMessage) {
+            Log.e(LOG_TAG, errorMessage);
             Log.d(LOG_TAG, state.name() + " -> STOPPED");
             state = State.STOPPED;
+            lease = null;
+            observedDevices.clear();
             onStopped();
         }
     }
 
     /**
-     * Listens for events on a device. When a device becomes available, we check whether our app is
-     * installed there. If so, the appropriate listener will register for that app's events and add
-     * it to our list of app instances to send messages to.
+     * Listens for events on a device and tells our listeners once it has connected.
      */
-    private static class DeviceListener implements ConnectIQ.IQDeviceEventListener {
+    private class DeviceListener implements ConnectIQ.IQDeviceEventListener {
         @Override
         public void onDeviceStatusChanged(IQDevice device, IQDevice.IQDeviceStatus status) {
             Log.d(LOG_TAG, device.getDeviceIdentifier() + " changed status to "
                     + status.name());
 
-            // Register for app events if connected? Unregister if disconnected?
+            if (status == IQDevice.IQDeviceStatus.CONNECTED) {
+                ConnectIQAppTransceiver.this.onDeviceConnected(device);
+            }
         }
 
     }
@@ -350,7 +520,10 @@ public class ConnectIQAppTransceiver {
         }
     }
 
-    private static class SendMessageListener implements ConnectIQ.IQSendMessageListener {
+    /**
+     * Listens for the status of sent messages and calls the appropriate event method.
+     */
+    private class SendMessageListener implements ConnectIQ.IQSendMessageListener {
         @Override
         public void onMessageStatus(IQDevice iqDevice, IQApp iqApp,
                                     ConnectIQ.IQMessageStatus iqMessageStatus) {
@@ -358,7 +531,291 @@ public class ConnectIQAppTransceiver {
             Log.d(LOG_TAG, "Message sent to " + iqApp.getApplicationId()
                     + " on " + iqDevice.getDeviceIdentifier()
                     + " with status " + iqMessageStatus.name());
+
+            SendQueue queue = sendQueues.get(iqDevice.getDeviceIdentifier());
+            if (queue == null || !queue.complete(iqApp.getApplicationId(), iqMessageStatus)) {
+                // We have given up on the part or stopped in the meantime
+                Log.d(LOG_TAG, "Status does not belong to any message part in flight");
+                return;
+            }
+
+            queue.pump();
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Send Queues
+
+    /**
+     * Sends messages to a single device. Messages that wait to be sent are kept in the order they
+     * were first queued in, but a message replaces any older one for the same app that is still
+     * waiting. Messages to apps we still expect a late status from are held back. Only used on the
+     * ConnectIQ queue.
+     */
+    private class SendQueue {
+
+        /** The device we send to. */
+        private final IQDevice device;
+        /** Messages none of whose parts have been sent yet, indexed by app ID. */
+        private final Map<String, OutgoingMessage> waiting = new LinkedHashMap<>();
+        /** The message we're sending the parts of, if some are left to be sent. */
+        private OutgoingMessage current;
+        /** Parts that have been sent, but whose status hasn't arrived yet, oldest first. */
+        private final List<PartInFlight> inFlight = new ArrayList<>();
+        /** Statuses of parts that timed out which may still arrive, indexed by app ID. */
+        private final Map<String, LateStatuses> lateStatuses = new HashMap<>();
+
+        private SendQueue(IQDevice device) {
+            this.device = device;
+        }
+
+        /**
+         * Adds the given message to the queue and sends whatever we can.
+         */
+        private void enqueue(OutgoingMessage msg) {
+            sendStatistics.messageQueued();
+
+            OutgoingMessage superseded = waiting.put(msg.app.getApplicationId(), msg);
+            if (superseded != null) {
+                Log.d(LOG_TAG, "Dropping message to " + msg.app.getApplicationId()
+                        + " on " + device.getDeviceIdentifier() + " in favour of a newer one");
+                sendStatistics.messageCoalesced();
+                onMessageSuperseded(device, superseded.app, superseded.parts);
+            }
+
+            pump();
+        }
+
+        /**
+         * Sends message parts until no more parts may be in flight or there are none left.
+         */
+        private void pump() {
+            while (inFlight.size() < MAX_PARTS_IN_FLIGHT) {
+                if (current == null) {
+                    current = nextSendableMessage();
+                    if (current == null) {
+                        return;
+                    }
+                } else if (lateStatuses.containsKey(current.app.getApplicationId())) {
+                    return;
+                }
+
+                OutgoingMessage msg = current;
+                List<Object> part = msg.parts.get(msg.nextPart++);
+                if (msg.nextPart == msg.parts.size()) {
+                    current = null;
+                }
+
+                PartInFlight partInFlight = new PartInFlight(this, msg);
+                inFlight.add(partInFlight);
+                getTimeoutHandler().postDelayed(partInFlight, SEND_TIMEOUT_MILLIS);
+
+                try {
+                    Log.d(LOG_TAG, "Sending message to " + msg.app.getApplicationId()
+                            + " on " + device.getDeviceIdentifier());
+                    connectIQ.sendMessage(device, msg.app, part, sendMessageListener);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Exception while trying to send a message", e);
+                    finish(partInFlight, ConnectIQ.IQMessageStatus.FAILURE_UNKNOWN);
+                }
+            }
+        }
+
+        /**
+         * Removes and returns the oldest waiting message to an app we don't expect a late status
+         * from, or returns {@code null} if there is none.
+         */
+        private OutgoingMessage nextSendableMessage() {
+            Iterator<OutgoingMessage> waitingIterator = waiting.values().iterator();
+            while (waitingIterator.hasNext()) {
+                OutgoingMessage msg = waitingIterator.next();
+                if (!lateStatuses.containsKey(msg.app.getApplicationId())) {
+                    waitingIterator.remove();
+                    return msg;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Completes the oldest part in flight to the given app with the given status. If we still
+         * expect the status of a part to the app that timed out, though, that is what the status
+         * belongs to, and it is discarded.
+         *
+         * @return {@code false} if there is no part in flight to the given app and we don't expect
+         *         any late status from it.
+         */
+        private boolean complete(String appId, ConnectIQ.IQMessageStatus status) {
+            LateStatuses late = lateStatuses.get(appId);
+            if (late != null) {
+                Log.d(LOG_TAG, "Discarding late status of a message to " + appId + " on "
+                        + device.getDeviceIdentifier());
+
+                late.count--;
+                if (late.count == 0) {
+                    lateStatuses.remove(appId);
+                    getTimeoutHandler().removeCallbacks(late);
+                }
+                return true;
+            }
+
+            for (PartInFlight partInFlight : inFlight) {
+                if (partInFlight.msg.app.getApplicationId().equals(appId)) {
+                    finish(partInFlight, status);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Gives up on the given part since its status hasn't arrived in time.
+         */
+        private void timedOut(PartInFlight partInFlight) {
+            Log.d(LOG_TAG, "Message to " + partInFlight.msg.app.getApplicationId()
+                    + " on " + device.getDeviceIdentifier() + " timed out");
+            finish(partInFlight, ConnectIQ.IQMessageStatus.FAILURE_UNKNOWN);
+
+            // The status may still arrive, and it must not be taken for that of the next part
+            String appId = partInFlight.msg.app.getApplicationId();
+            LateStatuses late = lateStatuses.get(appId);
+            if (late == null) {
+                late = new LateStatuses(this, appId);
+                lateStatuses.put(appId, late);
+            }
+            late.count++;
+            getTimeoutHandler().removeCallbacks(late);
+            getTimeoutHandler().postDelayed(late, LATE_STATUS_TIMEOUT_MILLIS);
+
+            pump();
+        }
+
+        /**
+         * Assumes that the given late statuses got lost and resumes sending to their app.
+         */
+        private void lateStatusesTimedOut(LateStatuses late) {
+            Log.d(LOG_TAG, "Late status of a message to " + late.appId + " on "
+                    + device.getDeviceIdentifier() + " never arrived");
+            lateStatuses.remove(late.appId);
+            pump();
+        }
+
+        /**
+         * Drops everything in the queue without telling anyone.
+         */
+        private void clear() {
+            Set<OutgoingMessage> unfinished = new HashSet<>(waiting.values());
+            if (current != null) {
+                unfinished.add(current);
+            }
+            for (PartInFlight partInFlight : inFlight) {
+                getTimeoutHandler().removeCallbacks(partInFlight);
+                unfinished.add(partInFlight.msg);
+            }
+            for (LateStatuses late : lateStatuses.values()) {
+                getTimeoutHandler().removeCallbacks(late);
+            }
+            sendStatistics.messagesDropped(unfinished.size());
+
+            waiting.clear();
+            current = null;
+            inFlight.clear();
+            lateStatuses.clear();
+        }
+
+        private void finish(PartInFlight partInFlight, ConnectIQ.IQMessageStatus status) {
+            inFlight.remove(partInFlight);
+            getTimeoutHandler().removeCallbacks(partInFlight);
+
+            OutgoingMessage msg = partInFlight.msg;
+            sendStatistics.partCompleted(SystemClock.elapsedRealtime() - msg.queuedMillis,
+                    status == ConnectIQ.IQMessageStatus.SUCCESS);
+            msg.unfinishedParts--;
+            if (msg.unfinishedParts == 0) {
+                sendStatistics.messageFinished();
+            }
+
+            ConnectIQAppTransceiver.this.onMessageStatus(device, msg.app, status);
+        }
+    }
+
+    /**
+     * A message in a {@link SendQueue}.
+     */
+    private static final class OutgoingMessage {
+
+        /** The app the message is meant for. */
+        private final IQApp app;
+        /** The message's parts. */
+        private final List<List<Object>> parts;
+        /** When the message was queued, in milliseconds since boot. */
+        private final long queuedMillis = SystemClock.elapsedRealtime();
+        /** Index of the next part to be sent. */
+        private int nextPart = 0;
+        /** Number of parts whose status hasn't arrived yet. */
+        private int unfinishedParts;
+
+        private OutgoingMessage(IQApp app, List<List<Object>> parts) {
+            this.app = app;
+            this.parts = parts;
+            this.unfinishedParts = parts.size();
+        }
+    }
+
+    /**
+     * A message part whose status hasn't arrived yet. Runs when we give up waiting for it.
+     */
+    private static final class PartInFlight implements Runnable {
+
+        /** The queue the part was sent from. */
+        private final SendQueue queue;
+        /** The message the part belongs to. */
+        private final OutgoingMessage msg;
+
+        private PartInFlight(SendQueue queue, OutgoingMessage msg) {
+            this.queue = queue;
+            this.msg = msg;
+        }
+
+        @Override
+        public void run() {
+            queue.timedOut(this);
+        }
+    }
+
+    /**
+     * Statuses of message parts to an app that timed out, but may still arrive. Runs when we give
+     * up waiting for them.
+     */
+    private static final class LateStatuses implements Runnable {
+
+        /** The queue the parts were sent from. */
+        private final SendQueue queue;
+        /** The app the parts were sent to. */
+        private final String appId;
+        /** Number of statuses that may still arrive. */
+        private int count = 0;
+
+        private LateStatuses(SendQueue queue, String appId) {
+            this.queue = queue;
+            this.appId = appId;
+        }
+
+        @Override
+        public void run() {
+            queue.lateStatusesTimedOut(this);
+        }
+    }
+
+    /**
+     * Returns the handler we use to implement timeouts, creating it if necessary.
+     */
+    private Handler getTimeoutHandler() {
+        if (timeoutHandler == null) {
+            timeoutHandler = new Handler(dispatcher.connectIQ().getLooper());
         }
+        return timeoutHandler;
     }
 
 }
@@ -0,0 +1,352 @@
+package net.hypotenubel.calendariq.sync.connectiq;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.garmin.android.connectiq.ConnectIQ;
+import com.garmin.android.connectiq.exception.InvalidStateException;
+
+import net.hypotenubel.calendariq.util.Utilities;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import dagger.hilt.android.qualifiers.ApplicationContext;
+
+/**
+ * Owns the ConnectIQ instance and shares it between everyone who needs to talk to devices.
+ * Initializing ConnectIQ binds to the Garmin Connect app, which takes a while, so instead of
+ * initializing and shutting it down for each broadcast, clients acquire a {@link Lease} on a
+ * running instance. Once the last lease is released, the instance is kept around for an idle
+ * period in case someone else needs it soon.
+ *
+ * <p>All interaction with ConnectIQ happens on the looper thread provided by the
+ * {@link Dispatcher}, which is also where listeners are called. Since ConnectIQ only allows one
+ * listener per device and app, clients must unregister the listeners they registered before
+ * releasing their lease.</p>
+ *
+ * <p>ConnectIQ instances are obtained from an {@link IConnectIQFactory}. Outside of tests, that is
+ * the actual SDK.</p>
+ */
+@Singleton
+public class ConnectIQSessionManager {
+
+    /**
+     * All the possible states a session can be in.
+     */
+    private enum State {
+        /** ConnectIQ is not initialized. */
+        STOPPED,
+        /** ConnectIQ is being initialized. */
+        STARTING,
+        /** ConnectIQ is fully initialized. */
+        STARTED
+    }
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(ConnectIQSessionManager.class);
+
+    /** How long ConnectIQ is kept running after the last lease was released by default. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // State
+
+    /** The context we're operating in. */
+    private final Context context;
+    /** Runs everything on the ConnectIQ thread, including the idle shutdown. */
+    private final Handler handler;
+    /** How long ConnectIQ is kept running after the last lease was released. */
+    private long idleTimeoutMillis;
+    /** Provides new ConnectIQ instances. */
+    private final IConnectIQFactory factory;
+
+    /** The ConnectIQ instance, if we have one. */
+    private IConnectIQ connectIQ;
+    /** The connection type ConnectIQ was initialized with. */
+    private ConnectIQ.IQConnectType connectionType;
+    /** The state ConnectIQ is currently in. */
+    private State state = State.STOPPED;
+    /** When we started initializing ConnectIQ. */
+    private long startMillis;
+
+    /** Leases that have been acquired and not released yet, whether granted or not. */
+    private final List<Lease> leases = new ArrayList<>();
+    /** Listener for initialization events. */
+    private final InitializationListener initializationListener = new InitializationListener();
+    /** Shuts ConnectIQ down once it has been idle for long enough. */
+    private final Runnable idleShutdown = this::shutdown;
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Constructors
+
+    @Inject
+    public ConnectIQSessionManager(@ApplicationContext Context context, Dispatcher dispatcher) {
+        this(context, dispatcher.connectIQ().getLooper(), DEFAULT_IDLE_TIMEOUT_MILLIS,
+                SdkConnectIQ::new);
+    }
+
+    private ConnectIQSessionManager(Context context, Looper looper, long idleTimeoutMillis,
+                                    IConnectIQFactory factory) {
+        this.context = context;
+        this.handler = new Handler(looper);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.factory = factory;
+    }
+
+    /**
+     * Returns a new session manager that is not shared with anyone and shuts ConnectIQ down as
+     * soon as its last lease is released. It runs on the calling thread's looper.
+     */
+    public static ConnectIQSessionManager unshared(Context context) {
+        return unshared(context, SdkConnectIQ::new);
+    }
+
+    /**
+     * Returns a new session manager like {@link #unshared(Context)} does, but which obtains its
+     * ConnectIQ instances from the given factory.
+     */
+    public static ConnectIQSessionManager unshared(Context context, IConnectIQFactory factory) {
+        Looper looper = Looper.myLooper();
+        return new ConnectIQSessionManager(
+                context, looper != null ? looper : Looper.getMainLooper(), 0, factory);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Public Interface
+
+    /**
+     * Sets how long ConnectIQ is kept running after the last lease was released. This only
+     * affects leases released afterwards.
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        runOnSessionThread(() -> this.idleTimeoutMillis = idleTimeoutMillis);
+    }
+
+    /**
+     * Acquires a lease on a ConnectIQ instance with the given connection type, initializing
+     * ConnectIQ if necessary. The listener is told once the lease is granted or if that fails.
+     *
+     * @param connectionType the connection type ConnectIQ must be initialized with.
+     * @param listener listener to receive the lease.
+     */
+    public void acquire(ConnectIQ.IQConnectType connectionType,
+                        IConnectIQSessionListener listener) {
+
+        runOnSessionThread(() -> {
+            // An idle instance with the wrong connection type can simply be replaced
+            if (state == State.STARTED && this.connectionType != connectionType
+                    && leases.isEmpty()) {
+                shutdown();
+            }
+
+            if (state != State.STOPPED && this.connectionType != connectionType) {
+                listener.sessionFailed("ConnectIQ is in use for " + this.connectionType.name());
+                return;
+            }
+
+            handler.removeCallbacks(idleShutdown);
+
+            Lease lease = new Lease(listener);
+            leases.add(lease);
+
+            switch (state) {
+                case STOPPED:
+                    start(connectionType);
+                    break;
+
+                case STARTED:
+                    Log.d(LOG_TAG, "Reusing running ConnectIQ instance");
+                    lease.grant();
+                    break;
+
+                case STARTING:
+                    // The lease will be granted once initialization has finished
+                    break;
+            }
+        });
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Internal Stuff
+
+    private void start(ConnectIQ.IQConnectType connectionType) {
+        Log.d(LOG_TAG, "Initializing ConnectIQ for " + connectionType.name());
+
+        this.connectionType = connectionType;
+        connectIQ = factory.create(context, connectionType);
+        state = State.STARTING;
+        startMillis = SystemClock.elapsedRealtime();
+
+        // Once finished this will pass control to the InitializationListener below
+        connectIQ.initialize(context, false, initializationListener);
+    }
+
+    private void shutdown() {
+        handler.removeCallbacks(idleShutdown);
+        if (state != State.STARTED) {
+            return;
+        }
+
+        Log.d(LOG_TAG, "Shutting down ConnectIQ");
+
+        // We're not interested in the shutdown notification anymore
+        state = State.STOPPED;
+        try {
+            connectIQ.shutdown(context);
+        } catch (InvalidStateException e) {
+            Log.d(LOG_TAG, "Exception shutting down ConnectIQ", e);
+        }
+    }
+
+    /**
+     * Called whenever a lease was released. Shuts ConnectIQ down after the idle period if nobody
+     * needs it anymore.
+     */
+    private void leaseReleased(Lease lease) {
+        leases.remove(lease);
+
+        if (leases.isEmpty() && state == State.STARTED) {
+            if (idleTimeoutMillis > 0) {
+                handler.postDelayed(idleShutdown, idleTimeoutMillis);
+            } else {
+                shutdown();
+            }
+        }
+    }
+
+    /**
+     * Tells all leaseholders that the session has failed and forgets about them.
+     */
+    private void failLeases(String errorMessage) {
+        List<Lease> failedLeases = new ArrayList<>(leases);
+        leases.clear();
+
+        for (Lease lease : failedLeases) {
+            lease.fail(errorMessage);
+        }
+    }
+
+    private void runOnSessionThread(Runnable task) {
+        if (Looper.myLooper() == handler.getLooper()) {
+            task.run();
+        } else {
+            handler.post(task);
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Leases
+
+    /**
+     * Grants access to the shared ConnectIQ instance until it is released.
+     */
+    public final class Lease {
+
+        /** The listener waiting for this lease to be granted. */
+        private final IConnectIQSessionListener listener;
+        /** Whether the lease is done with, either because it was released or because it failed. */
+        private boolean released = false;
+        /** Whether the lease has been granted. */
+        private boolean granted = false;
+
+        private Lease(IConnectIQSessionListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Returns the ConnectIQ instance this lease grants access to.
+         */
+        public IConnectIQ getConnectIQ() {
+            return connectIQ;
+        }
+
+        /**
+         * Releases the lease. Once all leases are released, ConnectIQ will be shut down after the
+         * idle period. Releasing a lease more than once has no effect.
+         */
+        public void release() {
+            runOnSessionThread(() -> {
+                if (!released) {
+                    released = true;
+                    leaseReleased(this);
+                }
+            });
+        }
+
+        private void grant() {
+            if (!granted && !released) {
+                granted = true;
+                listener.sessionStarted(this);
+            }
+        }
+
+        private void fail(String errorMessage) {
+            if (!released) {
+                released = true;
+                listener.sessionFailed(errorMessage);
+            }
+        }
+
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Listener Classes
+
+    /**
+     * Implements reactions to ConnectIQ SDK initialization attempts.
+     */
+    private class InitializationListener implements ConnectIQ.ConnectIQListener {
+        @Override
+        public void onSdkReady() {
+            Log.d(LOG_TAG, "ConnectIQ ready after "
+                    + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+            state = State.STARTED;
+
+            // Leases may be released while we're granting others
+            for (Lease lease : new ArrayList<>(leases)) {
+                lease.grant();
+            }
+
+            // Everyone may have lost interest while we were starting
+            if (leases.isEmpty()) {
+                handler.postDelayed(idleShutdown, idleTimeoutMillis);
+            }
+        }
+
+        @Override
+        public void onInitializeError(ConnectIQ.IQSdkErrorStatus iqSdkErrorStatus) {
+            Log.e(LOG_TAG, iqSdkErrorStatus.name());
+            state = State.STOPPED;
+
+            failLeases("Unable to initialize ConnectIQ. SDK error status "
+                    + iqSdkErrorStatus.name());
+        }
+
+        @Override
+        public void onSdkShutDown() {
+            Log.d(LOG_TAG, "ConnectIQ shut down");
+
+            // This is only news if we didn't shut it down ourselves
+            if (state != State.STOPPED) {
+                state = State.STOPPED;
+                handler.removeCallbacks(idleShutdown);
+                failLeases("ConnectIQ was shut down");
+            }
+        }
+    }
+
+}
@@ -1,7 +1,12 @@
 package net.hypotenubel.calendariq.sync.connectiq;
 
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+
 import net.hypotenubel.calendariq.data.stats.model.BroadcastStatistics;
 
+import java.util.List;
+
 /**
  * Classes implementing this interface can listen and react to events on
  * {@link ConnectIQAppBroadcaster}s.
@@ -15,4 +20,36 @@ public interface IBroadcasterEventListener {
      */
     void broadcastFinished(BroadcastStatistics stats);
 
+    /**
+     * Called whenever ConnectIQ has confirmed that the message was delivered to an app on a
+     * device. This will be called before {@link #broadcastFinished(BroadcastStatistics)}.
+     *
+     * @param device the device the app is installed on.
+     * @param app the app the message was sent to.
+     */
+    default void messageSent(IQDevice device, IQApp app) {
+    }
+
+    /**
+     * Called whenever a message could not be delivered to an app on a device. This will be called
+     * before {@link #broadcastFinished(BroadcastStatistics)}.
+     *
+     * @param device the device the app is installed on.
+     * @param app the app the message was sent to.
+     * @param parts the parts the message was sent in: either just the message or its chunks.
+     */
+    default void messageUndelivered(IQDevice device, IQApp app, List<Object> parts) {
+    }
+
+    /**
+     * Called whenever an app we expect a reply from sends us a message. This will be called before
+     * {@link #broadcastFinished(BroadcastStatistics)}.
+     *
+     * @param device the device the app is installed on.
+     * @param app the app that sent the message.
+     * @param msg the message itself.
+     */
+    default void messageReceived(IQDevice device, IQApp app, List<Object> msg) {
+    }
+
 }
@@ -0,0 +1,104 @@
+package net.hypotenubel.calendariq.sync.connectiq;
+
+import android.content.Context;
+
+import com.garmin.android.connectiq.ConnectIQ;
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+import com.garmin.android.connectiq.exception.InvalidStateException;
+import com.garmin.android.connectiq.exception.ServiceUnavailableException;
+
+import java.util.List;
+
+/**
+ * The parts of the ConnectIQ SDK we use. Everything that talks to devices goes through this
+ * interface, which lets us replace the SDK with a simulation where there are no devices. The
+ * methods behave just like their {@link ConnectIQ} counterparts, including the threads listeners
+ * are called on and the restriction to one listener per device and app.
+ */
+public interface IConnectIQ {
+
+    /**
+     * Initializes ConnectIQ. The listener is told once that has finished, and again if ConnectIQ
+     * shuts down.
+     *
+     * @param context the context we're operating in.
+     * @param autoUI whether ConnectIQ may ask the user to install or update Garmin Connect.
+     * @param listener the listener to tell.
+     */
+    void initialize(Context context, boolean autoUI, ConnectIQ.ConnectIQListener listener);
+
+    /**
+     * Shuts ConnectIQ down.
+     *
+     * @param context the context we're operating in.
+     */
+    void shutdown(Context context) throws InvalidStateException;
+
+    /**
+     * Returns all devices paired with Garmin Connect, whether they're connected or not.
+     */
+    List<IQDevice> getKnownDevices() throws InvalidStateException, ServiceUnavailableException;
+
+    /**
+     * Returns all devices that are currently connected.
+     */
+    List<IQDevice> getConnectedDevices()
+            throws InvalidStateException, ServiceUnavailableException;
+
+    /**
+     * Asks the given device about the given app. Replies only carry the app's ID, and only the
+     * listener of the most recent request is told about them.
+     *
+     * @param appId the app to ask about.
+     * @param device the device to ask.
+     * @param listener the listener to tell about the reply.
+     */
+    void getApplicationInfo(String appId, IQDevice device,
+                            ConnectIQ.IQApplicationInfoListener listener)
+            throws InvalidStateException, ServiceUnavailableException;
+
+    /**
+     * Sends the given message to the given app on the given device.
+     *
+     * @param device the device the app is installed on.
+     * @param app the app to send the message to.
+     * @param msg the message itself.
+     * @param listener the listener to tell about the message's status.
+     */
+    void sendMessage(IQDevice device, IQApp app, Object msg,
+                     ConnectIQ.IQSendMessageListener listener)
+            throws InvalidStateException, ServiceUnavailableException;
+
+    /**
+     * Registers the listener for status changes of the given device, replacing any listener
+     * registered for it before.
+     */
+    void registerForDeviceEvents(IQDevice device, ConnectIQ.IQDeviceEventListener listener)
+            throws InvalidStateException;
+
+    /**
+     * Registers the listener for messages from the given app on the given device, replacing any
+     * listener registered for them before.
+     */
+    void registerForAppEvents(IQDevice device, IQApp app,
+                              ConnectIQ.IQApplicationEventListener listener)
+            throws InvalidStateException;
+
+    /**
+     * Unregisters all listeners for the given device and any app on it.
+     */
+    void unregisterForEvents(IQDevice device) throws InvalidStateException;
+
+    /**
+     * Unregisters the listener for status changes of the given device.
+     */
+    void unregisterForDeviceEvents(IQDevice device) throws InvalidStateException;
+
+    /**
+     * Unregisters the listener for messages from the given app on the given device.
+     */
+    void unregisterForApplicationEvents(IQDevice device, IQApp app)
+            throws InvalidStateException;
+
+}
@@ -0,0 +1,21 @@
+package net.hypotenubel.calendariq.sync.connectiq;
+
+import android.content.Context;
+
+import com.garmin.android.connectiq.ConnectIQ;
+
+/**
+ * Provides the {@link IConnectIQ} instances a {@link ConnectIQSessionManager} initializes.
+ */
+public interface IConnectIQFactory {
+
+    /**
+     * Returns an instance that uses the given connection type. It will be initialized by the
+     * caller.
+     *
+     * @param context the context we're operating in.
+     * @param connectionType whether we're connecting to Bluetooth devices or to the simulator.
+     */
+    IConnectIQ create(Context context, ConnectIQ.IQConnectType connectionType);
+
+}
@@ -0,0 +1,25 @@
+package net.hypotenubel.calendariq.sync.connectiq;
+
+/**
+ * Classes implementing this interface are told when the ConnectIQ session they asked a
+ * {@link ConnectIQSessionManager} for is ready to be used.
+ */
+public interface IConnectIQSessionListener {
+
+    /**
+     * Called once ConnectIQ is initialized. The lease must be released once ConnectIQ is not
+     * needed anymore.
+     *
+     * @param lease the lease that grants access to ConnectIQ.
+     */
+    void sessionStarted(ConnectIQSessionManager.Lease lease);
+
+    /**
+     * Called if ConnectIQ could not be initialized or was shut down while the lease was held. In
+     * the latter case, the lease is void and doesn't need to be released anymore.
+     *
+     * @param errorMessage what went wrong.
+     */
+    void sessionFailed(String errorMessage);
+
+}
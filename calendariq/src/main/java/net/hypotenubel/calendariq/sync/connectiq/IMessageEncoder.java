@@ -0,0 +1,39 @@
+package net.hypotenubel.calendariq.sync.connectiq;
+
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+
+/**
+ * Provides the message to send to a given app installation. This allows
+ * {@link ConnectIQAppBroadcaster}s to send each installation the message in a format it
+ * understands.
+ */
+public interface IMessageEncoder {
+
+    /**
+     * Returns the message to send to the given app on the given device.
+     *
+     * @param device the device the app is installed on.
+     * @param app the app as reported by the device, including its version.
+     * @return the message, ready to be sent via ConnectIQ.
+     */
+    Object encodeFor(IQDevice device, IQApp app);
+
+    /**
+     * Whether the given app on the given device is expected to reply to the message returned by
+     * the last call to {@link #encodeFor(IQDevice, IQApp)}. If so, the broadcaster waits for the
+     * reply for a while before finishing.
+     */
+    default boolean expectsReply(IQDevice device, IQApp app) {
+        return false;
+    }
+
+    /**
+     * Whether the given app on the given device can reassemble messages that were split into
+     * chunks by {@link net.hypotenubel.calendariq.data.msg.model.MessageChunker}.
+     */
+    default boolean supportsChunking(IQDevice device, IQApp app) {
+        return false;
+    }
+
+}
@@ -1,5 +1,6 @@
 package net.hypotenubel.calendariq.sync.connectiq;
 
+import com.garmin.android.connectiq.ConnectIQ;
 import com.garmin.android.connectiq.IQApp;
 import com.garmin.android.connectiq.IQDevice;
 
@@ -20,6 +21,35 @@ public interface ITransceiverEventListener {
      */
     void onMessageReceived(IQDevice device, IQApp app, List<Object> msg);
 
+    /**
+     * Called whenever a device has connected.
+     *
+     * @param device the device.
+     */
+    default void onDeviceConnected(IQDevice device) {
+    }
+
+    /**
+     * Called whenever ConnectIQ reports the status of a message sent through the transceiver.
+     *
+     * @param device the device the message was sent to.
+     * @param app the app the message was sent to.
+     * @param status the message's status.
+     */
+    default void onMessageStatus(IQDevice device, IQApp app, ConnectIQ.IQMessageStatus status) {
+    }
+
+    /**
+     * Called whenever a message queued on the transceiver was dropped before any of its parts were
+     * sent, because a newer message for the same app on the same device was queued.
+     *
+     * @param device the device the message was meant for.
+     * @param app the app the message was meant for.
+     * @param parts the parts of the dropped message, as they were passed to the transceiver.
+     */
+    default void onMessageSuperseded(IQDevice device, IQApp app, List<List<Object>> parts) {
+    }
+
     /**
      * Called once we've stopped connecting to the ConnectIQ library. This might be because
      * initialization has failed or in response to the {@link ConnectIQAppTransceiver#stop()} method
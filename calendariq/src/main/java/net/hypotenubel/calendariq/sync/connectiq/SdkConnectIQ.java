@@ -0,0 +1,103 @@
+package net.hypotenubel.calendariq.sync.connectiq;
+
+import android.content.Context;
+
+import com.garmin.android.connectiq.ConnectIQ;
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+import com.garmin.android.connectiq.exception.InvalidStateException;
+import com.garmin.android.connectiq.exception.ServiceUnavailableException;
+
+import java.util.List;
+
+/**
+ * Passes everything on to the actual ConnectIQ SDK.
+ */
+public class SdkConnectIQ implements IConnectIQ {
+
+    /** The SDK instance we pass everything on to. */
+    private final ConnectIQ connectIQ;
+
+    /**
+     * Creates a new instance that uses the SDK instance for the given connection type.
+     *
+     * @param context the context we're operating in.
+     * @param connectionType whether we're connecting to Bluetooth devices or to the simulator.
+     */
+    public SdkConnectIQ(Context context, ConnectIQ.IQConnectType connectionType) {
+        this.connectIQ = ConnectIQ.getInstance(context, connectionType);
+    }
+
+    @Override
+    public void initialize(Context context, boolean autoUI, ConnectIQ.ConnectIQListener listener) {
+        connectIQ.initialize(context, autoUI, listener);
+    }
+
+    @Override
+    public void shutdown(Context context) throws InvalidStateException {
+        connectIQ.shutdown(context);
+    }
+
+    @Override
+    public List<IQDevice> getKnownDevices()
+            throws InvalidStateException, ServiceUnavailableException {
+
+        return connectIQ.getKnownDevices();
+    }
+
+    @Override
+    public List<IQDevice> getConnectedDevices()
+            throws InvalidStateException, ServiceUnavailableException {
+
+        return connectIQ.getConnectedDevices();
+    }
+
+    @Override
+    public void getApplicationInfo(String appId, IQDevice device,
+                                   ConnectIQ.IQApplicationInfoListener listener)
+            throws InvalidStateException, ServiceUnavailableException {
+
+        connectIQ.getApplicationInfo(appId, device, listener);
+    }
+
+    @Override
+    public void sendMessage(IQDevice device, IQApp app, Object msg,
+                            ConnectIQ.IQSendMessageListener listener)
+            throws InvalidStateException, ServiceUnavailableException {
+
+        connectIQ.sendMessage(device, app, msg, listener);
+    }
+
+    @Override
+    public void registerForDeviceEvents(IQDevice device, ConnectIQ.IQDeviceEventListener listener)
+            throws InvalidStateException {
+
+        connectIQ.registerForDeviceEvents(device, listener);
+    }
+
+    @Override
+    public void registerForAppEvents(IQDevice device, IQApp app,
+                                     ConnectIQ.IQApplicationEventListener listener)
+            throws InvalidStateException {
+
+        connectIQ.registerForAppEvents(device, app, listener);
+    }
+
+    @Override
+    public void unregisterForEvents(IQDevice device) throws InvalidStateException {
+        connectIQ.unregisterForEvents(device);
+    }
+
+    @Override
+    public void unregisterForDeviceEvents(IQDevice device) throws InvalidStateException {
+        connectIQ.unregisterForDeviceEvents(device);
+    }
+
+    @Override
+    public void unregisterForApplicationEvents(IQDevice device, IQApp app)
+            throws InvalidStateException {
+
+        connectIQ.unregisterForApplicationEvents(device, app);
+    }
+
+}
@@ -0,0 +1,131 @@
+package net.hypotenubel.calendariq.sync.connectiq;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics about the messages a {@link ConnectIQAppTransceiver} sends. Statistics are updated on
+ * the ConnectIQ queue, but can be read from anywhere.
+ */
+public final class SendStatistics {
+
+    /** Number of messages waiting to be sent or being sent. */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    /** Largest number of messages that were waiting or being sent at the same time. */
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    /** Number of message parts ConnectIQ has reported a status for. */
+    private final AtomicLong completedParts = new AtomicLong();
+    /** Number of message parts that could not be delivered. */
+    private final AtomicLong failedParts = new AtomicLong();
+    /** Number of messages dropped before being sent because a newer one took their place. */
+    private final AtomicLong coalescedMessages = new AtomicLong();
+    /** Sum of the times between queueing a message and the status of each of its parts. */
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+    /** Longest time between queueing a message and the status of one of its parts. */
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Recording
+
+    void messageQueued() {
+        int depth = queueDepth.incrementAndGet();
+
+        int max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+            max = maxQueueDepth.get();
+        }
+    }
+
+    void messageCoalesced() {
+        queueDepth.decrementAndGet();
+        coalescedMessages.incrementAndGet();
+    }
+
+    void messagesDropped(int count) {
+        queueDepth.addAndGet(-count);
+    }
+
+    void messageFinished() {
+        queueDepth.decrementAndGet();
+    }
+
+    void partCompleted(long latencyMillis, boolean success) {
+        completedParts.incrementAndGet();
+        if (!success) {
+            failedParts.incrementAndGet();
+        }
+
+        totalLatencyMillis.addAndGet(latencyMillis);
+
+        long max = maxLatencyMillis.get();
+        while (latencyMillis > max && !maxLatencyMillis.compareAndSet(max, latencyMillis)) {
+            max = maxLatencyMillis.get();
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Statistics
+
+    /**
+     * Returns the number of messages currently waiting to be sent or being sent.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the largest number of messages that were waiting or being sent at the same time.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Returns the number of message parts ConnectIQ has reported a status for so far.
+     */
+    public long getCompletedPartCount() {
+        return completedParts.get();
+    }
+
+    /**
+     * Returns the number of message parts that could not be delivered so far.
+     */
+    public long getFailedPartCount() {
+        return failedParts.get();
+    }
+
+    /**
+     * Returns the number of messages that were dropped in favour of newer ones so far.
+     */
+    public long getCoalescedMessageCount() {
+        return coalescedMessages.get();
+    }
+
+    /**
+     * Returns the average time between queueing a message and the status of each of its parts.
+     */
+    public long getAverageLatencyMillis() {
+        long completed = completedParts.get();
+        return completed == 0 ? 0 : totalLatencyMillis.get() / completed;
+    }
+
+    /**
+     * Returns the longest time between queueing a message and the status of one of its parts.
+     */
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Sends: depth " + getQueueDepth() + " (max " + getMaxQueueDepth() + ")"
+                + ", parts " + getCompletedPartCount()
+                + ", failed " + getFailedPartCount()
+                + ", coalesced " + getCoalescedMessageCount()
+                + ", latency avg " + getAverageLatencyMillis() + " ms"
+                + ", max " + getMaxLatencyMillis() + " ms";
+    }
+
+}
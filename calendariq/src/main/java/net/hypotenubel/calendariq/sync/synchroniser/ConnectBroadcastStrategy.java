@@ -1,37 +1,237 @@
 package net.hypotenubel.calendariq.sync.synchroniser;
 
 import android.content.Context;
+import android.os.CancellationSignal;
+import android.util.Log;
 
 import com.garmin.android.connectiq.ConnectIQ;
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
 
+import net.hypotenubel.calendariq.data.apps.AppInstallationCache;
+import net.hypotenubel.calendariq.data.apps.DeviceProfileRepository;
+import net.hypotenubel.calendariq.data.apps.model.DeviceProfile;
 import net.hypotenubel.calendariq.data.apps.model.TargetApps;
 import net.hypotenubel.calendariq.data.apps.source.ITargetAppIdsSource;
+import net.hypotenubel.calendariq.data.msg.DeltaSyncStateRepository;
+import net.hypotenubel.calendariq.data.msg.model.AppointmentsConnectMessagePart;
 import net.hypotenubel.calendariq.data.msg.model.ConnectMessage;
+import net.hypotenubel.calendariq.data.msg.model.DeltaBase;
+import net.hypotenubel.calendariq.data.msg.model.MessageFormat;
+import net.hypotenubel.calendariq.data.outbox.OutboxRepository;
+import net.hypotenubel.calendariq.data.stats.model.BroadcastStatistics;
 import net.hypotenubel.calendariq.sync.connectiq.ConnectIQAppBroadcaster;
+import net.hypotenubel.calendariq.sync.connectiq.ConnectIQSessionManager;
 import net.hypotenubel.calendariq.sync.connectiq.IBroadcasterEventListener;
+import net.hypotenubel.calendariq.sync.connectiq.IMessageEncoder;
+import net.hypotenubel.calendariq.util.Utilities;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
 /**
- * Broadcasts to watchfaces.
+ * Broadcasts to watchfaces, encoding the message in the most compact format each of them
+ * understands. Watchfaces that understand {@link MessageFormat#DELTA delta} messages only receive
+ * the changes since the last message they acknowledged. Their replies are handled by the
+ * {@link PullRequestServer}, which hands everything but requests on to the
+ * {@link WatchReplyHandler}. Large messages are sent in chunks to all watchfaces that understand
+ * anything but the legacy format.
+ *
+ * <p>What each watchface receives is further restricted by the {@link DeviceProfile} of its
+ * device. The message is tailored and encoded only once for each distinct profile and format.</p>
+ *
+ * <p>Messages that can't be delivered are put into the outbox, from where the
+ * {@link OutboxReplayer} sends them again once their device reconnects. Delivering a newer message
+ * removes an older one from the outbox.</p>
+ *
+ * <p>Each message we broadcast is offered to the {@link PullRequestServer}, which answers requests
+ * from watchfaces with it until the next broadcast.</p>
  */
 public class ConnectBroadcastStrategy implements IBroadcastStrategy {
 
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(ConnectBroadcastStrategy.class);
+
+    /** How long we wait for watchfaces to acknowledge delta messages. */
+    private static final long REPLY_TIMEOUT_MILLIS = 10 * 1000;
+
     private final TargetApps targetApps;
+    private final AppInstallationCache installationCache;
+    private final ConnectIQSessionManager sessionManager;
+    private final DeviceProfileRepository deviceProfiles;
+    private final DeltaSyncStateRepository deltaSyncStates;
+    private final PullRequestServer pullRequestServer;
+    private final WatchLink watchLink;
+    private final OutboxRepository outbox;
+    private final OutboxReplayer outboxReplayer;
 
     @Inject
-    public ConnectBroadcastStrategy(ITargetAppIdsSource targetAppSource) {
+    public ConnectBroadcastStrategy(ITargetAppIdsSource targetAppSource,
+                                    AppInstallationCache installationCache,
+                                    ConnectIQSessionManager sessionManager,
+                                    DeviceProfileRepository deviceProfiles,
+                                    DeltaSyncStateRepository deltaSyncStates,
+                                    PullRequestServer pullRequestServer,
+                                    WatchLink watchLink,
+                                    OutboxRepository outbox,
+                                    OutboxReplayer outboxReplayer) {
         this.targetApps = targetAppSource.getTargetApps();
+        this.installationCache = installationCache;
+        this.sessionManager = sessionManager;
+        this.deviceProfiles = deviceProfiles;
+        this.deltaSyncStates = deltaSyncStates;
+        this.pullRequestServer = pullRequestServer;
+        this.watchLink = watchLink;
+        this.outbox = outbox;
+        this.outboxReplayer = outboxReplayer;
     }
 
     @Override
-    public void broadcast(ConnectMessage msg, Context appContext, IBroadcasterEventListener listener) {
+    public void broadcast(ConnectMessage msg, Context appContext, IBroadcasterEventListener listener,
+                          CancellationSignal cancellation) {
+        pullRequestServer.offer(msg);
+
         ConnectIQAppBroadcaster.broadcast(
-                msg.encode(),
+                new MessageEncoder(msg),
+                REPLY_TIMEOUT_MILLIS,
+                installationCache,
+                sessionManager,
                 appContext,
                 targetApps.getTargetAppIds(),
                 ConnectIQ.IQConnectType.WIRELESS,
-                listener);
+                new ReplyForwardingListener(listener),
+                cancellation);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Support Classes
+
+    /**
+     * Encodes the message for each recipient in the format it understands, tailored to its
+     * device's profile.
+     */
+    private final class MessageEncoder implements IMessageEncoder {
+
+        /** The message to encode. */
+        private final ConnectMessage msg;
+        /** The message tailored to each profile we have come across. */
+        private final Map<DeviceProfile, ConnectMessage> tailoredMessages = new HashMap<>();
+        /**
+         * Each profile and format but the delta format is only encoded once, however many apps
+         * receive it.
+         */
+        private final Map<DeviceProfile, Map<MessageFormat, List<Object>>> encodings =
+                new HashMap<>();
+
+        private MessageEncoder(ConnectMessage msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public Object encodeFor(IQDevice device, IQApp app) {
+            DeviceProfile profile = getProfile(device, app);
+            MessageFormat format = profile.restrict(getFormat(app));
+            ConnectMessage tailored = tailoredMessages.computeIfAbsent(profile, msg::tailorTo);
+
+            Log.d(LOG_TAG, "Encoding for profile " + profile + " in format " + format);
+
+            if (format != MessageFormat.DELTA) {
+                return encodings
+                        .computeIfAbsent(profile, p -> new EnumMap<>(MessageFormat.class))
+                        .computeIfAbsent(format, tailored::encode);
+            }
+
+            AppointmentsConnectMessagePart appointments =
+                    tailored.getMessagePart(AppointmentsConnectMessagePart.class);
+            long[] appointmentTimes = appointments == null
+                    ? new long[0]
+                    : appointments.getAppointments();
+
+            DeltaBase base = deltaSyncStates.nextDeltaBase(
+                    device.getDeviceIdentifier(), app.getApplicationId());
+            deltaSyncStates.recordSent(device.getDeviceIdentifier(), app.getApplicationId(),
+                    base.getSequence(), appointmentTimes);
+
+            return tailored.encodeDelta(base);
+        }
+
+        @Override
+        public boolean expectsReply(IQDevice device, IQApp app) {
+            return getProfile(device, app).restrict(getFormat(app)) == MessageFormat.DELTA;
+        }
+
+        @Override
+        public boolean supportsChunking(IQDevice device, IQApp app) {
+            // Chunking depends on what the app understands, not on the format we actually use
+            return getFormat(app) != MessageFormat.LEGACY;
+        }
+
+        private MessageFormat getFormat(IQApp app) {
+            return targetApps.getMessageFormat(app.getApplicationId(), app.version());
+        }
+
+        private DeviceProfile getProfile(IQDevice device, IQApp app) {
+            return deviceProfiles.getProfile(
+                    device.getDeviceIdentifier(), device.getFriendlyName(), app.getApplicationId());
+        }
+    }
+
+    /**
+     * Passes replies on to the {@link PullRequestServer}, keeps the outbox up to date, and passes
+     * everything on to the original listener.
+     */
+    private final class ReplyForwardingListener implements IBroadcasterEventListener {
+
+        /** The listener that wants to know about our broadcast. */
+        private final IBroadcasterEventListener listener;
+
+        private ReplyForwardingListener(IBroadcasterEventListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void broadcastFinished(BroadcastStatistics stats) {
+            // The broadcast has unregistered the link's listeners
+            watchLink.rearm();
+            outboxReplayer.rearm();
+            pullRequestServer.start();
+
+            if (listener != null) {
+                listener.broadcastFinished(stats);
+            }
+        }
+
+        @Override
+        public void messageSent(IQDevice device, IQApp app) {
+            outbox.remove(device.getDeviceIdentifier(), app.getApplicationId());
+
+            if (listener != null) {
+                listener.messageSent(device, app);
+            }
+        }
+
+        @Override
+        public void messageUndelivered(IQDevice device, IQApp app, List<Object> parts) {
+            outbox.put(device.getDeviceIdentifier(), app.getApplicationId(), parts);
+
+            if (listener != null) {
+                listener.messageUndelivered(device, app, parts);
+            }
+        }
+
+        @Override
+        public void messageReceived(IQDevice device, IQApp app, List<Object> msg) {
+            pullRequestServer.onMessageReceived(device, app, msg);
+
+            if (listener != null) {
+                listener.messageReceived(device, app, msg);
+            }
+        }
     }
 
 }
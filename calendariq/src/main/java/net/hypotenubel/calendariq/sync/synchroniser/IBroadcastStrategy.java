@@ -1,6 +1,7 @@
 package net.hypotenubel.calendariq.sync.synchroniser;
 
 import android.content.Context;
+import android.os.CancellationSignal;
 
 import net.hypotenubel.calendariq.data.msg.model.ConnectMessage;
 import net.hypotenubel.calendariq.sync.connectiq.IBroadcasterEventListener;
@@ -12,8 +13,11 @@ import net.hypotenubel.calendariq.sync.connectiq.IBroadcasterEventListener;
 public interface IBroadcastStrategy {
 
     /**
-     * Sends the given message and informs the given listener about the result.
+     * Sends the given message and informs the given listener about the result. If the broadcast
+     * is cancelled through the given signal, it must wind down quickly and still inform the
+     * listener.
      */
-    void broadcast(ConnectMessage msg, Context appContext, IBroadcasterEventListener listener);
+    void broadcast(ConnectMessage msg, Context appContext, IBroadcasterEventListener listener,
+                   CancellationSignal cancellation);
 
 }
@@ -0,0 +1,49 @@
+package net.hypotenubel.calendariq.sync.synchroniser;
+
+import android.content.Context;
+
+import net.hypotenubel.calendariq.data.calendar.source.ICalendarSource;
+import net.hypotenubel.calendariq.data.msg.model.AppointmentsConnectMessagePart;
+import net.hypotenubel.calendariq.data.msg.model.BatteryChargeConnectMessagePart;
+import net.hypotenubel.calendariq.data.msg.model.ConnectMessage;
+import net.hypotenubel.calendariq.data.msg.model.EncodedSegmentCache;
+import net.hypotenubel.calendariq.data.msg.model.SyncIntervalConnectMessagePart;
+
+import javax.inject.Inject;
+
+import dagger.hilt.android.qualifiers.ApplicationContext;
+
+/**
+ * Assembles the message we send to watch apps from the current appointments, preferences, and
+ * device state. This may query the calendar provider, so it shouldn't be done on the ConnectIQ
+ * thread.
+ */
+public class MessageAssembler {
+
+    /** Application context. */
+    private final Context appContext;
+    /** Access to appointments. */
+    private final ICalendarSource calendarSource;
+    /** Keeps the encoded form of message parts that rarely change. */
+    private final EncodedSegmentCache segmentCache;
+
+    @Inject
+    public MessageAssembler(@ApplicationContext Context appContext, ICalendarSource calendarSource,
+                            EncodedSegmentCache segmentCache) {
+        this.appContext = appContext;
+        this.calendarSource = calendarSource;
+        this.segmentCache = segmentCache;
+    }
+
+    /**
+     * Returns a new message reflecting the current state of things.
+     */
+    public ConnectMessage assemble() {
+        return new ConnectMessage(segmentCache)
+                .addMessagePart(AppointmentsConnectMessagePart.fromPreferences(
+                        appContext, calendarSource))
+                .addMessagePart(SyncIntervalConnectMessagePart.fromPreferences(appContext))
+                .addMessagePart(BatteryChargeConnectMessagePart.fromCurrentDeviceState(appContext));
+    }
+
+}
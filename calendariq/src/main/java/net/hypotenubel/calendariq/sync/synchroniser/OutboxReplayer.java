@@ -0,0 +1,246 @@
+package net.hypotenubel.calendariq.sync.synchroniser;
+
+import android.util.Log;
+
+import com.garmin.android.connectiq.ConnectIQ;
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+
+import net.hypotenubel.calendariq.data.outbox.OutboxRepository;
+import net.hypotenubel.calendariq.data.outbox.model.OutboxEntry;
+import net.hypotenubel.calendariq.sync.connectiq.ITransceiverEventListener;
+import net.hypotenubel.calendariq.util.Utilities;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Sends the messages in the outbox again as soon as their device reconnects, instead of leaving
+ * the device with stale data until the next synchronisation.
+ *
+ * <p>While the outbox holds messages, we require the {@link WatchLink} to watch all known
+ * devices. Once a device connects, its messages are taken out of the outbox and sent exactly as
+ * they were sent before. Messages that fail again go back into the outbox, unless something newer
+ * has taken their place in the meantime. Messages the link drops before sending them because
+ * something newer was queued for the same app aren't kept either. Once the outbox is empty, we
+ * don't require the link anymore. {@link #rearm()} must be called after each broadcast, since
+ * that may have changed the outbox.</p>
+ */
+@Singleton
+public class OutboxReplayer implements ITransceiverEventListener {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(OutboxReplayer.class);
+
+    private final OutboxRepository outbox;
+    private final Dispatcher dispatcher;
+    private final WatchLink watchLink;
+
+    /** Replays in progress, indexed by device and app. Only used on the ConnectIQ queue. */
+    private final Map<String, Replay> replays = new HashMap<>();
+
+    @Inject
+    public OutboxReplayer(OutboxRepository outbox, Dispatcher dispatcher, WatchLink watchLink) {
+        this.outbox = outbox;
+        this.dispatcher = dispatcher;
+        this.watchLink = watchLink;
+
+        watchLink.addListener(this);
+    }
+
+    /**
+     * Requires the link to watch devices if the outbox holds messages, and releases it otherwise.
+     */
+    public void rearm() {
+        checkOutbox(pending -> {
+            if (pending) {
+                Log.d(LOG_TAG, "Outbox holds messages, watching devices");
+            }
+            watchLink.require(this, pending);
+        });
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Transceiver Events
+
+    @Override
+    public void onDeviceConnected(IQDevice device) {
+        runOnDatabaseQueue(() -> {
+            List<OutboxEntry> entries = outbox.takeForDevice(device.getDeviceIdentifier());
+            if (!entries.isEmpty()) {
+                runOnConnectIQQueue(() -> replay(device, entries));
+            }
+        });
+    }
+
+    @Override
+    public void onMessageStatus(IQDevice device, IQApp app, ConnectIQ.IQMessageStatus status) {
+        String key = replayKey(device.getDeviceIdentifier(), app.getApplicationId());
+        Replay replay = replays.get(key);
+        if (replay == null) {
+            return;
+        }
+
+        if (status == ConnectIQ.IQMessageStatus.SUCCESS) {
+            replay.unconfirmedParts--;
+            if (replay.unconfirmedParts > 0) {
+                return;
+            }
+            Log.d(LOG_TAG, "Replayed message to " + app.getApplicationId()
+                    + " on " + device.getDeviceIdentifier());
+
+        } else {
+            Log.d(LOG_TAG, "Replaying message to " + app.getApplicationId()
+                    + " on " + device.getDeviceIdentifier() + " failed, keeping it");
+            outbox.restore(replay.entry);
+        }
+
+        replays.remove(key);
+        stopIfDrained();
+    }
+
+    @Override
+    public void onMessageSuperseded(IQDevice device, IQApp app, List<List<Object>> parts) {
+        String key = replayKey(device.getDeviceIdentifier(), app.getApplicationId());
+        Replay replay = replays.get(key);
+        if (replay == null || replay.parts != parts) {
+            return;
+        }
+
+        // Something newer is on its way, so there's no point in keeping the old message around
+        Log.d(LOG_TAG, "Replay to " + app.getApplicationId() + " on "
+                + device.getDeviceIdentifier() + " was superseded");
+        replays.remove(key);
+        stopIfDrained();
+    }
+
+    @Override
+    public void onMessageReceived(IQDevice device, IQApp app, List<Object> msg) {
+        // Watch apps have nothing to tell us about the outbox
+    }
+
+    @Override
+    public void onStopped() {
+        // Replays that are still in progress won't hear back anymore
+        for (Replay replay : replays.values()) {
+            outbox.restore(replay.entry);
+        }
+        replays.clear();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Implementation
+
+    /**
+     * Sends the given entries to the given device.
+     */
+    private void replay(IQDevice device, List<OutboxEntry> entries) {
+        for (OutboxEntry entry : entries) {
+            List<List<Object>> parts = toMessageParts(entry.getParts());
+            if (parts.isEmpty()) {
+                continue;
+            }
+
+            Log.d(LOG_TAG, "Replaying message in " + parts.size() + " parts to "
+                    + entry.getAppId() + " on " + device.getDeviceIdentifier());
+
+            replays.put(replayKey(entry.getDeviceId(), entry.getAppId()),
+                    new Replay(entry, parts));
+            watchLink.sendMessageParts(device, new IQApp(entry.getAppId()), parts);
+        }
+
+        stopIfDrained();
+    }
+
+    /**
+     * Releases the link once the outbox is empty and no replay is in progress.
+     */
+    private void stopIfDrained() {
+        checkOutbox(pending -> {
+            if (!pending && replays.isEmpty()) {
+                Log.d(LOG_TAG, "Outbox is empty, not watching devices anymore");
+                watchLink.require(this, false);
+            }
+        });
+    }
+
+    /**
+     * Finds out whether the outbox holds messages and passes the answer on to the given consumer
+     * on the ConnectIQ queue.
+     */
+    private void checkOutbox(Consumer<Boolean> consumer) {
+        runOnDatabaseQueue(() -> {
+            boolean pending = outbox.hasPending();
+            runOnConnectIQQueue(() -> consumer.accept(pending));
+        });
+    }
+
+    private void runOnDatabaseQueue(Runnable task) {
+        try {
+            dispatcher.database().execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "Unable to access outbox", e);
+        }
+    }
+
+    private void runOnConnectIQQueue(Runnable task) {
+        try {
+            dispatcher.connectIQ().execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "Unable to replay outbox", e);
+        }
+    }
+
+    /**
+     * Turns the parts stored in an outbox entry back into the messages they were sent as.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<List<Object>> toMessageParts(List<Object> storedParts) {
+        List<List<Object>> parts = new ArrayList<>();
+        if (storedParts != null) {
+            for (Object part : storedParts) {
+                parts.add((List<Object>) part);
+            }
+        }
+        return parts;
+    }
+
+    private static String replayKey(long deviceId, String appId) {
+        return deviceId + "/" + appId;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Support Classes
+
+    /**
+     * An outbox entry being sent again.
+     */
+    private static final class Replay {
+
+        /** The entry being sent. */
+        private final OutboxEntry entry;
+        /** The parts handed to the link, which identify the replay if it is superseded. */
+        private final List<List<Object>> parts;
+        /** Number of parts ConnectIQ hasn't confirmed yet. */
+        private int unconfirmedParts;
+
+        private Replay(OutboxEntry entry, List<List<Object>> parts) {
+            this.entry = entry;
+            this.parts = parts;
+            this.unconfirmedParts = parts.size();
+        }
+
+    }
+
+}
@@ -0,0 +1,250 @@
+package net.hypotenubel.calendariq.sync.synchroniser;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+
+import net.hypotenubel.calendariq.data.apps.AppInstallationCache;
+import net.hypotenubel.calendariq.data.apps.DeviceProfileRepository;
+import net.hypotenubel.calendariq.data.apps.model.DeviceProfile;
+import net.hypotenubel.calendariq.data.apps.model.TargetApps;
+import net.hypotenubel.calendariq.data.apps.source.ITargetAppIdsSource;
+import net.hypotenubel.calendariq.data.msg.DeltaSyncStateRepository;
+import net.hypotenubel.calendariq.data.msg.model.ConnectMessage;
+import net.hypotenubel.calendariq.data.msg.model.MessageChunker;
+import net.hypotenubel.calendariq.data.msg.model.MessageFormat;
+import net.hypotenubel.calendariq.sync.connectiq.ITransceiverEventListener;
+import net.hypotenubel.calendariq.util.Utilities;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Answers requests for fresh appointments that watch apps send on their own, for example when they
+ * wake up or their data expires. A request looks like this:
+ * <dl>
+ *     <dt>{@code [4]} or {@code [4, formatVersion]}</dt>
+ *     <dd>Requests the current message in the given format, or in the format the app's version
+ *       understands if we know its version.</dd>
+ * </dl>
+ *
+ * <p>Requests are answered from a hot cache: the message of the last broadcast, encoded at most
+ * once for each device profile and format. Only if that message has become too old is a new one
+ * assembled. Either way, no synchronisation is started, so answering a request mostly takes as long
+ * as the Bluetooth transfer. Requests are never answered in the {@link MessageFormat#DELTA delta}
+ * format, since that only works for the messages of broadcasts. Apps that understand it receive a
+ * {@link MessageFormat#COMPACT compact} message instead, and their next broadcast message is a full
+ * update.</p>
+ *
+ * <p>We require the {@link WatchLink} to hear requests between broadcasts. During broadcasts, they
+ * arrive as replies to the broadcast. All other messages are passed on to the
+ * {@link WatchReplyHandler}.</p>
+ */
+@Singleton
+public class PullRequestServer implements ITransceiverEventListener {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(PullRequestServer.class);
+
+    /** Marks requests for fresh appointments. */
+    private static final int REQUEST_APPOINTMENTS = 4;
+    /** Cached messages older than this are assembled anew before answering a request. */
+    private static final long MAX_MESSAGE_AGE_MILLIS = 5 * 60 * 1000;
+
+    /** Source of transfer IDs for answers that need to be chunked. */
+    private static final Random transferIds = new Random();
+
+    private final TargetApps targetApps;
+    private final MessageAssembler messageAssembler;
+    private final DeviceProfileRepository deviceProfiles;
+    private final AppInstallationCache installationCache;
+    private final DeltaSyncStateRepository deltaSyncStates;
+    private final WatchReplyHandler watchReplyHandler;
+    private final WatchLink watchLink;
+    private final Dispatcher dispatcher;
+
+    /** The message we answer requests with, if any. */
+    private ConnectMessage message;
+    /** When {@link #message} was assembled, in milliseconds since boot. */
+    private long messageMillis;
+    /** The message tailored to and encoded for each profile and format requested so far. */
+    private final Map<DeviceProfile, Map<MessageFormat, List<Object>>> encodings = new HashMap<>();
+
+    @Inject
+    public PullRequestServer(ITargetAppIdsSource targetAppSource,
+                             MessageAssembler messageAssembler,
+                             DeviceProfileRepository deviceProfiles,
+                             AppInstallationCache installationCache,
+                             DeltaSyncStateRepository deltaSyncStates,
+                             WatchReplyHandler watchReplyHandler,
+                             WatchLink watchLink,
+                             Dispatcher dispatcher) {
+        this.targetApps = targetAppSource.getTargetApps();
+        this.messageAssembler = messageAssembler;
+        this.deviceProfiles = deviceProfiles;
+        this.installationCache = installationCache;
+        this.deltaSyncStates = deltaSyncStates;
+        this.watchReplyHandler = watchReplyHandler;
+        this.watchLink = watchLink;
+        this.dispatcher = dispatcher;
+
+        watchLink.addListener(this);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Public Interface
+
+    /**
+     * Starts listening for requests between broadcasts.
+     */
+    public void start() {
+        watchLink.require(this, true);
+    }
+
+    /**
+     * Stops listening for requests between broadcasts.
+     */
+    public void stop() {
+        watchLink.require(this, false);
+    }
+
+    /**
+     * Makes the given message the one requests are answered with. This is called with each
+     * broadcast message, which keeps the cache hot.
+     */
+    public synchronized void offer(ConnectMessage msg) {
+        message = msg;
+        messageMillis = SystemClock.elapsedRealtime();
+        encodings.clear();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Transceiver Events
+
+    @Override
+    public void onMessageReceived(IQDevice device, IQApp app, List<Object> msg) {
+        if (msg == null
+                || msg.isEmpty()
+                || !(msg.get(0) instanceof Number)
+                || ((Number) msg.get(0)).intValue() != REQUEST_APPOINTMENTS) {
+
+            watchReplyHandler.onMessageReceived(device, app, msg);
+            return;
+        }
+
+        Log.d(LOG_TAG, app.getApplicationId() + " on " + device.getDeviceIdentifier()
+                + " requested appointments");
+
+        MessageFormat format = getRequestedFormat(msg, device.getDeviceIdentifier(),
+                app.getApplicationId(), installationCache, targetApps);
+        if (isMessageFresh()) {
+            answer(device, app, format);
+
+        } else {
+            // Assembling waits for calendar provider queries on the I/O queue, which neither the
+            // ConnectIQ thread nor I/O tasks may do
+            try {
+                dispatcher.assembly().execute(() -> {
+                    // A request queued before us may already have assembled a fresh message
+                    if (!isMessageFresh()) {
+                        offer(messageAssembler.assemble());
+                    }
+                    answer(device, app, format);
+                });
+            } catch (RejectedExecutionException e) {
+                Log.e(LOG_TAG, "Unable to assemble message", e);
+            }
+        }
+    }
+
+    @Override
+    public void onStopped() {
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Implementation
+
+    /**
+     * Sends the current message to the given app in the given format, in chunks if necessary.
+     */
+    private void answer(IQDevice device, IQApp app, MessageFormat format) {
+        if (!watchLink.isRunning()) {
+            Log.d(LOG_TAG, "Link is down, not answering request");
+            return;
+        }
+
+        long deviceId = device.getDeviceIdentifier();
+        String appId = app.getApplicationId();
+
+        DeviceProfile profile = deviceProfiles.getProfile(
+                deviceId, device.getFriendlyName(), appId);
+        MessageFormat restricted = profile.restrict(format);
+        if (restricted == MessageFormat.DELTA) {
+            // The app's state won't match any delta base we know anymore
+            restricted = MessageFormat.COMPACT;
+            deltaSyncStates.reset(deviceId, appId);
+        }
+
+        List<Object> msg = encode(profile, restricted);
+        if (restricted != MessageFormat.LEGACY
+                && MessageChunker.estimateSize(msg) > MessageChunker.DEFAULT_MAX_CHUNK_BYTES) {
+
+            // Answering the same app again before this is sent drops it, which is what we want
+            watchLink.sendMessageParts(device, app, MessageChunker.split(
+                    msg, MessageChunker.DEFAULT_MAX_CHUNK_BYTES, transferIds.nextInt()));
+
+        } else {
+            watchLink.sendMessage(device, app, msg);
+        }
+    }
+
+    /**
+     * Returns the current message tailored to the given profile and encoded in the given format,
+     * encoding it only if we haven't done so before.
+     */
+    private synchronized List<Object> encode(DeviceProfile profile, MessageFormat format) {
+        return encodings
+                .computeIfAbsent(profile, p -> new EnumMap<>(MessageFormat.class))
+                .computeIfAbsent(format, f -> new ArrayList<>(message.tailorTo(profile).encode(f)));
+    }
+
+    private synchronized boolean isMessageFresh() {
+        return message != null
+                && SystemClock.elapsedRealtime() - messageMillis <= MAX_MESSAGE_AGE_MILLIS;
+    }
+
+    /**
+     * Returns the format the request asks for. If it doesn't ask for any, we use what the app's
+     * version understands, if we know the version. The app ID is the one ConnectIQ reports.
+     */
+    static MessageFormat getRequestedFormat(List<Object> request, long deviceId, String appId,
+                                            AppInstallationCache installationCache,
+                                            TargetApps targetApps) {
+
+        if (request.size() >= 2 && request.get(1) instanceof Number) {
+            return MessageFormat.fromVersion(((Number) request.get(1)).intValue());
+        }
+
+        AppInstallationCache.Installation installation = installationCache.get(deviceId, appId);
+        if (installation != null && installation.isInstalled()) {
+            return targetApps.getMessageFormat(appId, installation.getVersion());
+        }
+
+        return MessageFormat.LEGACY;
+    }
+
+}
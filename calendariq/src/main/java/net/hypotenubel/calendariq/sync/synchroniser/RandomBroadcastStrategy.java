@@ -1,6 +1,7 @@
 package net.hypotenubel.calendariq.sync.synchroniser;
 
 import android.content.Context;
+import android.os.CancellationSignal;
 
 import net.hypotenubel.calendariq.data.msg.model.ConnectMessage;
 import net.hypotenubel.calendariq.data.stats.model.BroadcastStatistics;
@@ -20,7 +21,8 @@ public class RandomBroadcastStrategy implements IBroadcastStrategy {
     }
 
     @Override
-    public void broadcast(ConnectMessage msg, Context appContext, IBroadcasterEventListener listener) {
+    public void broadcast(ConnectMessage msg, Context appContext, IBroadcasterEventListener listener,
+                          CancellationSignal cancellation) {
         Random rand = new Random();
         if (rand.nextBoolean()) {
             listener.broadcastFinished(BroadcastStatistics.success(
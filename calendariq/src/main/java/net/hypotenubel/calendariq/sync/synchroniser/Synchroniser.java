@@ -1,23 +1,25 @@
 package net.hypotenubel.calendariq.sync.synchroniser;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
 
-import net.hypotenubel.calendariq.data.calendar.source.ICalendarSource;
-import net.hypotenubel.calendariq.data.msg.model.AppointmentsConnectMessagePart;
-import net.hypotenubel.calendariq.data.msg.model.BatteryChargeConnectMessagePart;
+import net.hypotenubel.calendariq.data.apps.AppInstallationCache;
+import net.hypotenubel.calendariq.data.apps.source.ITargetAppIdsSource;
+import net.hypotenubel.calendariq.data.msg.DeliveryFingerprintRepository;
 import net.hypotenubel.calendariq.data.msg.model.ConnectMessage;
-import net.hypotenubel.calendariq.data.msg.model.SyncIntervalConnectMessagePart;
+import net.hypotenubel.calendariq.data.msg.model.EncodedSegmentCache;
 import net.hypotenubel.calendariq.data.stats.BroadcastStatisticsRepository;
 import net.hypotenubel.calendariq.data.stats.model.BroadcastStatistics;
 import net.hypotenubel.calendariq.sync.connectiq.IBroadcasterEventListener;
 import net.hypotenubel.calendariq.util.Utilities;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
+
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 
@@ -26,39 +28,66 @@ import dagger.hilt.android.qualifiers.ApplicationContext;
 /**
  * Assembles and sends data and updates the broadcast statistics. How the actual broadcast is
  * performed is controlled through an {@link IBroadcastStrategy}.
+ *
+ * <p>If every recipient of the previous broadcasts has recently received a message with the same
+ * content, and those are still all the recipients we know of, the broadcast is skipped altogether
+ * unless it is forced.</p>
+ *
+ * <p>Broadcasts that don't finish within a deadline are cancelled and recorded as having timed
+ * out. Runs can also be cancelled from the outside through {@link #cancel()}.</p>
  */
 public class Synchroniser implements Runnable {
 
     /** Log tag for log messages. */
     private static final String LOG_TAG = Utilities.logTag(Synchroniser.class);
 
-    // Message field values that indicate that a message to the handler thread was sent by us
-    private static final int SERVICE_MESSAGE_WHAT = 0xdabcd41f;
-    private static final int SERVICE_MESSAGE_ARG_1 = 0x2676922f;
-    private static final int SERVICE_MESSAGE_ARG_2 = 0x67487fd4;
+    /** Recipients that received the same content longer ago than this will receive it again. */
+    private static final long MAX_SKIPPED_DELIVERY_AGE_MILLIS = 4 * 60 * 60 * 1000;
+    /** Broadcasts that haven't finished after this long are cancelled. */
+    private static final long BROADCAST_DEADLINE_MILLIS = 3 * 60 * 1000;
+    /** How long a cancelled broadcast may take to wind down before we stop waiting for it. */
+    private static final long CANCELLATION_GRACE_MILLIS = 5 * 1000;
 
     /** Application context. */
     private final Context appContext;
-    /** Access to appointments. */
-    private final ICalendarSource calendarSource;
+    /** Assembles the message to broadcast. */
+    private final MessageAssembler messageAssembler;
     /** How exactly we'll broadcast our message. */
     private final IBroadcastStrategy broadcastStrategy;
     /** Access to the broadcast statistics database. */
     private final BroadcastStatisticsRepository broadcastStatsRepository;
+    /** Access to what we have delivered to whom. */
+    private final DeliveryFingerprintRepository deliveryFingerprints;
+    /** Tells us which apps we'd broadcast to. */
+    private final ITargetAppIdsSource targetAppSource;
+    /** Tells us where those apps are installed. */
+    private final AppInstallationCache installationCache;
+    /** Provides the queue our broadcasts run on. */
+    private final Dispatcher dispatcher;
+    /** Keeps the encoded form of message parts that rarely change. */
+    private final EncodedSegmentCache segmentCache;
 
-    /** Synchronization lock to wait for the broadcaster to finish. */
-    private final Object lock = new Object();
-    /** Whether the broadcaster has already told us that it's finished. */
-    private boolean finished = false;
+    /** Listens to the broadcast currently running, if any. */
+    private volatile BroadcastEventListener currentBroadcast;
 
     @Inject
-    public Synchroniser(@ApplicationContext Context context, ICalendarSource calendarSource,
+    public Synchroniser(@ApplicationContext Context context, MessageAssembler messageAssembler,
                         IBroadcastStrategy broadcastStrategy,
-                        BroadcastStatisticsRepository broadcastStatsRepository) {
+                        BroadcastStatisticsRepository broadcastStatsRepository,
+                        DeliveryFingerprintRepository deliveryFingerprints,
+                        ITargetAppIdsSource targetAppSource,
+                        AppInstallationCache installationCache,
+                        Dispatcher dispatcher,
+                        EncodedSegmentCache segmentCache) {
         this.appContext = context;
-        this.calendarSource = calendarSource;
+        this.messageAssembler = messageAssembler;
         this.broadcastStrategy = broadcastStrategy;
         this.broadcastStatsRepository = broadcastStatsRepository;
+        this.deliveryFingerprints = deliveryFingerprints;
+        this.targetAppSource = targetAppSource;
+        this.installationCache = installationCache;
+        this.dispatcher = dispatcher;
+        this.segmentCache = segmentCache;
     }
 
     //////////////////////////////////////////////////////////////////////////////////////////////
@@ -66,74 +95,222 @@ public class Synchroniser implements Runnable {
 
     @Override
     public void run() {
+        run(false);
+    }
+
+    /**
+     * Runs a synchronisation.
+     *
+     * @param force if {@code true}, the message is broadcast even if all recipients are up to
+     *              date.
+     */
+    public void run(boolean force) {
         Log.d(LOG_TAG, "Sending appointments to Garmin devices...");
 
-        // ConnectIQ requires a thread with a looper :/
-        HandlerThread handlerThread = new HandlerThread("SyncThread");
-        handlerThread.start();
-        SyncHandler handler = new SyncHandler(handlerThread.getLooper());
-
-        // Broadcast the whole thing
-        synchronized (lock) {
-            finished = false;
-
-            // Tell the handler thread to start the broadcast
-            handler
-                    .obtainMessage(
-                            SERVICE_MESSAGE_WHAT,
-                            SERVICE_MESSAGE_ARG_1,
-                            SERVICE_MESSAGE_ARG_2)
-                    .sendToTarget();
-
-            // Wait for the broadcast to complete
-            while (!finished) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException e) {
-                    Log.d(LOG_TAG, "Worker interrupted", e);
-                }
+        // Publish the listener right away so that we can be cancelled while assembling
+        CancellationSignal cancellation = new CancellationSignal();
+        BroadcastEventListener listener = new BroadcastEventListener(cancellation);
+        currentBroadcast = listener;
+        try {
+            runBroadcast(force, listener, cancellation);
+        } finally {
+            currentBroadcast = null;
+        }
+
+        Log.d(LOG_TAG, "Finished sending appointments to Garmin devices...");
+    }
+
+    /**
+     * Assembles the message, broadcasts it unless we can skip that, and waits for the broadcast
+     * to finish.
+     */
+    private void runBroadcast(boolean force, BroadcastEventListener listener,
+                              CancellationSignal cancellation) {
+
+        // Assembling the message may take a while, so we do that here instead of on the ConnectIQ
+        // thread, which must stay responsive
+        ConnectMessage connectMessage = messageAssembler.assemble();
+
+        if (cancellation.isCanceled()) {
+            Log.d(LOG_TAG, "Cancelled while assembling the message");
+            return;
+        }
+
+        // Don't bother anyone if we wouldn't tell them anything new
+        String fingerprint = connectMessage.fingerprint();
+        listener.setFingerprint(fingerprint);
+
+        int upToDateRecipients = force
+                ? 0
+                : deliveryFingerprints.countUpToDateRecipients(
+                        fingerprint,
+                        MAX_SKIPPED_DELIVERY_AGE_MILLIS,
+                        installationCache.getInstalledApps(
+                                targetAppSource.getTargetApps().getTargetAppIds(),
+                                MAX_SKIPPED_DELIVERY_AGE_MILLIS));
+        if (upToDateRecipients > 0) {
+            Log.d(LOG_TAG, "All " + upToDateRecipients + " recipients up to date, skipping");
+            broadcastStatsRepository.addBroadcastStats(
+                    BroadcastStatistics.skipped(upToDateRecipients));
+            return;
+        }
+
+        // Broadcast the whole thing. ConnectIQ requires a thread with a looper :/
+        try {
+            dispatcher.connectIQ().execute(() -> broadcastStrategy.broadcast(
+                    connectMessage, appContext, listener, cancellation));
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "Unable to start broadcast", e);
+            return;
+        }
+
+        // Wait for the broadcast to complete, but not forever
+        if (!listener.awaitFinished(BROADCAST_DEADLINE_MILLIS, true)) {
+            if (!cancellation.isCanceled()) {
+                Log.w(LOG_TAG, "Broadcast did not finish in time, cancelling");
+                listener.timeOut();
             }
 
+            if (!listener.awaitFinished(CANCELLATION_GRACE_MILLIS, false)) {
+                Log.w(LOG_TAG, "Broadcast did not react to cancellation, giving up on it");
+                listener.abandon();
+            }
         }
 
-        // Kill the handler thread again
-        handlerThread.quit();
+        dispatcher.logStatistics();
+        Log.d(LOG_TAG, segmentCache.toString());
+    }
 
-        Log.d(LOG_TAG, "Finished sending appointments to Garmin devices...");
+    /**
+     * Cancels the broadcast currently running, if any. The run finishes shortly afterwards.
+     */
+    public void cancel() {
+        BroadcastEventListener broadcast = currentBroadcast;
+        if (broadcast != null) {
+            Log.d(LOG_TAG, "Cancelling broadcast");
+            broadcast.cancel();
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////////////////////////
     // Support Classes
 
     /**
-     * Handler for our ConnectIQ thread. This initiates the actual broadcast.
+     * Listens to messages being sent and broadcasts being finished, and lets us wait for the
+     * latter. The broadcast's statistics are recorded exactly once, even if the broadcaster only
+     * reports back after we have given up on it.
      */
-    private final class SyncHandler extends Handler {
-        public SyncHandler(Looper looper) {
-            super(looper);
+    private final class BroadcastEventListener implements IBroadcasterEventListener {
+
+        /** Cancels the broadcast. */
+        private final CancellationSignal cancellation;
+        /** Fingerprint of the message being broadcast, once it has been assembled. */
+        private volatile String fingerprint;
+        /** Whether the broadcast's statistics have been recorded. */
+        private boolean finished = false;
+        /** Whether the broadcast was cancelled because it took too long. */
+        private boolean timedOut = false;
+
+        private BroadcastEventListener(CancellationSignal cancellation) {
+            this.cancellation = cancellation;
+        }
+
+        /**
+         * Sets the fingerprint of the message being broadcast. Must be called before the broadcast
+         * starts.
+         */
+        private void setFingerprint(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Waits until the broadcast has finished, but no longer than the given time. If we are
+         * interrupted, the broadcast is cancelled and we stop waiting with our interrupt flag
+         * set.
+         *
+         * @param timeoutMillis how long to wait at most.
+         * @param stopIfCancelled whether to stop waiting early if the broadcast is cancelled.
+         * @return whether the broadcast has finished.
+         */
+        private synchronized boolean awaitFinished(long timeoutMillis, boolean stopIfCancelled) {
+            long endMillis = SystemClock.elapsedRealtime() + timeoutMillis;
+
+            while (!finished && !(stopIfCancelled && cancellation.isCanceled())) {
+                long remainingMillis = endMillis - SystemClock.elapsedRealtime();
+                if (remainingMillis <= 0) {
+                    break;
+                }
+
+                try {
+                    wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    Log.d(LOG_TAG, "Worker interrupted", e);
+                    cancel();
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            return finished;
+        }
+
+        /**
+         * Cancels the broadcast and wakes up whoever is waiting for it.
+         */
+        private synchronized void cancel() {
+            cancellation.cancel();
+            notifyAll();
+        }
+
+        /**
+         * Cancels the broadcast because it took too long.
+         */
+        private synchronized void timeOut() {
+            timedOut = true;
+            cancel();
+        }
+
+        /**
+         * Records the broadcast as timed out or cancelled without waiting for the broadcaster any
+         * longer.
+         */
+        private synchronized void abandon() {
+            if (!finished) {
+                finished = true;
+                if (timedOut) {
+                    broadcastStatsRepository.addBroadcastStats(BroadcastStatistics.timeout(
+                            0, 0, 0, 0, "Broadcast did not finish in time"));
+                } else {
+                    broadcastStatsRepository.addBroadcastStats(BroadcastStatistics.failure(
+                            0, 0, "Broadcast was cancelled"));
+                }
+            }
         }
 
         @Override
-        public void handleMessage(@NonNull  Message msg) {
-            ConnectMessage connectMessage = new ConnectMessage()
-                    .addMessagePart(AppointmentsConnectMessagePart.fromPreferences(appContext, calendarSource))
-                    .addMessagePart(SyncIntervalConnectMessagePart.fromPreferences(appContext))
-                    .addMessagePart(BatteryChargeConnectMessagePart.fromCurrentDeviceState(appContext));
-            broadcastStrategy.broadcast(connectMessage, appContext, new BroadcastEventListener());
+        public void messageSent(IQDevice device, IQApp app) {
+            deliveryFingerprints.recordDelivery(
+                    device.getDeviceIdentifier(), app.getApplicationId(), fingerprint);
         }
-    }
 
-    /**
-     * Listens to broadcasts being finished.
-     */
-    private final class BroadcastEventListener implements IBroadcasterEventListener {
         @Override
-        public void broadcastFinished(BroadcastStatistics stats) {
-            synchronized (lock) {
-                finished = true;
-                broadcastStatsRepository.addBroadcastStats(stats);
-                lock.notifyAll();
+        public synchronized void broadcastFinished(BroadcastStatistics stats) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+
+            if (timedOut) {
+                stats = BroadcastStatistics.timeout(
+                        stats.getTotalApps(),
+                        stats.getContactedApps(),
+                        stats.getAverageDeliveryMillis(),
+                        stats.getMaxDeliveryMillis(),
+                        "Broadcast did not finish in time");
             }
+
+            broadcastStatsRepository.addBroadcastStats(stats);
+            notifyAll();
         }
     }
 
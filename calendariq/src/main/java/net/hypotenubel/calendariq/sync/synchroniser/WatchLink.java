@@ -0,0 +1,148 @@
+package net.hypotenubel.calendariq.sync.synchroniser;
+
+import android.util.Log;
+
+import com.garmin.android.connectiq.ConnectIQ;
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+
+import net.hypotenubel.calendariq.data.apps.source.ITargetAppIdsSource;
+import net.hypotenubel.calendariq.sync.connectiq.ConnectIQAppTransceiver;
+import net.hypotenubel.calendariq.sync.connectiq.ConnectIQSessionManager;
+import net.hypotenubel.calendariq.sync.connectiq.ITransceiverEventListener;
+import net.hypotenubel.calendariq.sync.connectiq.SendStatistics;
+import net.hypotenubel.calendariq.util.Utilities;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Keeps in touch with our watch apps between broadcasts. Everyone who needs to hear from devices
+ * or apps outside of a broadcast shares the single {@link ConnectIQAppTransceiver} held here,
+ * since ConnectIQ only keeps one listener per device and app anyway.
+ *
+ * <p>The transceiver runs as long as at least one client {@link #require(Object, boolean)
+ * requires} it. Broadcasts unregister the listeners they registered, which includes ours, so
+ * {@link #rearm()} must be called after each broadcast.</p>
+ */
+@Singleton
+public class WatchLink {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(WatchLink.class);
+
+    private final Dispatcher dispatcher;
+    private final ConnectIQAppTransceiver transceiver;
+
+    /** Clients that currently require the link. Only used on the ConnectIQ queue. */
+    private final Set<Object> clients = new HashSet<>();
+
+    @Inject
+    public WatchLink(ITargetAppIdsSource targetAppSource, Dispatcher dispatcher,
+                     ConnectIQSessionManager sessionManager) {
+        this.dispatcher = dispatcher;
+        this.transceiver = new ConnectIQAppTransceiver(
+                targetAppSource.getTargetApps().getTargetAppIds(),
+                ConnectIQ.IQConnectType.WIRELESS,
+                dispatcher,
+                sessionManager);
+    }
+
+    /**
+     * Adds a listener that is told about everything happening on the link.
+     */
+    public void addListener(ITransceiverEventListener listener) {
+        runOnConnectIQQueue(() -> transceiver.addAppTransceiverListener(listener));
+    }
+
+    /**
+     * Records whether the given client requires the link, and starts or stops it accordingly.
+     */
+    public void require(Object client, boolean required) {
+        runOnConnectIQQueue(() -> {
+            if (required) {
+                clients.add(client);
+            } else {
+                clients.remove(client);
+            }
+            update();
+        });
+    }
+
+    /**
+     * Registers our listeners anew if the link is running. Messages still waiting to be sent are
+     * kept.
+     */
+    public void rearm() {
+        runOnConnectIQQueue(() -> {
+            Log.d(LOG_TAG, transceiver.getSendStatistics().toString());
+
+            transceiver.reregister();
+            update();
+        });
+    }
+
+    /**
+     * Whether the link is running and messages can be sent through it.
+     */
+    public boolean isRunning() {
+        return transceiver.isRunning();
+    }
+
+    /**
+     * Returns statistics about the messages sent through the link.
+     */
+    public SendStatistics getSendStatistics() {
+        return transceiver.getSendStatistics();
+    }
+
+    /**
+     * Sends the given message to the given app on the given device, provided that the link is
+     * running. Listeners are told about the message's status.
+     */
+    public void sendMessage(IQDevice device, IQApp app, List<Object> msg) {
+        transceiver.sendMessage(device, app, msg);
+    }
+
+    /**
+     * Sends a message that consists of the given parts to the given app on the given device,
+     * provided that the link is running. A message still waiting to be sent to the same app is
+     * dropped in favour of this one. Listeners are told about the status of each part.
+     */
+    public void sendMessageParts(IQDevice device, IQApp app, List<List<Object>> parts) {
+        transceiver.sendMessageParts(device, app, parts);
+    }
+
+    private void update() {
+        if (clients.isEmpty()) {
+            if (transceiver.isRunning()) {
+                Log.d(LOG_TAG, "Link not required anymore, stopping");
+                transceiver.stop();
+            }
+
+        } else if (!transceiver.isRunning()) {
+            Log.d(LOG_TAG, "Link required by " + clients.size() + " clients, starting");
+            try {
+                transceiver.start();
+            } catch (IllegalStateException e) {
+                // It is still starting and will register its listeners once it is running
+                Log.d(LOG_TAG, "Transceiver is " + e.getMessage());
+            }
+        }
+    }
+
+    private void runOnConnectIQQueue(Runnable task) {
+        try {
+            dispatcher.connectIQ().execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "Unable to control link", e);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package net.hypotenubel.calendariq.sync.synchroniser;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+
+import net.hypotenubel.calendariq.data.apps.DeviceProfileRepository;
+import net.hypotenubel.calendariq.data.msg.DeliveryFingerprintRepository;
+import net.hypotenubel.calendariq.data.msg.DeltaSyncStateRepository;
+import net.hypotenubel.calendariq.data.msg.model.MessageFormat;
+import net.hypotenubel.calendariq.sync.connectiq.ITransceiverEventListener;
+import net.hypotenubel.calendariq.sync.worker.SyncWorkerController;
+import net.hypotenubel.calendariq.util.Utilities;
+
+import java.util.List;
+
+import javax.inject.Inject;
+
+import dagger.hilt.android.qualifiers.ApplicationContext;
+
+/**
+ * Handles what watch apps reply to our messages. A reply is one of the following:
+ * <dl>
+ *     <dt>{@code [1, sequence]}</dt>
+ *     <dd>Acknowledges the {@link MessageFormat#DELTA delta} message with the given sequence
+ *       number.</dd>
+ *
+ *     <dt>{@code [2]}</dt>
+ *     <dd>Requests a full update, which watch apps do if a delta's base isn't the state they
+ *       know.</dd>
+ *
+ *     <dt>{@code [3, maxAppointments, maxDays]}</dt>
+ *     <dd>Reports the limits of what the watch app can handle, which override any
+ *       {@link net.hypotenubel.calendariq.data.apps.model.DeviceProfile} that would otherwise
+ *       apply.</dd>
+ * </dl>
+ *
+ * <p>Both full update requests and changed limits make the app's current state differ from what
+ * we delivered, so we forget the delivery. Otherwise, the next broadcast would be skipped as not
+ * telling the app anything new.</p>
+ *
+ * <p>Requests for fresh appointments never reach us, since the {@link PullRequestServer} answers
+ * them itself.</p>
+ */
+public class WatchReplyHandler implements ITransceiverEventListener {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(WatchReplyHandler.class);
+
+    /** Marks replies that acknowledge a message. */
+    private static final int REPLY_ACKNOWLEDGE = 1;
+    /** Marks replies that request a full update. */
+    private static final int REPLY_RESYNC = 2;
+    /** Marks replies that report the watch app's limits. */
+    private static final int REPLY_LIMITS = 3;
+
+    private final Context appContext;
+    private final DeltaSyncStateRepository deltaSyncStates;
+    private final DeliveryFingerprintRepository deliveryFingerprints;
+    private final DeviceProfileRepository deviceProfiles;
+
+    @Inject
+    public WatchReplyHandler(@ApplicationContext Context appContext,
+                             DeltaSyncStateRepository deltaSyncStates,
+                             DeliveryFingerprintRepository deliveryFingerprints,
+                             DeviceProfileRepository deviceProfiles) {
+        this.appContext = appContext;
+        this.deltaSyncStates = deltaSyncStates;
+        this.deliveryFingerprints = deliveryFingerprints;
+        this.deviceProfiles = deviceProfiles;
+    }
+
+    @Override
+    public void onMessageReceived(IQDevice device, IQApp app, List<Object> msg) {
+        if (msg == null || msg.isEmpty() || !(msg.get(0) instanceof Number)) {
+            Log.d(LOG_TAG, "Ignoring unknown reply");
+            return;
+        }
+
+        long deviceId = device.getDeviceIdentifier();
+        String appId = app.getApplicationId();
+
+        switch (((Number) msg.get(0)).intValue()) {
+            case REPLY_ACKNOWLEDGE:
+                if (msg.size() >= 2 && msg.get(1) instanceof Number) {
+                    deltaSyncStates.acknowledge(deviceId, appId, ((Number) msg.get(1)).intValue());
+                }
+                break;
+
+            case REPLY_RESYNC:
+                // The next message will be a full update, and it shouldn't keep the watch waiting
+                Log.d(LOG_TAG, appId + " on " + deviceId + " requested a full update");
+                deltaSyncStates.reset(deviceId, appId);
+                deliveryFingerprints.forgetDelivery(deviceId, appId);
+                SyncWorkerController.requestSync(appContext);
+                break;
+
+            case REPLY_LIMITS:
+                if (msg.size() >= 3
+                        && msg.get(1) instanceof Number
+                        && msg.get(2) instanceof Number) {
+
+                    boolean changed = deviceProfiles.recordReportedLimits(deviceId, appId,
+                            ((Number) msg.get(1)).intValue(), ((Number) msg.get(2)).intValue());
+                    if (changed) {
+                        // The next message will be tailored differently
+                        deliveryFingerprints.forgetDelivery(deviceId, appId);
+                    }
+                }
+                break;
+
+            default:
+                Log.d(LOG_TAG, "Ignoring unknown reply");
+        }
+    }
+
+    @Override
+    public void onStopped() {
+    }
+
+}
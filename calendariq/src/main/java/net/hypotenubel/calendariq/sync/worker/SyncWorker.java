@@ -8,9 +8,12 @@ import androidx.hilt.work.HiltWorker;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import net.hypotenubel.calendariq.data.calendar.source.AppointmentSnapshotStore;
 import net.hypotenubel.calendariq.sync.synchroniser.Synchroniser;
 import net.hypotenubel.calendariq.util.Utilities;
 
+import javax.inject.Provider;
+
 import dagger.assisted.Assisted;
 import dagger.assisted.AssistedInject;
 
@@ -23,14 +26,21 @@ public class SyncWorker extends Worker {
     /** Log tag for log messages. */
     private static final String LOG_TAG = Utilities.logTag(SyncWorker.class);
 
-    private final Synchroniser synchroniser;
+    /**
+     * Creates our synchroniser. We only create it once we run so that failing to create it
+     * cannot keep us from re-arming the change trigger.
+     */
+    private final Provider<Synchroniser> synchroniserProvider;
+    /** The synchroniser we're running, if any. */
+    private volatile Synchroniser synchroniser;
 
     @AssistedInject
     public SyncWorker(@Assisted Context context,
-                      @Assisted WorkerParameters workerParams, Synchroniser synchroniser) {
+                      @Assisted WorkerParameters workerParams,
+                      Provider<Synchroniser> synchroniserProvider) {
         super(context, workerParams);
 
-        this.synchroniser = synchroniser;
+        this.synchroniserProvider = synchroniserProvider;
     }
 
     @NonNull
@@ -38,9 +48,44 @@ public class SyncWorker extends Worker {
     public Result doWork() {
         Log.d(LOG_TAG, "Starting SyncWorker...");
 
-        synchroniser.run();
+        try {
+            // If the calendar provider changed while our process wasn't running, we'll only
+            // learn about it here, and persisted appointments must not be trusted anymore
+            boolean triggeredByChanges = !getTriggeredContentUris().isEmpty()
+                    || !getTriggeredContentAuthorities().isEmpty();
+            if (triggeredByChanges) {
+                AppointmentSnapshotStore.markProviderChanged(getApplicationContext());
+            }
+
+            synchroniser = synchroniserProvider.get();
+            if (!isStopped()) {
+                synchroniser.run();
+            }
+
+        } finally {
+            // If we were triggered by calendar changes, we need to wait for the next ones, even
+            // if this sync failed. If we were stopped, though, synchronisation was either
+            // switched off or will be set up again anyway
+            if (isStopped()) {
+                Log.d(LOG_TAG, "SyncWorker was stopped, not waiting for further changes");
+            } else if (getTags().contains(SyncWorkerController.CHANGE_TRIGGER_TAG)) {
+                Log.d(LOG_TAG, "Triggered by calendar changes, waiting for further changes");
+                SyncWorkerController.rearmChangeTrigger(getApplicationContext());
+            }
+        }
 
         return Result.success();
     }
 
+    @Override
+    public void onStopped() {
+        // Don't keep holding on to ConnectIQ and our thread if WorkManager wants us gone
+        Log.d(LOG_TAG, "SyncWorker stopped");
+
+        Synchroniser runningSynchroniser = synchroniser;
+        if (runningSynchroniser != null) {
+            runningSynchroniser.cancel();
+        }
+    }
+
 }
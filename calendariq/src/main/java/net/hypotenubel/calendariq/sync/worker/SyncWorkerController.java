@@ -1,9 +1,13 @@
 package net.hypotenubel.calendariq.sync.worker;
 
 import android.content.Context;
+import android.provider.CalendarContract;
 import android.util.Log;
 
+import androidx.work.Constraints;
 import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkManager;
 
@@ -12,7 +16,16 @@ import net.hypotenubel.calendariq.util.Utilities;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Controls our {@link WorkManager}-based synchronisation service.
+ * Controls our {@link WorkManager}-based synchronisation service. Synchronisation is driven by
+ * three kinds of work:
+ * <ul>
+ *     <li>A one-time work item that waits for the calendar provider to report changes. Once it has
+ *       run, {@link SyncWorker} re-arms it by calling {@link #rearmChangeTrigger(Context)}.</li>
+ *     <li>A one-time work item enqueued when the user changes which calendars are active. Requests
+ *       replace each other, which debounces bursts of changes.</li>
+ *     <li>A periodic work item that acts as a safety net, catching appointments moving into the
+ *       sync interval as time passes as well as changes we somehow missed.</li>
+ * </ul>
  */
 public class SyncWorkerController {
 
@@ -20,6 +33,20 @@ public class SyncWorkerController {
 
     /** ID of the work item we're using to run our worker periodically. */
     private static final String SYNC_WORK_NAME = "calendariq_sync_worker";
+    /** ID of the work item that waits for calendar changes. */
+    private static final String CHANGE_SYNC_WORK_NAME = "calendariq_change_sync_worker";
+    /** ID of the work item that runs when the user changes the set of active calendars. */
+    private static final String REQUESTED_SYNC_WORK_NAME = "calendariq_requested_sync_worker";
+
+    /** Tag of work items triggered by calendar changes. {@link SyncWorker} re-arms those. */
+    static final String CHANGE_TRIGGER_TAG = "calendariq_change_trigger";
+
+    /** Seconds without further calendar changes before a change-triggered sync runs. */
+    private static final long CHANGE_DEBOUNCE_SECONDS = 30;
+    /** Maximum seconds a change-triggered sync is delayed by a stream of changes. */
+    private static final long CHANGE_MAX_DELAY_SECONDS = 120;
+    /** Seconds we wait before running a requested sync. Further requests restart the wait. */
+    private static final long REQUEST_DEBOUNCE_SECONDS = 10;
 
     /**
      * Ensures the service is running with the given synchronisation interval.
@@ -51,15 +78,75 @@ public class SyncWorkerController {
                         SYNC_WORK_NAME,
                         policy,
                         request);
+
+        // Also make sure that we're reacting to calendar changes
+        ExistingWorkPolicy changePolicy = forceRestart
+                ? ExistingWorkPolicy.REPLACE
+                : ExistingWorkPolicy.KEEP;
+        enqueueChangeTrigger(appContext, changePolicy);
+    }
+
+    /**
+     * Schedules a single synchronisation to run shortly. Calling this again before the
+     * synchronisation has started pushes it back, so bursts of requests result in a single run.
+     */
+    public static void requestSync(Context appContext) {
+        Log.d(LOG_TAG, "Sync requested, running in " + REQUEST_DEBOUNCE_SECONDS + " seconds");
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(SyncWorker.class)
+                .setInitialDelay(REQUEST_DEBOUNCE_SECONDS, TimeUnit.SECONDS)
+                .build();
+
+        WorkManager
+                .getInstance(appContext)
+                .enqueueUniqueWork(
+                        REQUESTED_SYNC_WORK_NAME,
+                        ExistingWorkPolicy.REPLACE,
+                        request);
+    }
+
+    /**
+     * Waits for the next calendar change after a change-triggered sync. This is called while the
+     * current work item is still running, so the new one is appended to it instead of replacing
+     * it.
+     */
+    static void rearmChangeTrigger(Context appContext) {
+        enqueueChangeTrigger(appContext, ExistingWorkPolicy.APPEND_OR_REPLACE);
     }
 
     /**
      * Stops the service.
      */
     public static void stop(Context appContext) {
+        WorkManager workManager = WorkManager.getInstance(appContext);
+        workManager.cancelUniqueWork(SYNC_WORK_NAME);
+        workManager.cancelUniqueWork(CHANGE_SYNC_WORK_NAME);
+        workManager.cancelUniqueWork(REQUESTED_SYNC_WORK_NAME);
+    }
+
+    /**
+     * Enqueues a work item that runs once the calendar provider reports changes to calendars or
+     * events. Instances are derived from events, so we don't need to watch them separately.
+     */
+    private static void enqueueChangeTrigger(Context appContext, ExistingWorkPolicy policy) {
+        Constraints constraints = new Constraints.Builder()
+                .addContentUriTrigger(CalendarContract.Calendars.CONTENT_URI, true)
+                .addContentUriTrigger(CalendarContract.Events.CONTENT_URI, true)
+                .setTriggerContentUpdateDelay(CHANGE_DEBOUNCE_SECONDS, TimeUnit.SECONDS)
+                .setTriggerContentMaxDelay(CHANGE_MAX_DELAY_SECONDS, TimeUnit.SECONDS)
+                .build();
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(SyncWorker.class)
+                .setConstraints(constraints)
+                .addTag(CHANGE_TRIGGER_TAG)
+                .build();
+
         WorkManager
                 .getInstance(appContext)
-                .cancelUniqueWork(SYNC_WORK_NAME);
+                .enqueueUniqueWork(
+                        CHANGE_SYNC_WORK_NAME,
+                        policy,
+                        request);
     }
 
 }
@@ -92,8 +92,9 @@ public class CalendarListFragment extends Fragment {
     public void onPause() {
         super.onPause();
 
-        if (calendarViewModel != null) {
-            calendarViewModel.storeActiveCalendarIds();
+        // Changing the active calendars changes what the watch should display
+        if (calendarViewModel != null && calendarViewModel.storeActiveCalendarIds()) {
+            syncController.requestSync();
         }
     }
 
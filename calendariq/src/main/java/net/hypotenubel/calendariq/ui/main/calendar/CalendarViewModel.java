@@ -54,8 +54,11 @@ public class CalendarViewModel extends ViewModel {
         calendarRepository.refreshAvailableCalendars();
     }
 
-    public void storeActiveCalendarIds() {
-        calendarRepository.storeActiveCalendarIds();
+    /**
+     * Stores the active calendars and returns whether they have changed.
+     */
+    public boolean storeActiveCalendarIds() {
+        return calendarRepository.storeActiveCalendarIds();
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
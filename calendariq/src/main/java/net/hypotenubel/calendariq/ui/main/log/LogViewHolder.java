@@ -52,9 +52,11 @@ public class LogViewHolder extends RecyclerView.ViewHolder {
     public void bind(BroadcastStatistics stats) {
         Resources res = context.getResources();
 
-        int resultColourResID = stats.getMessage() == null
-                ? R.color.calendar_colorSuccess
-                : R.color.calendar_colorFailure;
+        boolean failed = stats.getOutcome() == BroadcastStatistics.Outcome.FAILURE
+                || stats.getOutcome() == BroadcastStatistics.Outcome.TIMEOUT;
+        int resultColourResID = failed
+                ? R.color.calendar_colorFailure
+                : R.color.calendar_colorSuccess;
         syncResultShape.setColor(res.getColor(resultColourResID, null));
 
         syncTime.setText(res.getString(
@@ -63,6 +65,11 @@ public class LogViewHolder extends RecyclerView.ViewHolder {
 
         if (stats.getMessage() != null) {
             syncDetails.setText(stats.getMessage());
+        } else if (stats.getOutcome() == BroadcastStatistics.Outcome.SKIPPED) {
+            syncDetails.setText(res.getQuantityString(
+                    R.plurals.logFragment_logViewItem_syncDetails_skipped,
+                    stats.getTotalApps(),
+                    stats.getTotalApps()));
         } else {
             syncDetails.setText(res.getQuantityString(
                     R.plurals.logFragment_logViewItem_syncDetails_success,
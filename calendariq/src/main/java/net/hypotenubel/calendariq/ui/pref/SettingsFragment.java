@@ -89,7 +89,11 @@ public class SettingsFragment extends PreferenceFragmentCompat {
             lastSyncPreference.setSummary(null);
         } else {
             BroadcastStatistics newestStat = newestStatList.get(0);
-            if (newestStat.getMessage() == null) {
+            if (newestStat.getOutcome() == BroadcastStatistics.Outcome.SKIPPED) {
+                lastSyncPreference.setSummary(getString(
+                        R.string.pref_last_sync_summary_skipped,
+                        newestStat.getUtcTimestampMillis()));
+            } else if (newestStat.getMessage() == null) {
                 String summary = getContext().getResources().getQuantityString(
                         R.plurals.pref_last_sync_summary,
                         newestStat.getContactedApps(),
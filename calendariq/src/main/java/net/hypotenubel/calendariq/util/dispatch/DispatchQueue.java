@@ -0,0 +1,220 @@
+package net.hypotenubel.calendariq.util.dispatch;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.hypotenubel.calendariq.util.Utilities;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named executor that accepts a bounded number of pending tasks and keeps statistics about them.
+ * Tasks are either run by a small pool of threads or by a single thread with a {@link Looper},
+ * which is what the ConnectIQ SDK requires. Submitting a task while the queue is full causes a
+ * {@link RejectedExecutionException}.
+ */
+public final class DispatchQueue implements Executor {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(DispatchQueue.class);
+
+    /** How long idle pool threads are kept around. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /** The queue's name, used for thread names and log messages. */
+    private final String name;
+    /** Maximum number of tasks that may be waiting or running at the same time. */
+    private final int capacity;
+    /** The executor that actually runs our tasks. */
+    private final Executor executor;
+    /** The looper our tasks run on, if any. */
+    private final Looper looper;
+
+    /** Number of tasks that are waiting or running. */
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    /** Number of tasks that have finished. */
+    private final AtomicLong completedTasks = new AtomicLong();
+    /** Number of tasks that were rejected because the queue was full. */
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    /** Sum of the times tasks spent waiting to be run. */
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+    /** Longest time a task spent waiting to be run. */
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+
+    private DispatchQueue(String name, int capacity, Executor executor, Looper looper) {
+        this.name = name;
+        this.capacity = capacity;
+        this.executor = executor;
+        this.looper = looper;
+    }
+
+    /**
+     * Creates a queue whose tasks are run by a pool of threads. Threads are only started as tasks
+     * arrive and die again when they have nothing to do for a while.
+     *
+     * @param name the queue's name.
+     * @param threads maximum number of tasks run at the same time.
+     * @param capacity maximum number of tasks waiting or running at the same time.
+     * @return the new queue.
+     */
+    public static DispatchQueue withThreadPool(String name, int threads, int capacity) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory =
+                r -> new Thread(r, name + "-" + threadCount.incrementAndGet());
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threads,
+                threads,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+
+        return new DispatchQueue(name, capacity, pool, null);
+    }
+
+    /**
+     * Creates a queue whose tasks are run one after another by a single thread with a
+     * {@link Looper}. Callbacks registered from within these tasks are delivered to the same
+     * thread.
+     *
+     * @param name the queue's name.
+     * @param capacity maximum number of tasks waiting or running at the same time.
+     * @return the new queue.
+     */
+    public static DispatchQueue withLooper(String name, int capacity) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+
+        Handler handler = new Handler(thread.getLooper());
+        Executor executor = task -> {
+            if (!handler.post(task)) {
+                throw new RejectedExecutionException(name + " has quit");
+            }
+        };
+
+        return new DispatchQueue(name, capacity, executor, thread.getLooper());
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Execution
+
+    /**
+     * Schedules the given task to be run.
+     *
+     * @throws RejectedExecutionException if the queue is full.
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (pendingTasks.incrementAndGet() > capacity) {
+            pendingTasks.decrementAndGet();
+            rejectedTasks.incrementAndGet();
+            Log.w(LOG_TAG, name + " is full, rejecting task");
+            throw new RejectedExecutionException(name + " is full");
+        }
+
+        long submitMillis = SystemClock.elapsedRealtime();
+        try {
+            executor.execute(() -> {
+                recordLatency(SystemClock.elapsedRealtime() - submitMillis);
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Task on " + name + " failed", e);
+                } finally {
+                    pendingTasks.decrementAndGet();
+                    completedTasks.incrementAndGet();
+                }
+            });
+
+        } catch (RejectedExecutionException e) {
+            pendingTasks.decrementAndGet();
+            rejectedTasks.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the looper our tasks run on, or {@code null} if they run on a thread pool.
+     */
+    public Looper getLooper() {
+        return looper;
+    }
+
+    private void recordLatency(long latencyMillis) {
+        totalLatencyMillis.addAndGet(latencyMillis);
+
+        long max = maxLatencyMillis.get();
+        while (latencyMillis > max && !maxLatencyMillis.compareAndSet(max, latencyMillis)) {
+            max = maxLatencyMillis.get();
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Statistics
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of tasks that are currently waiting or running.
+     */
+    public int getQueueDepth() {
+        return pendingTasks.get();
+    }
+
+    /**
+     * Returns the number of tasks that have finished so far.
+     */
+    public long getCompletedTaskCount() {
+        return completedTasks.get();
+    }
+
+    /**
+     * Returns the number of tasks that were rejected so far.
+     */
+    public long getRejectedTaskCount() {
+        return rejectedTasks.get();
+    }
+
+    /**
+     * Returns the average time finished tasks had to wait before being run.
+     */
+    public long getAverageLatencyMillis() {
+        long completed = completedTasks.get();
+        return completed == 0 ? 0 : totalLatencyMillis.get() / completed;
+    }
+
+    /**
+     * Returns the longest time a task had to wait before being run.
+     */
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return name
+                + ": depth " + getQueueDepth() + "/" + capacity
+                + ", completed " + getCompletedTaskCount()
+                + ", rejected " + getRejectedTaskCount()
+                + ", latency avg " + getAverageLatencyMillis() + " ms"
+                + ", max " + getMaxLatencyMillis() + " ms";
+    }
+
+}
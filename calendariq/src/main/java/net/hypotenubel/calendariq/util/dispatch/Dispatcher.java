@@ -0,0 +1,93 @@
+package net.hypotenubel.calendariq.util.dispatch;
+
+import android.util.Log;
+
+import net.hypotenubel.calendariq.util.Utilities;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Provides the {@link DispatchQueue}s all background work in the app runs on. Each kind of work
+ * gets its own queue, which bounds the number of threads we use and lets us see where work piles
+ * up.
+ */
+@Singleton
+public class Dispatcher {
+
+    /** Log tag for log messages. */
+    private static final String LOG_TAG = Utilities.logTag(Dispatcher.class);
+
+    /** Short-lived I/O such as calendar provider queries. */
+    private final DispatchQueue io = DispatchQueue.withThreadPool("IO", 4, 64);
+    /** Database writes. A single thread keeps them in order. */
+    private final DispatchQueue database = DispatchQueue.withThreadPool("Database", 1, 64);
+    /** Assembling messages for watch requests, which waits for calendar provider queries. */
+    private final DispatchQueue assembly = DispatchQueue.withThreadPool("Assembly", 1, 16);
+    /** Synchronisation runs, which block until their broadcast has finished. */
+    private final DispatchQueue sync = DispatchQueue.withThreadPool("Sync", 1, 4);
+    /** Work with the ConnectIQ SDK, which requires a thread with a looper. */
+    private final DispatchQueue connectIQ = DispatchQueue.withLooper("ConnectIQ", 64);
+
+    @Inject
+    public Dispatcher() {
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Queues
+
+    /**
+     * Returns the queue for short-lived I/O. Tasks on this queue must not wait for other tasks on
+     * this queue.
+     */
+    public DispatchQueue io() {
+        return io;
+    }
+
+    /**
+     * Returns the queue for database access.
+     */
+    public DispatchQueue database() {
+        return database;
+    }
+
+    /**
+     * Returns the queue for assembling messages on demand. Its tasks may wait for tasks on the I/O
+     * queue.
+     */
+    public DispatchQueue assembly() {
+        return assembly;
+    }
+
+    /**
+     * Returns the queue for synchronisation runs.
+     */
+    public DispatchQueue sync() {
+        return sync;
+    }
+
+    /**
+     * Returns the queue for ConnectIQ work. Tasks on this queue must never block, since that would
+     * keep the SDK's callbacks from being delivered.
+     */
+    public DispatchQueue connectIQ() {
+        return connectIQ;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Statistics
+
+    /**
+     * Logs the statistics of all queues.
+     */
+    public void logStatistics() {
+        Log.d(LOG_TAG, io.toString());
+        Log.d(LOG_TAG, database.toString());
+        Log.d(LOG_TAG, assembly.toString());
+        Log.d(LOG_TAG, sync.toString());
+        Log.d(LOG_TAG, connectIQ.toString());
+    }
+
+}
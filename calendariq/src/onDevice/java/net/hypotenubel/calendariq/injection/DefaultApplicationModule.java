@@ -2,10 +2,16 @@ package net.hypotenubel.calendariq.injection;
 
 import android.content.Context;
 
+import net.hypotenubel.calendariq.data.apps.source.IDeviceProfileSource;
 import net.hypotenubel.calendariq.data.apps.source.ITargetAppIdsSource;
+import net.hypotenubel.calendariq.data.apps.source.XmlResourceDeviceProfileSource;
 import net.hypotenubel.calendariq.data.apps.source.XmlResourceTargetAppIdsSource;
 import net.hypotenubel.calendariq.data.calendar.source.AndroidCalendarSource;
+import net.hypotenubel.calendariq.data.calendar.source.AppointmentSnapshotStore;
+import net.hypotenubel.calendariq.data.calendar.source.CachingCalendarSource;
 import net.hypotenubel.calendariq.data.calendar.source.ICalendarSource;
+import net.hypotenubel.calendariq.data.outbox.source.IOutboxDao;
+import net.hypotenubel.calendariq.data.outbox.source.OutboxDatabase;
 import net.hypotenubel.calendariq.data.stats.source.BroadcastStatisticsDatabase;
 import net.hypotenubel.calendariq.data.stats.source.IBroadcastStatisticsDao;
 import net.hypotenubel.calendariq.sync.synchroniser.ConnectBroadcastStrategy;
@@ -36,11 +42,20 @@ public abstract class DefaultApplicationModule {
     abstract ITargetAppIdsSource bindTargetAppSource(XmlResourceTargetAppIdsSource ids);
 
     @Binds
-    abstract ICalendarSource bindCalendarSource(AndroidCalendarSource cs);
+    abstract IDeviceProfileSource bindDeviceProfileSource(XmlResourceDeviceProfileSource ps);
 
     @Binds
     abstract IBroadcastStrategy bindBroadcastStrategy(ConnectBroadcastStrategy bs);
 
+    @Provides
+    @Singleton
+    static ICalendarSource provideCalendarSource(@ApplicationContext Context context,
+                                                 AndroidCalendarSource cs,
+                                                 AppointmentSnapshotStore snapshotStore) {
+
+        return new CachingCalendarSource(context, cs, snapshotStore);
+    }
+
     @Provides
     @Singleton
     static BroadcastStatisticsDatabase provideBroadcastStatisticsDatabase(
@@ -54,4 +69,15 @@ public abstract class DefaultApplicationModule {
         return db.getDao();
     }
 
+    @Provides
+    @Singleton
+    static OutboxDatabase provideOutboxDatabase(@ApplicationContext Context context) {
+        return OutboxDatabase.create(context);
+    }
+
+    @Provides
+    static IOutboxDao provideOutboxDao(OutboxDatabase db) {
+        return db.getDao();
+    }
+
 }
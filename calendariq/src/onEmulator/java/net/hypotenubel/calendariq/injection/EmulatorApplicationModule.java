@@ -2,7 +2,9 @@ package net.hypotenubel.calendariq.injection;
 
 import android.content.Context;
 
+import net.hypotenubel.calendariq.data.apps.source.IDeviceProfileSource;
 import net.hypotenubel.calendariq.data.apps.source.ITargetAppIdsSource;
+import net.hypotenubel.calendariq.data.apps.source.XmlResourceDeviceProfileSource;
 import net.hypotenubel.calendariq.data.apps.source.XmlResourceTargetAppIdsSource;
 import net.hypotenubel.calendariq.data.calendar.source.ICalendarSource;
 import net.hypotenubel.calendariq.data.calendar.source.SampleCalendarSource;
@@ -38,6 +40,9 @@ public abstract class EmulatorApplicationModule {
     @Binds
     abstract ITargetAppIdsSource bindTargetAppSource(XmlResourceTargetAppIdsSource ids);
 
+    @Binds
+    abstract IDeviceProfileSource bindDeviceProfileSource(XmlResourceDeviceProfileSource ps);
+
     @Binds
     abstract IBroadcastStrategy bindBroadcastStrategy(RandomBroadcastStrategy bs);
 
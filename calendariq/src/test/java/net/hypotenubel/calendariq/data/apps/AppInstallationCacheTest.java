@@ -0,0 +1,86 @@
+package net.hypotenubel.calendariq.data.apps;
+
+import android.app.Application;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that an {@link AppInstallationCache} treats the app IDs we configure and the IDs
+ * ConnectIQ reports, which lack the dashes, as the same app, and that it still knows the
+ * recipients of a broadcast by the time the next periodic sync comes around.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class AppInstallationCacheTest {
+
+    private static final long DEVICE_ID = 1234;
+    /** An app ID the way we configure it. */
+    private static final String CONFIGURED_ID = "0b7b1d2c-9a1b-4c6e-8f3e-5d2a6b7c8d9e";
+    /** The same app ID the way ConnectIQ reports it. */
+    private static final String CONNECTIQ_ID = "0b7b1d2c9a1b4c6e8f3e5d2a6b7c8d9e";
+    /** An app that is not installed on the device. */
+    private static final String MISSING_ID = "1c8c2e3d-0b2c-4d7f-9a4f-6e3b7c8d9eaf";
+
+    /** How long we may skip broadcasts for. */
+    private static final long MAX_AGE_MILLIS = 4 * 60 * 60 * 1000;
+    /** The time between two periodic syncs. */
+    private static final long SYNC_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    private AppInstallationCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new AppInstallationCache(RuntimeEnvironment.application);
+        cache.invalidateDevice(DEVICE_ID);
+    }
+
+    @Test
+    public void findsInstallationsByConnectIQAppIds() {
+        cache.putInstalled(DEVICE_ID, CONFIGURED_ID, "Calendar", 7);
+
+        AppInstallationCache.Installation installation = cache.get(DEVICE_ID, CONNECTIQ_ID);
+        assertNotNull(installation);
+        assertEquals(7, installation.getVersion());
+    }
+
+    @Test
+    public void invalidatesInstallationsByConnectIQAppIds() {
+        cache.putInstalled(DEVICE_ID, CONFIGURED_ID, "Calendar", 7);
+
+        cache.invalidate(DEVICE_ID, CONNECTIQ_ID);
+
+        assertNull(cache.get(DEVICE_ID, CONFIGURED_ID));
+    }
+
+    @Test
+    public void knowsRecipientsAtTheNextPeriodicSync() {
+        long broadcastMillis = System.currentTimeMillis();
+        cache.putConnectedDevices(Collections.singletonList(DEVICE_ID));
+        cache.putInstalled(DEVICE_ID, CONFIGURED_ID, "Calendar", 7);
+        cache.putNotInstalled(DEVICE_ID, MISSING_ID);
+
+        List<String> appIds = Arrays.asList(CONFIGURED_ID, MISSING_ID);
+        Map<Long, List<String>> recipients = cache.getInstalledApps(
+                appIds, MAX_AGE_MILLIS, broadcastMillis + SYNC_INTERVAL_MILLIS);
+
+        assertEquals(Collections.singletonMap(DEVICE_ID, Collections.singletonList(CONFIGURED_ID)),
+                recipients);
+        assertNull(cache.getInstalledApps(
+                appIds, MAX_AGE_MILLIS, broadcastMillis + MAX_AGE_MILLIS + 1));
+    }
+
+}
@@ -0,0 +1,252 @@
+package net.hypotenubel.calendariq.data.calendar.recurrence;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how {@link RecurrenceSet}s expand into occurrences, including the cases calendar apps
+ * tend to get wrong: daylight saving time, weekday ordinals, date-only {@code UNTIL} values, and
+ * counted rules with exceptions. Rules we don't support must be rejected, since that's what makes
+ * {@code EventsCalendarSource} fall back to the calendar provider's instances.
+ */
+public class OccurrenceIteratorTest {
+
+    private static final TimeZone BERLIN = TimeZone.getTimeZone("Europe/Berlin");
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+    private static final long MILLISECONDS_PER_HOUR = 60 * 60 * 1000;
+    private static final long MILLISECONDS_PER_DAY = 24 * MILLISECONDS_PER_HOUR;
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Time Zones
+
+    @Test
+    public void keepsWallClockTimeWhenDaylightSavingTimeStarts() throws Exception {
+        List<Long> occurrences = expand(
+                "20210318T093000", BERLIN, "FREQ=WEEKLY;COUNT=4", null, null);
+
+        assertEquals(
+                times(BERLIN, "20210318T093000", "20210325T093000",
+                        "20210401T093000", "20210408T093000"),
+                occurrences);
+        assertEquals(7 * MILLISECONDS_PER_DAY - MILLISECONDS_PER_HOUR,
+                occurrences.get(2) - occurrences.get(1));
+    }
+
+    @Test
+    public void keepsWallClockTimeWhenDaylightSavingTimeEnds() throws Exception {
+        List<Long> occurrences = expand(
+                "20211106T083000", NEW_YORK, "FREQ=DAILY;COUNT=3", null, null);
+
+        assertEquals(
+                times(NEW_YORK, "20211106T083000", "20211107T083000", "20211108T083000"),
+                occurrences);
+        assertEquals(MILLISECONDS_PER_DAY + MILLISECONDS_PER_HOUR,
+                occurrences.get(1) - occurrences.get(0));
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Rule Parts
+
+    @Test
+    public void expandsWeekdaysWithInterval() throws Exception {
+        assertEquals(
+                times(BERLIN, "20210105T100000", "20210107T100000",
+                        "20210119T100000", "20210121T100000"),
+                expand("20210105T100000", BERLIN,
+                        "FREQ=WEEKLY;INTERVAL=2;BYDAY=TU,TH;WKST=MO;COUNT=4", null, null));
+    }
+
+    @Test
+    public void expandsPositiveWeekdayOrdinals() throws Exception {
+        assertEquals(
+                times(BERLIN, "20210112T100000", "20210209T100000", "20210309T100000"),
+                expand("20210101T100000", BERLIN, "FREQ=MONTHLY;BYDAY=2TU;COUNT=3", null, null));
+    }
+
+    @Test
+    public void expandsNegativeWeekdayOrdinals() throws Exception {
+        assertEquals(
+                times(BERLIN, "20210129T100000", "20210226T100000", "20210326T100000"),
+                expand("20210101T100000", BERLIN, "FREQ=MONTHLY;BYDAY=-1FR;COUNT=3", null, null));
+    }
+
+    @Test
+    public void skipsMonthsWithoutTheMonthDay() throws Exception {
+        assertEquals(
+                times(BERLIN, "20210131T100000", "20210331T100000", "20210531T100000"),
+                expand("20210131T100000", BERLIN, "FREQ=MONTHLY;COUNT=3", null, null));
+    }
+
+    @Test
+    public void expandsNegativeMonthDays() throws Exception {
+        assertEquals(
+                times(BERLIN, "20210131T100000", "20210228T100000", "20210331T100000"),
+                expand("20210131T100000", BERLIN, "FREQ=MONTHLY;BYMONTHDAY=-1;COUNT=3",
+                        null, null));
+    }
+
+    @Test
+    public void skipsYearsWithoutLeapDay() throws Exception {
+        assertEquals(
+                times(BERLIN, "20200229T100000", "20240229T100000"),
+                expand("20200229T100000", BERLIN, "FREQ=YEARLY;COUNT=2", null, null));
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Limits and Exceptions
+
+    @Test
+    public void includesTheWholeDayOfDateOnlyUntil() throws Exception {
+        assertEquals(
+                times(BERLIN, "20210101T180000", "20210102T180000", "20210103T180000"),
+                expand("20210101T180000", BERLIN, "FREQ=DAILY;UNTIL=20210103", null, null));
+    }
+
+    @Test
+    public void includesOccurrenceAtUtcUntil() throws Exception {
+        // 18:00 in Berlin is 17:00 UTC in winter
+        assertEquals(
+                times(BERLIN, "20210101T180000", "20210102T180000", "20210103T180000"),
+                expand("20210101T180000", BERLIN, "FREQ=DAILY;UNTIL=20210103T170000Z",
+                        null, null));
+    }
+
+    @Test
+    public void countsExcludedOccurrences() throws Exception {
+        assertEquals(
+                times(BERLIN, "20210101T100000", "20210103T100000", "20210105T100000",
+                        "20210110T100000"),
+                expand("20210101T100000", BERLIN, "FREQ=DAILY;COUNT=5",
+                        "20210110T100000", "20210102T100000,20210104T100000"));
+    }
+
+    @Test
+    public void expandsAdditionalDatesWithoutRule() throws Exception {
+        assertEquals(
+                times(BERLIN, "20210101T100000", "20210105T100000"),
+                expand("20210101T100000", BERLIN, null,
+                        "Europe/Berlin;20210105T100000", null));
+    }
+
+    @Test
+    public void skippingToRangeFindsTheSameOccurrences() throws Exception {
+        RecurrenceSet unlimited = set("20200106T080000", BERLIN,
+                "FREQ=WEEKLY;BYDAY=MO,WE", null, null);
+        RecurrenceSet counted = set("20200106T080000", BERLIN,
+                "FREQ=WEEKLY;BYDAY=MO,WE;COUNT=1000", null, null);
+
+        long from = at(BERLIN, "20210301T000000");
+        long to = at(BERLIN, "20210308T000000");
+
+        assertEquals(times(BERLIN, "20210301T080000", "20210303T080000"),
+                toList(unlimited.iterator(from, to)));
+        assertEquals(toList(counted.iterator(from, to)), toList(unlimited.iterator(from, to)));
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Unsupported Rules
+
+    @Test
+    public void rejectsUnsupportedRules() {
+        String[] rules = {
+                "FREQ=MONTHLY;BYDAY=MO;BYSETPOS=-1",
+                "FREQ=WEEKLY;BYDAY=1MO",
+                "FREQ=YEARLY;BYDAY=20MO",
+                "FREQ=HOURLY",
+                "INTERVAL=2",
+                "FREQ=DAILY;INTERVAL=0",
+                "FREQ=MONTHLY;BYMONTHDAY=32"
+        };
+
+        for (String rule : rules) {
+            try {
+                RecurrenceRule.parse(rule);
+                fail("Accepted " + rule);
+            } catch (RecurrenceFormatException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test(expected = RecurrenceFormatException.class)
+    public void rejectsMalformedUntil() throws Exception {
+        set("20210101T100000", BERLIN, "FREQ=DAILY;UNTIL=2021", null, null)
+                .iterator(0, Long.MAX_VALUE);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Values
+
+    @Test
+    public void parsesDurations() throws Exception {
+        assertEquals(3600_000, RecurrenceValues.parseDuration("P3600S"));
+        assertEquals(90 * 60_000, RecurrenceValues.parseDuration("PT1H30M"));
+        assertEquals(-MILLISECONDS_PER_DAY, RecurrenceValues.parseDuration("-P1D"));
+        assertEquals(7 * MILLISECONDS_PER_DAY, RecurrenceValues.parseDuration("P1W"));
+    }
+
+    @Test(expected = RecurrenceFormatException.class)
+    public void rejectsEmptyDurations() throws Exception {
+        RecurrenceValues.parseDuration("PT");
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Utilities
+
+    /**
+     * Expands the given event over all time.
+     */
+    private static List<Long> expand(String start, TimeZone timeZone, String rule, String rdates,
+                                     String exdates) throws RecurrenceFormatException {
+
+        return toList(set(start, timeZone, rule, rdates, exdates).iterator(0, Long.MAX_VALUE));
+    }
+
+    private static RecurrenceSet set(String start, TimeZone timeZone, String rule, String rdates,
+                                     String exdates) throws RecurrenceFormatException {
+
+        return new RecurrenceSet(
+                at(timeZone, start),
+                timeZone,
+                rule == null ? null : RecurrenceRule.parse(rule),
+                RecurrenceValues.parseDateTimeList(rdates, timeZone),
+                RecurrenceValues.parseDateTimeList(exdates, timeZone));
+    }
+
+    private static List<Long> toList(OccurrenceIterator iterator) {
+        List<Long> occurrences = new ArrayList<>();
+        while (iterator.hasNext()) {
+            occurrences.add(iterator.next());
+        }
+        return occurrences;
+    }
+
+    private static long at(TimeZone timeZone, String dateTime) throws RecurrenceFormatException {
+        return RecurrenceValues.parseDateTime(dateTime, timeZone);
+    }
+
+    private static List<Long> times(TimeZone timeZone, String... dateTimes)
+            throws RecurrenceFormatException {
+
+        Long[] times = new Long[dateTimes.length];
+        for (int i = 0; i < dateTimes.length; i++) {
+            times[i] = at(timeZone, dateTimes[i]);
+        }
+        return Arrays.asList(times);
+    }
+
+}
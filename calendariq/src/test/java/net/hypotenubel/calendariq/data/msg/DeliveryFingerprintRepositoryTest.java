@@ -0,0 +1,60 @@
+package net.hypotenubel.calendariq.data.msg;
+
+import android.app.Application;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks when a {@link DeliveryFingerprintRepository} considers recipients up to date.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class DeliveryFingerprintRepositoryTest {
+
+    private static final long DEVICE_ID = 1234;
+    private static final String APP_ID = "0b7b1d2c9a1b4c6e8f3e5d2a6b7c8d9e";
+    private static final String FINGERPRINT = "fingerprint";
+    private static final long MAX_AGE_MILLIS = 60 * 60 * 1000;
+    private static final Map<Long, List<String>> RECIPIENTS =
+            Collections.singletonMap(DEVICE_ID, Collections.singletonList(APP_ID));
+
+    private DeliveryFingerprintRepository repository;
+
+    @Before
+    public void setUp() {
+        repository = new DeliveryFingerprintRepository(RuntimeEnvironment.application);
+        repository.forgetDelivery(DEVICE_ID, APP_ID);
+    }
+
+    @Test
+    public void countsRecipientsThatReceivedTheFingerprint() {
+        repository.recordDelivery(DEVICE_ID, APP_ID, FINGERPRINT);
+
+        assertEquals(1,
+                repository.countUpToDateRecipients(FINGERPRINT, MAX_AGE_MILLIS, RECIPIENTS));
+        assertEquals(0,
+                repository.countUpToDateRecipients("other", MAX_AGE_MILLIS, RECIPIENTS));
+    }
+
+    @Test
+    public void forgottenDeliveriesAreNotUpToDate() {
+        repository.recordDelivery(DEVICE_ID, APP_ID, FINGERPRINT);
+
+        repository.forgetDelivery(DEVICE_ID, APP_ID);
+
+        assertEquals(0,
+                repository.countUpToDateRecipients(FINGERPRINT, MAX_AGE_MILLIS, RECIPIENTS));
+    }
+
+}
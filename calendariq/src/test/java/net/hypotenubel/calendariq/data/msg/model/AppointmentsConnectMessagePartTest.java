@@ -0,0 +1,213 @@
+package net.hypotenubel.calendariq.data.msg.model;
+
+import net.hypotenubel.calendariq.data.calendar.model.AppointmentBuffer;
+import net.hypotenubel.calendariq.data.calendar.model.CalendarDescriptor;
+import net.hypotenubel.calendariq.data.calendar.source.ICalendarSource;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decodes the compact and delta encodings of appointments the way watch apps do and checks that
+ * the original appointments come out.
+ */
+public class AppointmentsConnectMessagePartTest {
+
+    /** The time we pretend to encode at, in seconds UTC. Deliberately not on a full minute. */
+    private static final long TIMESTAMP = 1_600_000_030L;
+
+    private static final long MINUTE = 60;
+    private static final long DAY = 24 * 60 * MINUTE;
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Compact Format
+
+    @Test
+    public void roundTripsCompactAppointments() {
+        long now = TIMESTAMP - TIMESTAMP % MINUTE;
+        long[] appointments = {
+                now - 2 * DAY,
+                now - MINUTE,
+                now + MINUTE,
+                now + MINUTE,
+                now + 400 * DAY
+        };
+
+        List<Object> msg = encodeCompact(appointments);
+
+        assertEquals(MINUTE, ((Integer) msg.get(1)).longValue());
+        assertArrayEquals(appointments, decodeCompact(msg));
+    }
+
+    @Test
+    public void fallsBackToSecondsForOddTimes() {
+        long[] appointments = { TIMESTAMP - 1, TIMESTAMP + 7, TIMESTAMP + 3 * DAY + 1 };
+
+        List<Object> msg = encodeCompact(appointments);
+
+        assertEquals(1, msg.get(1));
+        assertArrayEquals(appointments, decodeCompact(msg));
+    }
+
+    @Test
+    public void roundTripsNoAppointments() {
+        List<Object> msg = encodeCompact(new long[0]);
+
+        assertEquals(Arrays.<Object>asList(0, (int) MINUTE, 0), msg);
+        assertArrayEquals(new long[0], decodeCompact(msg));
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Delta Format
+
+    @Test
+    public void roundTripsDeltas() {
+        long now = TIMESTAMP - TIMESTAMP % MINUTE;
+        long[] base = { now - DAY, now + 10 * MINUTE, now + DAY, now + DAY };
+        long[] appointments = { now + 10 * MINUTE, now + DAY, now + 2 * DAY, now + 90 * DAY };
+
+        List<Object> msg = encodeDelta(appointments, base);
+
+        assertEquals(2, msg.get(0));
+        assertEquals(2, msg.get(1));
+        assertArrayEquals(appointments, applyDelta(base, msg));
+    }
+
+    @Test
+    public void turnsDeltasToEmptyBaseIntoFullUpdates() {
+        long[] appointments = { TIMESTAMP + 5, TIMESTAMP + DAY };
+
+        List<Object> msg = encodeDelta(appointments, new long[0]);
+
+        assertEquals(0, msg.get(0));
+        assertEquals(1, msg.get(2));
+        assertArrayEquals(appointments, applyDelta(new long[0], msg));
+    }
+
+    @Test
+    public void encodesUnchangedAppointmentsAsEmptyDeltas() {
+        long[] appointments = { TIMESTAMP + DAY, TIMESTAMP + 2 * DAY };
+
+        List<Object> msg = encodeDelta(appointments, appointments);
+
+        assertEquals(Arrays.<Object>asList(0, 0, (int) MINUTE, 0), msg);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Encoding and Decoding
+
+    private static List<Object> encodeCompact(long[] appointments) {
+        List<Object> msg = new ArrayList<>();
+        partWith(appointments).encodeAndAppend(msg, MessageFormat.COMPACT, TIMESTAMP);
+        return msg;
+    }
+
+    private static List<Object> encodeDelta(long[] appointments, long[] base) {
+        List<Object> msg = new ArrayList<>();
+        partWith(appointments).encodeDeltaAndAppend(msg, TIMESTAMP, new DeltaBase(2, 1, base));
+        return msg;
+    }
+
+    /**
+     * Decodes {@code [count, resolution, packed size, packed...]}.
+     */
+    private static long[] decodeCompact(List<Object> msg) {
+        int count = (Integer) msg.get(0);
+        int resolution = (Integer) msg.get(1);
+        int packedSize = (Integer) msg.get(2);
+        assertEquals(3 + packedSize, msg.size());
+
+        return readTimes(new PackedVarIntReader(msg, 3, packedSize), count, resolution);
+    }
+
+    /**
+     * Decodes {@code [removed count, added count, resolution, packed size, packed...]} and
+     * applies it to the given base.
+     */
+    private static long[] applyDelta(long[] base, List<Object> msg) {
+        int removedCount = (Integer) msg.get(0);
+        int addedCount = (Integer) msg.get(1);
+        int resolution = (Integer) msg.get(2);
+        int packedSize = (Integer) msg.get(3);
+        assertEquals(4 + packedSize, msg.size());
+
+        PackedVarIntReader reader = new PackedVarIntReader(msg, 4, packedSize);
+        long[] removed = readTimes(reader, removedCount, resolution);
+        long[] added = readTimes(reader, addedCount, resolution);
+
+        AppointmentBuffer result = new AppointmentBuffer();
+        result.addAll(base);
+        List<Long> remaining = result.toList();
+        for (long time : removed) {
+            assertEquals(true, remaining.remove(time));
+        }
+
+        result.clear();
+        for (long time : remaining) {
+            result.add(time);
+        }
+        result.addAll(added);
+        return result.toArray();
+    }
+
+    /**
+     * Reads times written by {@code packTimes}: a signed offset of the first time to the rounded
+     * timestamp, then unsigned offsets of each time to its predecessor.
+     */
+    private static long[] readTimes(PackedVarIntReader reader, int count, int resolution) {
+        long[] times = new long[count];
+
+        long previous = TIMESTAMP - Math.floorMod(TIMESTAMP, (long) resolution);
+        for (int i = 0; i < count; i++) {
+            long offset = i == 0 ? reader.readSigned() : reader.readUnsigned();
+            times[i] = previous + offset * resolution;
+            previous = times[i];
+        }
+
+        return times;
+    }
+
+    private static AppointmentsConnectMessagePart partWith(long[] appointments) {
+        return new AppointmentsConnectMessagePart()
+                .withMaxAppointments(appointments.length)
+                .loadAppointments(new FixedCalendarSource(appointments));
+    }
+
+    /**
+     * Returns the appointments it was created with.
+     */
+    private static final class FixedCalendarSource implements ICalendarSource {
+
+        private final long[] appointments;
+
+        private FixedCalendarSource(long[] appointments) {
+            this.appointments = appointments;
+        }
+
+        @Override
+        public List<CalendarDescriptor> getAvailableCalendars() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void loadUpcomingAppointments(int maxCount, int maxDays,
+                                             Collection<Integer> from, AppointmentBuffer target) {
+
+            target.clear();
+            target.addAll(appointments);
+        }
+
+    }
+
+}
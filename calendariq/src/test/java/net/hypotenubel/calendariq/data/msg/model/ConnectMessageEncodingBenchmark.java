@@ -0,0 +1,126 @@
+package net.hypotenubel.calendariq.data.msg.model;
+
+import net.hypotenubel.calendariq.data.calendar.model.AppointmentBuffer;
+import net.hypotenubel.calendariq.data.calendar.model.CalendarDescriptor;
+import net.hypotenubel.calendariq.data.calendar.source.ICalendarSource;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures how long it takes to encode the message of a typical sync, with and without an
+ * {@link EncodedSegmentCache}. The timings are logged to the test output. The benchmark itself
+ * takes a while and its timings depend on the machine, so it only runs when asked to.
+ */
+public class ConnectMessageEncodingBenchmark {
+
+    /** Logger the timings go to. */
+    private static final Logger LOGGER =
+            Logger.getLogger(ConnectMessageEncodingBenchmark.class.getName());
+
+    /** The formats we encode messages in. Delta messages are never cached. */
+    private static final MessageFormat[] FORMATS = { MessageFormat.LEGACY, MessageFormat.COMPACT };
+    /** Number of appointments in each message. */
+    private static final int APPOINTMENTS = 30;
+    /** Number of encodings before we start measuring, to give the JIT a chance. */
+    private static final int WARMUP_ROUNDS = 20_000;
+    /** Number of encodings we measure. */
+    private static final int MEASURED_ROUNDS = 100_000;
+
+    @Test
+    public void cachedEncodingEqualsUncachedEncoding() {
+        EncodedSegmentCache cache = new EncodedSegmentCache();
+
+        for (MessageFormat format : FORMATS) {
+            // Encode twice so that the second encoding actually comes from the cache
+            createMessage(cache).encode(format);
+
+            // Both encodings must happen during the same second for their timestamps to match
+            List<Object> uncached;
+            List<Object> cached;
+            do {
+                uncached = createMessage(null).encode(format);
+                cached = createMessage(cache).encode(format);
+            } while (!uncached.get(0).equals(cached.get(0))
+                    || !uncached.get(1).equals(cached.get(1)));
+
+            assertEquals(uncached, cached);
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void benchmarkEncoding() {
+        for (MessageFormat format : FORMATS) {
+            long uncachedNanos = measure(null, format);
+            long cachedNanos = measure(new EncodedSegmentCache(), format);
+
+            LOGGER.info(format.name() + " encoding of " + APPOINTMENTS + " appointments: "
+                    + uncachedNanos + " ns uncached, "
+                    + cachedNanos + " ns cached");
+        }
+    }
+
+    /**
+     * Returns the average number of nanoseconds it takes to assemble and encode a message.
+     */
+    private static long measure(EncodedSegmentCache cache, MessageFormat format) {
+        int sink = 0;
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += createMessage(cache).encode(format).size();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            sink += createMessage(cache).encode(format).size();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Keep the JIT from optimizing the encodings away
+        if (sink == 42) {
+            LOGGER.fine(Integer.toString(sink));
+        }
+
+        return elapsed / MEASURED_ROUNDS;
+    }
+
+    private static ConnectMessage createMessage(EncodedSegmentCache cache) {
+        return new ConnectMessage(cache)
+                .addMessagePart(new AppointmentsConnectMessagePart()
+                        .withMaxAppointments(APPOINTMENTS)
+                        .loadAppointments(new FixedCalendarSource()))
+                .addMessagePart(new SyncIntervalConnectMessagePart(60))
+                .addMessagePart(new BatteryChargeConnectMessagePart(false, 80));
+    }
+
+    /**
+     * Returns appointments every two hours, starting from the next full hour.
+     */
+    private static final class FixedCalendarSource implements ICalendarSource {
+
+        @Override
+        public List<CalendarDescriptor> getAvailableCalendars() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void loadUpcomingAppointments(int maxCount, int maxDays,
+                                             Collection<Integer> from, AppointmentBuffer target) {
+
+            long nextHour = (System.currentTimeMillis() / 1000 / 3600 + 1) * 3600;
+            for (int i = 0; i < maxCount; i++) {
+                target.add(nextHour + i * 2 * 3600);
+            }
+        }
+
+    }
+
+}
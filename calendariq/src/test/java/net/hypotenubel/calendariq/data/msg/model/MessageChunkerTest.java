@@ -0,0 +1,99 @@
+package net.hypotenubel.calendariq.data.msg.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link MessageChunker} estimates sizes according to the ConnectIQ serialization rules
+ * and splits messages into chunks that respect the size limit and reassemble into the original.
+ */
+public class MessageChunkerTest {
+
+    /** Chunk size limit used throughout. */
+    private static final int MAX_CHUNK_BYTES = 100;
+    /** Transfer ID used throughout. */
+    private static final int TRANSFER_ID = 42;
+
+    @Test
+    public void estimatesSizesOfValues() {
+        assertEquals(1, MessageChunker.estimateSize(null));
+        assertEquals(5, MessageChunker.estimateSize(17));
+        assertEquals(9, MessageChunker.estimateSize(17L));
+        assertEquals(2, MessageChunker.estimateSize(true));
+        assertEquals(1 + 2 + 3 + 1, MessageChunker.estimateSize("abc"));
+        assertEquals(1 + 2 + 2 + 1, MessageChunker.estimateSize("\u00e4"));
+        assertEquals(5 + 5 + 9, MessageChunker.estimateSize(Arrays.asList(1, 2L)));
+        assertEquals(5 + 5 + 5,
+                MessageChunker.estimateSize(Collections.singletonMap(1, Arrays.asList())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsValuesConnectIQCannotSerialize() {
+        MessageChunker.estimateSize(new Object());
+    }
+
+    @Test
+    public void keepsSmallMessagesInOneChunk() {
+        List<Object> msg = Arrays.asList(1, 2, 3);
+
+        List<List<Object>> chunks = MessageChunker.split(msg, MAX_CHUNK_BYTES, TRANSFER_ID);
+
+        assertEquals(1, chunks.size());
+        assertEquals(Arrays.asList(MessageChunker.CHUNK_MARKER, TRANSFER_ID, 0, 1, 1, 2, 3),
+                chunks.get(0));
+    }
+
+    @Test
+    public void splitsLargeMessagesWithinLimit() {
+        List<Object> msg = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            msg.add(i % 3 == 0 ? (Object) ("value " + i) : (Object) i);
+        }
+
+        List<List<Object>> chunks = MessageChunker.split(msg, MAX_CHUNK_BYTES, TRANSFER_ID);
+
+        assertTrue(chunks.size() > 1);
+        for (int c = 0; c < chunks.size(); c++) {
+            List<Object> chunk = chunks.get(c);
+
+            assertTrue(MessageChunker.estimateSize(chunk) <= MAX_CHUNK_BYTES);
+            assertEquals(MessageChunker.CHUNK_MARKER, chunk.get(0));
+            assertEquals(TRANSFER_ID, chunk.get(1));
+            assertEquals(c, chunk.get(2));
+            assertEquals(chunks.size(), chunk.get(3));
+        }
+
+        assertEquals(msg, reassemble(chunks));
+    }
+
+    @Test
+    public void sendsOversizedValuesInChunksOfTheirOwn() {
+        List<Object> large = Collections.nCopies(50, 1);
+        List<Object> msg = Arrays.asList(1, large, 2);
+
+        List<List<Object>> chunks = MessageChunker.split(msg, MAX_CHUNK_BYTES, TRANSFER_ID);
+
+        assertEquals(3, chunks.size());
+        assertEquals(Collections.singletonList(large), chunks.get(1).subList(4, 5));
+        assertEquals(msg, reassemble(chunks));
+    }
+
+    /**
+     * Concatenates the values of the given chunks the way receivers do.
+     */
+    private static List<Object> reassemble(List<List<Object>> chunks) {
+        List<Object> msg = new ArrayList<>();
+        for (List<Object> chunk : chunks) {
+            msg.addAll(chunk.subList(4, chunk.size()));
+        }
+        return msg;
+    }
+
+}
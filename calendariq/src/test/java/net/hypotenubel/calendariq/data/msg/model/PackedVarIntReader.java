@@ -0,0 +1,56 @@
+package net.hypotenubel.calendariq.data.msg.model;
+
+import java.util.List;
+
+/**
+ * Reads numbers written by a {@link VarIntPacker} back from the packed integers, the way watch
+ * apps do.
+ */
+final class PackedVarIntReader {
+
+    /** The packed integers. */
+    private final List<Object> packed;
+    /** Index of the next byte to read. */
+    private int position = 0;
+
+    /**
+     * Creates a reader for the given number of packed integers, starting at the given index.
+     */
+    PackedVarIntReader(List<Object> msg, int from, int count) {
+        this.packed = msg.subList(from, from + count);
+    }
+
+    long readUnsigned() {
+        long result = 0;
+        int shift = 0;
+
+        int b;
+        do {
+            b = readByte();
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return result;
+    }
+
+    long readSigned() {
+        long zigzag = readUnsigned();
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     */
+    int getPosition() {
+        return position;
+    }
+
+    private int readByte() {
+        int packedInt = (Integer) packed.get(position / 4);
+        int shift = 24 - 8 * (position % 4);
+        position++;
+        return (packedInt >>> shift) & 0xFF;
+    }
+
+}
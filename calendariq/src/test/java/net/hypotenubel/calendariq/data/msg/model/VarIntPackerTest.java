@@ -0,0 +1,104 @@
+package net.hypotenubel.calendariq.data.msg.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that numbers written by a {@link VarIntPacker} survive the trip through packed integers.
+ */
+public class VarIntPackerTest {
+
+    private static final long[] UNSIGNED_VALUES = {
+            0, 1, 127, 128, 300, 16_383, 16_384, Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE
+    };
+
+    private static final long[] SIGNED_VALUES = {
+            0, -1, 1, -64, 63, -65, 64, Integer.MIN_VALUE, Integer.MAX_VALUE,
+            Long.MIN_VALUE, Long.MAX_VALUE
+    };
+
+    @Test
+    public void roundTripsUnsignedValues() {
+        VarIntPacker packer = new VarIntPacker(0);
+        for (long value : UNSIGNED_VALUES) {
+            packer.writeUnsigned(value);
+        }
+
+        PackedVarIntReader reader = pack(packer);
+        for (long value : UNSIGNED_VALUES) {
+            assertEquals(value, reader.readUnsigned());
+        }
+    }
+
+    @Test
+    public void roundTripsSignedValues() {
+        VarIntPacker packer = new VarIntPacker(0);
+        for (long value : SIGNED_VALUES) {
+            packer.writeSigned(value);
+        }
+
+        PackedVarIntReader reader = pack(packer);
+        for (long value : SIGNED_VALUES) {
+            assertEquals(value, reader.readSigned());
+        }
+    }
+
+    @Test
+    public void zigzagKeepsSmallNegativeValuesShort() {
+        VarIntPacker packer = new VarIntPacker(0)
+                .writeSigned(-1)
+                .writeSigned(-64)
+                .writeSigned(-65);
+
+        // Zigzag maps -1 to 1 and -64 to 127, which still fit into a byte, and -65 to 129
+        List<Object> packed = new ArrayList<>();
+        packer.packAndAppend(packed);
+        assertEquals(Arrays.<Object>asList(0x017F8101), packed);
+    }
+
+    @Test
+    public void packsFourBytesPerIntegerBigEndian() {
+        VarIntPacker packer = new VarIntPacker(0);
+        for (int i = 1; i <= 5; i++) {
+            packer.writeUnsigned(i);
+        }
+
+        List<Object> packed = new ArrayList<>();
+        packer.packAndAppend(packed);
+
+        assertEquals(2, packer.getPackedSize());
+        assertEquals(Arrays.<Object>asList(0x01020304, 0x05000000), packed);
+    }
+
+    @Test
+    public void packsMultiByteValuesAcrossIntegers() {
+        // 300 takes two bytes, 0xAC 0x02, and the high bit of the first byte makes the int negative
+        VarIntPacker packer = new VarIntPacker(0)
+                .writeUnsigned(300)
+                .writeUnsigned(300)
+                .writeUnsigned(300);
+
+        List<Object> packed = new ArrayList<>();
+        packer.packAndAppend(packed);
+
+        assertEquals(Arrays.<Object>asList(0xAC02AC02, 0xAC020000), packed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeUnsignedValues() {
+        new VarIntPacker(0).writeUnsigned(-1);
+    }
+
+    private static PackedVarIntReader pack(VarIntPacker packer) {
+        List<Object> packed = new ArrayList<>();
+        packer.packAndAppend(packed);
+        assertEquals(packer.getPackedSize(), packed.size());
+        return new PackedVarIntReader(packed, 0, packed.size());
+    }
+
+}
@@ -0,0 +1,173 @@
+package net.hypotenubel.calendariq.sync.connectiq;
+
+import android.app.Application;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.garmin.android.connectiq.ConnectIQ;
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+
+import net.hypotenubel.calendariq.data.stats.model.BroadcastStatistics;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a broadcast to many devices against a {@link SimulatedConnectIQ} and logs how long it
+ * took and how long messages took to be confirmed. Time passes in simulated steps, so a run that
+ * takes minutes of simulated time only takes as long as our own code needs.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class ConnectIQAppBroadcasterLoadTest {
+
+    /** Logger the results go to. */
+    private static final Logger LOGGER =
+            Logger.getLogger(ConnectIQAppBroadcasterLoadTest.class.getName());
+
+    /** Number of connected devices. */
+    private static final int DEVICES = 50;
+    /** Number of apps we broadcast to. */
+    private static final int APPS = 20;
+    /** Probability that a given app is installed on a given device. */
+    private static final double INSTALL_PROBABILITY = 0.5;
+    /** Seed for everything random, which keeps runs comparable. */
+    private static final long SEED = 42;
+    /** Simulated time after which we stop waiting for the broadcast to finish. */
+    private static final long MAX_SIMULATED_MILLIS = 10 * 60 * 1000;
+    /** Simulated time that passes with each step. */
+    private static final long STEP_MILLIS = 10;
+
+    /** What we broadcast, about the size of a message with a dozen appointments. */
+    private static final List<Object> MESSAGE = Arrays.asList(
+            1, 1_600_000_000, 30, Collections.nCopies(24, 1_600_000_000), 80);
+
+    @Test
+    public void broadcastToManyDevices() {
+        Random random = new Random(SEED);
+
+        SimulatedConnectIQ simulation = new SimulatedConnectIQ(Looper.getMainLooper(), random);
+        simulation.setInitializationLatency(SimulatedConnectIQ.Latency.fixed(500));
+        simulation.setQueryLatency(SimulatedConnectIQ.Latency.logNormal(80, 0.5));
+        simulation.setMessageLatency(SimulatedConnectIQ.Latency.logNormal(150, 0.6));
+        simulation.setDropProbability(0.02);
+        simulation.setLossProbability(0.001);
+        simulation.setDisconnectProbability(0.002);
+
+        List<String> appIds = new ArrayList<>();
+        for (int app = 0; app < APPS; app++) {
+            appIds.add(new UUID(0, app).toString());
+        }
+
+        int installations = 0;
+        for (int device = 0; device < DEVICES; device++) {
+            IQDevice iqDevice = simulation.addDevice("Device " + device);
+            for (String appId : appIds) {
+                if (random.nextDouble() < INSTALL_PROBABILITY) {
+                    simulation.install(iqDevice, appId, 1);
+                    installations++;
+                }
+            }
+        }
+
+        Recorder recorder = new Recorder();
+        long startNanos = System.nanoTime();
+        long startMillis = SystemClock.uptimeMillis();
+
+        ConnectIQAppBroadcaster.broadcast(
+                (device, app) -> MESSAGE,
+                0,
+                null,
+                ConnectIQSessionManager.unshared(
+                        RuntimeEnvironment.application, (context, type) -> simulation),
+                RuntimeEnvironment.application,
+                appIds,
+                ConnectIQ.IQConnectType.WIRELESS,
+                recorder,
+                null);
+
+        while (recorder.stats == null
+                && SystemClock.uptimeMillis() - startMillis < MAX_SIMULATED_MILLIS) {
+            ShadowLooper.idleMainLooper(STEP_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        long simulatedMillis = SystemClock.uptimeMillis() - startMillis;
+
+        assertNotNull("Broadcast did not finish", recorder.stats);
+
+        List<Long> latencies = simulation.getStatusLatenciesMillis();
+        LOGGER.info(DEVICES + " devices, " + APPS + " apps, "
+                + installations + " installations: " + recorder.stats);
+        LOGGER.info("Delivered " + recorder.delivered
+                + ", undelivered " + recorder.undelivered
+                + ", " + simulation.getSentMessageCount() + " messages sent");
+        LOGGER.info("Took " + simulatedMillis + " ms simulated, "
+                + wallMillis + " ms wall clock, "
+                + recorder.delivered * 1000L / Math.max(1, simulatedMillis)
+                + " deliveries per simulated second");
+        LOGGER.info("Status latency p50 " + percentile(latencies, 0.5)
+                + " ms, p95 " + percentile(latencies, 0.95)
+                + " ms, p99 " + percentile(latencies, 0.99)
+                + " ms, max " + percentile(latencies, 1) + " ms");
+
+        // Retries should get almost everything through, except to devices that disconnected
+        assertTrue(recorder.delivered + recorder.undelivered <= installations);
+        assertTrue(recorder.delivered >= installations * 0.9);
+    }
+
+    private static long percentile(List<Long> sortedValues, double percentile) {
+        if (sortedValues.isEmpty()) {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(percentile * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(0, Math.min(index, sortedValues.size() - 1)));
+    }
+
+    /**
+     * Remembers what happened during the broadcast.
+     */
+    private static final class Recorder implements IBroadcasterEventListener {
+
+        /** The broadcast's result, once it has finished. */
+        private BroadcastStatistics stats;
+        /** Number of messages ConnectIQ has confirmed. */
+        private int delivered = 0;
+        /** Number of messages that were given up on. */
+        private int undelivered = 0;
+
+        @Override
+        public void broadcastFinished(BroadcastStatistics stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void messageSent(IQDevice device, IQApp app) {
+            delivered++;
+        }
+
+        @Override
+        public void messageUndelivered(IQDevice device, IQApp app, List<Object> parts) {
+            undelivered++;
+        }
+    }
+
+}
@@ -0,0 +1,380 @@
+package net.hypotenubel.calendariq.sync.connectiq;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.garmin.android.connectiq.ConnectIQ;
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A ConnectIQ backend without any actual devices. Devices and the apps installed on them are added
+ * up front. Replies and message statuses arrive on the given looper after a random latency, and
+ * messages may be dropped, lost, or cause their device to disconnect. Messages to the same device
+ * are transferred one after another, just like over Bluetooth.
+ *
+ * <p>Like the SDK, this only keeps one listener per device and app, and only the listener of the
+ * most recent application info request is told about replies.</p>
+ */
+public class SimulatedConnectIQ implements IConnectIQ {
+
+    /**
+     * A distribution latencies are drawn from.
+     */
+    public interface Latency {
+
+        /**
+         * Returns a latency drawn from the distribution.
+         */
+        long sampleMillis(Random random);
+
+        /**
+         * Returns a distribution that always yields the given latency.
+         */
+        static Latency fixed(long millis) {
+            return random -> millis;
+        }
+
+        /**
+         * Returns a distribution that yields latencies between the given bounds with equal
+         * probability.
+         */
+        static Latency uniform(long minMillis, long maxMillis) {
+            return random -> minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+        }
+
+        /**
+         * Returns a log-normal distribution with the given median. The larger the spread, the
+         * longer the tail.
+         */
+        static Latency logNormal(long medianMillis, double spread) {
+            return random -> Math.round(medianMillis * Math.exp(spread * random.nextGaussian()));
+        }
+    }
+
+    /** Calls listeners and makes time pass for them. */
+    private final Handler handler;
+    /** Decides what happens to each request. */
+    private final Random random;
+
+    /** How long initialization takes. */
+    private Latency initializationLatency = Latency.fixed(0);
+    /** How long devices take to answer application info requests. */
+    private Latency queryLatency = Latency.fixed(0);
+    /** How long it takes to transfer a message to a device. */
+    private Latency messageLatency = Latency.fixed(0);
+    /** Probability that a message fails to transfer and is reported as failed. */
+    private double dropProbability = 0;
+    /** Probability that a message is lost and no status is ever reported. */
+    private double lossProbability = 0;
+    /** Probability that a device disconnects while a message is being transferred to it. */
+    private double disconnectProbability = 0;
+
+    /** Our devices, indexed by ID. */
+    private final Map<Long, SimulatedDevice> devices = new LinkedHashMap<>();
+    /** Device event listeners, indexed by device ID. */
+    private final Map<Long, ConnectIQ.IQDeviceEventListener> deviceListeners = new HashMap<>();
+    /** App event listeners, indexed by device and app ID. */
+    private final Map<String, ConnectIQ.IQApplicationEventListener> appListeners = new HashMap<>();
+    /** Listener of the most recent application info request. */
+    private ConnectIQ.IQApplicationInfoListener appInfoListener;
+    /** Listener for initialization events. */
+    private ConnectIQ.ConnectIQListener sdkListener;
+
+    /** Number of messages passed to us. */
+    private int sentMessages = 0;
+    /** Time between sending each message and its status being reported, if it was. */
+    private final List<Long> statusLatenciesMillis = new ArrayList<>();
+
+
+    /**
+     * Creates a new simulation that calls listeners on the given looper.
+     *
+     * @param looper the looper to call listeners on.
+     * @param random decides what happens to each request. Seed it for reproducible runs.
+     */
+    public SimulatedConnectIQ(Looper looper, Random random) {
+        this.handler = new Handler(looper);
+        this.random = random;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Configuration
+
+    public void setInitializationLatency(Latency initializationLatency) {
+        this.initializationLatency = initializationLatency;
+    }
+
+    public void setQueryLatency(Latency queryLatency) {
+        this.queryLatency = queryLatency;
+    }
+
+    public void setMessageLatency(Latency messageLatency) {
+        this.messageLatency = messageLatency;
+    }
+
+    public void setDropProbability(double dropProbability) {
+        this.dropProbability = dropProbability;
+    }
+
+    public void setLossProbability(double lossProbability) {
+        this.lossProbability = lossProbability;
+    }
+
+    public void setDisconnectProbability(double disconnectProbability) {
+        this.disconnectProbability = disconnectProbability;
+    }
+
+    /**
+     * Adds a connected device without any apps installed.
+     */
+    public IQDevice addDevice(String name) {
+        IQDevice device = new IQDevice(devices.size() + 1, name);
+        device.setStatus(IQDevice.IQDeviceStatus.CONNECTED);
+        devices.put(device.getDeviceIdentifier(), new SimulatedDevice(device));
+        return device;
+    }
+
+    /**
+     * Installs the given app on the given device.
+     */
+    public void install(IQDevice device, String appId, int version) {
+        devices.get(device.getDeviceIdentifier()).installedApps.put(normalizeAppId(appId), version);
+    }
+
+    /**
+     * Disconnects the given device, telling its listener if there is one.
+     */
+    public void disconnect(IQDevice device) {
+        SimulatedDevice simulatedDevice = devices.get(device.getDeviceIdentifier());
+        if (!simulatedDevice.connected) {
+            return;
+        }
+
+        simulatedDevice.connected = false;
+        simulatedDevice.device.setStatus(IQDevice.IQDeviceStatus.NOT_CONNECTED);
+
+        ConnectIQ.IQDeviceEventListener listener =
+                deviceListeners.get(device.getDeviceIdentifier());
+        if (listener != null) {
+            listener.onDeviceStatusChanged(
+                    simulatedDevice.device, IQDevice.IQDeviceStatus.NOT_CONNECTED);
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Statistics
+
+    /**
+     * Returns the number of messages passed to us.
+     */
+    public int getSentMessageCount() {
+        return sentMessages;
+    }
+
+    /**
+     * Returns the time between sending each message and its status being reported, in ascending
+     * order. Messages that were lost are not included.
+     */
+    public List<Long> getStatusLatenciesMillis() {
+        List<Long> latencies = new ArrayList<>(statusLatenciesMillis);
+        Collections.sort(latencies);
+        return latencies;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // IConnectIQ
+
+    @Override
+    public void initialize(Context context, boolean autoUI, ConnectIQ.ConnectIQListener listener) {
+        sdkListener = listener;
+        handler.postDelayed(listener::onSdkReady, initializationLatency.sampleMillis(random));
+    }
+
+    @Override
+    public void shutdown(Context context) {
+        deviceListeners.clear();
+        appListeners.clear();
+        appInfoListener = null;
+
+        ConnectIQ.ConnectIQListener listener = sdkListener;
+        sdkListener = null;
+        if (listener != null) {
+            handler.post(listener::onSdkShutDown);
+        }
+    }
+
+    @Override
+    public List<IQDevice> getKnownDevices() {
+        List<IQDevice> knownDevices = new ArrayList<>();
+        for (SimulatedDevice simulatedDevice : devices.values()) {
+            knownDevices.add(simulatedDevice.device);
+        }
+        return knownDevices;
+    }
+
+    @Override
+    public List<IQDevice> getConnectedDevices() {
+        List<IQDevice> connectedDevices = new ArrayList<>();
+        for (SimulatedDevice simulatedDevice : devices.values()) {
+            if (simulatedDevice.connected) {
+                connectedDevices.add(simulatedDevice.device);
+            }
+        }
+        return connectedDevices;
+    }
+
+    @Override
+    public void getApplicationInfo(String appId, IQDevice device,
+                                   ConnectIQ.IQApplicationInfoListener listener) {
+
+        appInfoListener = listener;
+
+        SimulatedDevice simulatedDevice = devices.get(device.getDeviceIdentifier());
+        handler.postDelayed(() -> {
+            // Disconnected devices never answer, and the answer goes to whoever asked last
+            if (!simulatedDevice.connected || appInfoListener == null) {
+                return;
+            }
+
+            Integer version = simulatedDevice.installedApps.get(normalizeAppId(appId));
+            if (version != null) {
+                appInfoListener.onApplicationInfoReceived(
+                        new IQApp(appId, IQApp.IQAppStatus.INSTALLED, appId, version));
+            } else {
+                appInfoListener.onApplicationNotInstalled(appId);
+            }
+        }, queryLatency.sampleMillis(random));
+    }
+
+    @Override
+    public void sendMessage(IQDevice device, IQApp app, Object msg,
+                            ConnectIQ.IQSendMessageListener listener) {
+
+        sentMessages++;
+
+        SimulatedDevice simulatedDevice = devices.get(device.getDeviceIdentifier());
+        if (!simulatedDevice.connected) {
+            reportStatus(simulatedDevice, app, listener,
+                    ConnectIQ.IQMessageStatus.FAILURE_DEVICE_NOT_CONNECTED, 0);
+            return;
+        }
+
+        // The transfer has to wait for those before it
+        long now = SystemClock.uptimeMillis();
+        long transferStart = Math.max(now, simulatedDevice.busyUntilMillis);
+        long latency = transferStart - now + messageLatency.sampleMillis(random);
+        simulatedDevice.busyUntilMillis = now + latency;
+
+        double outcome = random.nextDouble();
+        if (outcome < lossProbability) {
+            return;
+
+        } else if (outcome < lossProbability + disconnectProbability) {
+            handler.postDelayed(() -> disconnect(device), latency / 2);
+            reportStatus(simulatedDevice, app, listener,
+                    ConnectIQ.IQMessageStatus.FAILURE_DEVICE_NOT_CONNECTED, latency);
+
+        } else if (outcome < lossProbability + disconnectProbability + dropProbability) {
+            reportStatus(simulatedDevice, app, listener,
+                    ConnectIQ.IQMessageStatus.FAILURE_DURING_TRANSFER, latency);
+
+        } else if (!simulatedDevice.installedApps.containsKey(
+                normalizeAppId(app.getApplicationId()))) {
+            reportStatus(simulatedDevice, app, listener,
+                    ConnectIQ.IQMessageStatus.FAILURE_UNKNOWN, latency);
+
+        } else {
+            reportStatus(simulatedDevice, app, listener,
+                    ConnectIQ.IQMessageStatus.SUCCESS, latency);
+        }
+    }
+
+    @Override
+    public void registerForDeviceEvents(IQDevice device,
+                                        ConnectIQ.IQDeviceEventListener listener) {
+
+        deviceListeners.put(device.getDeviceIdentifier(), listener);
+    }
+
+    @Override
+    public void registerForAppEvents(IQDevice device, IQApp app,
+                                     ConnectIQ.IQApplicationEventListener listener) {
+
+        appListeners.put(appKey(device, app), listener);
+    }
+
+    @Override
+    public void unregisterForEvents(IQDevice device) {
+        deviceListeners.remove(device.getDeviceIdentifier());
+        appListeners.keySet().removeIf(key -> key.startsWith(device.getDeviceIdentifier() + "/"));
+    }
+
+    @Override
+    public void unregisterForDeviceEvents(IQDevice device) {
+        deviceListeners.remove(device.getDeviceIdentifier());
+    }
+
+    @Override
+    public void unregisterForApplicationEvents(IQDevice device, IQApp app) {
+        appListeners.remove(appKey(device, app));
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Implementation
+
+    private void reportStatus(SimulatedDevice simulatedDevice, IQApp app,
+                              ConnectIQ.IQSendMessageListener listener,
+                              ConnectIQ.IQMessageStatus status, long latencyMillis) {
+
+        statusLatenciesMillis.add(latencyMillis);
+        handler.postDelayed(
+                () -> listener.onMessageStatus(simulatedDevice.device, app, status),
+                latencyMillis);
+    }
+
+    private static String appKey(IQDevice device, IQApp app) {
+        return device.getDeviceIdentifier() + "/" + app.getApplicationId();
+    }
+
+    /**
+     * Returns the given app ID the way {@link IQApp} reports it.
+     */
+    private static String normalizeAppId(String appId) {
+        return new IQApp(appId).getApplicationId();
+    }
+
+    /**
+     * A device and what's installed on it.
+     */
+    private static final class SimulatedDevice {
+
+        /** The device as we hand it out. */
+        private final IQDevice device;
+        /** Versions of the installed apps, indexed by app ID. */
+        private final Map<String, Integer> installedApps = new HashMap<>();
+        /** Whether the device is connected. */
+        private boolean connected = true;
+        /** When the device is done with the messages sent to it so far. */
+        private long busyUntilMillis = 0;
+
+        private SimulatedDevice(IQDevice device) {
+            this.device = device;
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package net.hypotenubel.calendariq.sync.synchroniser;
+
+import android.app.Application;
+
+import net.hypotenubel.calendariq.data.apps.AppInstallationCache;
+import net.hypotenubel.calendariq.data.apps.model.TargetApps;
+import net.hypotenubel.calendariq.data.msg.model.MessageFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks which format {@link PullRequestServer} answers requests in. Requests arrive with the app
+ * IDs ConnectIQ reports, which lack the dashes of the IDs we configure.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class PullRequestServerTest {
+
+    private static final long DEVICE_ID = 1234;
+    /** An app ID the way we configure it. */
+    private static final String CONFIGURED_ID = "0b7b1d2c-9a1b-4c6e-8f3e-5d2a6b7c8d9e";
+    /** The same app ID the way ConnectIQ reports it. */
+    private static final String CONNECTIQ_ID = "0b7b1d2c9a1b4c6e8f3e5d2a6b7c8d9e";
+    /** A request that doesn't say which format it wants. */
+    private static final List<Object> VERSIONLESS_REQUEST = Collections.singletonList(4);
+
+    private AppInstallationCache installationCache;
+    private TargetApps targetApps;
+
+    @Before
+    public void setUp() {
+        installationCache = new AppInstallationCache(RuntimeEnvironment.application);
+        installationCache.invalidateDevice(DEVICE_ID);
+
+        Map<MessageFormat, Integer> versions = new EnumMap<>(MessageFormat.class);
+        versions.put(MessageFormat.COMPACT, 5);
+        targetApps = new TargetApps(Collections.singletonList(CONFIGURED_ID),
+                Collections.singletonMap(CONFIGURED_ID, versions));
+    }
+
+    @Test
+    public void answersInTheRequestedFormat() {
+        assertEquals(MessageFormat.DELTA, getRequestedFormat(Arrays.<Object>asList(4, 3)));
+    }
+
+    @Test
+    public void answersInTheFormatTheCachedVersionUnderstands() {
+        installationCache.putInstalled(DEVICE_ID, CONFIGURED_ID, "Calendar", 5);
+
+        assertEquals(MessageFormat.COMPACT, getRequestedFormat(VERSIONLESS_REQUEST));
+    }
+
+    @Test
+    public void answersUnknownAppsInTheLegacyFormat() {
+        assertEquals(MessageFormat.LEGACY, getRequestedFormat(VERSIONLESS_REQUEST));
+    }
+
+    private MessageFormat getRequestedFormat(List<Object> request) {
+        return PullRequestServer.getRequestedFormat(
+                request, DEVICE_ID, CONNECTIQ_ID, installationCache, targetApps);
+    }
+
+}
@@ -0,0 +1,226 @@
+package net.hypotenubel.calendariq.sync.synchroniser;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.CancellationSignal;
+
+import com.garmin.android.connectiq.IQApp;
+import com.garmin.android.connectiq.IQDevice;
+
+import net.hypotenubel.calendariq.data.apps.AppInstallationCache;
+import net.hypotenubel.calendariq.data.apps.model.TargetApps;
+import net.hypotenubel.calendariq.data.msg.DeliveryFingerprintRepository;
+import net.hypotenubel.calendariq.data.msg.model.ConnectMessage;
+import net.hypotenubel.calendariq.data.msg.model.EncodedSegmentCache;
+import net.hypotenubel.calendariq.data.msg.model.SyncIntervalConnectMessagePart;
+import net.hypotenubel.calendariq.data.stats.BroadcastStatisticsRepository;
+import net.hypotenubel.calendariq.data.stats.model.BroadcastStatistics;
+import net.hypotenubel.calendariq.sync.connectiq.IBroadcasterEventListener;
+import net.hypotenubel.calendariq.util.dispatch.Dispatcher;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when a {@link Synchroniser} skips broadcasts and how it reacts to being cancelled. The
+ * broadcasts themselves are faked: they record what a real broadcast would find out and deliver
+ * the message to every installed app.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class SynchroniserTest {
+
+    private static final long DEVICE_ID = 1234;
+    /** An app installed on the device, with its ID the way we configure it. */
+    private static final String INSTALLED_APP_ID = "0b7b1d2c-9a1b-4c6e-8f3e-5d2a6b7c8d9e";
+    /** An app missing on the device, like the debug version of our app usually is. */
+    private static final String MISSING_APP_ID = "1c8c2e3d-0b2c-4d7f-9a4f-6e3b7c8d9eaf";
+
+    /** How long we wait for runs that should finish right away. */
+    private static final long JOIN_TIMEOUT_MILLIS = 2000;
+
+    private Context context;
+    private AppInstallationCache installationCache;
+    private DeliveryFingerprintRepository deliveryFingerprints;
+    private FakeBroadcastStrategy broadcastStrategy;
+    private RecordingStatisticsRepository statistics;
+    private Synchroniser synchroniser;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+
+        installationCache = new AppInstallationCache(context);
+        installationCache.invalidateDevice(DEVICE_ID);
+        deliveryFingerprints = new DeliveryFingerprintRepository(context);
+        deliveryFingerprints.forgetDelivery(DEVICE_ID, INSTALLED_APP_ID);
+
+        broadcastStrategy = new FakeBroadcastStrategy();
+        statistics = new RecordingStatisticsRepository();
+        synchroniser = createSynchroniser(new FixedMessageAssembler(context), broadcastStrategy);
+    }
+
+    @Test
+    public void skipsUnchangedSyncs() {
+        synchroniser.run();
+        synchroniser.run();
+
+        assertEquals(1, broadcastStrategy.broadcasts);
+        assertEquals(Arrays.asList(BroadcastStatistics.Outcome.SUCCESS,
+                BroadcastStatistics.Outcome.SKIPPED), statistics.outcomes);
+    }
+
+    @Test
+    public void broadcastsForcedSyncs() {
+        synchroniser.run();
+        synchroniser.run(true);
+
+        assertEquals(2, broadcastStrategy.broadcasts);
+    }
+
+    @Test
+    public void broadcastsToAppsWhoseDeliveryWasForgotten() {
+        synchroniser.run();
+        deliveryFingerprints.forgetDelivery(DEVICE_ID, INSTALLED_APP_ID);
+        synchroniser.run();
+
+        assertEquals(2, broadcastStrategy.broadcasts);
+    }
+
+    @Test
+    public void doesNotBroadcastIfCancelledWhileAssembling() {
+        Synchroniser[] cancelled = new Synchroniser[1];
+        cancelled[0] = createSynchroniser(new FixedMessageAssembler(context) {
+            @Override
+            public ConnectMessage assemble() {
+                cancelled[0].cancel();
+                return super.assemble();
+            }
+        }, broadcastStrategy);
+
+        cancelled[0].run();
+
+        assertEquals(0, broadcastStrategy.broadcasts);
+    }
+
+    @Test
+    public void recordsInterruptedRunsAsCancelled() throws InterruptedException {
+        CountDownLatch broadcastStarted = new CountDownLatch(1);
+        Synchroniser hanging = createSynchroniser(new FixedMessageAssembler(context),
+                (msg, appContext, listener, cancellation) -> broadcastStarted.countDown());
+
+        AtomicBoolean interruptedAfterRun = new AtomicBoolean(false);
+        Thread worker = new Thread(() -> {
+            hanging.run();
+            interruptedAfterRun.set(Thread.currentThread().isInterrupted());
+        });
+        worker.start();
+
+        assertTrue(broadcastStarted.await(JOIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        worker.interrupt();
+        worker.join(JOIN_TIMEOUT_MILLIS);
+
+        assertFalse("Run did not finish", worker.isAlive());
+        assertTrue(interruptedAfterRun.get());
+        assertEquals(Collections.singletonList(BroadcastStatistics.Outcome.FAILURE),
+                statistics.outcomes);
+    }
+
+    private Synchroniser createSynchroniser(MessageAssembler messageAssembler,
+                                            IBroadcastStrategy strategy) {
+
+        TargetApps targetApps = new TargetApps(Arrays.asList(INSTALLED_APP_ID, MISSING_APP_ID));
+        return new Synchroniser(
+                context,
+                messageAssembler,
+                strategy,
+                statistics,
+                deliveryFingerprints,
+                () -> targetApps,
+                installationCache,
+                new Dispatcher(),
+                new EncodedSegmentCache());
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Fakes
+
+    /**
+     * Always assembles the same message.
+     */
+    private static class FixedMessageAssembler extends MessageAssembler {
+
+        private FixedMessageAssembler(Context context) {
+            super(context, null, null);
+        }
+
+        @Override
+        public ConnectMessage assemble() {
+            return new ConnectMessage().addMessagePart(new SyncIntervalConnectMessagePart(60));
+        }
+
+    }
+
+    /**
+     * Remembers the outcome of each broadcast instead of storing its statistics.
+     */
+    private static final class RecordingStatisticsRepository
+            extends BroadcastStatisticsRepository {
+
+        private final List<BroadcastStatistics.Outcome> outcomes =
+                Collections.synchronizedList(new ArrayList<>());
+
+        private RecordingStatisticsRepository() {
+            super(null, null);
+        }
+
+        @Override
+        public void addBroadcastStats(BroadcastStatistics stats) {
+            outcomes.add(stats.getOutcome());
+        }
+
+    }
+
+    /**
+     * Does what a broadcast to our device would do, without talking to it.
+     */
+    private final class FakeBroadcastStrategy implements IBroadcastStrategy {
+
+        private volatile int broadcasts = 0;
+
+        @Override
+        public void broadcast(ConnectMessage msg, Context appContext,
+                              IBroadcasterEventListener listener,
+                              CancellationSignal cancellation) {
+
+            broadcasts++;
+
+            installationCache.putConnectedDevices(Collections.singletonList(DEVICE_ID));
+            installationCache.putInstalled(DEVICE_ID, INSTALLED_APP_ID, "Calendar", 1);
+            installationCache.putNotInstalled(DEVICE_ID, MISSING_APP_ID);
+
+            // ConnectIQ reports app IDs without dashes
+            listener.messageSent(new IQDevice(DEVICE_ID, "Watch"), new IQApp(INSTALLED_APP_ID));
+            listener.broadcastFinished(BroadcastStatistics.success(1));
+        }
+
+    }
+
+}